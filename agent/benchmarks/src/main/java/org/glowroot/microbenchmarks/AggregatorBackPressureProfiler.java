@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+// reports the number of transactions and aggregates dropped by the agent's Aggregator during each
+// iteration (read from the agent's "org.glowroot:type=Aggregator" mbean in the forked benchmark
+// jvm), which marks the throughput ceiling where back pressure kicks in
+//
+// reports nothing when running without the agent (or before the agent has registered its mbeans)
+public class AggregatorBackPressureProfiler implements InternalProfiler {
+
+    static final String DROPPED_TRANSACTIONS_LABEL = "\u00b7aggregator.dropped.transactions";
+    static final String DROPPED_AGGREGATES_LABEL = "\u00b7aggregator.dropped.aggregates";
+
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    private long droppedTransactionCountBefore;
+    private long droppedAggregateCountBefore;
+
+    @Override
+    public String getDescription() {
+        return "Glowroot agent aggregator back pressure";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams,
+            IterationParams iterationParams) {
+        droppedTransactionCountBefore = getAttribute("DroppedTransactionCount");
+        droppedAggregateCountBefore = getAttribute("DroppedAggregateCount");
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+            IterationParams iterationParams, IterationResult result) {
+        long droppedTransactionCount = getAttribute("DroppedTransactionCount");
+        long droppedAggregateCount = getAttribute("DroppedAggregateCount");
+        if (droppedTransactionCount == -1 || droppedAggregateCount == -1) {
+            return Collections.emptyList();
+        }
+        List<Result> results = Lists.newArrayList();
+        if (droppedTransactionCountBefore != -1) {
+            results.add(new ScalarResult(DROPPED_TRANSACTIONS_LABEL,
+                    droppedTransactionCount - droppedTransactionCountBefore, "transactions",
+                    AggregationPolicy.SUM));
+        }
+        if (droppedAggregateCountBefore != -1) {
+            results.add(new ScalarResult(DROPPED_AGGREGATES_LABEL,
+                    droppedAggregateCount - droppedAggregateCountBefore, "aggregates",
+                    AggregationPolicy.SUM));
+        }
+        return results;
+    }
+
+    // returns -1 if the agent mbean is not (yet) registered
+    private long getAttribute(String attributeName) {
+        try {
+            return (Long) mbeanServer.getAttribute(
+                    ObjectName.getInstance("org.glowroot:type=Aggregator"), attributeName);
+        } catch (InstanceNotFoundException e) {
+            return -1;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
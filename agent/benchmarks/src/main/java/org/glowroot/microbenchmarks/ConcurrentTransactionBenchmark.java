@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures throughput of transactions completing concurrently on many threads, which is dominated
+// by the hand-off of each completed transaction to the aggregator
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ConcurrentTransactionBenchmark {
+
+    private static final int TRANSACTIONS_PER_INVOCATION = 6400;
+
+    @Param({"1", "2", "4", "8", "16", "32", "64"})
+    private int threadCount;
+
+    @Param
+    private PointcutType pointcutType;
+
+    private ExecutorService executor;
+    private List<Callable<Void>> tasks;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(threadCount);
+        tasks = Lists.newArrayList();
+        final int transactionsPerThread = TRANSACTIONS_PER_INVOCATION / threadCount;
+        for (int i = 0; i < threadCount; i++) {
+            tasks.add(new Callable<Void>() {
+                private final TransactionWorthy transactionWorthy = new TransactionWorthy();
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < transactionsPerThread; j++) {
+                        switch (pointcutType) {
+                            case API:
+                                transactionWorthy.doSomethingTransactionWorthy();
+                                break;
+                            case CONFIG:
+                                transactionWorthy.doSomethingTransactionWorthy2();
+                                break;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSACTIONS_PER_INVOCATION)
+    public void execute() throws Exception {
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.agent.plugin.servlet.support.MockHttpRequest;
+import org.glowroot.agent.plugin.servlet.support.MockHttpResponse;
+import org.glowroot.microbenchmarks.support.MockJdbcServlet;
+
+// measures a mock servlet + jdbc request at increasing thread counts, so that (unlike the other
+// benchmarks) transaction completion, aggregation, trace storage and stack trace sampling all
+// contribute to the result
+//
+// sample time mode gives the latency distribution (p50/p99) and throughput mode gives the
+// throughput ceiling, see EndToEndBenchmarkRunner for running with and without the agent, with
+// the gc profiler (allocation per transaction) and with AggregatorBackPressureProfiler
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class EndToEndBenchmark {
+
+    @Param({"1", "10"})
+    private int queryCount;
+
+    private HttpServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    @Setup
+    public void setup() {
+        servlet = new MockJdbcServlet(queryCount);
+        request = new MockHttpRequest();
+        response = new MockHttpResponse();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01() throws Exception {
+        servlet.service(request, response);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04() throws Exception {
+        servlet.service(request, response);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16() throws Exception {
+        servlet.service(request, response);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64() throws Exception {
+        servlet.service(request, response);
+    }
+}
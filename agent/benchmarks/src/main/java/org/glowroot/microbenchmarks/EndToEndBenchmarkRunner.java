@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs EndToEndBenchmark twice, once without the agent (baseline) and once with the agent, and
+// writes the following (machine-readable) files to the current directory so that regressions can
+// be tracked over time:
+//
+// * end-to-end-baseline.json and end-to-end-agent.json (the full jmh results)
+// * end-to-end-summary.csv (added p50/p99 latency, added allocation per transaction and dropped
+//   transactions per thread count)
+//
+// usage:
+//
+// java -Dglowroot.agent.jar=path/to/glowroot.jar -cp target/benchmarks.jar
+//     org.glowroot.microbenchmarks.EndToEndBenchmarkRunner [jmh options]
+public class EndToEndBenchmarkRunner {
+
+    private static final String GC_ALLOC_RATE_NORM_LABEL = "\u00b7gc.alloc.rate.norm";
+
+    private EndToEndBenchmarkRunner() {}
+
+    public static void main(String[] args) throws Exception {
+        String agentJarPath = System.getProperty("glowroot.agent.jar");
+        if (Strings.isNullOrEmpty(agentJarPath)) {
+            System.err.println("missing -Dglowroot.agent.jar=path/to/glowroot.jar");
+            System.exit(1);
+            return;
+        }
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        Map<String, Summary> baselineSummaries =
+                run(commandLineOptions, "end-to-end-baseline.json", "");
+        Map<String, Summary> agentSummaries =
+                run(commandLineOptions, "end-to-end-agent.json", agentJarPath);
+        writeSummary(baselineSummaries, agentSummaries, new File("end-to-end-summary.csv"));
+    }
+
+    private static Map<String, Summary> run(CommandLineOptions commandLineOptions,
+            String resultFile, String agentJarPath) throws Exception {
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .include(EndToEndBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .addProfiler(AggregatorBackPressureProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile);
+        if (!agentJarPath.isEmpty()) {
+            builder.jvmArgsAppend("-javaagent:" + agentJarPath);
+        }
+        Collection<RunResult> runResults = new Runner(builder.build()).run();
+        // sorted by key so that the summary rows come out in a stable order
+        Map<String, Summary> summaries = new TreeMap<String, Summary>();
+        for (RunResult runResult : runResults) {
+            String key = "queryCount=" + runResult.getParams().getParam("queryCount")
+                    + ",threads=" + runResult.getParams().getThreads();
+            Summary summary = summaries.get(key);
+            if (summary == null) {
+                summary = new Summary();
+                summaries.put(key, summary);
+            }
+            Result primaryResult = runResult.getPrimaryResult();
+            Mode mode = runResult.getParams().getMode();
+            if (mode == Mode.SampleTime) {
+                summary.p50 = primaryResult.getStatistics().getPercentile(50);
+                summary.p99 = primaryResult.getStatistics().getPercentile(99);
+            } else if (mode == Mode.Throughput) {
+                summary.throughput = primaryResult.getScore();
+                Map<String, Result> secondaryResults = runResult.getSecondaryResults();
+                Result allocResult = secondaryResults.get(GC_ALLOC_RATE_NORM_LABEL);
+                if (allocResult != null) {
+                    summary.allocatedBytes = allocResult.getScore();
+                }
+                Result droppedResult = secondaryResults
+                        .get(AggregatorBackPressureProfiler.DROPPED_TRANSACTIONS_LABEL);
+                if (droppedResult != null) {
+                    summary.droppedTransactions = droppedResult.getScore();
+                }
+            }
+        }
+        return summaries;
+    }
+
+    private static void writeSummary(Map<String, Summary> baselineSummaries,
+            Map<String, Summary> agentSummaries, File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("benchmark,baselineThroughput,agentThroughput,baselineP50,agentP50,addedP50,"
+                + "baselineP99,agentP99,addedP99,baselineAllocatedBytes,agentAllocatedBytes,"
+                + "addedAllocatedBytes,droppedTransactions\n");
+        // throughput ceiling is the highest agent throughput that was achieved without the
+        // aggregator dropping any transactions
+        String ceilingKey = "";
+        double ceilingThroughput = 0;
+        for (Entry<String, Summary> entry : agentSummaries.entrySet()) {
+            String key = entry.getKey();
+            Summary agent = entry.getValue();
+            Summary baseline = baselineSummaries.get(key);
+            if (baseline == null) {
+                baseline = new Summary();
+            }
+            sb.append('"');
+            sb.append(key);
+            sb.append('"');
+            append(sb, baseline.throughput);
+            append(sb, agent.throughput);
+            append(sb, baseline.p50);
+            append(sb, agent.p50);
+            append(sb, agent.p50 - baseline.p50);
+            append(sb, baseline.p99);
+            append(sb, agent.p99);
+            append(sb, agent.p99 - baseline.p99);
+            append(sb, baseline.allocatedBytes);
+            append(sb, agent.allocatedBytes);
+            append(sb, agent.allocatedBytes - baseline.allocatedBytes);
+            append(sb, agent.droppedTransactions);
+            sb.append('\n');
+            if (agent.droppedTransactions == 0 && agent.throughput > ceilingThroughput) {
+                ceilingKey = key;
+                ceilingThroughput = agent.throughput;
+            }
+        }
+        Files.write(sb.toString(), file, Charsets.UTF_8);
+        System.out.println("summary written to " + file.getAbsolutePath());
+        if (!ceilingKey.isEmpty()) {
+            System.out.println("throughput ceiling without back pressure: " + ceilingThroughput
+                    + " ops/us (" + ceilingKey + ")");
+        }
+    }
+
+    private static void append(StringBuilder sb, double value) {
+        sb.append(',');
+        sb.append(Double.isNaN(value) ? "" : Double.toString(value));
+    }
+
+    private static class Summary {
+
+        private double throughput = Double.NaN;
+        private double p50 = Double.NaN;
+        private double p99 = Double.NaN;
+        private double allocatedBytes = Double.NaN;
+        private double droppedTransactions;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import org.openjdk.jmh.annotations.Fork;
+
+// same as TraceEntryBenchmark, but with trace entry recycling enabled
+//
+// compare the two using the gc profiler, e.g.
+//
+// java -jar benchmarks.jar -jvmArgs -javaagent:glowroot.jar -prof gc "TraceEntry.*Benchmark"
+//
+// and look at gc.alloc.rate.norm (bytes allocated per trace entry)
+@Fork(jvmArgsAppend = "-Dglowroot.internal.recycleTraceEntries=true")
+public class TraceEntryRecyclingBenchmark extends TraceEntryBenchmark {}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs WeavingBenchmark with the agent, once with only the plugin advisors and once with hundreds
+// of additional instrumentation configs (similar to an application with many custom
+// instrumentation points), and writes the full jmh results to weaving-<count>.json in the current
+// directory
+//
+// usage:
+//
+// java -Dglowroot.agent.jar=path/to/glowroot.jar -cp target/benchmarks.jar
+//     org.glowroot.microbenchmarks.WeavingBenchmarkRunner [jmh options]
+public class WeavingBenchmarkRunner {
+
+    private static final int[] INSTRUMENTATION_COUNTS = {0, 400};
+
+    private WeavingBenchmarkRunner() {}
+
+    public static void main(String[] args) throws Exception {
+        String agentJarPath = System.getProperty("glowroot.agent.jar");
+        if (Strings.isNullOrEmpty(agentJarPath)) {
+            System.err.println("missing -Dglowroot.agent.jar=path/to/glowroot.jar");
+            System.exit(1);
+            return;
+        }
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        for (int instrumentationCount : INSTRUMENTATION_COUNTS) {
+            File baseDir = Files.createTempDir();
+            try {
+                writeConfig(new File(baseDir, "config.json"), instrumentationCount);
+                new Runner(new OptionsBuilder()
+                        .parent(commandLineOptions)
+                        .include(WeavingBenchmark.class.getName())
+                        .jvmArgsAppend("-javaagent:" + agentJarPath,
+                                "-Dglowroot.base.dir=" + baseDir.getAbsolutePath())
+                        .result("weaving-" + instrumentationCount + ".json")
+                        .build()).run();
+            } finally {
+                deleteRecursively(baseDir);
+            }
+        }
+    }
+
+    // the instrumentation configs are a mix of exact and pattern class and method names, none of
+    // which end up matching any method (so that the benchmark measures the pointcut matching and
+    // not the weaving itself), and some of which match the declaring class of every spring class
+    // (so that the method level matching is exercised too)
+    private static void writeConfig(File file, int instrumentationCount) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"instrumentation\": [");
+        for (int i = 0; i < instrumentationCount; i++) {
+            String className;
+            String methodName;
+            switch (i % 4) {
+                case 0:
+                    className = "com.example.app.Service" + i;
+                    methodName = "execute";
+                    break;
+                case 1:
+                    className = "com.example.app" + i + ".*";
+                    methodName = "handle*";
+                    break;
+                case 2:
+                    className = "org.springframework.*";
+                    methodName = "benchmarkMethod" + i;
+                    break;
+                default:
+                    className = "com.example.app.Controller" + i;
+                    methodName = "index*";
+                    break;
+            }
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("\n    {\n");
+            sb.append("      \"className\": \"" + className + "\",\n");
+            sb.append("      \"methodName\": \"" + methodName + "\",\n");
+            sb.append("      \"methodParameterTypes\": [\n        \"..\"\n      ],\n");
+            sb.append("      \"captureKind\": \"timer\",\n");
+            sb.append("      \"timerName\": \"benchmark " + i + "\"\n");
+            sb.append("    }");
+        }
+        sb.append("\n  ]\n}\n");
+        Files.write(sb.toString(), file, Charsets.UTF_8);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("could not delete " + file.getAbsolutePath());
+        }
+    }
+}
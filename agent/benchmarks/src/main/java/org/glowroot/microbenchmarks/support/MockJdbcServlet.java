@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.glowroot.agent.plugin.jdbc.support.MockConnection;
+
+// a servlet request that performs a number of jdbc queries, so that a single request exercises the
+// servlet and jdbc plugins, timers, trace entries, query aggregation and transaction completion
+@SuppressWarnings("serial")
+public class MockJdbcServlet extends HttpServlet {
+
+    private final Connection connection = new MockConnection();
+    private final int queryCount;
+
+    public MockJdbcServlet(int queryCount) {
+        this.queryCount = queryCount;
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException {
+        try {
+            for (int i = 0; i < queryCount; i++) {
+                PreparedStatement preparedStatement =
+                        connection.prepareStatement("select * from mock where id = ?");
+                try {
+                    preparedStatement.setInt(1, i);
+                    ResultSet resultSet = preparedStatement.executeQuery();
+                    try {
+                        resultSet.next();
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    preparedStatement.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new ServletException(e);
+        }
+    }
+}
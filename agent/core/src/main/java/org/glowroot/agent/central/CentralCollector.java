@@ -20,11 +20,19 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +41,8 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -54,9 +64,11 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
-import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -73,10 +85,20 @@ public class CentralCollector implements Collector {
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
 
+    // traces are read and sent on a dedicated thread, since sending blocks while waiting on flow
+    // control from the central collector
+    private final ExecutorService traceStreamExecutor;
+
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
     private volatile int nextAggregateDelayMillis;
 
+    // older central collectors only read the HdrHistogram encoding of aggregate histograms
+    private volatile boolean histogramBucketCountsSupported;
+
+    // older central collectors only read the trace as a single (legacy) trace stream message
+    private volatile boolean traceEntryMessagesSupported;
+
     public CentralCollector(Map<String, String> properties, String collectorHost,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
             LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
@@ -115,6 +137,11 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+        traceStreamExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Trace-Stream")
+                        .build());
     }
 
     @Override
@@ -137,6 +164,8 @@ public class CentralCollector implements Collector {
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}:{}, version {}",
                         collectorHost, collectorPort, response.getGlowrootCentralVersion());
+                histogramBucketCountsSupported = response.getHistogramBucketCountsSupported();
+                traceEntryMessagesSupported = response.getTraceEntryMessagesSupported();
                 if (response.hasAgentConfig()) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -171,53 +200,8 @@ public class CentralCollector implements Collector {
     }
 
     @Override
-    public void collectTrace(Trace trace) {
-        final List<String> sharedQueryTexts = Lists.newArrayList();
-        for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
-            // local collection always passes in full text
-            checkState(sharedQueryText.getTruncatedText().isEmpty());
-            checkState(sharedQueryText.getTruncatedEndText().isEmpty());
-            checkState(sharedQueryText.getFullTextSha1().isEmpty());
-            sharedQueryTexts.add(sharedQueryText.getFullText());
-        }
-        final Trace traceWithoutSharedQueryText = trace.toBuilder()
-                .clearSharedQueryText()
-                .build();
-        final List<String> fullTextSha1s = Lists.newArrayList();
-        centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
-            @Override
-            public void call(StreamObserver<EmptyMessage> responseObserver) {
-                StreamObserver<TraceStreamMessage> requestObserver =
-                        collectorServiceStub.collectTraceStream(responseObserver);
-                requestObserver.onNext(TraceStreamMessage.newBuilder()
-                        .setHeader(TraceStreamHeader.newBuilder()
-                                .setAgentId(agentId))
-                        .build());
-                // need to clear in case this is a retry
-                fullTextSha1s.clear();
-                for (String sharedQueryText : sharedQueryTexts) {
-                    Trace.SharedQueryText traceSharedQueryText =
-                            sharedQueryTextLimiter.buildTraceSharedQueryText(sharedQueryText);
-                    String fullTextSha1 = traceSharedQueryText.getFullTextSha1();
-                    if (!fullTextSha1.isEmpty()) {
-                        fullTextSha1s.add(fullTextSha1);
-                    }
-                    requestObserver.onNext(TraceStreamMessage.newBuilder()
-                            .setSharedQueryText(traceSharedQueryText)
-                            .build());
-                }
-                requestObserver.onNext(TraceStreamMessage.newBuilder()
-                        .setTrace(traceWithoutSharedQueryText)
-                        .build());
-                requestObserver.onCompleted();
-            }
-            @Override
-            public void doWithResponse(EmptyMessage response) {
-                for (String fullTextSha1 : fullTextSha1s) {
-                    sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
-                }
-            }
-        });
+    public void collectTrace(TraceReader traceReader) {
+        centralConnection.callWithAFewRetries(new CollectTraceGrpcCall(traceReader));
     }
 
     @Override
@@ -244,14 +228,34 @@ public class CentralCollector implements Collector {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         downstreamServiceObserver.close();
+        traceStreamExecutor.shutdown();
         centralConnection.close();
     }
 
     @OnlyUsedByTests
     public void awaitClose() throws InterruptedException {
+        if (!traceStreamExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         centralConnection.awaitClose();
     }
 
+    private Aggregate toCollectorAggregate(Aggregate aggregate, ScratchBuffer scratchBuffer) {
+        Aggregate.Histogram histogram = aggregate.getDurationNanosHistogram();
+        if (histogramBucketCountsSupported || histogram.getBucketCounts().isEmpty()) {
+            return aggregate;
+        }
+        try {
+            return aggregate.toBuilder()
+                    .setDurationNanosHistogram(
+                            LazyHistogram.toLegacyProto(histogram, scratchBuffer))
+                    .build();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return aggregate;
+        }
+    }
+
     private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
 
         private final Aggregates aggregates;
@@ -274,6 +278,7 @@ public class CentralCollector implements Collector {
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
+            final ScratchBuffer scratchBuffer = new ScratchBuffer();
             aggregates.accept(new AggregateVisitor<RuntimeException>() {
                 @Override
                 public void visitOverallAggregate(String transactionType,
@@ -292,7 +297,8 @@ public class CentralCollector implements Collector {
                     requestObserver.onNext(AggregateStreamMessage.newBuilder()
                             .setOverallAggregate(OverallAggregate.newBuilder()
                                     .setTransactionType(transactionType)
-                                    .setAggregate(overallAggregate))
+                                    .setAggregate(
+                                            toCollectorAggregate(overallAggregate, scratchBuffer)))
                             .build());
                 }
                 @Override
@@ -309,7 +315,8 @@ public class CentralCollector implements Collector {
                             .setTransactionAggregate(TransactionAggregate.newBuilder()
                                     .setTransactionType(transactionType)
                                     .setTransactionName(transactionName)
-                                    .setAggregate(transactionAggregate))
+                                    .setAggregate(toCollectorAggregate(transactionAggregate,
+                                            scratchBuffer)))
                             .build());
                 }
             });
@@ -324,4 +331,254 @@ public class CentralCollector implements Collector {
             }
         }
     }
+
+    private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
+
+        private final TraceReader traceReader;
+        private final List<String> fullTextSha1s = Lists.newArrayList();
+
+        private CollectTraceGrpcCall(TraceReader traceReader) {
+            this.traceReader = traceReader;
+        }
+
+        @Override
+        public void call(StreamObserver<EmptyMessage> responseObserver) {
+            final FlowControlledTraceStream traceStream =
+                    new FlowControlledTraceStream(responseObserver);
+            collectorServiceStub.collectTraceStream(traceStream);
+            // the trace reader is re-read on each attempt (instead of holding onto the messages
+            // for retries), and attempts do not overlap since the executor is single threaded
+            traceStreamExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendTrace(traceStream);
+                }
+            });
+        }
+
+        @Override
+        public void doWithResponse(EmptyMessage response) {
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+        }
+
+        private void sendTrace(FlowControlledTraceStream traceStream) {
+            // need to clear in case this is a retry
+            fullTextSha1s.clear();
+            try {
+                traceStream.send(TraceStreamMessage.newBuilder()
+                        .setHeader(TraceStreamHeader.newBuilder()
+                                .setAgentId(agentId)
+                                .setTraceId(traceReader.traceId())
+                                .setUpdate(traceReader.update()))
+                        .build());
+                if (traceEntryMessagesSupported) {
+                    traceReader.accept(new TraceStreamVisitor(traceStream));
+                } else {
+                    LegacyTraceStreamVisitor visitor = new LegacyTraceStreamVisitor(traceStream);
+                    traceReader.accept(visitor);
+                    traceStream.send(TraceStreamMessage.newBuilder()
+                            .setTrace(visitor.trace)
+                            .build());
+                }
+                traceStream.complete();
+            } catch (TraceStreamClosedException e) {
+                // the call has already failed, and the failure is handled (and retried) by the
+                // response observer
+                logger.debug(e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                traceStream.cancel(e);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                traceStream.cancel(t);
+            }
+        }
+
+        private void sendSharedQueryTexts(List<String> sharedQueryTexts,
+                FlowControlledTraceStream traceStream) throws Exception {
+            for (String sharedQueryText : sharedQueryTexts) {
+                Trace.SharedQueryText traceSharedQueryText =
+                        sharedQueryTextLimiter.buildTraceSharedQueryText(sharedQueryText);
+                String fullTextSha1 = traceSharedQueryText.getFullTextSha1();
+                if (!fullTextSha1.isEmpty()) {
+                    fullTextSha1s.add(fullTextSha1);
+                }
+                traceStream.send(TraceStreamMessage.newBuilder()
+                        .setSharedQueryText(traceSharedQueryText)
+                        .build());
+            }
+        }
+
+        private class TraceStreamVisitor implements TraceVisitor<Exception> {
+
+            private final FlowControlledTraceStream traceStream;
+
+            private TraceStreamVisitor(FlowControlledTraceStream traceStream) {
+                this.traceStream = traceStream;
+            }
+
+            @Override
+            public void visitEntry(Trace.Entry entry) throws Exception {
+                traceStream.send(TraceStreamMessage.newBuilder()
+                        .setEntry(entry)
+                        .build());
+            }
+
+            @Override
+            public void visitSharedQueryTexts(List<String> sharedQueryTexts) throws Exception {
+                sendSharedQueryTexts(sharedQueryTexts, traceStream);
+            }
+
+            @Override
+            public void visitMainThreadProfile(Profile profile) throws Exception {
+                traceStream.send(TraceStreamMessage.newBuilder()
+                        .setMainThreadProfile(profile)
+                        .build());
+            }
+
+            @Override
+            public void visitAuxThreadProfile(Profile profile) throws Exception {
+                traceStream.send(TraceStreamMessage.newBuilder()
+                        .setAuxThreadProfile(profile)
+                        .build());
+            }
+
+            @Override
+            public void visitHeader(Trace.Header header) throws Exception {
+                traceStream.send(TraceStreamMessage.newBuilder()
+                        .setTraceHeader(header)
+                        .build());
+            }
+        }
+
+        // central collectors prior to 0.9.8 only accept the whole trace (minus shared query texts)
+        // in a single message, so the trace has to be built up in memory
+        private class LegacyTraceStreamVisitor implements TraceVisitor<Exception> {
+
+            private final FlowControlledTraceStream traceStream;
+            private final Trace.Builder trace;
+
+            private LegacyTraceStreamVisitor(FlowControlledTraceStream traceStream) {
+                this.traceStream = traceStream;
+                trace = Trace.newBuilder()
+                        .setId(traceReader.traceId())
+                        .setUpdate(traceReader.update());
+            }
+
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                trace.addEntry(entry);
+            }
+
+            @Override
+            public void visitSharedQueryTexts(List<String> sharedQueryTexts) throws Exception {
+                sendSharedQueryTexts(sharedQueryTexts, traceStream);
+            }
+
+            @Override
+            public void visitMainThreadProfile(Profile profile) {
+                trace.setMainThreadProfile(profile);
+            }
+
+            @Override
+            public void visitAuxThreadProfile(Profile profile) {
+                trace.setAuxThreadProfile(profile);
+            }
+
+            @Override
+            public void visitHeader(Trace.Header header) {
+                trace.setHeader(header);
+            }
+        }
+    }
+
+    // sending blocks the trace stream thread until the transport is ready to accept another
+    // message, instead of queueing up the whole trace in the transport's buffers
+    //
+    // the on ready handler is set in beforeStart() so that no on ready signal can be missed
+    private static class FlowControlledTraceStream
+            implements ClientResponseObserver<TraceStreamMessage, EmptyMessage>, Runnable {
+
+        private final StreamObserver<EmptyMessage> responseObserver;
+
+        private @MonotonicNonNull ClientCallStreamObserver<TraceStreamMessage> requestObserver;
+
+        @GuardedBy("this")
+        private boolean closed;
+
+        private FlowControlledTraceStream(StreamObserver<EmptyMessage> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<TraceStreamMessage> requestObserver) {
+            this.requestObserver = requestObserver;
+            requestObserver.setOnReadyHandler(this);
+        }
+
+        // on ready handler
+        @Override
+        public synchronized void run() {
+            notifyAll();
+        }
+
+        @Override
+        public void onNext(EmptyMessage value) {
+            responseObserver.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+            responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            close();
+            responseObserver.onCompleted();
+        }
+
+        private void send(TraceStreamMessage message)
+                throws TraceStreamClosedException, InterruptedException {
+            checkNotNull(requestObserver);
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new TraceStreamClosedException();
+                    }
+                    if (requestObserver.isReady()) {
+                        break;
+                    }
+                    // the on ready handler (or close) will notify
+                    wait();
+                }
+            }
+            requestObserver.onNext(message);
+        }
+
+        private void complete() {
+            checkNotNull(requestObserver);
+            requestObserver.onCompleted();
+        }
+
+        private void cancel(Throwable t) {
+            checkNotNull(requestObserver);
+            requestObserver.onError(t);
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class TraceStreamClosedException extends Exception {
+        private TraceStreamClosedException() {
+            super("Trace stream closed before the trace was fully sent");
+        }
+    }
 }
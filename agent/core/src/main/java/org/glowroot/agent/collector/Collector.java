@@ -24,6 +24,7 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 public interface Collector {
@@ -35,7 +36,7 @@ public interface Collector {
 
     void collectGaugeValues(List<GaugeValue> gaugeValues) throws Exception;
 
-    void collectTrace(Trace trace) throws Exception;
+    void collectTrace(TraceReader traceReader) throws Exception;
 
     void log(LogEvent logEvent) throws Exception;
 
@@ -53,4 +54,20 @@ public interface Collector {
         void visitTransactionAggregate(String transactionType, String transactionName,
                 List<String> sharedQueryTexts, Aggregate transactionAggregate) throws T;
     }
+
+    public interface TraceReader {
+        String traceId();
+        boolean update();
+        // entries are visited first (in order), followed by shared query texts, profiles and
+        // finally the header (since the header includes the entry count)
+        <T extends Exception> void accept(TraceVisitor<T> traceVisitor) throws T;
+    }
+
+    public interface TraceVisitor<T extends Exception> {
+        void visitEntry(Trace.Entry entry) throws T;
+        void visitSharedQueryTexts(List<String> sharedQueryTexts) throws T;
+        void visitMainThreadProfile(Profile profile) throws T;
+        void visitAuxThreadProfile(Profile profile) throws T;
+        void visitHeader(Trace.Header header) throws T;
+    }
 }
@@ -34,7 +34,6 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
-import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 class CollectorImpl implements Collector {
 
@@ -110,8 +109,8 @@ class CollectorImpl implements Collector {
     }
 
     @Override
-    public void collectTrace(Trace trace) throws Exception {
-        traceDao.store(trace);
+    public void collectTrace(TraceReader traceReader) throws Exception {
+        traceDao.store(traceReader);
     }
 
     @Override
@@ -17,6 +17,7 @@ package org.glowroot.agent.embedded.repo;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -51,6 +52,7 @@ import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
@@ -70,6 +72,8 @@ import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.common.repo.util.ParallelMerger;
+import org.glowroot.common.repo.util.ParallelMerger.IntervalMerger;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
@@ -149,21 +153,38 @@ public class AggregateDao implements AggregateRepository {
             ImmutableList.of("capture_time", "transaction_type", "transaction_name",
                     "total_duration_nanos", "transaction_count", "error_count");
 
+    // one row per interval pointing to all of the aggregates for that interval in columnar form
+    // (see AggregateSegment), the segment itself is stored in the rollup level's segment capped
+    // database, which has its own size limit so that segments do not reduce the retention of the
+    // queries, service calls and profiles in the rollup level's capped database
+    private static final ImmutableList<Column> aggregateSegmentColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("segment_capped_id", ColumnType.BIGINT));
+
     private final DataSource dataSource;
     private final List<CappedDatabase> rollupCappedDatabases;
+    private final List<CappedDatabase> segmentCappedDatabases;
     private final ConfigRepository configRepository;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
 
     private final AtomicLongArray lastRollupTimes;
 
+    // chart reads prior to these capture times (which were stored before aggregate segments were
+    // introduced) fall back to reading the individual aggregate rows
+    private final AtomicLongArray firstSegmentCaptureTimes;
+
     private final Object rollupLock = new Object();
 
+    private final ParallelMerger parallelMerger = ParallelMerger.create();
+
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
-            ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao) throws Exception {
+            List<CappedDatabase> segmentCappedDatabases, ConfigRepository configRepository,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao)
+            throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
+        this.segmentCappedDatabases = segmentCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -178,6 +199,10 @@ public class AggregateDao implements AggregateRepository {
             dataSource.syncTable(transactionTableName, transactionAggregateColumns);
             dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
                     .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            String segmentTableName = "aggregate_segment_rollup_" + castUntainted(i);
+            dataSource.syncTable(segmentTableName, aggregateSegmentColumns);
+            dataSource.syncIndexes(segmentTableName, ImmutableList.<Index>of(ImmutableIndex
+                    .of(segmentTableName + "_idx", ImmutableList.of("capture_time"))));
         }
 
         // don't need last_rollup_times table like in GaugeValueDao since there is already index
@@ -190,6 +215,14 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        long[] firstSegmentCaptureTimes = new long[rollupConfigs.size()];
+        for (int i = 0; i < firstSegmentCaptureTimes.length; i++) {
+            firstSegmentCaptureTimes[i] = dataSource.queryForLong(
+                    "select ifnull(min(capture_time), " + castUntainted(Long.MAX_VALUE)
+                            + ") from aggregate_segment_rollup_" + castUntainted(i));
+        }
+        this.firstSegmentCaptureTimes = new AtomicLongArray(firstSegmentCaptureTimes);
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -198,6 +231,7 @@ public class AggregateDao implements AggregateRepository {
         // large batch
         final CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
         final List<TruncatedQueryText> truncatedQueryTexts = Lists.newArrayList();
+        final AggregateSegment.Builder segmentBuilder = new AggregateSegment.Builder();
         aggregates.accept(new AggregateVisitor<Exception>() {
             @Override
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
@@ -205,6 +239,7 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
                         overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                segmentBuilder.add(transactionType, null, overallAggregate);
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -214,6 +249,7 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                segmentBuilder.add(transactionType, transactionName, transactionAggregate);
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -234,6 +270,7 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
+        storeSegment(captureTime, 0, segmentBuilder);
         synchronized (rollupLock) {
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
             for (int i = 1; i < rollupConfigs.size(); i++) {
@@ -285,21 +322,21 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new OverviewAggregateQuery(query));
+        return readAggregates(query, new OverviewSegmentReader());
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new PercentileAggregateQuery(query));
+        return readAggregates(query, new PercentileSegmentReader());
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new ThroughputAggregateQuery(query));
+        return readAggregates(query, new ThroughputSegmentReader());
     }
 
     @Override
@@ -316,23 +353,37 @@ public class AggregateDao implements AggregateRepository {
         // then do the expensive part of reading and constructing the protobuf messages outside of
         // the data source lock
         List<CappedId> cappedIds = dataSource.query(new CappedIdQuery("queries_capped_id", query));
-        long captureTime = Long.MIN_VALUE;
-        for (CappedId cappedId : cappedIds) {
-            captureTime = Math.max(captureTime, cappedId.captureTime());
-            List<Stored.QueriesByType> queries = rollupCappedDatabases.get(query.rollupLevel())
-                    .readMessages(cappedId.cappedId(), Stored.QueriesByType.parser());
-            for (Stored.QueriesByType toBeMergedQueries : queries) {
-                for (Stored.Query toBeMergedQuery : toBeMergedQueries.getQueryList()) {
-                    collector.mergeQuery(toBeMergedQueries.getType(),
-                            toBeMergedQuery.getTruncatedText(),
-                            Strings.emptyToNull(toBeMergedQuery.getFullTextSha1()),
-                            toBeMergedQuery.getTotalDurationNanos(),
-                            toBeMergedQuery.getExecutionCount(), toBeMergedQuery.hasTotalRows(),
-                            toBeMergedQuery.getTotalRows().getValue());
+        final CappedDatabase cappedDatabase = rollupCappedDatabases.get(query.rollupLevel());
+        parallelMerger.merge(cappedIds, collector, new IntervalMerger<CappedId, QueryCollector>() {
+            @Override
+            public QueryCollector newPartialCollector() {
+                return new QueryCollector(Integer.MAX_VALUE);
+            }
+            @Override
+            public void mergeInterval(CappedId cappedId, QueryCollector collector)
+                    throws IOException {
+                List<Stored.QueriesByType> queries = cappedDatabase
+                        .readMessages(cappedId.cappedId(), Stored.QueriesByType.parser());
+                for (Stored.QueriesByType toBeMergedQueries : queries) {
+                    for (Stored.Query toBeMergedQuery : toBeMergedQueries.getQueryList()) {
+                        collector.mergeQuery(toBeMergedQueries.getType(),
+                                toBeMergedQuery.getTruncatedText(),
+                                Strings.emptyToNull(toBeMergedQuery.getFullTextSha1()),
+                                toBeMergedQuery.getTotalDurationNanos(),
+                                toBeMergedQuery.getExecutionCount(),
+                                toBeMergedQuery.hasTotalRows(),
+                                toBeMergedQuery.getTotalRows().getValue());
+                    }
                 }
+                collector.updateLastCaptureTime(cappedId.captureTime());
             }
-            collector.updateLastCaptureTime(captureTime);
-        }
+            @Override
+            public void mergePartialCollector(QueryCollector partialCollector,
+                    QueryCollector collector) {
+                collector.mergeQueries(partialCollector);
+                collector.updateLastCaptureTime(partialCollector.getLastCaptureTime());
+            }
+        });
     }
 
     // query.from() is non-inclusive
@@ -344,17 +395,29 @@ public class AggregateDao implements AggregateRepository {
         // the data source lock
         List<CappedId> cappedIds =
                 dataSource.query(new CappedIdQuery("service_calls_capped_id", query));
-        long captureTime = Long.MIN_VALUE;
-        for (CappedId cappedId : cappedIds) {
-            captureTime = Math.max(captureTime, cappedId.captureTime());
-            List<Aggregate.ServiceCallsByType> queries =
-                    rollupCappedDatabases.get(query.rollupLevel()).readMessages(cappedId.cappedId(),
-                            Aggregate.ServiceCallsByType.parser());
-            if (queries != null) {
-                collector.mergeServiceCalls(queries);
-                collector.updateLastCaptureTime(captureTime);
-            }
-        }
+        final CappedDatabase cappedDatabase = rollupCappedDatabases.get(query.rollupLevel());
+        parallelMerger.merge(cappedIds, collector,
+                new IntervalMerger<CappedId, ServiceCallCollector>() {
+                    @Override
+                    public ServiceCallCollector newPartialCollector() {
+                        return new ServiceCallCollector(Integer.MAX_VALUE, 0);
+                    }
+                    @Override
+                    public void mergeInterval(CappedId cappedId, ServiceCallCollector collector)
+                            throws IOException {
+                        List<Aggregate.ServiceCallsByType> serviceCalls =
+                                cappedDatabase.readMessages(cappedId.cappedId(),
+                                        Aggregate.ServiceCallsByType.parser());
+                        collector.mergeServiceCalls(serviceCalls);
+                        collector.updateLastCaptureTime(cappedId.captureTime());
+                    }
+                    @Override
+                    public void mergePartialCollector(ServiceCallCollector partialCollector,
+                            ServiceCallCollector collector) {
+                        collector.mergeServiceCalls(partialCollector);
+                        collector.updateLastCaptureTime(partialCollector.getLastCaptureTime());
+                    }
+                });
     }
 
     // query.from() is non-inclusive
@@ -420,6 +483,8 @@ public class AggregateDao implements AggregateRepository {
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        dataSource.deleteBefore("aggregate_segment_rollup_" + castUntainted(rollupLevel),
+                captureTime);
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -427,29 +492,104 @@ public class AggregateDao implements AggregateRepository {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
+            AggregateSegment.Builder segmentBuilder = new AggregateSegment.Builder();
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+                    fromRollupLevel, toRollupLevel, segmentBuilder));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+                    fromRollupLevel, toRollupLevel, segmentBuilder));
+            storeSegment(rollupTime, toRollupLevel, segmentBuilder);
+        }
+    }
+
+    private void storeSegment(long captureTime, int rollupLevel,
+            AggregateSegment.Builder segmentBuilder) throws Exception {
+        if (segmentBuilder.isEmpty()) {
+            return;
+        }
+        long segmentCappedId = segmentCappedDatabases.get(rollupLevel).writeBytes(
+                segmentBuilder.toByteArray(), RollupCappedDatabaseStats.AGGREGATE_SEGMENTS);
+        dataSource.update("merge into aggregate_segment_rollup_" + castUntainted(rollupLevel)
+                + " (capture_time, segment_capped_id) key (capture_time) values (?, ?)",
+                captureTime, segmentCappedId);
+        if (captureTime < firstSegmentCaptureTimes.get(rollupLevel)) {
+            firstSegmentCaptureTimes.set(rollupLevel, captureTime);
         }
     }
 
+    private <T> List<T> readAggregates(TransactionQuery query, SegmentReader<T> segmentReader)
+            throws Exception {
+        int rollupLevel = query.rollupLevel();
+        // intervals prior to the first segment (which were stored before aggregate segments were
+        // introduced) and intervals whose segment has already expired from the capped database
+        // are read from the individual aggregate rows
+        long rowQueryTo = firstSegmentCaptureTimes.get(rollupLevel) - 1;
+        List<T> segmentAggregates = Lists.newArrayList();
+        if (query.to() > rowQueryTo) {
+            TransactionQuery segmentQuery = ImmutableTransactionQuery.copyOf(query)
+                    .withFrom(Math.max(query.from(), rowQueryTo + 1));
+            // get list of capped ids first since that is done under the data source lock
+            // then read and decode the segments outside of the data source lock
+            List<CappedId> cappedIds = dataSource.query(new SegmentCappedIdQuery(segmentQuery));
+            CappedDatabase cappedDatabase = segmentCappedDatabases.get(rollupLevel);
+            for (CappedId cappedId : cappedIds) {
+                byte[] bytes = cappedDatabase.readBytes(cappedId.cappedId());
+                if (bytes == null) {
+                    // capped ids are assigned in capture time order, so the earlier segments in
+                    // this list have expired as well (or are about to), and it's simplest to just
+                    // re-read everything up to here from the individual aggregate rows
+                    rowQueryTo = cappedId.captureTime();
+                    segmentAggregates.clear();
+                    continue;
+                }
+                AggregateSegment segment = new AggregateSegment(bytes);
+                AggregateSegment.Row row =
+                        segment.findRow(query.transactionType(), query.transactionName());
+                if (row != null) {
+                    segmentAggregates.add(
+                            segmentReader.read(segment, row, cappedId.captureTime()));
+                }
+            }
+        }
+        if (query.from() > rowQueryTo) {
+            return segmentAggregates;
+        }
+        TransactionQuery rowQuery = ImmutableTransactionQuery.copyOf(query)
+                .withTo(Math.min(query.to(), rowQueryTo));
+        List<T> aggregates = Lists.newArrayList(dataSource.query(segmentReader.rowQuery(rowQuery)));
+        aggregates.addAll(segmentAggregates);
+        return aggregates;
+    }
+
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
             @Untainted String cappedIdColumnName) throws Exception {
         // get list of capped ids first since that is done under the data source lock
         // then do the expensive part of reading and constructing the protobuf messages outside of
         // the data source lock
         List<CappedId> cappedIds = dataSource.query(new CappedIdQuery(cappedIdColumnName, query));
-        long captureTime = Long.MIN_VALUE;
-        for (CappedId cappedId : cappedIds) {
-            captureTime = Math.max(captureTime, cappedId.captureTime());
-            Profile profile = rollupCappedDatabases.get(query.rollupLevel())
-                    .readMessage(cappedId.cappedId(), Profile.parser());
-            if (profile != null) {
-                collector.mergeProfile(profile);
-                collector.updateLastCaptureTime(captureTime);
-            }
-        }
+        final CappedDatabase cappedDatabase = rollupCappedDatabases.get(query.rollupLevel());
+        parallelMerger.merge(cappedIds, collector,
+                new IntervalMerger<CappedId, ProfileCollector>() {
+                    @Override
+                    public ProfileCollector newPartialCollector() {
+                        return new ProfileCollector();
+                    }
+                    @Override
+                    public void mergeInterval(CappedId cappedId, ProfileCollector collector)
+                            throws IOException {
+                        Profile profile =
+                                cappedDatabase.readMessage(cappedId.cappedId(), Profile.parser());
+                        if (profile != null) {
+                            collector.mergeProfile(profile);
+                            collector.updateLastCaptureTime(cappedId.captureTime());
+                        }
+                    }
+                    @Override
+                    public void mergePartialCollector(ProfileCollector partialCollector,
+                            ProfileCollector collector) {
+                        collector.mergeProfile(partialCollector.getProfile().toProto());
+                        collector.updateLastCaptureTime(partialCollector.getLastCaptureTime());
+                    }
+                });
     }
 
     private void merge(MutableAggregate mergedAggregate, ResultSet resultSet, int startColumnIndex,
@@ -499,8 +639,7 @@ public class AggregateDao implements AggregateRepository {
         mergedAggregate.addAuxThreadTotalBlockedNanos(auxThreadTotalBlockedNanos);
         mergedAggregate.addAuxThreadTotalWaitedNanos(auxThreadTotalWaitedNanos);
         mergedAggregate.addAuxThreadTotalAllocatedBytes(auxThreadTotalAllocatedBytes);
-        mergedAggregate
-                .mergeDurationNanosHistogram(Aggregate.Histogram.parseFrom(durationNanosHistogram));
+        mergedAggregate.mergeDurationNanosHistogram(ByteBuffer.wrap(durationNanosHistogram));
         if (queriesCappedId != null) {
             List<Stored.QueriesByType> queries = rollupCappedDatabases.get(fromRollupLevel)
                     .readMessages(queriesCappedId, Stored.QueriesByType.parser());
@@ -999,20 +1138,108 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class SegmentCappedIdQuery implements JdbcQuery<List<CappedId>> {
+
+        private final TransactionQuery query;
+
+        private SegmentCappedIdQuery(TransactionQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select capture_time, segment_capped_id from aggregate_segment_rollup_"
+                    + castUntainted(query.rollupLevel())
+                    + " where capture_time >= ? and capture_time <= ? order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, query.from());
+            preparedStatement.setLong(2, query.to());
+        }
+
+        @Override
+        public List<CappedId> processResultSet(ResultSet resultSet) throws Exception {
+            List<CappedId> cappedIds = Lists.newArrayList();
+            while (resultSet.next()) {
+                cappedIds.add(ImmutableCappedId.of(resultSet.getLong(1), resultSet.getLong(2)));
+            }
+            return cappedIds;
+        }
+
+        @Override
+        public List<CappedId> valueIfDataSourceClosing() {
+            return ImmutableList.of();
+        }
+    }
+
+    private abstract static class SegmentReader<T> {
+
+        abstract JdbcRowQuery<T> rowQuery(TransactionQuery query);
+
+        abstract T read(AggregateSegment segment, AggregateSegment.Row row, long captureTime)
+                throws IOException;
+    }
+
+    private static class OverviewSegmentReader extends SegmentReader<OverviewAggregate> {
+
+        @Override
+        JdbcRowQuery<OverviewAggregate> rowQuery(TransactionQuery query) {
+            return new OverviewAggregateQuery(query);
+        }
+
+        @Override
+        OverviewAggregate read(AggregateSegment segment, AggregateSegment.Row row,
+                long captureTime) throws IOException {
+            return segment.readOverviewAggregate(row, captureTime);
+        }
+    }
+
+    private static class PercentileSegmentReader extends SegmentReader<PercentileAggregate> {
+
+        @Override
+        JdbcRowQuery<PercentileAggregate> rowQuery(TransactionQuery query) {
+            return new PercentileAggregateQuery(query);
+        }
+
+        @Override
+        PercentileAggregate read(AggregateSegment segment, AggregateSegment.Row row,
+                long captureTime) throws IOException {
+            return segment.readPercentileAggregate(row, captureTime);
+        }
+    }
+
+    private static class ThroughputSegmentReader extends SegmentReader<ThroughputAggregate> {
+
+        @Override
+        JdbcRowQuery<ThroughputAggregate> rowQuery(TransactionQuery query) {
+            return new ThroughputAggregateQuery(query);
+        }
+
+        @Override
+        ThroughputAggregate read(AggregateSegment segment, AggregateSegment.Row row,
+                long captureTime) {
+            return segment.readThroughputAggregate(row, captureTime);
+        }
+    }
+
     private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final AggregateSegment.Builder segmentBuilder;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
         private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+                int fromRollupLevel, int toRollupLevel, AggregateSegment.Builder segmentBuilder) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.segmentBuilder = segmentBuilder;
         }
 
         @Override
@@ -1046,9 +1273,7 @@ public class AggregateDao implements AggregateRepository {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                                cappedDatabase, scratchBuffer));
+                        insert(curr.transactionType(), curr.aggregate(), cappedDatabase);
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
                             new MutableAggregate(maxAggregateQueriesPerType,
@@ -1057,9 +1282,7 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
-                        scratchBuffer));
+                insert(curr.transactionType(), curr.aggregate(), cappedDatabase);
             }
             return null;
         }
@@ -1068,6 +1291,15 @@ public class AggregateDao implements AggregateRepository {
         public @Nullable Void valueIfDataSourceClosing() {
             return null;
         }
+
+        private void insert(String transactionType, MutableAggregate aggregate,
+                CappedDatabase cappedDatabase) throws Exception {
+            dataSource.update(new AggregateInsert(transactionType, null, rollupCaptureTime,
+                    aggregate, toRollupLevel, cappedDatabase, scratchBuffer));
+            segmentBuilder.add(transactionType, null,
+                    aggregate.toOverviewAggregate(rollupCaptureTime),
+                    aggregate.getDurationNanosHistogram().toProto(scratchBuffer));
+        }
     }
 
     private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
@@ -1076,13 +1308,15 @@ public class AggregateDao implements AggregateRepository {
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final AggregateSegment.Builder segmentBuilder;
 
         private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+                int fromRollupLevel, int toRollupLevel, AggregateSegment.Builder segmentBuilder) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.segmentBuilder = segmentBuilder;
         }
 
         @Override
@@ -1120,9 +1354,8 @@ public class AggregateDao implements AggregateRepository {
                 if (curr == null || !transactionType.equals(curr.transactionType())
                         || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
-                                curr.transactionName(), rollupCaptureTime, curr.aggregate(),
-                                toRollupLevel, cappedDatabase, scratchBuffer));
+                        insert(curr.transactionType(), curr.transactionName(), curr.aggregate(),
+                                cappedDatabase, scratchBuffer);
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
                             new MutableAggregate(maxAggregateQueriesPerType,
@@ -1131,9 +1364,8 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 3, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                        cappedDatabase, scratchBuffer));
+                insert(curr.transactionType(), curr.transactionName(), curr.aggregate(),
+                        cappedDatabase, scratchBuffer);
             }
             return null;
         }
@@ -1142,6 +1374,16 @@ public class AggregateDao implements AggregateRepository {
         public @Nullable Void valueIfDataSourceClosing() {
             return null;
         }
+
+        private void insert(String transactionType, String transactionName,
+                MutableAggregate aggregate, CappedDatabase cappedDatabase,
+                ScratchBuffer scratchBuffer) throws Exception {
+            dataSource.update(new AggregateInsert(transactionType, transactionName,
+                    rollupCaptureTime, aggregate, toRollupLevel, cappedDatabase, scratchBuffer));
+            segmentBuilder.add(transactionType, transactionName,
+                    aggregate.toOverviewAggregate(rollupCaptureTime),
+                    aggregate.getDurationNanosHistogram().toProto(scratchBuffer));
+        }
     }
 
     private class CappedIdQuery implements JdbcQuery<List<CappedId>> {
@@ -1164,7 +1406,7 @@ public class AggregateDao implements AggregateRepository {
             return "select capture_time, " + cappedIdColumnName + " from " + tableName
                     + " where transaction_type = ?" + transactionNameCriteria
                     + " and capture_time > ? and capture_time <= ? and " + cappedIdColumnName
-                    + " >= ?";
+                    + " >= ? order by capture_time";
         }
 
         @Override
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.glowroot.common.live.ImmutableOverviewAggregate;
+import org.glowroot.common.live.ImmutablePercentileAggregate;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
+
+// columnar encoding of all of the aggregates (overall and per transaction name) stored for a single
+// interval at a single rollup level
+//
+// chart reads only need to read a single segment per interval, locate the requested transaction
+// type/name by scanning the (dictionary encoded) primitive columns, and then only decode the
+// timers and histogram of that one row, instead of reading and parsing the protobuf blobs of one
+// row per transaction type/name per interval
+//
+// reading is lazy, the dictionary strings are compared as raw utf-8 bytes and only the requested
+// row's values are decoded from each column (the other rows are just skipped over)
+//
+// layout (all integers are varints):
+// * version
+// * dictionary size, followed by the dictionary strings (transaction types, transaction names and
+//   timer names)
+// * row count
+// * key column (dictionary index of transaction type, followed by dictionary index + 1 of
+//   transaction name, 0 for overall rows)
+// * transaction count column (zig-zag delta encoded)
+// * total duration nanos column (fixed width doubles)
+// * flags column (async transactions bit followed by one presence bit per thread stat)
+// * thread stats column (fixed width doubles, only for the thread stats that are present)
+// * timers column (length prefixed per row)
+// * duration nanos histogram column (length prefixed per row)
+class AggregateSegment {
+
+    private static final int VERSION = 1;
+
+    private static final int ASYNC_TRANSACTIONS_FLAG = 1;
+    // main thread stats followed by aux thread stats, each in the order cpu, blocked, waited,
+    // allocated
+    private static final int THREAD_STATS_COUNT = 8;
+
+    private static final int DOUBLE_SIZE = 8;
+
+    private final byte[] bytes;
+
+    AggregateSegment(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    // returns null if the segment does not contain the transaction type/name
+    @Nullable
+    Row findRow(String transactionType, @Nullable String transactionName) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(bytes);
+        int version = input.readUInt32();
+        if (version != VERSION) {
+            throw new IOException("Unexpected aggregate segment version: " + version);
+        }
+        byte[] transactionTypeBytes = transactionType.getBytes(Charsets.UTF_8);
+        byte /*@Nullable*/[] transactionNameBytes =
+                transactionName == null ? null : transactionName.getBytes(Charsets.UTF_8);
+        int transactionTypeIndex = -1;
+        int transactionNameIndex = transactionName == null ? 0 : -1;
+        // offsets of the (length prefixed) dictionary strings, so that timer names can be decoded
+        // later on for just the requested row
+        int[] dictionaryOffsets = new int[input.readUInt32()];
+        for (int i = 0; i < dictionaryOffsets.length; i++) {
+            dictionaryOffsets[i] = input.getTotalBytesRead();
+            int length = input.readUInt32();
+            int offset = input.getTotalBytesRead();
+            if (transactionTypeIndex == -1 && equals(transactionTypeBytes, offset, length)) {
+                transactionTypeIndex = i;
+            }
+            if (transactionNameIndex == -1 && transactionNameBytes != null
+                    && equals(transactionNameBytes, offset, length)) {
+                transactionNameIndex = i + 1;
+            }
+            input.skipRawBytes(length);
+        }
+        if (transactionTypeIndex == -1 || transactionNameIndex == -1) {
+            return null;
+        }
+        int rowCount = input.readUInt32();
+        int row = -1;
+        for (int i = 0; i < rowCount; i++) {
+            int currTransactionTypeIndex = input.readUInt32();
+            int currTransactionNameIndex = input.readUInt32();
+            if (row == -1 && currTransactionTypeIndex == transactionTypeIndex
+                    && currTransactionNameIndex == transactionNameIndex) {
+                row = i;
+            }
+        }
+        if (row == -1) {
+            return null;
+        }
+        long transactionCount = 0;
+        for (int i = 0; i <= row; i++) {
+            transactionCount += input.readSInt64();
+        }
+        for (int i = row + 1; i < rowCount; i++) {
+            input.readSInt64();
+        }
+        input.skipRawBytes(row * DOUBLE_SIZE);
+        double totalDurationNanos = input.readDouble();
+        input.skipRawBytes((rowCount - row - 1) * DOUBLE_SIZE);
+        int flags = 0;
+        int precedingThreadStatsCount = 0;
+        int totalThreadStatsCount = 0;
+        for (int i = 0; i < rowCount; i++) {
+            int currFlags = input.readUInt32();
+            int threadStatsCount = Integer.bitCount(currFlags & ~ASYNC_TRANSACTIONS_FLAG);
+            if (i < row) {
+                precedingThreadStatsCount += threadStatsCount;
+            } else if (i == row) {
+                flags = currFlags;
+            }
+            totalThreadStatsCount += threadStatsCount;
+        }
+        input.skipRawBytes(precedingThreadStatsCount * DOUBLE_SIZE);
+        double[] threadStats = new double[THREAD_STATS_COUNT];
+        int threadStatsCount = 0;
+        for (int i = 0; i < THREAD_STATS_COUNT; i++) {
+            if ((flags & threadStatFlag(i)) != 0) {
+                threadStats[i] = input.readDouble();
+                threadStatsCount++;
+            } else {
+                threadStats[i] = Double.NaN;
+            }
+        }
+        input.skipRawBytes((totalThreadStatsCount - precedingThreadStatsCount - threadStatsCount)
+                * DOUBLE_SIZE);
+        int[] timers = readLengthPrefixedValue(input, rowCount, row);
+        int[] histogram = readLengthPrefixedValue(input, rowCount, row);
+        return new Row(dictionaryOffsets, transactionCount, totalDurationNanos, flags,
+                threadStats, timers[0], timers[1], histogram[0], histogram[1]);
+    }
+
+    OverviewAggregate readOverviewAggregate(Row row, long captureTime) throws IOException {
+        ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(row.totalDurationNanos)
+                .transactionCount(row.transactionCount)
+                .asyncTransactions((row.flags & ASYNC_TRANSACTIONS_FLAG) != 0);
+        CodedInputStream input =
+                CodedInputStream.newInstance(bytes, row.timersOffset, row.timersLength);
+        builder.mainThreadRootTimers(readTimers(input, row.dictionaryOffsets));
+        builder.auxThreadRootTimers(readTimers(input, row.dictionaryOffsets));
+        builder.asyncTimers(readTimers(input, row.dictionaryOffsets));
+        Aggregate.ThreadStats mainThreadStats = buildThreadStats(row.threadStats, 0);
+        if (mainThreadStats != null) {
+            builder.mainThreadStats(mainThreadStats);
+        }
+        Aggregate.ThreadStats auxThreadStats =
+                buildThreadStats(row.threadStats, THREAD_STATS_COUNT / 2);
+        if (auxThreadStats != null) {
+            builder.auxThreadStats(auxThreadStats);
+        }
+        return builder.build();
+    }
+
+    PercentileAggregate readPercentileAggregate(Row row, long captureTime) throws IOException {
+        CodedInputStream input =
+                CodedInputStream.newInstance(bytes, row.histogramOffset, row.histogramLength);
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        int rawValueCount = input.readUInt32();
+        long rawValue = 0;
+        for (int i = 0; i < rawValueCount; i++) {
+            rawValue += input.readSInt64();
+            histogram.addOrderedRawValue(rawValue);
+        }
+        histogram.setBucketPrecisionBits(input.readUInt32());
+        histogram.setBucketCounts(input.readBytes());
+        histogram.setEncodedBytes(input.readBytes());
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(row.totalDurationNanos)
+                .transactionCount(row.transactionCount)
+                .durationNanosHistogram(histogram.build())
+                .build();
+    }
+
+    ThroughputAggregate readThroughputAggregate(Row row, long captureTime) {
+        return ImmutableThroughputAggregate.of(captureTime, row.transactionCount);
+    }
+
+    private boolean equals(byte[] value, int offset, int length) {
+        if (value.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Aggregate.Timer> readTimers(CodedInputStream input, int[] dictionaryOffsets)
+            throws IOException {
+        int count = input.readUInt32();
+        List<Aggregate.Timer> timers = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            timers.add(Aggregate.Timer.newBuilder()
+                    .setName(readDictionaryString(dictionaryOffsets[input.readUInt32()]))
+                    .setExtended(input.readBool())
+                    .setTotalNanos(input.readDouble())
+                    .setCount(input.readUInt64())
+                    .addAllChildTimer(readTimers(input, dictionaryOffsets))
+                    .build());
+        }
+        return timers;
+    }
+
+    private String readDictionaryString(int offset) throws IOException {
+        return CodedInputStream.newInstance(bytes, offset, bytes.length - offset).readString();
+    }
+
+    private static @Nullable Aggregate.ThreadStats buildThreadStats(double[] threadStats,
+            int startIndex) {
+        int i = startIndex;
+        double totalCpuNanos = threadStats[i++];
+        double totalBlockedNanos = threadStats[i++];
+        double totalWaitedNanos = threadStats[i++];
+        double totalAllocatedBytes = threadStats[i++];
+        if (Double.isNaN(totalCpuNanos) && Double.isNaN(totalBlockedNanos)
+                && Double.isNaN(totalWaitedNanos) && Double.isNaN(totalAllocatedBytes)) {
+            return null;
+        }
+        Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
+        if (!Double.isNaN(totalCpuNanos)) {
+            builder.setTotalCpuNanos(OptionalDouble.newBuilder().setValue(totalCpuNanos));
+        }
+        if (!Double.isNaN(totalBlockedNanos)) {
+            builder.setTotalBlockedNanos(OptionalDouble.newBuilder().setValue(totalBlockedNanos));
+        }
+        if (!Double.isNaN(totalWaitedNanos)) {
+            builder.setTotalWaitedNanos(OptionalDouble.newBuilder().setValue(totalWaitedNanos));
+        }
+        if (!Double.isNaN(totalAllocatedBytes)) {
+            builder.setTotalAllocatedBytes(
+                    OptionalDouble.newBuilder().setValue(totalAllocatedBytes));
+        }
+        return builder.build();
+    }
+
+    // returns the offset and length of the requested row's value, and skips over the rest of the
+    // column
+    private static int[] readLengthPrefixedValue(CodedInputStream input, int rowCount, int row)
+            throws IOException {
+        int[] offsetAndLength = new int[2];
+        for (int i = 0; i < rowCount; i++) {
+            int length = input.readUInt32();
+            if (i == row) {
+                offsetAndLength[0] = input.getTotalBytesRead();
+                offsetAndLength[1] = length;
+            }
+            input.skipRawBytes(length);
+        }
+        return offsetAndLength;
+    }
+
+    private static int threadStatFlag(int threadStatIndex) {
+        return ASYNC_TRANSACTIONS_FLAG << (threadStatIndex + 1);
+    }
+
+    static class Builder {
+
+        private final Map<String, Integer> dictionaryIndexes = Maps.newHashMap();
+        private final List<String> dictionary = Lists.newArrayList();
+
+        private final List<PendingRow> rows = Lists.newArrayList();
+
+        void add(String transactionType, @Nullable String transactionName, Aggregate aggregate)
+                throws IOException {
+            add(transactionType, transactionName, aggregate.getTotalDurationNanos(),
+                    aggregate.getTransactionCount(), aggregate.getAsyncTransactions(),
+                    aggregate.getMainThreadRootTimerList(), aggregate.getAuxThreadRootTimerList(),
+                    aggregate.getAsyncTimerList(),
+                    aggregate.hasMainThreadStats() ? aggregate.getMainThreadStats() : null,
+                    aggregate.hasAuxThreadStats() ? aggregate.getAuxThreadStats() : null,
+                    aggregate.getDurationNanosHistogram());
+        }
+
+        void add(String transactionType, @Nullable String transactionName,
+                OverviewAggregate overviewAggregate, Aggregate.Histogram durationNanosHistogram)
+                throws IOException {
+            add(transactionType, transactionName, overviewAggregate.totalDurationNanos(),
+                    overviewAggregate.transactionCount(), overviewAggregate.asyncTransactions(),
+                    overviewAggregate.mainThreadRootTimers(),
+                    overviewAggregate.auxThreadRootTimers(), overviewAggregate.asyncTimers(),
+                    overviewAggregate.mainThreadStats(), overviewAggregate.auxThreadStats(),
+                    durationNanosHistogram);
+        }
+
+        boolean isEmpty() {
+            return rows.isEmpty();
+        }
+
+        byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            CodedOutputStream output = CodedOutputStream.newInstance(baos);
+            output.writeUInt32NoTag(VERSION);
+            output.writeUInt32NoTag(dictionary.size());
+            for (String value : dictionary) {
+                output.writeStringNoTag(value);
+            }
+            output.writeUInt32NoTag(rows.size());
+            for (PendingRow row : rows) {
+                output.writeUInt32NoTag(row.transactionTypeIndex);
+                output.writeUInt32NoTag(row.transactionNameIndex);
+            }
+            long lastTransactionCount = 0;
+            for (PendingRow row : rows) {
+                output.writeSInt64NoTag(row.transactionCount - lastTransactionCount);
+                lastTransactionCount = row.transactionCount;
+            }
+            for (PendingRow row : rows) {
+                output.writeDoubleNoTag(row.totalDurationNanos);
+            }
+            for (PendingRow row : rows) {
+                output.writeUInt32NoTag(row.flags);
+            }
+            for (PendingRow row : rows) {
+                for (int i = 0; i < THREAD_STATS_COUNT; i++) {
+                    if ((row.flags & threadStatFlag(i)) != 0) {
+                        output.writeDoubleNoTag(row.threadStats[i]);
+                    }
+                }
+            }
+            for (PendingRow row : rows) {
+                output.writeByteArrayNoTag(row.timers);
+            }
+            for (PendingRow row : rows) {
+                output.writeByteArrayNoTag(row.durationNanosHistogram);
+            }
+            output.flush();
+            return baos.toByteArray();
+        }
+
+        private void add(String transactionType, @Nullable String transactionName,
+                double totalDurationNanos, long transactionCount, boolean asyncTransactions,
+                List<Aggregate.Timer> mainThreadRootTimers,
+                List<Aggregate.Timer> auxThreadRootTimers, List<Aggregate.Timer> asyncTimers,
+                @Nullable Aggregate.ThreadStats mainThreadStats,
+                @Nullable Aggregate.ThreadStats auxThreadStats,
+                Aggregate.Histogram durationNanosHistogram) throws IOException {
+            double[] threadStats = new double[THREAD_STATS_COUNT];
+            setThreadStats(threadStats, 0, mainThreadStats);
+            setThreadStats(threadStats, THREAD_STATS_COUNT / 2, auxThreadStats);
+            int flags = asyncTransactions ? ASYNC_TRANSACTIONS_FLAG : 0;
+            for (int i = 0; i < THREAD_STATS_COUNT; i++) {
+                if (!Double.isNaN(threadStats[i])) {
+                    flags |= threadStatFlag(i);
+                }
+            }
+            ByteArrayOutputStream timers = new ByteArrayOutputStream();
+            CodedOutputStream output = CodedOutputStream.newInstance(timers);
+            writeTimers(mainThreadRootTimers, output);
+            writeTimers(auxThreadRootTimers, output);
+            writeTimers(asyncTimers, output);
+            output.flush();
+            ByteArrayOutputStream histogram = new ByteArrayOutputStream();
+            output = CodedOutputStream.newInstance(histogram);
+            List<Long> rawValues = durationNanosHistogram.getOrderedRawValueList();
+            output.writeUInt32NoTag(rawValues.size());
+            long lastRawValue = 0;
+            for (long rawValue : rawValues) {
+                output.writeSInt64NoTag(rawValue - lastRawValue);
+                lastRawValue = rawValue;
+            }
+            output.writeUInt32NoTag(durationNanosHistogram.getBucketPrecisionBits());
+            output.writeBytesNoTag(durationNanosHistogram.getBucketCounts());
+            output.writeBytesNoTag(durationNanosHistogram.getEncodedBytes());
+            output.flush();
+            int transactionTypeIndex = getDictionaryIndex(transactionType);
+            int transactionNameIndex =
+                    transactionName == null ? 0 : getDictionaryIndex(transactionName) + 1;
+            rows.add(new PendingRow(transactionTypeIndex, transactionNameIndex, transactionCount,
+                    totalDurationNanos, flags, threadStats, timers.toByteArray(),
+                    histogram.toByteArray()));
+        }
+
+        private void writeTimers(List<Aggregate.Timer> timers, CodedOutputStream output)
+                throws IOException {
+            output.writeUInt32NoTag(timers.size());
+            for (Aggregate.Timer timer : timers) {
+                output.writeUInt32NoTag(getDictionaryIndex(timer.getName()));
+                output.writeBoolNoTag(timer.getExtended());
+                output.writeDoubleNoTag(timer.getTotalNanos());
+                output.writeUInt64NoTag(timer.getCount());
+                writeTimers(timer.getChildTimerList(), output);
+            }
+        }
+
+        private int getDictionaryIndex(String value) {
+            Integer index = dictionaryIndexes.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndexes.put(value, index);
+            }
+            return index;
+        }
+
+        private static void setThreadStats(double[] threadStats, int startIndex,
+                @Nullable Aggregate.ThreadStats stats) {
+            int i = startIndex;
+            threadStats[i++] = stats != null && stats.hasTotalCpuNanos()
+                    ? stats.getTotalCpuNanos().getValue() : Double.NaN;
+            threadStats[i++] = stats != null && stats.hasTotalBlockedNanos()
+                    ? stats.getTotalBlockedNanos().getValue() : Double.NaN;
+            threadStats[i++] = stats != null && stats.hasTotalWaitedNanos()
+                    ? stats.getTotalWaitedNanos().getValue() : Double.NaN;
+            threadStats[i++] = stats != null && stats.hasTotalAllocatedBytes()
+                    ? stats.getTotalAllocatedBytes().getValue() : Double.NaN;
+        }
+    }
+
+    static class Row {
+
+        private final int[] dictionaryOffsets;
+        private final long transactionCount;
+        private final double totalDurationNanos;
+        private final int flags;
+        // NaN for thread stats that are not present
+        private final double[] threadStats;
+        private final int timersOffset;
+        private final int timersLength;
+        private final int histogramOffset;
+        private final int histogramLength;
+
+        private Row(int[] dictionaryOffsets, long transactionCount, double totalDurationNanos,
+                int flags, double[] threadStats, int timersOffset, int timersLength,
+                int histogramOffset, int histogramLength) {
+            this.dictionaryOffsets = dictionaryOffsets;
+            this.transactionCount = transactionCount;
+            this.totalDurationNanos = totalDurationNanos;
+            this.flags = flags;
+            this.threadStats = threadStats;
+            this.timersOffset = timersOffset;
+            this.timersLength = timersLength;
+            this.histogramOffset = histogramOffset;
+            this.histogramLength = histogramLength;
+        }
+    }
+
+    private static class PendingRow {
+
+        private final int transactionTypeIndex;
+        private final int transactionNameIndex;
+        private final long transactionCount;
+        private final double totalDurationNanos;
+        private final int flags;
+        private final double[] threadStats;
+        private final byte[] timers;
+        private final byte[] durationNanosHistogram;
+
+        private PendingRow(int transactionTypeIndex, int transactionNameIndex,
+                long transactionCount, double totalDurationNanos, int flags, double[] threadStats,
+                byte[] timers, byte[] durationNanosHistogram) {
+            this.transactionTypeIndex = transactionTypeIndex;
+            this.transactionNameIndex = transactionNameIndex;
+            this.transactionCount = transactionCount;
+            this.totalDurationNanos = totalDurationNanos;
+            this.flags = flags;
+            this.threadStats = threadStats;
+            this.timers = timers;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+    }
+}
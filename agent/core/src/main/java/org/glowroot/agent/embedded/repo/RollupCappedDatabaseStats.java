@@ -23,11 +23,15 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     static final String AGGREGATE_QUERIES = "aggregate queries";
     static final String AGGREGATE_SERVICE_CALLS = "aggregate service calls";
     static final String AGGREGATE_PROFILES = "aggregate profiles";
+    static final String AGGREGATE_SEGMENTS = "aggregate segments";
 
     private final CappedDatabase cappedDatabase;
+    private final CappedDatabase segmentCappedDatabase;
 
-    RollupCappedDatabaseStats(CappedDatabase cappedDatabase) {
+    RollupCappedDatabaseStats(CappedDatabase cappedDatabase,
+            CappedDatabase segmentCappedDatabase) {
         this.cappedDatabase = cappedDatabase;
+        this.segmentCappedDatabase = segmentCappedDatabase;
     }
 
     @Override
@@ -44,4 +48,9 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
     }
+
+    @Override
+    public CappedDatabaseStats getAggregateSegments() {
+        return segmentCappedDatabase.getStats(AGGREGATE_SEGMENTS);
+    }
 }
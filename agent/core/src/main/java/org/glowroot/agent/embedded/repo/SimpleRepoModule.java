@@ -45,8 +45,15 @@ public class SimpleRepoModule {
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    // aggregate segments are only an optimization for chart reads (which fall back to the
+    // individual aggregate rows once a segment has expired), so they are not part of the storage
+    // config, and instead each rollup level gets a fixed size segment capped database
+    private static final int SEGMENT_CAPPED_DATABASE_SIZE_MB =
+            Integer.getInteger("glowroot.internal.segmentCappedDatabaseSizeMb", 50);
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
+    private final ImmutableList<CappedDatabase> segmentCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -75,6 +82,17 @@ public class SimpleRepoModule {
             rollupCappedDatabases.add(new CappedDatabase(file, sizeKb, ticker));
         }
         this.rollupCappedDatabases = ImmutableList.copyOf(rollupCappedDatabases);
+        List<CappedDatabase> segmentCappedDatabases = Lists.newArrayList();
+        for (int i = 0; i < storageConfig.rollupCappedDatabaseSizesMb().size(); i++) {
+            File file = new File(dataDir, "rollup-" + i + "-segment.capped.db");
+            int sizeKb = SEGMENT_CAPPED_DATABASE_SIZE_MB * 1024;
+            CappedDatabase segmentCappedDatabase = new CappedDatabase(file, sizeKb, ticker);
+            // the requested size is ignored for existing files, and since this size is not part
+            // of the storage config, the resize is not otherwise performed
+            segmentCappedDatabase.resize(sizeKb);
+            segmentCappedDatabases.add(segmentCappedDatabase);
+        }
+        this.segmentCappedDatabases = ImmutableList.copyOf(segmentCappedDatabases);
         traceCappedDatabase = new CappedDatabase(new File(dataDir, "trace-detail.capped.db"),
                 storageConfig.traceCappedDatabaseSizeMb() * 1024, ticker);
 
@@ -82,8 +100,9 @@ public class SimpleRepoModule {
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(dataSource);
-        aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao, fullQueryTextDao);
+        aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases,
+                this.segmentCappedDatabases, configRepository, transactionTypeDao,
+                fullQueryTextDao);
         TraceAttributeNameDao traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, traceAttributeNameDao,
                 transactionTypeDao, fullQueryTextDao);
@@ -110,7 +129,8 @@ public class SimpleRepoModule {
     public void registerMBeans(PlatformMBeanServerLifecycle platformMBeanServerLifecycle) {
         for (int i = 0; i < rollupCappedDatabases.size(); i++) {
             platformMBeanServerLifecycle.lazyRegisterMBean(
-                    new RollupCappedDatabaseStats(rollupCappedDatabases.get(i)),
+                    new RollupCappedDatabaseStats(rollupCappedDatabases.get(i),
+                            segmentCappedDatabases.get(i)),
                     "org.glowroot:type=RollupCappedDatabase" + i);
         }
         platformMBeanServerLifecycle.lazyRegisterMBean(
@@ -164,6 +184,9 @@ public class SimpleRepoModule {
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
+        for (CappedDatabase cappedDatabase : segmentCappedDatabases) {
+            cappedDatabase.close();
+        }
         traceCappedDatabase.close();
         dataSource.close();
     }
@@ -32,8 +32,13 @@ import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.embedded.repo.TraceSearchGrams.SearchGram;
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabase.MessageSink;
+import org.glowroot.agent.embedded.util.CappedDatabase.MessageSource;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
@@ -58,11 +63,11 @@ import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
 import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class TraceDao implements TraceRepository {
@@ -98,6 +103,14 @@ public class TraceDao implements TraceRepository {
                     ImmutableColumn.of("value", ColumnType.VARCHAR),
                     ImmutableColumn.of("capture_time", ColumnType.BIGINT));
 
+    // capture_time column is used for expiring records, and is also used to narrow down the trace
+    // ids returned by the index to the query time range
+    private static final ImmutableList<Column> traceSearchGramColumns =
+            ImmutableList.<Column>of(ImmutableColumn.of("trace_id", ColumnType.VARCHAR),
+                    ImmutableColumn.of("field", ColumnType.VARCHAR),
+                    ImmutableColumn.of("gram", ColumnType.VARCHAR),
+                    ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
     private static final ImmutableList<Index> traceIndexes = ImmutableList.<Index>of(
             // duration_nanos, id and error columns are included so database can return the
             // result set directly from the index without having to reference the table for each row
@@ -127,6 +140,21 @@ public class TraceDao implements TraceRepository {
     private static final ImmutableList<Index> traceAttributeIndexes = ImmutableList.<Index>of(
             ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
 
+    private static final ImmutableList<Index> traceSearchGramIndexes = ImmutableList.<Index>of(
+            // trace_id is included so database can return the sub-select result directly from the
+            // index without having to reference the table for each row
+            //
+            // trace_search_gram_idx is for readSlowPoints() and readErrorPoints()
+            ImmutableIndex.of("trace_search_gram_idx",
+                    ImmutableList.of("field", "gram", "capture_time", "trace_id")),
+            // trace_search_gram_trace_idx is for replacing the grams of partial traces
+            ImmutableIndex.of("trace_search_gram_trace_idx", ImmutableList.of("trace_id")),
+            // trace_search_gram_capture_time_idx is for reaper (there are many rows per trace)
+            ImmutableIndex.of("trace_search_gram_capture_time_idx",
+                    ImmutableList.of("capture_time")));
+
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
     private final DataSource dataSource;
     private final CappedDatabase traceCappedDatabase;
     private final TraceAttributeNameDao traceAttributeNameDao;
@@ -153,18 +181,36 @@ public class TraceDao implements TraceRepository {
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        boolean backfillSearchGrams = dataSource.tableExists("trace")
+                && !dataSource.tableExists("trace_search_gram");
+        dataSource.syncTable("trace_search_gram", traceSearchGramColumns);
+        dataSource.syncIndexes("trace_search_gram", traceSearchGramIndexes);
+        if (backfillSearchGrams) {
+            // upgrade to 0.9.8
+            startupLogger.info("upgrading glowroot schema, this may delay glowroot startup for a"
+                    + " few minutes (depending on data size)...");
+            dataSource.query(new SearchGramBackfillQuery());
+            startupLogger.info("glowroot schema upgrade complete");
+        }
     }
 
-    public void store(Trace trace) throws Exception {
-        Trace.Header header = trace.getHeader();
+    public void store(TraceReader traceReader) throws Exception {
+        TraceStoringVisitor traceVisitor = new TraceStoringVisitor(traceReader);
+        // entries are written to the capped database as they are visited, instead of first
+        // building up the full list of entries in memory (and no block is written at all when
+        // there are no entries)
+        long entriesCappedId = traceCappedDatabase.writeMessages(traceVisitor,
+                TraceCappedDatabaseStats.TRACE_ENTRIES);
+        Trace.Header header = traceVisitor.header;
+        if (header == null) {
+            // capped database is closing
+            return;
+        }
+        String traceId = traceReader.traceId();
+        boolean update = traceReader.update();
 
         List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
-        for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
-            // local collection always passes in full text
-            checkState(sharedQueryText.getTruncatedText().isEmpty());
-            checkState(sharedQueryText.getTruncatedEndText().isEmpty());
-            checkState(sharedQueryText.getFullTextSha1().isEmpty());
-            String fullText = sharedQueryText.getFullText();
+        for (String fullText : traceVisitor.sharedQueryTexts) {
             if (fullText.length() > 2 * StorageConfig.TRACE_QUERY_TEXT_TRUNCATE) {
                 String truncatedText =
                         fullText.substring(0, StorageConfig.TRACE_QUERY_TEXT_TRUNCATE);
@@ -179,23 +225,66 @@ public class TraceDao implements TraceRepository {
                         .setFullTextSha1(fullTextSha1)
                         .build());
             } else {
-                sharedQueryTexts.add(sharedQueryText);
+                sharedQueryTexts.add(Trace.SharedQueryText.newBuilder()
+                        .setFullText(fullText)
+                        .build());
             }
         }
 
-        dataSource.update(new TraceMerge(trace, sharedQueryTexts));
+        dataSource.update(new TraceMerge(traceId, header,
+                traceVisitor.entryCount == 0 ? null : entriesCappedId, sharedQueryTexts,
+                traceVisitor.mainThreadProfile, traceVisitor.auxThreadProfile));
         if (header.getAttributeCount() > 0) {
-            if (trace.getUpdate()) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
+            if (update) {
+                dataSource.update("delete from trace_attribute where trace_id = ?", traceId);
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
+            dataSource.batchUpdate(new TraceAttributeInsert(traceId, header));
             for (Trace.Attribute attribute : header.getAttributeList()) {
                 traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
                         attribute.getName(), header.getCaptureTime());
             }
         }
-        transactionTypeDao.updateLastCaptureTime(trace.getHeader().getTransactionType(),
-                trace.getHeader().getCaptureTime());
+        if (update) {
+            dataSource.update("delete from trace_search_gram where trace_id = ?", traceId);
+        }
+        List<SearchGram> searchGrams = TraceSearchGrams.getSearchGrams(traceId, header);
+        if (!searchGrams.isEmpty()) {
+            dataSource.batchUpdate(new TraceSearchGramInsert(searchGrams));
+        }
+        transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
+                header.getCaptureTime());
+    }
+
+    @OnlyUsedByTests
+    void store(final Trace trace) throws Exception {
+        store(new TraceReader() {
+            @Override
+            public String traceId() {
+                return trace.getId();
+            }
+            @Override
+            public boolean update() {
+                return trace.getUpdate();
+            }
+            @Override
+            public <T extends Exception> void accept(TraceVisitor<T> traceVisitor) throws T {
+                for (Trace.Entry entry : trace.getEntryList()) {
+                    traceVisitor.visitEntry(entry);
+                }
+                List<String> sharedQueryTexts = Lists.newArrayList();
+                for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
+                    sharedQueryTexts.add(sharedQueryText.getFullText());
+                }
+                traceVisitor.visitSharedQueryTexts(sharedQueryTexts);
+                if (trace.hasMainThreadProfile()) {
+                    traceVisitor.visitMainThreadProfile(trace.getMainThreadProfile());
+                }
+                if (trace.hasAuxThreadProfile()) {
+                    traceVisitor.visitAuxThreadProfile(trace.getAuxThreadProfile());
+                }
+                traceVisitor.visitHeader(trace.getHeader());
+            }
+        });
     }
 
     @Override
@@ -337,6 +426,7 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        dataSource.deleteBefore("trace_search_gram", captureTime);
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
@@ -392,35 +482,29 @@ public class TraceDao implements TraceRepository {
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceMerge(Trace trace, List<Trace.SharedQueryText> sharedQueryTexts)
-                throws IOException {
-            this.traceId = trace.getId();
-            this.header = trace.getHeader();
-
-            List<Trace.Entry> entries = trace.getEntryList();
-            if (entries.isEmpty()) {
-                entriesCappedId = null;
-            } else {
-                entriesCappedId = traceCappedDatabase.writeMessages(entries,
-                        TraceCappedDatabaseStats.TRACE_ENTRIES);
-            }
+        private TraceMerge(String traceId, Trace.Header header, @Nullable Long entriesCappedId,
+                List<Trace.SharedQueryText> sharedQueryTexts, @Nullable Profile mainThreadProfile,
+                @Nullable Profile auxThreadProfile) throws IOException {
+            this.traceId = traceId;
+            this.header = header;
+            this.entriesCappedId = entriesCappedId;
             if (sharedQueryTexts.isEmpty()) {
                 sharedQueryTextsCappedId = null;
             } else {
                 sharedQueryTextsCappedId = traceCappedDatabase.writeMessages(sharedQueryTexts,
                         TraceCappedDatabaseStats.TRACE_SHARED_QUERY_TEXTS);
             }
-            if (trace.hasMainThreadProfile()) {
-                mainThreadProfileId = traceCappedDatabase.writeMessage(trace.getMainThreadProfile(),
-                        TraceCappedDatabaseStats.TRACE_PROFILES);
-            } else {
+            if (mainThreadProfile == null) {
                 mainThreadProfileId = null;
-            }
-            if (trace.hasAuxThreadProfile()) {
-                auxThreadProfileId = traceCappedDatabase.writeMessage(trace.getAuxThreadProfile(),
-                        TraceCappedDatabaseStats.TRACE_PROFILES);
             } else {
+                mainThreadProfileId = traceCappedDatabase.writeMessage(mainThreadProfile,
+                        TraceCappedDatabaseStats.TRACE_PROFILES);
+            }
+            if (auxThreadProfile == null) {
                 auxThreadProfileId = null;
+            } else {
+                auxThreadProfileId = traceCappedDatabase.writeMessage(auxThreadProfile,
+                        TraceCappedDatabaseStats.TRACE_PROFILES);
             }
         }
 
@@ -461,12 +545,63 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceStoringVisitor implements TraceVisitor<IOException>, MessageSource {
+
+        private final TraceReader traceReader;
+
+        private @Nullable MessageSink entrySink;
+        private int entryCount;
+        private List<String> sharedQueryTexts = ImmutableList.of();
+        private @Nullable Profile mainThreadProfile;
+        private @Nullable Profile auxThreadProfile;
+        private @Nullable Trace.Header header;
+
+        private TraceStoringVisitor(TraceReader traceReader) {
+            this.traceReader = traceReader;
+        }
+
+        // called by the capped database with the sink for the trace entries block
+        @Override
+        public void writeMessages(MessageSink messageSink) throws IOException {
+            entrySink = messageSink;
+            traceReader.accept(this);
+        }
+
+        @Override
+        public void visitEntry(Trace.Entry entry) throws IOException {
+            checkNotNull(entrySink).write(entry);
+            entryCount++;
+        }
+
+        @Override
+        public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
+            this.sharedQueryTexts = sharedQueryTexts;
+        }
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {
+            mainThreadProfile = profile;
+        }
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {
+            auxThreadProfile = profile;
+        }
+
+        @Override
+        public void visitHeader(Trace.Header header) {
+            this.header = header;
+        }
+    }
+
     private static class TraceAttributeInsert implements JdbcUpdate {
 
-        private final Trace trace;
+        private final String traceId;
+        private final Trace.Header header;
 
-        private TraceAttributeInsert(Trace trace) {
-            this.trace = trace;
+        private TraceAttributeInsert(String traceId, Trace.Header header) {
+            this.traceId = traceId;
+            this.header = header;
         }
 
         @Override
@@ -477,11 +612,10 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            Trace.Header header = trace.getHeader();
             for (Trace.Attribute attribute : header.getAttributeList()) {
                 for (String value : attribute.getValueList()) {
                     int i = 1;
-                    preparedStatement.setString(i++, trace.getId());
+                    preparedStatement.setString(i++, traceId);
                     preparedStatement.setString(i++, attribute.getName());
                     preparedStatement.setString(i++, value);
                     preparedStatement.setLong(i++, header.getCaptureTime());
@@ -492,6 +626,69 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceSearchGramInsert implements JdbcUpdate {
+
+        private final List<SearchGram> searchGrams;
+
+        private TraceSearchGramInsert(List<SearchGram> searchGrams) {
+            this.searchGrams = searchGrams;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into trace_search_gram (trace_id, field, gram, capture_time)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (SearchGram searchGram : searchGrams) {
+                int i = 1;
+                preparedStatement.setString(i++, searchGram.traceId());
+                preparedStatement.setString(i++, searchGram.field());
+                preparedStatement.setString(i++, searchGram.gram());
+                preparedStatement.setLong(i++, searchGram.captureTime());
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    // builds the search grams for traces stored prior to the introduction of trace_search_gram
+    private class SearchGramBackfillQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        @Override
+        public @Untainted String getSql() {
+            return "select id, header from trace";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {}
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            List<SearchGram> searchGrams = Lists.newArrayList();
+            while (resultSet.next()) {
+                String traceId = checkNotNull(resultSet.getString(1));
+                Trace.Header header =
+                        Trace.Header.parseFrom(checkNotNull(resultSet.getBytes(2)));
+                searchGrams.addAll(TraceSearchGrams.getSearchGrams(traceId, header));
+                if (searchGrams.size() >= BACKFILL_BATCH_SIZE) {
+                    dataSource.batchUpdate(new TraceSearchGramInsert(searchGrams));
+                    searchGrams = Lists.newArrayList();
+                }
+            }
+            if (!searchGrams.isEmpty()) {
+                dataSource.batchUpdate(new TraceSearchGramInsert(searchGrams));
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosing() {
+            return null;
+        }
+    }
+
     private static class TracePointQuery implements JdbcRowQuery<TracePoint> {
 
         private final ParameterizedSql parameterizedSql;
@@ -75,6 +75,7 @@ class TracePointQueryBuilder {
         appendHeadlineCriteria(builder);
         appendErrorCriteria(builder);
         appendUserCriteria(builder);
+        appendAttributeValueSearchGramCriteria(builder);
         appendOrderByAndLimit(builder);
         return builder.build();
     }
@@ -144,6 +145,8 @@ class TracePointQueryBuilder {
             builder.appendText(
                     " and upper(trace.headline) " + headlineComparator.getComparator() + " ?");
             builder.addArg(headlineComparator.formatParameter(headline));
+            appendSearchGramCriteria(builder, TraceSearchGrams.HEADLINE, headlineComparator,
+                    headline);
         }
     }
 
@@ -154,6 +157,8 @@ class TracePointQueryBuilder {
             builder.appendText(
                     " and upper(trace.error_message) " + errorComparator.getComparator() + " ?");
             builder.addArg(errorComparator.formatParameter(error));
+            appendSearchGramCriteria(builder, TraceSearchGrams.ERROR_MESSAGE, errorComparator,
+                    error);
         }
     }
 
@@ -163,6 +168,35 @@ class TracePointQueryBuilder {
         if (userComparator != null && !Strings.isNullOrEmpty(user)) {
             builder.appendText(" and upper(trace.user) " + userComparator.getComparator() + " ?");
             builder.addArg(userComparator.formatParameter(user));
+            appendSearchGramCriteria(builder, TraceSearchGrams.USER, userComparator, user);
+        }
+    }
+
+    private void appendAttributeValueSearchGramCriteria(ParameterizedSqlBuilder builder) {
+        StringComparator attributeValueComparator = filter.attributeValueComparator();
+        String attributeValue = filter.attributeValue();
+        if (attributeValueComparator != null && !Strings.isNullOrEmpty(attributeValue)) {
+            appendSearchGramCriteria(builder, TraceSearchGrams.ATTRIBUTE_VALUE,
+                    attributeValueComparator, attributeValue);
+        }
+    }
+
+    // the search gram index only narrows down the candidate traces, the like condition appended
+    // above is still needed to filter out false positives (e.g. grams found in a different order)
+    private void appendSearchGramCriteria(ParameterizedSqlBuilder builder, String field,
+            StringComparator comparator, String text) {
+        if (comparator == StringComparator.NOT_CONTAINS) {
+            return;
+        }
+        for (String gram : TraceSearchGrams.getQueryGrams(text)) {
+            builder.appendText(" and trace.id in (select trace_id from trace_search_gram"
+                    + " where field = ? and gram in (?, ?) and capture_time > ?"
+                    + " and capture_time <= ?)");
+            builder.addArg(field);
+            builder.addArg(gram);
+            builder.addArg(TraceSearchGrams.UNINDEXED_GRAM);
+            builder.addArg(query.from());
+            builder.addArg(query.to());
         }
     }
 
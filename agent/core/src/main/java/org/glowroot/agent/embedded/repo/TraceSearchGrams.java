@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// headline, error message, user and attribute value searches are case insensitive substring
+// matches, which cannot be served by a regular index, so each trace is also broken down into the
+// (upper case) trigrams of these fields, which are stored in trace_search_gram and used to narrow
+// down the candidate traces before the (exact) like conditions are applied
+class TraceSearchGrams {
+
+    static final String HEADLINE = "headline";
+    static final String ERROR_MESSAGE = "error_message";
+    static final String USER = "user";
+    static final String ATTRIBUTE_VALUE = "attribute_value";
+
+    // text that is not broken down into grams (see getGrams()) is instead stored with this single
+    // marker gram, which is always included in searches so that these traces are still found
+    static final String UNINDEXED_GRAM = "";
+
+    private static final int GRAM_LENGTH = 3;
+
+    private static final int MAX_INDEXED_TEXT_LENGTH = 1000;
+
+    // each gram is a row in trace_search_gram plus an entry in each of its three indexes, so the
+    // number of grams per field is capped to bound the write amplification of storing a trace
+    private static final int MAX_GRAMS_PER_FIELD = 200;
+
+    // each search gram adds a sub-select to the trace point query, and a few grams are enough to
+    // narrow down the candidate traces
+    private static final int MAX_SEARCH_GRAMS = 4;
+
+    private TraceSearchGrams() {}
+
+    static List<SearchGram> getSearchGrams(String traceId, Trace.Header header) {
+        long captureTime = header.getCaptureTime();
+        List<SearchGram> searchGrams = Lists.newArrayList();
+        addSearchGrams(searchGrams, traceId, captureTime, HEADLINE,
+                getGrams(header.getHeadline()));
+        if (header.hasError()) {
+            addSearchGrams(searchGrams, traceId, captureTime, ERROR_MESSAGE,
+                    getGrams(header.getError().getMessage()));
+        }
+        addSearchGrams(searchGrams, traceId, captureTime, USER, getGrams(header.getUser()));
+        Set<String> attributeValueGrams = Sets.newLinkedHashSet();
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            for (String value : attribute.getValueList()) {
+                attributeValueGrams.addAll(getGrams(value));
+            }
+        }
+        if (attributeValueGrams.size() > MAX_GRAMS_PER_FIELD) {
+            attributeValueGrams = ImmutableSet.of(UNINDEXED_GRAM);
+        }
+        addSearchGrams(searchGrams, traceId, captureTime, ATTRIBUTE_VALUE, attributeValueGrams);
+        return searchGrams;
+    }
+
+    // the like conditions compare against h2's upper(), which uses String.toUpperCase() with the
+    // default locale, and which can disagree with toUpperCase(Locale.ENGLISH) for non-ascii text
+    // (it can even change the length of the text, e.g. german sharp s -> "SS"), so non-ascii text
+    // is not broken down into grams (ascii text upper cases the same either way, at least as far as
+    // ascii grams are concerned, which are the only grams used for searching)
+    static Set<String> getGrams(String text) {
+        if (!isAscii(text)) {
+            return ImmutableSet.of(UNINDEXED_GRAM);
+        }
+        if (text.length() < GRAM_LENGTH) {
+            return ImmutableSet.of();
+        }
+        if (text.length() > MAX_INDEXED_TEXT_LENGTH) {
+            return ImmutableSet.of(UNINDEXED_GRAM);
+        }
+        String upperText = text.toUpperCase(Locale.ENGLISH);
+        Set<String> grams = Sets.newLinkedHashSet();
+        for (int i = 0; i <= upperText.length() - GRAM_LENGTH; i++) {
+            grams.add(upperText.substring(i, i + GRAM_LENGTH));
+            if (grams.size() > MAX_GRAMS_PER_FIELD) {
+                return ImmutableSet.of(UNINDEXED_GRAM);
+            }
+        }
+        return grams;
+    }
+
+    // returns grams (spread across the search text) that every text matching the search text must
+    // contain, or empty list if the search text is too short to make use of the index
+    static List<String> getQueryGrams(String searchText) {
+        String upperText = searchText.toUpperCase(Locale.ENGLISH);
+        List<String> candidates = Lists.newArrayList();
+        for (int i = 0; i <= upperText.length() - GRAM_LENGTH; i++) {
+            String gram = upperText.substring(i, i + GRAM_LENGTH);
+            // the search text is passed to sql like without escaping, so grams that span like
+            // wildcards cannot be used, and non-ascii grams are never indexed (see getGrams())
+            if (!containsLikeWildcard(gram) && isAscii(gram)) {
+                candidates.add(gram);
+            }
+        }
+        if (candidates.size() <= MAX_SEARCH_GRAMS) {
+            return ImmutableList.copyOf(Sets.newLinkedHashSet(candidates));
+        }
+        Set<String> grams = Sets.newLinkedHashSet();
+        int lastIndex = candidates.size() - 1;
+        for (int i = 0; i < MAX_SEARCH_GRAMS; i++) {
+            grams.add(candidates.get(i * lastIndex / (MAX_SEARCH_GRAMS - 1)));
+        }
+        return ImmutableList.copyOf(grams);
+    }
+
+    private static boolean containsLikeWildcard(String gram) {
+        return gram.indexOf('%') != -1 || gram.indexOf('_') != -1 || gram.indexOf('\\') != -1;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addSearchGrams(List<SearchGram> searchGrams, String traceId,
+            long captureTime, String field, Set<String> grams) {
+        for (String gram : grams) {
+            searchGrams.add(ImmutableSearchGram.of(traceId, field, gram, captureTime));
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SearchGram {
+        String traceId();
+        String field();
+        String gram();
+        long captureTime();
+    }
+}
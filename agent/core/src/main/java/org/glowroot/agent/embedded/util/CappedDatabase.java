@@ -17,12 +17,10 @@ package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.util.List;
 import java.util.Map;
@@ -35,14 +33,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
-import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
+import com.ning.compress.lzf.LZFEncoder;
 import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,29 +52,26 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
-    private final File file;
+    private static final int MAX_CHUNK_BYTES = 256 * 1024;
+
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
     private volatile boolean closing = false;
 
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
-        this.file = file;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public long writeMessage(final AbstractMessage message, String type) throws IOException {
-        return write(type, new Copier() {
+        return write(type, message.getSerializedSize(), false, new Copier() {
             @Override
             public void copyTo(OutputStream writer) throws IOException {
                 message.writeTo(writer);
@@ -85,7 +81,12 @@ public class CappedDatabase {
 
     public long writeMessages(final List<? extends AbstractMessage> messages, String type)
             throws IOException {
-        return write(type, new Copier() {
+        long size = 0;
+        for (AbstractMessage message : messages) {
+            int messageSize = message.getSerializedSize();
+            size += CodedOutputStream.computeUInt32SizeNoTag(messageSize) + messageSize;
+        }
+        return write(type, size, false, new Copier() {
             @Override
             public void copyTo(OutputStream writer) throws IOException {
                 for (AbstractMessage message : messages) {
@@ -95,6 +96,34 @@ public class CappedDatabase {
         });
     }
 
+    // messages are written as they are produced by the message source, so that the caller never
+    // needs to hold the full list of messages in memory
+    //
+    // no block is written if the message source does not produce any messages, in which case -1 is
+    // returned
+    public long writeMessages(final MessageSource messageSource, String type) throws IOException {
+        return write(type, -1, true, new Copier() {
+            @Override
+            public void copyTo(final OutputStream writer) throws IOException {
+                messageSource.writeMessages(new MessageSink() {
+                    @Override
+                    public void write(AbstractMessage message) throws IOException {
+                        message.writeDelimitedTo(writer);
+                    }
+                });
+            }
+        });
+    }
+
+    public long writeBytes(final byte[] bytes, String type) throws IOException {
+        return write(type, bytes.length, false, new Copier() {
+            @Override
+            public void copyTo(OutputStream writer) throws IOException {
+                writer.write(bytes);
+            }
+        });
+    }
+
     public CappedDatabaseStats getStats(String type) {
         CappedDatabaseStats stats = statsByType.get(type);
         if (stats == null) {
@@ -105,7 +134,7 @@ public class CappedDatabase {
 
     @OnlyUsedByTests
     long write(final ByteSource byteSource, String type) throws IOException {
-        return write(type, new Copier() {
+        return write(type, -1, false, new Copier() {
             @Override
             public void copyTo(OutputStream out) throws IOException {
                 byteSource.copyTo(out);
@@ -113,29 +142,31 @@ public class CappedDatabase {
         });
     }
 
-    private long write(String type, Copier copier) throws IOException {
-        synchronized (lock) {
-            if (closing) {
-                return -1;
-            }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
-            CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(new LZFOutputStream(countingStreamAfterCompression));
-            copier.copyTo(countingStreamBeforeCompression);
-            countingStreamBeforeCompression.close();
-            long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
-            }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+    // uncompressedSize is -1 if not known up front
+    //
+    // compression is performed outside of the lock, in chunks of at most MAX_CHUNK_BYTES
+    // (uncompressed), so that concurrent writers only contend on appending the already compressed
+    // bytes to the capped database, and so that the bytes buffered in memory are bounded even for
+    // large and streamed writes
+    private long write(String type, long uncompressedSize, boolean skipIfEmpty, Copier copier)
+            throws IOException {
+        if (closing) {
+            return -1;
         }
+        long startTick = ticker.read();
+        ChunkingOutputStream chunkingOut = new ChunkingOutputStream(uncompressedSize);
+        copier.copyTo(chunkingOut);
+        return chunkingOut.finish(type, skipIfEmpty, startTick);
+    }
+
+    @GuardedBy("lock")
+    private CappedDatabaseStats getOrCreateStats(String type) {
+        CappedDatabaseStats stats = statsByType.get(type);
+        if (stats == null) {
+            stats = new CappedDatabaseStats();
+            statsByType.put(type, stats);
+        }
+        return stats;
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
@@ -158,7 +189,7 @@ public class CappedDatabase {
             return null;
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads (each of which acquires the lock)
         final int bufferSize = 32768;
         InputStream input = new LZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -194,7 +225,7 @@ public class CappedDatabase {
             return ImmutableList.of();
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads (each of which acquires the lock)
         final int bufferSize = 32768;
         InputStream input = new LZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -217,6 +248,41 @@ public class CappedDatabase {
         return messages;
     }
 
+    public byte /*@Nullable*/[] readBytes(long cappedId) throws IOException {
+        boolean overwritten;
+        boolean inTheFuture;
+        synchronized (lock) {
+            overwritten = out.isOverwritten(cappedId);
+            inTheFuture = cappedId >= out.getCurrIndex();
+        }
+        if (overwritten || inTheFuture) {
+            // see comment in readMessage() regarding capped ids in the future
+            return null;
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads (each of which acquires the lock)
+        final int bufferSize = 32768;
+        InputStream input = new LZFInputStream(
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        try {
+            byte[] bytes = ByteStreams.toByteArray(input);
+            // the block may have been (partially) overwritten while it was being read
+            synchronized (lock) {
+                if (out.isOverwritten(cappedId)) {
+                    return null;
+                }
+            }
+            return bytes;
+        } catch (Exception e) {
+            if (!out.isOverwritten(cappedId)) {
+                logger.error(e.getMessage(), e);
+            }
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
     @OnlyUsedByTests
     CharSource read(long cappedId) {
         return new CappedBlockCharSource(cappedId);
@@ -239,9 +305,7 @@ public class CappedDatabase {
             if (closing) {
                 return;
             }
-            inFile.close();
             out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
         }
     }
 
@@ -250,7 +314,6 @@ public class CappedDatabase {
         synchronized (lock) {
             closing = true;
             out.close();
-            inFile.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
@@ -267,7 +330,7 @@ public class CappedDatabase {
         @Override
         public Reader openStream() throws IOException {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
+            // lots of small reads (each of which acquires the lock)
             final int bufferSize = 32768;
             return new InputStreamReader(new LZFInputStream(
                     new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
@@ -278,39 +341,65 @@ public class CappedDatabase {
     private class CappedBlockInputStream extends InputStream {
 
         private final long cappedId;
+        // the current block differs from cappedId only when reading subsequent linked blocks
+        private long blockId;
+        private int blockHeaderSkipBytes;
         private long blockLength = -1;
         private long blockIndex;
+        private long nextBlockId = -1;
 
         private CappedBlockInputStream(long cappedId) {
             this.cappedId = cappedId;
+            blockId = cappedId;
         }
 
         @Override
         public int read(byte[] bytes, int off, int len) throws IOException {
-            if (blockIndex == blockLength) {
+            if (blockIndex == blockLength && nextBlockId == -1) {
                 return -1;
             }
             synchronized (lock) {
+                // subsequent linked blocks are always written after the first one, so they cannot
+                // be overwritten unless the first one is
                 if (out.isOverwritten(cappedId)) {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
+                if (blockIndex == blockLength) {
+                    blockId = nextBlockId;
+                    blockLength = -1;
+                    blockIndex = 0;
+                }
                 if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+                    readBlockHeader();
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                long filePosition =
+                        out.convertToFilePosition(blockId + blockHeaderSkipBytes + blockIndex);
                 long blockRemaining = blockLength - blockIndex;
                 long fileRemaining = out.getSizeKb() * 1024L - filePosition;
                 int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
+                out.read(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition, bytes, off,
+                        numToRead);
                 blockIndex += numToRead;
                 return numToRead;
             }
         }
 
+        @GuardedBy("lock")
+        private void readBlockHeader() throws IOException {
+            long filePosition = CappedDatabaseOutputStream.HEADER_SKIP_BYTES
+                    + out.convertToFilePosition(blockId);
+            long blockHeader = out.readLong(filePosition);
+            if ((blockHeader & CappedDatabaseOutputStream.LINKED_BLOCK_FLAG) == 0) {
+                blockHeaderSkipBytes = CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES;
+                blockLength = blockHeader;
+                nextBlockId = -1;
+            } else {
+                blockHeaderSkipBytes = CappedDatabaseOutputStream.LINKED_BLOCK_HEADER_SKIP_BYTES;
+                blockLength = blockHeader & ~CappedDatabaseOutputStream.LINKED_BLOCK_FLAG;
+                nextBlockId = out.readLong(filePosition + 8);
+            }
+        }
+
         @Override
         public int read(byte[] bytes) throws IOException {
             // this is never called since CappedBlockInputStream is always wrapped in a
@@ -335,7 +424,6 @@ public class CappedDatabase {
                 closing = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -343,42 +431,130 @@ public class CappedDatabase {
         }
     }
 
+    public interface MessageSource {
+        void writeMessages(MessageSink messageSink) throws IOException;
+    }
+
+    public interface MessageSink {
+        void write(AbstractMessage message) throws IOException;
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
 
-    @SuppressWarnings("serial")
-    private static class CappedBlockRolledOverMidReadException extends IOException {
-        public CappedBlockRolledOverMidReadException(String message) {
-            super(message);
-        }
-    }
+    // a write that fits in a single chunk is appended as a single block, otherwise each chunk is
+    // appended as a linked block as soon as it is full (see
+    // CappedDatabaseOutputStream.writeLinkedBlock())
+    private class ChunkingOutputStream extends OutputStream {
 
-    private static class NonClosingCountingOutputStream extends FilterOutputStream {
+        private final byte[] chunk;
+        private int chunkCount;
 
-        private long count;
+        private long uncompressedCount;
+        private long compressedCount;
 
-        private NonClosingCountingOutputStream(OutputStream out) {
-            super(out);
+        private long firstBlockId = -1;
+        private long lastBlockId = -1;
+        // set if the capped database is closed mid-write
+        private boolean abandoned;
+
+        private ChunkingOutputStream(long uncompressedSize) {
+            if (uncompressedSize > 0 && uncompressedSize <= MAX_CHUNK_BYTES) {
+                chunk = new byte[(int) uncompressedSize];
+            } else {
+                chunk = new byte[MAX_CHUNK_BYTES];
+            }
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            count += len;
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (chunkCount == chunk.length) {
+                    // only appended once there are more bytes, so that the last chunk is always
+                    // appended by finish()
+                    appendLinkedBlock(false);
+                }
+                int n = Math.min(remaining, chunk.length - chunkCount);
+                System.arraycopy(b, offset, chunk, chunkCount, n);
+                chunkCount += n;
+                offset += n;
+                remaining -= n;
+            }
         }
 
         @Override
         public void write(int b) throws IOException {
-            out.write(b);
-            count++;
+            write(new byte[] {(byte) b}, 0, 1);
         }
 
-        @Override
-        public void close() {}
+        private long finish(String type, boolean skipIfEmpty, long startTick) throws IOException {
+            if (abandoned) {
+                return -1;
+            }
+            if (firstBlockId != -1) {
+                appendLinkedBlock(true);
+                if (abandoned) {
+                    return -1;
+                }
+                synchronized (lock) {
+                    getOrCreateStats(type).record(uncompressedCount, compressedCount,
+                            ticker.read() - startTick);
+                }
+                return firstBlockId;
+            }
+            if (skipIfEmpty && chunkCount == 0) {
+                return -1;
+            }
+            byte[] compressedBytes = compressChunk();
+            synchronized (lock) {
+                if (closing) {
+                    return -1;
+                }
+                out.startBlock();
+                out.write(compressedBytes);
+                long endTick = ticker.read();
+                getOrCreateStats(type).record(chunkCount, compressedBytes.length,
+                        endTick - startTick);
+                return out.endBlock();
+            }
+        }
+
+        private void appendLinkedBlock(boolean last) throws IOException {
+            if (!abandoned) {
+                byte[] compressedBytes = compressChunk();
+                synchronized (lock) {
+                    if (closing) {
+                        abandoned = true;
+                    } else {
+                        lastBlockId = out.writeLinkedBlock(compressedBytes, firstBlockId,
+                                lastBlockId, last);
+                        if (firstBlockId == -1) {
+                            firstBlockId = lastBlockId;
+                        }
+                    }
+                }
+                uncompressedCount += chunkCount;
+                compressedCount += compressedBytes.length;
+            }
+            // the rest of the write is still consumed (and discarded) if abandoned
+            chunkCount = 0;
+        }
+
+        private byte[] compressChunk() {
+            if (chunkCount == 0) {
+                return new byte[0];
+            }
+            return LZFEncoder.encode(chunk, 0, chunkCount);
+        }
+    }
 
-        private long getCount() {
-            return count;
+    @SuppressWarnings("serial")
+    private static class CappedBlockRolledOverMidReadException extends IOException {
+        public CappedBlockRolledOverMidReadException(String message) {
+            super(message);
         }
     }
 }
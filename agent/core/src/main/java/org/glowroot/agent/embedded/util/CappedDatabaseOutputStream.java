@@ -19,20 +19,54 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 
-import org.glowroot.common.util.OnlyUsedByTests;
+import javax.annotation.Nullable;
 
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Needs to be externally synchronized around startBlock()/write()/endBlock(), and also around
+// read()/readLong() since the underlying mapping is replaced during resize().
+//
+// The file is memory mapped (in segments, to stay under the 2gb limit of a single mapping and to
+// not require one large contiguous range of address space), so that writes and reads are memory
+// copies instead of a seek + read/write system call pair each. If the file cannot be mapped (e.g.
+// due to limited address space on 32-bit jvms) it falls back to plain RandomAccessFile access.
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
+    // linked block header is the block size (with LINKED_BLOCK_FLAG set) followed by the id of the
+    // next linked block (or -1 for the last linked block)
+    static final int LINKED_BLOCK_HEADER_SKIP_BYTES = 16;
+    static final long LINKED_BLOCK_FLAG = 1L << 62;
+
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseOutputStream.class);
 
     private static final int HEADER_CURR_INDEX_POS = 0;
 
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    // fsync after each block can be disabled when the durability of the most recent blocks across
+    // os crash / power loss is not worth the i/o (the data still survives a jvm crash)
+    private static final boolean SYNC_DISABLED =
+            Boolean.getBoolean("glowroot.internal.disableCappedDatabaseSync");
+
     private final File file;
     private RandomAccessFile out;
 
+    // null if the file could not be memory mapped
+    private @Nullable MappedByteBuffer[] segments;
+    // tracks which segments have been written to since the last sync, so that only those need to
+    // be forced
+    private boolean[] dirtySegments = new boolean[0];
+
+    private final byte[] longBytes = new byte[8];
+
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
     private long currIndex;
@@ -66,25 +100,55 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        remap();
     }
 
     void startBlock() {
-        long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        long remainingBytes = sizeBytes - currPosition;
-        if (remainingBytes < BLOCK_HEADER_SKIP_BYTES) {
-            // not enough space for contiguous block header
-            currIndex += remainingBytes;
-        }
-        blockStartIndex = currIndex;
-        blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        // make space for block size to be written at start position
-        currIndex += BLOCK_HEADER_SKIP_BYTES;
+        startBlock(BLOCK_HEADER_SKIP_BYTES);
     }
 
     long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        writeLong(HEADER_SKIP_BYTES + blockStartPosition,
+                currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
+        if (!SYNC_DISABLED) {
+            sync();
+        }
+        return blockStartIndex;
+    }
+
+    // linked blocks allow a single (large) write to be appended in multiple chunks, with other
+    // blocks possibly written in between, so that each chunk can be produced without holding the
+    // external synchronization
+    //
+    // the id of the first linked block is the id of the whole write, and since all subsequent
+    // linked blocks are written after it, the whole write is overwritten once the first linked
+    // block is overwritten
+    long writeLinkedBlock(byte[] b, long firstBlockId, long prevBlockId, boolean last)
+            throws IOException {
+        if (firstBlockId != -1 && isOverwritten(firstBlockId)) {
+            // capped database was resized smaller since the prior linked block was written
+            throw new IOException("Linked block was overwritten before the write completed");
+        }
+        startBlock(LINKED_BLOCK_HEADER_SKIP_BYTES);
+        if (firstBlockId != -1 && currIndex + b.length - firstBlockId > sizeBytes) {
+            throw new IOException(
+                    "A single block cannot have more bytes than size of the capped database");
+        }
+        write(b, 0, b.length);
+        // header is guaranteed to be contiguous (see startBlock())
+        writeLong(HEADER_SKIP_BYTES + blockStartPosition,
+                (currIndex - blockStartIndex - LINKED_BLOCK_HEADER_SKIP_BYTES)
+                        | LINKED_BLOCK_FLAG);
+        writeLong(HEADER_SKIP_BYTES + blockStartPosition + 8, -1);
+        if (prevBlockId != -1) {
+            // link the previous block to this one only after this block is complete
+            writeLong(HEADER_SKIP_BYTES + convertToFilePosition(prevBlockId) + 8,
+                    blockStartIndex);
+        }
+        if (last && !SYNC_DISABLED) {
+            // this also syncs the prior linked blocks, since segments remain dirty until synced
+            sync();
+        }
         return blockStartIndex;
     }
 
@@ -111,9 +175,40 @@ class CappedDatabaseOutputStream extends OutputStream {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
+    void read(long filePosition, byte[] b, int off, int len) throws IOException {
+        MappedByteBuffer[] segments = this.segments;
+        if (segments == null) {
+            out.seek(filePosition);
+            out.readFully(b, off, len);
+            return;
+        }
+        long position = filePosition;
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_BYTES)];
+            int segmentPosition = (int) (position % SEGMENT_BYTES);
+            int n = Math.min(remaining, segment.capacity() - segmentPosition);
+            segment.position(segmentPosition);
+            segment.get(b, offset, n);
+            position += n;
+            offset += n;
+            remaining -= n;
+        }
+    }
+
+    long readLong(long filePosition) throws IOException {
+        read(filePosition, longBytes, 0, 8);
+        return getLong(longBytes);
+    }
+
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
+        // the mapping needs to be released prior to changing the file length (and prior to
+        // deleting the file below, which would otherwise fail on windows)
+        unmap();
         if (performEasyResize(newSizeKb)) {
+            remap();
             return;
         }
         long newSizeBytes = newSizeKb * 1024L;
@@ -149,10 +244,12 @@ class CappedDatabaseOutputStream extends OutputStream {
         sizeKb = newSizeKb;
         sizeBytes = newSizeBytes;
         out = new RandomAccessFile(file, "rw");
+        remap();
     }
 
     @Override
     public void close() throws IOException {
+        unmap();
         out.close();
     }
 
@@ -173,19 +270,61 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
             // intentionally handling == case here
-            out.write(b, off, (int) remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
+            write(HEADER_SKIP_BYTES + currPosition, b, off, (int) remaining);
+            write(HEADER_SKIP_BYTES, b, off + (int) remaining, (int) (len - remaining));
         } else {
-            out.write(b, off, len);
+            write(HEADER_SKIP_BYTES + currPosition, b, off, len);
         }
         currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
+        writeLong(HEADER_CURR_INDEX_POS, currIndex);
+    }
+
+    private void write(long filePosition, byte[] b, int off, int len) throws IOException {
+        MappedByteBuffer[] segments = this.segments;
+        if (segments == null) {
+            out.seek(filePosition);
+            out.write(b, off, len);
+            return;
+        }
+        long position = filePosition;
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_BYTES)];
+            int segmentPosition = (int) (position % SEGMENT_BYTES);
+            int n = Math.min(remaining, segment.capacity() - segmentPosition);
+            segment.position(segmentPosition);
+            segment.put(b, offset, n);
+            dirtySegments[(int) (position / SEGMENT_BYTES)] = true;
+            position += n;
+            offset += n;
+            remaining -= n;
+        }
+    }
+
+    private void startBlock(int blockHeaderSkipBytes) {
+        long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
+        long remainingBytes = sizeBytes - currPosition;
+        if (remainingBytes < blockHeaderSkipBytes) {
+            // not enough space for contiguous block header
+            currIndex += remainingBytes;
+        }
+        blockStartIndex = currIndex;
+        blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
+        // make space for block header to be written at start position
+        currIndex += blockHeaderSkipBytes;
+    }
+
+    private void writeLong(long filePosition, long value) throws IOException {
+        // big-endian, same as RandomAccessFile.writeLong()
+        for (int i = 7; i >= 0; i--) {
+            longBytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        write(filePosition, longBytes, 0, 8);
     }
 
     private boolean performEasyResize(int newSizeKb) throws IOException {
@@ -212,11 +351,103 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
+    private void unmap() {
+        MappedByteBuffer[] segments = this.segments;
+        if (segments == null) {
+            return;
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+            unmap(segment);
+        }
+        this.segments = null;
+    }
+
+    // only the segments that were written to are forced, which (in the common case of a block
+    // that does not span segments) is the header segment plus the segment containing the block
     void sync() throws IOException {
+        MappedByteBuffer[] segments = this.segments;
+        if (segments != null) {
+            for (int i = 0; i < segments.length; i++) {
+                if (dirtySegments[i]) {
+                    segments[i].force();
+                    dirtySegments[i] = false;
+                }
+            }
+        }
         out.getFD().sync();
     }
 
+    private void remap() {
+        segments = map(out, HEADER_SKIP_BYTES + sizeBytes);
+        if (segments != null) {
+            dirtySegments = new boolean[segments.length];
+        }
+    }
+
+    private static @Nullable MappedByteBuffer[] map(RandomAccessFile file, long length) {
+        int segmentCount = (int) ((length + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+        MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+        int mappedCount = 0;
+        try {
+            for (; mappedCount < segmentCount; mappedCount++) {
+                long position = mappedCount * (long) SEGMENT_BYTES;
+                segments[mappedCount] = file.getChannel().map(MapMode.READ_WRITE, position,
+                        Math.min(SEGMENT_BYTES, length - position));
+            }
+        } catch (IOException e) {
+            logger.warn("unable to memory map capped database, falling back to regular file"
+                    + " access: {}", e.getMessage());
+            logger.debug(e.getMessage(), e);
+            for (int i = 0; i < mappedCount; i++) {
+                unmap(segments[i]);
+            }
+            return null;
+        }
+        return segments;
+    }
+
+    // mapped byte buffers are otherwise only unmapped when they are garbage collected, which
+    // prevents the file from being deleted on windows, and which holds on to address space
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleanerMethod =
+                    unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            invokeCleanerMethod.invoke(theUnsafeField.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // log exception at trace level
+            logger.trace(e.getMessage(), e);
+        }
+        try {
+            // java 6, 7 and 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            @Nullable
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // the buffer will be unmapped whenever it is garbage collected
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private static long getLong(byte[] bytes) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
             throws IOException {
         byte[] block = new byte[1024];
@@ -21,21 +21,21 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
-import com.google.common.base.Throwables;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -50,6 +50,18 @@ import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+// all writes (and schema operations) go through a single writer connection, while queries are
+// spread across a small pool of reader connections, so that processing of (potentially large) ui
+// query results does not serialize behind aggregate and trace storage, or behind each other
+//
+// the database is opened in h2's mvcc mode so that queries do not take table locks, which means a
+// write never waits on a lock held by a query (and so neither do any writes queued behind it on
+// the single writer connection)
+//
+// h2 still synchronizes the execution of every statement on the database (multi-threaded mode is
+// experimental in h2 1.3 and cannot be combined with mvcc), so a write can still wait for a query
+// that is already executing, but only for as long as that single statement executes (which is
+// bounded by the query timeout), and not while its results are being processed
 public class DataSource {
 
     private static final Logger logger = LoggerFactory.getLogger(DataSource.class);
@@ -60,38 +72,57 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READER_CONNECTIONS =
+            Math.max(Integer.getInteger("glowroot.internal.h2.readerConnections", 2), 1);
+
+    // per connection
+    private static final int PREPARED_STATEMENT_CACHE_SIZE = 100;
+
+    // each in-memory data source needs its own named database, since (unlike an unnamed in-memory
+    // database) a named one can be shared by multiple connections
+    private static final AtomicInteger memDbCounter = new AtomicInteger();
+
     // null means use memDb
     private final @Nullable File dbFile;
+    private final String memDbName;
     private final Thread shutdownHookThread;
-    private final Object lock = new Object();
-    @GuardedBy("lock")
-    private Connection connection;
+
+    // held (shared) for the duration of every operation, and held exclusively while connections
+    // are being replaced or closed
+    private final ReentrantReadWriteLock poolLock = new ReentrantReadWriteLock();
+
+    private final Object writerLock = new Object();
+    @GuardedBy("writerLock")
+    private PooledConnection writer;
+
+    // reader connections are only replaced while holding poolLock exclusively, at which point they
+    // are all back in the queue
+    private final BlockingQueue<PooledConnection> readers =
+            new ArrayBlockingQueue<PooledConnection>(READER_CONNECTIONS);
+
+    // allows nested queries (e.g. from inside JdbcQuery.processResultSet()) to re-use the reader
+    // connection that is already checked out by the current thread
+    private final ThreadLocal</*@Nullable*/ PooledConnection> currentReader =
+            new ThreadLocal</*@Nullable*/ PooledConnection>();
+
     private volatile boolean closing = false;
 
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder()
-                    .weakValues()
-                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
-                        @Override
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
-
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        memDbName = "glowroot-" + memDbCounter.getAndIncrement();
+        writer = createConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        memDbName = "";
+        writer = createConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -100,13 +131,19 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        poolLock.writeLock().lock();
+        try {
             if (closing) {
                 return;
             }
+            // this closes the database, and so all of the connections
             execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            synchronized (writerLock) {
+                readers.clear();
+                writer = createConnections();
+            }
+        } finally {
+            poolLock.writeLock().unlock();
         }
     }
 
@@ -114,14 +151,17 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        poolLock.writeLock().lock();
+        try {
             if (closing) {
                 return;
             }
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            boolean success = dbFile.delete();
-            connection = createConnection(dbFile);
+            boolean success;
+            synchronized (writerLock) {
+                closeConnections();
+                success = dbFile.delete();
+                writer = createConnections();
+            }
             for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables.entrySet()) {
                 syncTable(entry.getKey(), entry.getValue());
             }
@@ -131,26 +171,33 @@ public class DataSource {
             if (!success) {
                 throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
             }
+        } finally {
+            poolLock.writeLock().unlock();
         }
     }
 
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
-        synchronized (lock) {
-            if (closing) {
-                return;
-            }
-            Statement statement = connection.createStatement();
-            // setQueryTimeout() affects all statements of this connection (at least with h2)
-            statement.setQueryTimeout(0);
-            StatementCloser closer = new StatementCloser(statement);
-            try {
-                statement.execute(sql);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                if (closing) {
+                    return;
+                }
+                Statement statement = writer.connection.createStatement();
+                // setQueryTimeout() affects all statements of this connection (at least with h2)
+                statement.setQueryTimeout(0);
+                StatementCloser closer = new StatementCloser(statement);
+                try {
+                    statement.execute(sql);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
             }
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
@@ -163,11 +210,12 @@ public class DataSource {
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
+        poolLock.readLock().lock();
+        try {
             if (closing) {
                 return null;
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+            return queryOnReader(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
                 @Override
                 public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -181,21 +229,26 @@ public class DataSource {
                     return value;
                 }
             });
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
     public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
+        poolLock.readLock().lock();
+        try {
             if (closing) {
                 return false;
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
+            return queryOnReader(sql, args, new ResultSetExtractor<Boolean>() {
                 @Override
                 public Boolean extractData(ResultSet resultSet) throws SQLException {
                     return resultSet.next();
                 }
             });
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
@@ -215,23 +268,32 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
+        poolLock.readLock().lock();
+        try {
             if (closing) {
                 return jdbcQuery.valueIfDataSourceClosing();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
+            PooledConnection reader = acquireReader();
             try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
+                PreparedStatement preparedStatement =
+                        reader.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    return jdbcQuery.processResultSet(resultSet);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
+                // don't need to close statement since they are all cached and only used by the
+                // thread that has checked out the connection
             } finally {
-                closer.close();
+                releaseReader(reader);
             }
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
@@ -249,27 +311,36 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
+        poolLock.readLock().lock();
+        try {
             if (closing) {
                 return ImmutableList.of();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
+            PooledConnection reader = acquireReader();
             try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
+                PreparedStatement preparedStatement =
+                        reader.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    List<T> mappedRows = Lists.newArrayList();
+                    while (resultSet.next()) {
+                        mappedRows.add(jdbcQuery.mapRow(resultSet));
+                    }
+                    return ImmutableList.copyOf(mappedRows);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
                 }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
+                // don't need to close statement since they are all cached and only used by the
+                // thread that has checked out the connection
             } finally {
-                closer.close();
+                releaseReader(reader);
             }
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
@@ -297,14 +368,20 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return 0;
         }
-        synchronized (lock) {
-            if (closing) {
-                return 0;
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                if (closing) {
+                    return 0;
+                }
+                PreparedStatement preparedStatement =
+                        writer.prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeUpdate();
+                // don't need to close statement since they are all cached and used under lock
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeUpdate();
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
@@ -316,20 +393,26 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return new int[0];
         }
-        synchronized (lock) {
-            if (closing) {
-                return new int[0];
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                if (closing) {
+                    return new int[0];
+                }
+                PreparedStatement preparedStatement =
+                        writer.prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeBatch();
+                // don't need to close statement since they are all cached and used under lock
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeBatch();
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
     public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
         // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
+        // lock the writer connection (and the table) for one large chunk of time
         int deleted;
         do {
             deleted = update("delete from " + tableName + " where capture_time < ? limit 100",
@@ -338,23 +421,33 @@ public class DataSource {
     }
 
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
-        synchronized (lock) {
-            if (closing) {
-                return;
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                if (closing) {
+                    return;
+                }
+                Schemas.syncTable(tableName, columns, writer.connection);
+                tables.put(tableName, ImmutableList.copyOf(columns));
             }
-            Schemas.syncTable(tableName, columns, connection);
-            tables.put(tableName, ImmutableList.copyOf(columns));
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
     public void syncIndexes(@Untainted String tableName, ImmutableList<Index> indexes)
             throws SQLException {
-        synchronized (lock) {
-            if (closing) {
-                return;
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                if (closing) {
+                    return;
+                }
+                Schemas.syncIndexes(tableName, indexes, writer.connection);
+                this.indexes.put(tableName, indexes);
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
-            this.indexes.put(tableName, indexes);
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
@@ -364,22 +457,32 @@ public class DataSource {
 
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
-        synchronized (lock) {
-            return !closing && Schemas.tableExists(tableName, connection);
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                return !closing && Schemas.tableExists(tableName, writer.connection);
+            }
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
-        synchronized (lock) {
-            return !closing && Schemas.columnExists(tableName, columnName, connection);
+        poolLock.readLock().lock();
+        try {
+            synchronized (writerLock) {
+                return !closing && Schemas.columnExists(tableName, columnName, writer.connection);
+            }
+        } finally {
+            poolLock.readLock().unlock();
         }
     }
 
     // helpful for upgrading schema
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
-        if (Schemas.tableExists(oldTableName, connection)) {
+        if (tableExists(oldTableName)) {
             execute("alter table " + oldTableName + " rename to " + newTableName);
         }
     }
@@ -387,7 +490,7 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
-        if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+        if (columnExists(tableName, oldColumnName)) {
             execute("alter table " + tableName + " alter column " + oldColumnName + " rename to "
                     + newColumnName);
         }
@@ -395,71 +498,108 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
+        poolLock.writeLock().lock();
+        try {
             if (closing) {
                 return;
             }
             closing = true;
-            connection.close();
+            synchronized (writerLock) {
+                closeConnections();
+            }
+        } finally {
+            poolLock.writeLock().unlock();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
+    // poolLock must be held (shared) prior to calling this method
+    private <T extends /*@Nullable*/ Object> T queryOnReader(@Untainted String sql, Object[] args,
             ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
-        }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        PooledConnection reader = acquireReader();
         try {
-            return rse.extractData(resultSet);
-        } catch (Throwable t) {
-            throw closer.rethrow(t);
+            PreparedStatement preparedStatement =
+                    reader.prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
+            for (int i = 0; i < args.length; i++) {
+                preparedStatement.setObject(i + 1, args[i]);
+            }
+            ResultSet resultSet = preparedStatement.executeQuery();
+            ResultSetCloser closer = new ResultSetCloser(resultSet);
+            try {
+                return rse.extractData(resultSet);
+            } catch (Throwable t) {
+                throw closer.rethrow(t);
+            } finally {
+                closer.close();
+            }
+            // don't need to close statement since they are all cached and only used by the
+            // thread that has checked out the connection
         } finally {
-            closer.close();
+            releaseReader(reader);
         }
-        // don't need to close statement since they are all cached and used under lock
     }
 
-    private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
-            throws SQLException {
-        try {
-            PreparedStatement preparedStatement = preparedStatementCache.get(sql);
-            // setQueryTimeout() affects all statements of this connection (at least with h2)
-            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
-            return preparedStatement;
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
-            throw new SQLException(e);
+    // poolLock must be held (shared) prior to calling this method
+    private PooledConnection acquireReader() throws SQLException {
+        PooledConnection reader = currentReader.get();
+        if (reader == null) {
+            try {
+                reader = readers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            currentReader.set(reader);
+        }
+        reader.checkoutDepth++;
+        return reader;
+    }
+
+    private void releaseReader(PooledConnection reader) {
+        if (--reader.checkoutDepth == 0) {
+            currentReader.remove();
+            readers.add(reader);
+        }
+    }
+
+    // poolLock must be held exclusively prior to calling this method (which means all readers are
+    // in the queue), returns the new writer connection
+    private PooledConnection createConnections() throws SQLException {
+        // writer is created first since it is the one that opens (or creates) the database
+        PooledConnection writer = new PooledConnection(createConnection());
+        for (int i = 0; i < READER_CONNECTIONS; i++) {
+            readers.add(new PooledConnection(createConnection()));
         }
+        return writer;
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    // poolLock must be held exclusively and writerLock must be held prior to calling this method
+    private void closeConnections() throws SQLException {
+        // readers are closed first so that the database is closed once the writer is closed
+        PooledConnection reader;
+        while ((reader = readers.poll()) != null) {
+            reader.close();
+        }
+        writer.close();
+    }
+
+    private Connection createConnection() throws SQLException {
         try {
             Class.forName("org.h2.Driver");
         } catch (ClassNotFoundException e) {
             throw new SQLException(e);
         }
+        // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
+        String settings = ";compress=true;db_close_on_exit=false;mvcc=true";
         if (dbFile == null) {
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
-                    new Properties());
+            return new JdbcConnection("jdbc:h2:mem:" + memDbName + settings, new Properties());
         } else {
             String dbPath = dbFile.getPath();
             dbPath = dbPath.replaceFirst(".h2.db$", "");
             Properties props = new Properties();
             props.setProperty("user", "sa");
             props.setProperty("password", "");
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
-                    + CACHE_SIZE;
+            String url = "jdbc:h2:" + dbPath + settings + ";cache_size=" + CACHE_SIZE;
             return new JdbcConnection(url, props);
         }
     }
@@ -515,6 +655,54 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private static class PooledConnection {
+
+        private final Connection connection;
+
+        // only accessed by the thread that has the connection checked out (or holds writerLock)
+        private final Map</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
+                new LinkedHashMap</*@Untainted*/ String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry</*@Untainted*/ String, PreparedStatement> eldest) {
+                        if (size() <= PREPARED_STATEMENT_CACHE_SIZE) {
+                            return false;
+                        }
+                        try {
+                            eldest.getValue().close();
+                        } catch (SQLException e) {
+                            logger.warn(e.getMessage(), e);
+                        }
+                        return true;
+                    }
+                };
+
+        // only accessed by the thread that has the connection checked out
+        private int checkoutDepth;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+                throws SQLException {
+            PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+            if (preparedStatement == null) {
+                preparedStatement = connection.prepareStatement(sql);
+                preparedStatementCache.put(sql, preparedStatement);
+            }
+            // setQueryTimeout() affects all statements of this connection (at least with h2)
+            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+            return preparedStatement;
+        }
+
+        private void close() throws SQLException {
+            // closing the connection also closes its prepared statements
+            preparedStatementCache.clear();
+            connection.close();
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -526,8 +714,13 @@ public class DataSource {
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closing = true;
-                synchronized (lock) {
-                    connection.close();
+                poolLock.writeLock().lock();
+                try {
+                    synchronized (writerLock) {
+                        closeConnections();
+                    }
+                } finally {
+                    poolLock.writeLock().unlock();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
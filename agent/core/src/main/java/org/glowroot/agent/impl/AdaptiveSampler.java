@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.ScheduledRunnable;
+
+// when enabled, keeps agent overhead under a cpu budget by downgrading a fraction of transactions
+// to timer-only capture (no trace entries, no query or service call aggregates, no trace storage)
+//
+// one out of every sampleInterval transactions (on average) is still fully captured, and stands in
+// for sampleInterval transactions when its queries and service calls are merged into the
+// aggregates, which keeps those aggregates statistically unbiased, while transaction count,
+// durations, percentiles, errors and timers are still captured for every transaction
+public class AdaptiveSampler extends ScheduledRunnable implements AdaptiveSamplerMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveSampler.class);
+
+    // percentage of the cpu capacity available to the process (all available processors), zero
+    // (the default) disables adaptive sampling
+    public static final int CPU_BUDGET_PERCENT =
+            Integer.getInteger("glowroot.adaptive.sampling.cpu.budget.percent", 0);
+
+    public static final int PERIOD_MILLIS = 1000;
+
+    // must be a power of two
+    @VisibleForTesting
+    static final int MAX_SAMPLE_INTERVAL = 64;
+
+    private static final String AGENT_THREAD_NAME_PREFIX = "Glowroot-";
+
+    // agent threads that are started in between refreshes (e.g. by thread pools growing) are
+    // picked up on the next refresh
+    private static final int AGENT_THREAD_IDS_REFRESH_PERIODS = 60;
+
+    private final Aggregator aggregator;
+    private final int cpuBudgetPercent;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final int availableProcessors = Runtime.getRuntime().availableProcessors();
+
+    // only accessed by the scheduled thread
+    private long /*@Nullable*/[] agentThreadIds;
+    private int periodsSinceAgentThreadIdsRefresh;
+    private Map<Long, Long> priorThreadCpuNanos = Maps.newHashMap();
+    private long priorTick;
+
+    // always a power of two
+    private volatile int sampleInterval = 1;
+    private volatile double agentCpuPercent;
+
+    public AdaptiveSampler(Aggregator aggregator) {
+        this(aggregator, CPU_BUDGET_PERCENT);
+    }
+
+    @VisibleForTesting
+    AdaptiveSampler(Aggregator aggregator, int cpuBudgetPercent) {
+        this.aggregator = aggregator;
+        this.cpuBudgetPercent = cpuBudgetPercent;
+    }
+
+    // returns zero if the transaction should be downgraded to timer-only capture, otherwise
+    // returns the number of transactions that the (fully captured) transaction stands in for
+    int nextCaptureWeight(long startTick) {
+        int sampleInterval = this.sampleInterval;
+        if (sampleInterval == 1) {
+            return 1;
+        }
+        // hashing the start tick instead of using a shared random number generator avoids
+        // contention between transaction threads
+        long hash = startTick * 0x9E3779B97F4A7C15L;
+        if (((hash >>> 58) & (sampleInterval - 1)) == 0) {
+            return sampleInterval;
+        }
+        return 0;
+    }
+
+    @Override
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    @Override
+    public double getAgentCpuPercent() {
+        return agentCpuPercent;
+    }
+
+    @Override
+    protected void runInternal() {
+        double agentCpuPercent = measureAgentCpuPercent();
+        this.agentCpuPercent = agentCpuPercent;
+        double backlog = aggregator.getPendingTransactionCount()
+                / (double) aggregator.getPendingTransactionLimit();
+        update(agentCpuPercent, backlog);
+    }
+
+    @VisibleForTesting
+    void update(double agentCpuPercent, double backlog) {
+        int sampleInterval = this.sampleInterval;
+        // multiplicative in both directions, but recovering only once comfortably under budget,
+        // to avoid oscillating around the budget
+        if (agentCpuPercent > cpuBudgetPercent || backlog > 0.5) {
+            if (sampleInterval < MAX_SAMPLE_INTERVAL) {
+                sampleInterval *= 2;
+            }
+        } else if (agentCpuPercent < cpuBudgetPercent / 2.0 && backlog < 0.1) {
+            if (sampleInterval > 1) {
+                sampleInterval /= 2;
+            }
+        }
+        if (sampleInterval != this.sampleInterval) {
+            logger.debug("agent cpu: {}%, aggregation backlog: {}%, fully capturing 1 out of every"
+                    + " {} transactions", agentCpuPercent, backlog * 100, sampleInterval);
+            this.sampleInterval = sampleInterval;
+        }
+    }
+
+    // cpu time of the agent's own threads as a percentage of the cpu capacity of the process
+    // (elapsed time multiplied by the number of available processors) over the period since the
+    // last measurement (overhead on application threads from instrumentation is not included, but
+    // is reflected indirectly in the aggregation backlog)
+    private double measureAgentCpuPercent() {
+        if (!threadMXBean.isThreadCpuTimeSupported() || !threadMXBean.isThreadCpuTimeEnabled()) {
+            return 0;
+        }
+        long /*@Nullable*/[] agentThreadIds = this.agentThreadIds;
+        if (agentThreadIds == null
+                || ++periodsSinceAgentThreadIdsRefresh >= AGENT_THREAD_IDS_REFRESH_PERIODS) {
+            agentThreadIds = findAgentThreadIds();
+            this.agentThreadIds = agentThreadIds;
+            periodsSinceAgentThreadIdsRefresh = 0;
+        }
+        long currTick = System.nanoTime();
+        Map<Long, Long> currThreadCpuNanos = Maps.newHashMap();
+        long agentCpuNanos = 0;
+        for (long threadId : agentThreadIds) {
+            long cpuNanos = threadMXBean.getThreadCpuTime(threadId);
+            if (cpuNanos == -1) {
+                // thread is no longer alive
+                continue;
+            }
+            currThreadCpuNanos.put(threadId, cpuNanos);
+            Long priorCpuNanos = priorThreadCpuNanos.get(threadId);
+            if (priorCpuNanos != null) {
+                // cpu time prior to the first observation of the thread is not attributable to
+                // the last period
+                agentCpuNanos += cpuNanos - priorCpuNanos;
+            }
+        }
+        long elapsedNanos = currTick - priorTick;
+        boolean firstMeasurement = priorThreadCpuNanos.isEmpty();
+        priorThreadCpuNanos = currThreadCpuNanos;
+        priorTick = currTick;
+        if (firstMeasurement || elapsedNanos <= 0) {
+            return 0;
+        }
+        return 100.0 * agentCpuNanos / (elapsedNanos * (double) availableProcessors);
+    }
+
+    // enumerating all threads is relatively expensive, so this is only done periodically, and in
+    // between only the agent's own threads are sampled
+    private long[] findAgentThreadIds() {
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0);
+        List<Long> agentThreadIds = Lists.newArrayList();
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo != null
+                    && threadInfo.getThreadName().startsWith(AGENT_THREAD_NAME_PREFIX)) {
+                agentThreadIds.add(threadInfo.getThreadId());
+            }
+        }
+        return Longs.toArray(agentThreadIds);
+    }
+}
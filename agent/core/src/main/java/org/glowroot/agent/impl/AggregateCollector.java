@@ -40,7 +40,6 @@ import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
-import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -77,8 +76,10 @@ class AggregateCollector {
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
-    private @MonotonicNonNull MutableProfile mainThreadProfile;
-    private @MonotonicNonNull MutableProfile auxThreadProfile;
+    // profiles are merged in their interned form (see Profile), and only converted to protobuf when
+    // the aggregate is built
+    private @MonotonicNonNull Profile mainThreadProfile;
+    private @MonotonicNonNull Profile auxThreadProfile;
 
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
@@ -105,6 +106,40 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to merge aggregate collectors from separate processing shards
+    void merge(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+        if (collector.queries != null) {
+            getQueryCollector().mergeQueries(collector.queries);
+        }
+        if (collector.serviceCalls != null) {
+            getServiceCallCollector().mergeServiceCalls(collector.serviceCalls);
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new Profile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new Profile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -119,16 +154,16 @@ class AggregateCollector {
 
     void mergeMainThreadProfile(Profile toBeMergedProfile) {
         if (mainThreadProfile == null) {
-            mainThreadProfile = new MutableProfile();
+            mainThreadProfile = new Profile();
         }
-        toBeMergedProfile.mergeInto(mainThreadProfile);
+        mainThreadProfile.merge(toBeMergedProfile);
     }
 
     void mergeAuxThreadProfile(Profile toBeMergedProfile) {
         if (auxThreadProfile == null) {
-            auxThreadProfile = new MutableProfile();
+            auxThreadProfile = new Profile();
         }
-        toBeMergedProfile.mergeInto(auxThreadProfile);
+        auxThreadProfile.merge(toBeMergedProfile);
     }
 
     QueryCollector getQueryCollector() {
@@ -137,7 +172,7 @@ class AggregateCollector {
                     ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
                     : AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
             queries = new QueryCollector(maxAggregateQueriesPerType,
-                    queriesHardLimitMultiplierWhileBuilding, false);
+                    queriesHardLimitMultiplierWhileBuilding);
         }
         return queries;
     }
@@ -277,6 +312,12 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                mergeRootTimer(toBeMergedRootTimer, rootMutableTimers);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -299,6 +340,21 @@ class AggregateCollector {
             rootTimer.merge(toBeMergedRootTimer);
             rootTimers.add(rootTimer);
         }
+
+        private static void mergeRootTimer(MutableAggregateTimer toBeMergedRootTimer,
+                List<MutableAggregateTimer> rootTimers) {
+            for (MutableAggregateTimer rootTimer : rootTimers) {
+                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                        && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                    rootTimer.merge(toBeMergedRootTimer);
+                    return;
+                }
+            }
+            MutableAggregateTimer rootTimer = MutableAggregateTimer.createRootTimer(
+                    toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+            rootTimer.merge(toBeMergedRootTimer);
+            rootTimers.add(rootTimer);
+        }
     }
 
     private static class ThreadStatsCollectorImpl implements ThreadStatsCollector {
@@ -323,6 +379,20 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            if (collector.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
@@ -18,12 +18,16 @@ package org.glowroot.agent.impl;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,12 +63,17 @@ public class AggregateIntervalCollector {
     private final int maxAggregateServiceCallsPerType;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // each shard is only added to by a single processing thread, and transactions are partitioned
+    // across shards by transaction type and transaction name, so transaction aggregates never span
+    // shards, while overall aggregates are merged across shards when they are read or flushed
+    private final IntervalShard[] shards;
 
-    private final Object lock = new Object();
+    // transaction name counts are tracked across shards so that the max transaction names per
+    // transaction type applies to the interval as a whole
+    private final ConcurrentMap<String, AtomicInteger> transactionNameCounts =
+            Maps.newConcurrentMap();
 
-    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
+    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis, int shardCount,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
             int maxAggregateServiceCallsPerType, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
@@ -73,6 +82,21 @@ public class AggregateIntervalCollector {
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.clock = clock;
+        shards = new IntervalShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new IntervalShard();
+        }
+    }
+
+    static int getShardIndex(String transactionType, String transactionName, int shardCount) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        // spread the hash bits (same as java.util.HashMap) before reducing
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % shardCount;
     }
 
     public long getCaptureTime() {
@@ -80,158 +104,196 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
-            typeCollector.add(transaction);
-        }
+        shards[getShardIndex(transaction.getTransactionType(), transaction.getTransactionName(),
+                shards.length)].add(transaction);
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, null);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeOverallSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (IntervalShard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                IntervalTypeCollector typeCollector =
+                        shard.getSnapshot().typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, null);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeOverallErrorSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (IntervalShard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                IntervalTypeCollector typeCollector =
+                        shard.getSnapshot().typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (transactionName == null && shards.length > 1) {
+            AggregateCollector aggregateCollector = getMergedOverallAggregate(transactionType);
+            if (aggregateCollector == null) {
+                return null;
+            }
+            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+        }
+        IntervalShard shard = getShard(transactionType, transactionName);
+        synchronized (shard.snapshotLock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
             return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (transactionName == null && shards.length > 1) {
+            AggregateCollector aggregateCollector = getMergedOverallAggregate(transactionType);
+            if (aggregateCollector == null) {
+                return null;
+            }
+            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+        }
+        IntervalShard shard = getShard(transactionType, transactionName);
+        synchronized (shard.snapshotLock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
             return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (transactionName == null && shards.length > 1) {
+            AggregateCollector aggregateCollector = getMergedOverallAggregate(transactionType);
+            if (aggregateCollector == null) {
+                return null;
+            }
+            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+        }
+        IntervalShard shard = getShard(transactionType, transactionName);
+        synchronized (shard.snapshotLock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
             return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                for (IntervalTypeCollector typeCollector : shard.getSnapshot().typeCollectors
+                        .values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeQueriesInto(collector);
+                }
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeServiceCallsInto(collector);
+                }
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeMainThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeAuxThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
@@ -240,31 +302,177 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (IntervalShard shard : shards) {
+            shard.clear();
         }
+        transactionNameCounts.clear();
     }
 
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    private IntervalShard getShard(String transactionType, @Nullable String transactionName) {
+        if (transactionName == null) {
+            // only called for overall aggregates when there is a single shard
+            return shards[0];
         }
-        return typeCollector;
+        return shards[getShardIndex(transactionType, transactionName, shards.length)];
     }
 
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
+    // transaction aggregates are in a single shard, while overall aggregates span all shards
+    private IntervalShard[] getShards(String transactionType, @Nullable String transactionName) {
+        if (transactionName == null || shards.length == 1) {
+            return shards;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        return new IntervalShard[] {getShard(transactionType, transactionName)};
+    }
+
+    private @Nullable AggregateCollector getMergedOverallAggregate(String transactionType) {
+        @Nullable
+        AggregateCollector mergedAggregateCollector = null;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                AggregateCollector aggregateCollector =
+                        shard.getSnapshot().getAggregateCollector(transactionType, null);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(null,
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                }
+                mergedAggregateCollector.merge(aggregateCollector);
+            }
+        }
+        return mergedAggregateCollector;
+    }
+
+    private boolean tryIncrementTransactionNameCount(String transactionType) {
+        AtomicInteger transactionNameCount = transactionNameCounts.get(transactionType);
+        if (transactionNameCount == null) {
+            transactionNameCount = new AtomicInteger();
+            AtomicInteger existing =
+                    transactionNameCounts.putIfAbsent(transactionType, transactionNameCount);
+            if (existing != null) {
+                transactionNameCount = existing;
+            }
+        }
+        if (transactionNameCount.incrementAndGet() > maxAggregateTransactionsPerTransactionType) {
+            transactionNameCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // the processing thread adds to the active segment under lock, while readers (and flush) take
+    // snapshotLock and only take lock long enough to swap out the active segment, so that slow
+    // readers (e.g. merging a large profile) never block the processing thread
+    private class IntervalShard {
+
+        private final Object lock = new Object();
+        private final Object snapshotLock = new Object();
+
+        @GuardedBy("lock")
+        private IntervalSegment activeSegment = new IntervalSegment();
+        // transaction names are tracked across segments so that max transaction names per
+        // transaction type is not applied separately to each segment
+        @GuardedBy("lock")
+        private final Map<String, Set<String>> transactionNames = Maps.newHashMap();
+
+        // segments swapped out of the active segment are merged into this one, which is never
+        // added to by the processing thread
+        @GuardedBy("snapshotLock")
+        private IntervalSegment snapshotSegment = new IntervalSegment();
+
+        private void add(Transaction transaction) {
+            synchronized (lock) {
+                activeSegment.getTypeCollector(transaction.getTransactionType())
+                        .add(transaction, this);
+            }
+        }
+
+        // must be called under snapshotLock, and the returned segment must only be read under
+        // snapshotLock
+        private IntervalSegment getSnapshot() {
+            IntervalSegment sealedSegment;
+            synchronized (lock) {
+                if (activeSegment.typeCollectors.isEmpty()) {
+                    return snapshotSegment;
+                }
+                sealedSegment = activeSegment;
+                activeSegment = new IntervalSegment();
+            }
+            // merging happens outside of lock
+            if (snapshotSegment.typeCollectors.isEmpty()) {
+                snapshotSegment = sealedSegment;
+            } else {
+                snapshotSegment.merge(sealedSegment);
+            }
+            return snapshotSegment;
+        }
+
+        // must be called under lock
+        private boolean isTransactionNameAllowed(String transactionType, String transactionName) {
+            Set<String> transactionNamesForType = transactionNames.get(transactionType);
+            if (transactionNamesForType == null) {
+                transactionNamesForType = Sets.newHashSet();
+                transactionNames.put(transactionType, transactionNamesForType);
+            }
+            if (transactionNamesForType.contains(transactionName)) {
+                return true;
+            }
+            if (!tryIncrementTransactionNameCount(transactionType)) {
+                return false;
+            }
+            transactionNamesForType.add(transactionName);
+            return true;
+        }
+
+        private void clear() {
+            synchronized (snapshotLock) {
+                synchronized (lock) {
+                    activeSegment = new IntervalSegment();
+                    transactionNames.clear();
+                }
+                snapshotSegment = new IntervalSegment();
+            }
+        }
+    }
+
+    private class IntervalSegment {
+
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector();
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
+        }
+
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
+        }
+
+        // the segment passed in is discarded afterwards, so its collectors can be re-used
+        private void merge(IntervalSegment segment) {
+            for (Entry<String, IntervalTypeCollector> entry : segment.typeCollectors.entrySet()) {
+                IntervalTypeCollector typeCollector = typeCollectors.get(entry.getKey());
+                if (typeCollector == null) {
+                    typeCollectors.put(entry.getKey(), entry.getValue());
+                } else {
+                    typeCollector.merge(entry.getValue());
+                }
+            }
         }
     }
 
@@ -279,12 +487,12 @@ public class AggregateIntervalCollector {
                     maxAggregateServiceCallsPerType);
         }
 
-        private void add(Transaction transaction) {
+        private void add(Transaction transaction, IntervalShard shard) {
             merge(transaction, overallAggregateCollector);
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
-            if (transactionAggregateCollector == null && transactionAggregateCollectors
-                    .size() < maxAggregateTransactionsPerTransactionType) {
+            if (transactionAggregateCollector == null && shard.isTransactionNameAllowed(
+                    transaction.getTransactionType(), transaction.getTransactionName())) {
                 transactionAggregateCollector =
                         new AggregateCollector(transaction.getTransactionName(),
                                 maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
@@ -322,6 +530,21 @@ public class AggregateIntervalCollector {
             }
         }
 
+        // the type collector passed in is discarded afterwards, so its collectors can be re-used
+        private void merge(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.merge(typeCollector.overallAggregateCollector);
+            for (Entry<String, AggregateCollector> entry : typeCollector
+                    .transactionAggregateCollectors.entrySet()) {
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(entry.getKey());
+                if (transactionAggregateCollector == null) {
+                    transactionAggregateCollectors.put(entry.getKey(), entry.getValue());
+                } else {
+                    transactionAggregateCollector.merge(entry.getValue());
+                }
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -340,27 +563,68 @@ public class AggregateIntervalCollector {
     private class AggregatesImpl implements Aggregates {
         @Override
         public <T extends Exception> void accept(AggregateVisitor<T> aggregateVisitor) throws T {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (String transactionType : getTransactionTypes()) {
+                Aggregate overallAggregate = buildOverallAggregate(transactionType,
+                        sharedQueryTextCollector, scratchBuffer);
+                if (overallAggregate == null) {
+                    // cleared in the meantime
+                    continue;
+                }
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (IntervalShard shard : shards) {
+                    synchronized (shard.snapshotLock) {
+                        IntervalTypeCollector intervalTypeCollector =
+                                shard.getSnapshot().typeCollectors.get(transactionType);
+                        if (intervalTypeCollector == null) {
+                            continue;
+                        }
+                        Map<String, AggregateCollector> transactionAggregateCollectors =
+                                intervalTypeCollector.transactionAggregateCollectors;
+                        for (Entry<String, AggregateCollector> e : transactionAggregateCollectors
+                                .entrySet()) {
+                            Aggregate transactionAggregate =
+                                    e.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                            aggregateVisitor.visitTransactionAggregate(transactionType, e.getKey(),
+                                    sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                                    transactionAggregate);
+                        }
+                    }
+                }
+            }
+        }
+
+        private @Nullable Aggregate buildOverallAggregate(String transactionType,
+                SharedQueryTextCollector sharedQueryTextCollector, ScratchBuffer scratchBuffer) {
+            if (shards.length == 1) {
+                synchronized (shards[0].snapshotLock) {
+                    AggregateCollector aggregateCollector =
+                            shards[0].getSnapshot().getAggregateCollector(transactionType, null);
+                    if (aggregateCollector == null) {
+                        return null;
                     }
+                    return aggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
+                }
+            }
+            AggregateCollector mergedAggregateCollector =
+                    getMergedOverallAggregate(transactionType);
+            if (mergedAggregateCollector == null) {
+                return null;
+            }
+            return mergedAggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
+        }
+
+        private Set<String> getTransactionTypes() {
+            Set<String> transactionTypes = Sets.newLinkedHashSet();
+            for (IntervalShard shard : shards) {
+                synchronized (shard.snapshotLock) {
+                    transactionTypes.addAll(shard.getSnapshot().typeCollectors.keySet());
                 }
             }
+            return transactionTypes;
         }
     }
 }
@@ -15,15 +15,24 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,25 +40,40 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class Aggregator {
+public class Aggregator implements AggregatorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
-    // back pressure on transaction collection
+    // transactions are partitioned by transaction type and transaction name across this number of
+    // processing threads, each aggregating into its own shard of the interval collector
+    private static final int PROCESSING_THREADS =
+            Integer.getInteger("glowroot.aggregate.processing.threads", 1);
+
+    // back pressure on transaction collection (applied per processing thread)
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    // interval collectors that at least one processing thread may still be adding to
+    private final NavigableMap<Long, AggregateIntervalCollector> activeIntervalCollectors =
+            new ConcurrentSkipListMap<Long, AggregateIntervalCollector>();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
+    // capture time of the interval that each processing thread is currently adding to
+    @GuardedBy("intervalLock")
+    private final long[] processorCaptureTimes;
+    private final Object intervalLock = new Object();
+
+    private final TransactionProcessor[] processors;
+
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
@@ -58,40 +82,52 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
-
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
+    // these are exposed via jmx so that back pressure can be observed (e.g. by benchmarks)
+    private final AtomicLong droppedTransactionCount = new AtomicLong();
+    private final AtomicLong droppedAggregateCount = new AtomicLong();
+
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, PROCESSING_THREADS, clock);
+    }
+
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            int processingThreads, Clock clock) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors.newSingleThreadExecutor(
+        processingExecutor = Executors.newFixedThreadPool(processingThreads,
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
-                        .setNameFormat("Glowroot-Aggregate-Processing")
+                        .setNameFormat(processingThreads == 1 ? "Glowroot-Aggregate-Processing"
+                                : "Glowroot-Aggregate-Processing-%d")
                         .build());
         flushingExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Aggregate-Flushing")
                         .build());
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        long captureTime =
+                Utils.getRollupCaptureTime(clock.currentTimeMillis(), aggregateIntervalMillis);
+        AggregateIntervalCollector intervalCollector = new AggregateIntervalCollector(captureTime,
+                aggregateIntervalMillis, processingThreads,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+        activeIntervalCollectors.put(captureTime, intervalCollector);
+        processorCaptureTimes = new long[processingThreads];
+        TransactionProcessor[] processors = new TransactionProcessor[processingThreads];
+        for (int i = 0; i < processingThreads; i++) {
+            processorCaptureTimes[i] = captureTime;
+            processors[i] = new TransactionProcessor(i, intervalCollector);
+        }
+        this.processors = processors;
+        for (TransactionProcessor processor : processors) {
+            processingExecutor.execute(processor);
+        }
     }
 
     // from is non-inclusive
@@ -108,51 +144,127 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors.values()) {
+            intervalCollector.clear();
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-                return captureTime;
-            }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+        int processorIndex = AggregateIntervalCollector.getShardIndex(
+                transaction.getTransactionType(), transaction.getTransactionName(),
+                processors.length);
+        return processors[processorIndex].add(transaction);
+    }
+
+    @Override
+    public int getPendingTransactionCount() {
+        int pendingTransactionCount = 0;
+        for (TransactionProcessor processor : processors) {
+            pendingTransactionCount += processor.queueLength.get();
         }
-        return captureTime;
+        return pendingTransactionCount;
+    }
+
+    int getPendingTransactionLimit() {
+        return TRANSACTION_PENDING_LIMIT * processors.length;
+    }
+
+    @Override
+    public long getDroppedTransactionCount() {
+        return droppedTransactionCount.get();
+    }
+
+    @Override
+    public int getPendingAggregateCount() {
+        return pendingIntervalCollectors.size();
+    }
+
+    @Override
+    public long getDroppedAggregateCount() {
+        return droppedAggregateCount.get();
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
         List<AggregateIntervalCollector> intervalCollectors =
-                Lists.newArrayList(pendingIntervalCollectors);
-        if (intervalCollectors.isEmpty()) {
+                Lists.newArrayList(activeIntervalCollectors.values());
+        if (pendingIntervalCollectors.isEmpty() && intervalCollectors.size() == 1) {
             // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
             return intervalCollectors;
         }
+        for (AggregateIntervalCollector intervalCollector : pendingIntervalCollectors) {
+            if (!intervalCollectors.contains(intervalCollector)) {
+                intervalCollectors.add(intervalCollector);
+            }
+        }
+        Collections.sort(intervalCollectors, new Comparator<AggregateIntervalCollector>() {
+            @Override
+            public int compare(AggregateIntervalCollector left, AggregateIntervalCollector right) {
+                return Longs.compare(left.getCaptureTime(), right.getCaptureTime());
+            }
+        });
+        return intervalCollectors;
+    }
+
+    // called by processing thread when its next transaction (or end of interval marker) is past
+    // the end of the interval it is currently adding to
+    private AggregateIntervalCollector moveToNextInterval(int processorIndex, long captureTime) {
+        long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, aggregateIntervalMillis);
+        synchronized (intervalLock) {
+            processorCaptureTimes[processorIndex] = rollupCaptureTime;
+            AggregateIntervalCollector intervalCollector =
+                    activeIntervalCollectors.get(rollupCaptureTime);
+            if (intervalCollector == null) {
+                intervalCollector = createIntervalCollector(rollupCaptureTime);
+                activeIntervalCollectors.put(rollupCaptureTime, intervalCollector);
+            }
+            // intervals prior to the earliest interval that any processing thread is still adding
+            // to are complete
+            long minCaptureTime = Longs.min(processorCaptureTimes);
+            Entry<Long, AggregateIntervalCollector> firstEntry;
+            while ((firstEntry = activeIntervalCollectors.firstEntry()) != null
+                    && firstEntry.getKey() < minCaptureTime) {
+                flushIntervalCollector(firstEntry.getValue());
+                activeIntervalCollectors.remove(firstEntry.getKey());
+            }
+            return intervalCollector;
+        }
+    }
+
+    private void flushIntervalCollector(final AggregateIntervalCollector intervalCollector) {
+        if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+            droppedAggregateCount.incrementAndGet();
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            return;
+        }
+        pendingIntervalCollectors.add(intervalCollector);
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.remove(intervalCollector);
+                }
+            }
+        });
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                processors.length,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
-        // shutdownNow() is needed here to send interrupt to TransactionProcessor thread
+        // shutdownNow() is needed here to send interrupt to TransactionProcessor threads
         processingExecutor.shutdownNow();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -165,6 +277,66 @@ public class Aggregator {
 
     private class TransactionProcessor implements Runnable {
 
+        private final int index;
+
+        // the transaction queue is a lock free multi-producer single-consumer linked list
+        //
+        // producers append to tail using compare-and-set, and capture time is assigned as part of
+        // the same compare-and-set (never less than the capture time of the prior tail), which
+        // guarantees that capture times are monotonically increasing in queue order
+        //
+        // head is only accessed by the processing thread
+        private PendingTransaction head = new PendingTransaction(null);
+        private final AtomicReference<PendingTransaction> tail =
+                new AtomicReference<PendingTransaction>(head);
+        private final AtomicInteger queueLength = new AtomicInteger();
+
+        // processing thread is only unparked by producers when it has announced that it is parking
+        private volatile @Nullable Thread parkedThread;
+
+        // only accessed by the processing thread
+        private AggregateIntervalCollector intervalCollector;
+
+        private TransactionProcessor(int index, AggregateIntervalCollector intervalCollector) {
+            this.index = index;
+            this.intervalCollector = intervalCollector;
+        }
+
+        private long add(Transaction transaction) {
+            if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+                queueLength.decrementAndGet();
+                droppedTransactionCount.incrementAndGet();
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        TRANSACTION_PENDING_LIMIT);
+                transaction.removeFromActiveTransactions();
+                return clock.currentTimeMillis();
+            }
+            long captureTime = enqueue(new PendingTransaction(transaction));
+            Thread parkedThread = this.parkedThread;
+            if (parkedThread != null) {
+                LockSupport.unpark(parkedThread);
+            }
+            return captureTime;
+        }
+
+        // traces are placed into processing queue in the order of captureTime (so that queue
+        // reader can assume if captureTime indicates time to flush, then no new traces will come
+        // in with prior captureTime)
+        private long enqueue(PendingTransaction newTail) {
+            while (true) {
+                PendingTransaction currTail = tail.get();
+                long captureTime = Math.max(clock.currentTimeMillis(), currTail.captureTime);
+                newTail.captureTime = captureTime;
+                if (tail.compareAndSet(currTail, newTail)) {
+                    // the link from prior tail is made after the compare-and-set, so the
+                    // processing thread can briefly see tail ahead of the last linked node
+                    currTail.next = newTail;
+                    return captureTime;
+                }
+            }
+        }
+
         @Override
         public void run() {
             while (true) {
@@ -183,94 +355,77 @@ public class Aggregator {
         private void processOne() throws InterruptedException {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                if (tail.get() != head) {
+                    // producer is between compare-and-set and linking to prior tail
+                    Thread.yield();
+                } else if (clock.currentTimeMillis() > intervalCollector.getCaptureTime()) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    parkUntilNextTransaction();
                 }
                 return;
             }
+            // prior head is no longer referenced, and this one becomes the new (empty) head
+            head = pendingTransaction;
+            Transaction transaction = pendingTransaction.transaction;
+            if (transaction == null) {
+                // end of interval marker
+                if (pendingTransaction.captureTime > intervalCollector.getCaptureTime()) {
+                    // safe to move on, no other pending transactions can enter queue with prior
+                    // capture time (since capture times are monotonically increasing in queue
+                    // order)
+                    intervalCollector =
+                            moveToNextInterval(index, pendingTransaction.captureTime);
+                }
+                return;
+            }
+            queueLength.decrementAndGet();
+            // null out reference so completed transaction can be collected even though this node
+            // is retained as head until next transaction is processed
+            pendingTransaction.transaction = null;
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            if (pendingTransaction.captureTime > intervalCollector.getCaptureTime()) {
+                intervalCollector = moveToNextInterval(index, pendingTransaction.captureTime);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-            }
-            activeIntervalCollector.add(transaction);
+            intervalCollector.add(transaction);
         }
 
         private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-            }
+            // instead of checking for an empty queue under a lock (which would then be needed on
+            // the producer side also), an end of interval marker is placed at the end of the
+            // queue, and the processing thread moves to the next interval once the marker is
+            // processed
+            enqueue(new PendingTransaction(null));
         }
 
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
-                return;
-            }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
+        private void parkUntilNextTransaction() throws InterruptedException {
+            parkedThread = Thread.currentThread();
+            // re-check after announcing park, otherwise producer may have enqueued and checked
+            // parkedThread just prior
+            if (tail.get() == head) {
+                long remainingMillis =
+                        intervalCollector.getCaptureTime() - clock.currentTimeMillis() + 1;
+                if (remainingMillis > 0) {
+                    LockSupport.parkNanos(this, MILLISECONDS.toNanos(remainingMillis));
                 }
-            });
+            }
+            parkedThread = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
         }
     }
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for head and for end of interval markers (and nulled out once processed)
+        private @Nullable Transaction transaction;
+        // captureTime is non-volatile since it is written prior to the tail compare-and-set
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
@@ -163,6 +163,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return traceEntryComponent.getRootEntry();
     }
 
+    // must be called by the thread that owns this thread context
+    void recycleEntries() {
+        traceEntryComponent.recycleEntries();
+    }
+
     TimerImpl getRootTimer() {
         return rootTimer;
     }
@@ -239,21 +244,23 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 && headQueryData == null && headServiceCallData == null;
     }
 
-    void mergeQueriesInto(QueryCollector queries) {
+    // weight is the number of transactions that this transaction stands in for (greater than one
+    // only when adaptive sampling has downgraded other transactions to timer-only capture)
+    void mergeQueriesInto(QueryCollector queries, int weight) {
         QueryData curr = headQueryData;
         while (curr != null) {
             queries.mergeQuery(curr.getQueryType(), curr.getQueryText(),
-                    curr.getTotalDurationNanos(), curr.getExecutionCount(), curr.hasTotalRows(),
-                    curr.getTotalRows());
+                    curr.getTotalDurationNanos() * weight, curr.getExecutionCount() * weight,
+                    curr.hasTotalRows(), curr.getTotalRows() * weight);
             curr = curr.getNextQueryData();
         }
     }
 
-    void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
+    void mergeServiceCallsInto(ServiceCallCollector serviceCalls, int weight) {
         QueryData curr = headServiceCallData;
         while (curr != null) {
             serviceCalls.mergeServiceCall(curr.getQueryType(), curr.getQueryText(),
-                    curr.getTotalDurationNanos(), curr.getExecutionCount());
+                    curr.getTotalDurationNanos() * weight, curr.getExecutionCount() * weight);
             curr = curr.getNextQueryData();
         }
     }
@@ -490,7 +497,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
@@ -509,7 +516,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
@@ -530,7 +537,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             return startAsyncTraceEntry(startTick, messageSupplier, syncTimer, asyncTimer);
         } else {
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick, messageSupplier,
@@ -559,7 +566,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
                     queryData, 1);
@@ -591,7 +598,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
                     queryData, queryExecutionCount);
@@ -625,7 +632,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return startAsyncQueryEntry(startTick, queryMessageSupplier, syncTimer, asyncTimer,
                     queryData, 1);
@@ -658,7 +665,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         QueryData queryData = getOrCreateServiceCallDataIfPossible(type, text);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, queryData,
                     1);
         } else {
@@ -691,7 +698,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
         QueryData queryData = getOrCreateServiceCallDataIfPossible(type, text);
-        if (transaction.allowAnotherEntry()) {
+        if (transaction.allowAnotherEntry(startTick)) {
             return startAsyncServiceCallEntry(startTick, messageSupplier, syncTimer, asyncTimer,
                     queryData);
         } else {
@@ -23,9 +23,12 @@ import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
-import org.glowroot.agent.live.LiveTraceRepositoryImpl;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
+import org.glowroot.agent.impl.Transaction.EntryVisitor;
 import org.glowroot.agent.model.DetailMapWriter;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.common.util.Styles;
@@ -39,23 +42,29 @@ public class TraceCreator {
 
     private TraceCreator() {}
 
+    public static TraceReader createPartialTraceReader(Transaction transaction, long captureTime,
+            long captureTick) {
+        return new TraceReaderImpl(transaction, true, true, captureTime, captureTick);
+    }
+
+    public static TraceReader createCompletedTraceReader(Transaction transaction, boolean slow) {
+        return new TraceReaderImpl(transaction, slow, false, transaction.getCaptureTime(),
+                transaction.getEndTick());
+    }
+
     public static Trace createPartialTrace(Transaction transaction, long captureTime,
             long captureTick) throws IOException {
-        return createFullTrace(transaction, true, true, captureTime, captureTick);
+        return toTrace(createPartialTraceReader(transaction, captureTime, captureTick));
     }
 
     public static Trace createCompletedTrace(Transaction transaction, boolean slow)
             throws IOException {
-        return createFullTrace(transaction, slow, false, transaction.getCaptureTime(),
-                transaction.getEndTick());
+        return toTrace(createCompletedTraceReader(transaction, slow));
     }
 
     public static Trace.Header createPartialTraceHeader(Transaction transaction, long captureTime,
             long captureTick) throws IOException {
-        // TODO optimize, this is excessive to construct entries just to get count
-        Map<String, Integer> sharedQueryTextIndexes = Maps.newLinkedHashMap();
-        int entryCount =
-                getEntryCount(transaction.getEntriesProtobuf(captureTick, sharedQueryTextIndexes));
+        int entryCount = getEntryCount(transaction, captureTick);
         long mainThreadProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxThreadProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
@@ -65,10 +74,7 @@ public class TraceCreator {
 
     public static Trace.Header createCompletedTraceHeader(Transaction transaction)
             throws IOException {
-        // TODO optimize, this is excessive to construct entries just to get count
-        Map<String, Integer> sharedQueryTextIndexes = Maps.newLinkedHashMap();
-        int entryCount = getEntryCount(
-                transaction.getEntriesProtobuf(transaction.getEndTick(), sharedQueryTextIndexes));
+        int entryCount = getEntryCount(transaction, transaction.getEndTick());
         long mainProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
@@ -77,40 +83,41 @@ public class TraceCreator {
                 auxProfileSampleCount);
     }
 
-    // timings for traces that are still active are normalized to the capture tick in order to
-    // *attempt* to present a picture of the trace at that exact tick
-    // (without using synchronization to block updates to the trace while it is being read)
-    private static Trace createFullTrace(Transaction transaction, boolean slow, boolean partial,
-            long captureTime, long captureTick) throws IOException {
-        Map<String, Integer> sharedQueryTextIndexes = Maps.newLinkedHashMap();
-        List<Trace.Entry> entries =
-                transaction.getEntriesProtobuf(captureTick, sharedQueryTextIndexes);
-        int entryCount = getEntryCount(entries);
-        Profile mainThreadProfile = transaction.getMainThreadProfileProtobuf();
-        long mainThreadProfileSampleCount = getProfileSampleCount(mainThreadProfile);
-        Profile auxThreadProfile = transaction.getAuxThreadProfileProtobuf();
-        long auxThreadProfileSampleCount = getProfileSampleCount(auxThreadProfile);
-        Trace.Header header =
-                createTraceHeader(transaction, slow, partial, captureTime, captureTick, entryCount,
-                        mainThreadProfileSampleCount, auxThreadProfileSampleCount);
-        Trace.Builder builder = Trace.newBuilder()
-                .setId(transaction.getTraceId())
-                .setHeader(header)
-                .addAllEntry(entries)
-                .addAllSharedQueryText(LiveTraceRepositoryImpl.toProto(sharedQueryTextIndexes));
-        if (mainThreadProfile != null) {
-            builder.setMainThreadProfile(mainThreadProfile);
-        }
-        if (auxThreadProfile != null) {
-            builder.setAuxThreadProfile(auxThreadProfile);
-        }
-        return builder.setUpdate(transaction.isPartiallyStored())
-                .build();
+    private static Trace toTrace(TraceReader traceReader) {
+        final Trace.Builder builder = Trace.newBuilder()
+                .setId(traceReader.traceId())
+                .setUpdate(traceReader.update());
+        traceReader.accept(new TraceVisitor<RuntimeException>() {
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                builder.addEntry(entry);
+            }
+            @Override
+            public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
+                for (String sharedQueryText : sharedQueryTexts) {
+                    builder.addSharedQueryTextBuilder()
+                            .setFullText(sharedQueryText);
+                }
+            }
+            @Override
+            public void visitMainThreadProfile(Profile profile) {
+                builder.setMainThreadProfile(profile);
+            }
+            @Override
+            public void visitAuxThreadProfile(Profile profile) {
+                builder.setAuxThreadProfile(profile);
+            }
+            @Override
+            public void visitHeader(Trace.Header header) {
+                builder.setHeader(header);
+            }
+        });
+        return builder.build();
     }
 
     private static Trace.Header createTraceHeader(Transaction transaction, boolean slow,
             boolean partial, long captureTime, long captureTick, int entryCount,
-            long mainProfileSampleCount, long auxProfileSampleCount) throws IOException {
+            long mainProfileSampleCount, long auxProfileSampleCount) {
         Trace.Header.Builder builder = Trace.Header.newBuilder();
         builder.setPartial(partial);
         builder.setSlow(slow);
@@ -168,16 +175,24 @@ public class TraceCreator {
         return builder.build();
     }
 
+    private static int getEntryCount(Transaction transaction, long captureTick) {
+        final int[] entryCount = new int[1];
+        transaction.visitEntries(captureTick, Maps.<String, Integer>newHashMap(),
+                new EntryVisitor<RuntimeException>() {
+                    @Override
+                    public void visitEntry(Trace.Entry entry) {
+                        if (isCounted(entry)) {
+                            entryCount[0]++;
+                        }
+                    }
+                });
+        return entryCount[0];
+    }
+
     // don't count "auxiliary thread" entries since those are not counted in
     // maxTraceEntriesPerTransaction limit (and it's confusing when entry count exceeds the limit)
-    private static int getEntryCount(List<Trace.Entry> entries) {
-        int count = 0;
-        for (Trace.Entry entry : entries) {
-            if (!entry.getMessage().equals(Transaction.AUXILIARY_THREAD_MESSAGE)) {
-                count++;
-            }
-        }
-        return count;
+    private static boolean isCounted(Trace.Entry entry) {
+        return !entry.getMessage().equals(Transaction.AUXILIARY_THREAD_MESSAGE);
     }
 
     private static long getProfileSampleCount(@Nullable Profile profile) {
@@ -192,4 +207,73 @@ public class TraceCreator {
         }
         return profileSampleCount;
     }
+
+    // timings for traces that are still active are normalized to the capture tick in order to
+    // *attempt* to present a picture of the trace at that exact tick
+    // (without using synchronization to block updates to the trace while it is being read)
+    //
+    // entries are passed to the visitor as they are converted to protobuf (instead of first
+    // building up the full trace) so that the collector can write them out incrementally, which
+    // keeps peak memory bounded when storing traces with large numbers of entries
+    private static class TraceReaderImpl implements TraceReader {
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final boolean partial;
+        private final long captureTime;
+        private final long captureTick;
+        // captured up front since partial trace storage marks the transaction as partially stored
+        // prior to the trace being read
+        private final boolean update;
+
+        private TraceReaderImpl(Transaction transaction, boolean slow, boolean partial,
+                long captureTime, long captureTick) {
+            this.transaction = transaction;
+            this.slow = slow;
+            this.partial = partial;
+            this.captureTime = captureTime;
+            this.captureTick = captureTick;
+            update = transaction.isPartiallyStored();
+        }
+
+        @Override
+        public String traceId() {
+            return transaction.getTraceId();
+        }
+
+        @Override
+        public boolean update() {
+            return update;
+        }
+
+        @Override
+        public <T extends Exception> void accept(final TraceVisitor<T> traceVisitor) throws T {
+            Map<String, Integer> sharedQueryTextIndexes = Maps.newLinkedHashMap();
+            final int[] entryCount = new int[1];
+            transaction.visitEntries(captureTick, sharedQueryTextIndexes, new EntryVisitor<T>() {
+                @Override
+                public void visitEntry(Trace.Entry entry) throws T {
+                    if (isCounted(entry)) {
+                        entryCount[0]++;
+                    }
+                    traceVisitor.visitEntry(entry);
+                }
+            });
+            if (!sharedQueryTextIndexes.isEmpty()) {
+                traceVisitor.visitSharedQueryTexts(
+                        ImmutableList.copyOf(sharedQueryTextIndexes.keySet()));
+            }
+            Profile mainThreadProfile = transaction.getMainThreadProfileProtobuf();
+            if (mainThreadProfile != null) {
+                traceVisitor.visitMainThreadProfile(mainThreadProfile);
+            }
+            Profile auxThreadProfile = transaction.getAuxThreadProfileProtobuf();
+            if (auxThreadProfile != null) {
+                traceVisitor.visitAuxThreadProfile(auxThreadProfile);
+            }
+            traceVisitor.visitHeader(createTraceHeader(transaction, slow, partial, captureTime,
+                    captureTick, entryCount[0], getProfileSampleCount(mainThreadProfile),
+                    getProfileSampleCount(auxThreadProfile)));
+        }
+    }
 }
@@ -44,6 +44,8 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    private final @Nullable TraceEntryRecycler recycler;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
@@ -52,6 +54,7 @@ class TraceEntryComponent {
                 timer, null);
         activeEntry = rootEntry;
         tailEntry = rootEntry;
+        recycler = TraceEntryRecycler.getForCurrentThread();
     }
 
     TraceEntryImpl getRootEntry() {
@@ -73,8 +76,16 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry = null;
+        if (recycler != null && queryData == null && asyncTimer == null) {
+            entry = recycler.poll();
+        }
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        } else {
+            entry.reinit(threadContext, activeEntry, messageSupplier, startTick, syncTimer);
+        }
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
@@ -117,6 +128,13 @@ class TraceEntryComponent {
         return tailEntry;
     }
 
+    // must be called by the thread that created this component
+    void recycleEntries() {
+        if (recycler != null) {
+            recycler.recycle(rootEntry);
+        }
+    }
+
     boolean isEmpty() {
         return rootEntry == tailEntry;
     }
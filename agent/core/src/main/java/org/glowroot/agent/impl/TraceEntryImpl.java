@@ -23,7 +23,6 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,14 +51,16 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable Object messageSupplier;
+    // these fields are only non-final so that the trace entry can be recycled, see
+    // TraceEntryRecycler
+    private ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -71,7 +72,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private @Nullable TraceEntryImpl nextTraceEntry;
 
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
+    private @Nullable TimerImpl syncTimer;
     private final @Nullable AsyncTimerImpl asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> stackTrace;
@@ -79,7 +80,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only used by transaction thread
     private long stackTraceThreshold;
     // only used by transaction thread
-    private @MonotonicNonNull TimerImpl extendedTimer;
+    private @Nullable TimerImpl extendedTimer;
 
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
@@ -99,6 +100,42 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         }
     }
 
+    // only called on recycled trace entries (which always have null queryData and null asyncTimer)
+    void reinit(ThreadContextImpl threadContext, TraceEntryImpl parentTraceEntry,
+            Object messageSupplier, long startTick, TimerImpl syncTimer) {
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        this.startTick = startTick;
+        this.syncTimer = syncTimer;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        nextTraceEntry = null;
+    }
+
+    boolean isRecyclable() {
+        // query entries are excluded since plugins commonly hold onto them after they are ended
+        // (e.g. for counting result set rows), and async trace entries are excluded since they
+        // can be ended by a different thread
+        return getQueryData() == null && asyncTimer == null && syncTimer != null
+                && isCompleted();
+    }
+
+    // clear references so that recycled trace entries don't retain objects from prior
+    // transactions
+    void resetForRecycling(@Nullable TraceEntryImpl nextRecycledEntry) {
+        parentTraceEntry = null;
+        messageSupplier = null;
+        syncTimer = null;
+        errorMessage = null;
+        endTick = 0;
+        initialComplete = false;
+        nextTraceEntry = nextRecycledEntry;
+        stackTrace = null;
+        stackTraceThreshold = 0;
+        extendedTimer = null;
+    }
+
     @Override
     public @Nullable Object getMessageSupplier() {
         return messageSupplier;
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+// opt-in per-thread recycling of trace entries, which are the dominant agent allocation for
+// transactions with many trace entries
+//
+// only the trace entries of transactions that complete without storing a trace (and that were
+// never captured by another thread, e.g. for a partial trace or the active trace viewer) are
+// recycled, and only synchronous non-query trace entries, see TraceEntryImpl.isRecyclable()
+//
+// this is opt-in because it requires that plugins do not use trace entries after the transaction
+// has completed (e.g. calling extend() on a trace entry held by an object that outlives the
+// transaction)
+//
+// instances are only accessed by their own thread so no need for synchronization
+class TraceEntryRecycler {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.recycleTraceEntries");
+
+    private static final int MAX_POOL_SIZE =
+            Integer.getInteger("glowroot.internal.recycleTraceEntriesMaxPoolSize", 10000);
+
+    private static final ThreadLocal<TraceEntryRecycler> recyclers =
+            new ThreadLocal<TraceEntryRecycler>() {
+                @Override
+                protected TraceEntryRecycler initialValue() {
+                    return new TraceEntryRecycler();
+                }
+            };
+
+    // recycled trace entries are linked together using TraceEntryImpl.nextTraceEntry
+    private @Nullable TraceEntryImpl head;
+    private int size;
+
+    @VisibleForTesting
+    TraceEntryRecycler() {}
+
+    static @Nullable TraceEntryRecycler getForCurrentThread() {
+        return ENABLED ? recyclers.get() : null;
+    }
+
+    @Nullable
+    TraceEntryImpl poll() {
+        TraceEntryImpl entry = head;
+        if (entry != null) {
+            head = entry.getNextTraceEntry();
+            size--;
+        }
+        return entry;
+    }
+
+    // the root entry itself is never recycled since it is still referenced by the transaction
+    void recycle(TraceEntryImpl rootEntry) {
+        TraceEntryImpl entry = rootEntry.getNextTraceEntry();
+        while (entry != null && size < MAX_POOL_SIZE) {
+            // need to read next trace entry before resetForRecycling() overwrites it
+            TraceEntryImpl nextTraceEntry = entry.getNextTraceEntry();
+            if (entry.isRecyclable()) {
+                entry.resetForRecycling(head);
+                head = entry;
+                size++;
+            }
+            entry = nextTraceEntry;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -76,6 +77,8 @@ import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.glowroot.agent.util.Checkers.castInitialized;
 
 // contains all data that has been captured for a given transaction (e.g. a servlet request)
@@ -88,6 +91,13 @@ public class Transaction {
 
     static final int USE_GENERAL_STORE_THRESHOLD = -1;
 
+    // when greater than zero, trace entries are not captured until the transaction has been running
+    // for this percentage of its slow threshold (timers and query/service call aggregates are still
+    // captured from the start), which saves the memory and cpu of building trace entries for the
+    // large majority of transactions that never end up being stored as slow traces
+    static final int LAZY_ENTRY_CAPTURE_PERCENT =
+            Integer.getInteger("glowroot.transaction.lazy.entry.capture.percent", 0);
+
     static final String AUXILIARY_THREAD_MESSAGE = "auxiliary thread";
 
     // initial capacity is very important, see ThreadSafeCollectionOfTenBenchmark
@@ -102,6 +112,14 @@ public class Transaction {
 
     private static final Random random = new Random();
 
+    // see TraceEntryRecycler
+    private static final int ENTRIES_UNOBSERVED = 0;
+    private static final int ENTRIES_OBSERVED = 1;
+    private static final int ENTRIES_RECYCLED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Transaction> entriesStateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "entriesState");
+
     private volatile @Nullable String traceId;
 
     private final long startTime;
@@ -127,6 +145,11 @@ public class Transaction {
     private volatile @Nullable ErrorMessage errorMessage;
 
     private final int maxTraceEntriesPerTransaction;
+    // based on the slow threshold for the transaction type, see getEntryCaptureDelayNanos()
+    private final long entryCaptureDelayNanos;
+    // number of transactions this transaction stands in for when aggregating queries and service
+    // calls, or zero if only timers are being captured (see AdaptiveSampler)
+    private final int captureWeight;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
 
@@ -166,6 +189,12 @@ public class Transaction {
     // ideally would use AtomicInteger here, but using plain volatile int as optimization since
     // it's ok if race condition in limit check
     private volatile int entryLimitCounter;
+
+    // not volatile since it is ok if another thread sees this late
+    private boolean entryCaptureStarted;
+    // these are only used for the placeholder entry, see createEntriesNotCapturedEntry()
+    private boolean entriesNotCaptured;
+    private long entryCaptureStartOffsetNanos;
     private volatile int extraErrorEntryLimitCounter;
     private volatile int aggregateQueryLimitCounter;
     private volatile int aggregateServiceCallLimitCounter;
@@ -188,6 +217,10 @@ public class Transaction {
     private @MonotonicNonNull Map<String, AggregateAsyncTimer> aggregateAsyncTimers;
 
     private volatile boolean completed;
+
+    // only used when trace entry recycling is enabled, using field updater to avoid allocating an
+    // AtomicInteger for every transaction
+    private volatile int entriesState;
     private volatile long endTick;
 
     private final Ticker ticker;
@@ -205,8 +238,8 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType,
+            int maxTraceEntriesPerTransaction, long entryCaptureDelayNanos, int captureWeight,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
@@ -217,6 +250,9 @@ public class Transaction {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
+        this.entryCaptureDelayNanos = entryCaptureDelayNanos;
+        entryCaptureStarted = entryCaptureDelayNanos == 0;
+        this.captureWeight = captureWeight;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.completionCallback = completionCallback;
@@ -406,13 +442,17 @@ public class Transaction {
         }
     }
 
+    boolean isTimerOnly() {
+        return captureWeight == 0;
+    }
+
     void mergeQueriesInto(QueryCollector queries) {
         memoryBarrierRead();
-        mainThreadContext.mergeQueriesInto(queries);
+        mainThreadContext.mergeQueriesInto(queries, captureWeight);
         synchronized (mainThreadContext) {
             if (auxThreadContexts != null) {
                 for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeQueriesInto(queries);
+                    auxThreadContext.mergeQueriesInto(queries, captureWeight);
                 }
             }
         }
@@ -420,18 +460,22 @@ public class Transaction {
 
     void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
         memoryBarrierRead();
-        mainThreadContext.mergeServiceCallsInto(serviceCalls);
+        mainThreadContext.mergeServiceCallsInto(serviceCalls, captureWeight);
         synchronized (mainThreadContext) {
             if (auxThreadContexts != null) {
                 for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeServiceCallsInto(serviceCalls);
+                    auxThreadContext.mergeServiceCallsInto(serviceCalls, captureWeight);
                 }
             }
         }
     }
 
     // this method has side effect of incrementing counter
-    boolean allowAnotherEntry() {
+    boolean allowAnotherEntry(long currTick) {
+        if (!entryCaptureStarted && !startEntryCaptureIfDue(currTick)) {
+            entriesNotCaptured = true;
+            return false;
+        }
         return entryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
@@ -459,6 +503,24 @@ public class Transaction {
 
     public List<Trace.Entry> getEntriesProtobuf(long captureTick,
             Map<String, Integer> sharedQueryTextIndexes) {
+        final List<Trace.Entry> entries = Lists.newArrayList();
+        visitEntries(captureTick, sharedQueryTextIndexes, new EntryVisitor<RuntimeException>() {
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+    // entries are passed to the visitor one at a time (in order) as they are converted to protobuf,
+    // so that callers which stream the entries never need to hold the full list in memory
+    <T extends Exception> void visitEntries(long captureTick,
+            Map<String, Integer> sharedQueryTextIndexes, EntryVisitor<T> entryVisitor) throws T {
+        if (TraceEntryRecycler.ENABLED && !markEntriesObserved()) {
+            // transaction completed without storing a trace and its trace entries were recycled
+            return;
+        }
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
@@ -475,10 +537,11 @@ public class Transaction {
         }
         new ParentChildMapTrimmer(mainThreadContext.getRootEntry(), parentChildMap, captureTick)
                 .traverse();
-        List<Trace.Entry> entries = Lists.newArrayList();
-        addProtobufChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
-                captureTick, 0, entries, sharedQueryTextIndexes, async);
-        return entries;
+        if (entriesNotCaptured) {
+            entryVisitor.visitEntry(createEntriesNotCapturedEntry(captureTick));
+        }
+        visitChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
+                captureTick, 0, entryVisitor, sharedQueryTextIndexes, async);
     }
 
     long getMainThreadProfileSampleCount() {
@@ -817,6 +880,23 @@ public class Transaction {
         this.captureTime = captureTime;
     }
 
+    // called by the transaction thread after the transaction has completed and it has been
+    // determined that no trace will be stored
+    void recycleEntriesIfPossible() {
+        if (!TraceEntryRecycler.ENABLED || async || outer) {
+            return;
+        }
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null) {
+                // aux thread contexts reference trace entries of the main thread context
+                return;
+            }
+        }
+        if (entriesStateUpdater.compareAndSet(this, ENTRIES_UNOBSERVED, ENTRIES_RECYCLED)) {
+            mainThreadContext.recycleEntries();
+        }
+    }
+
     long getCaptureTime() {
         return captureTime;
     }
@@ -848,6 +928,65 @@ public class Transaction {
         return throwableFrameLimitCounter;
     }
 
+    private boolean startEntryCaptureIfDue(long currTick) {
+        if (currTick - startTick < getEntryCaptureDelayNanos()) {
+            return false;
+        }
+        entryCaptureStartOffsetNanos = currTick - startTick;
+        entryCaptureStarted = true;
+        return true;
+    }
+
+    private long getEntryCaptureDelayNanos() {
+        // check if trace-specific store threshold was set
+        int slowThresholdMillis = this.slowThresholdMillis;
+        if (slowThresholdMillis == USE_GENERAL_STORE_THRESHOLD) {
+            // this is already based on the slow threshold for the transaction type
+            return entryCaptureDelayNanos;
+        }
+        return getEntryCaptureDelayNanos(slowThresholdMillis);
+    }
+
+    // placeholder entry at the start of the trace so that it is clear the trace entries are
+    // missing, as opposed to the transaction having done nothing during this time (similar to the
+    // entry limit exceeded marker)
+    private Trace.Entry createEntriesNotCapturedEntry(long captureTick) {
+        long durationNanos;
+        boolean active;
+        if (entryCaptureStarted) {
+            durationNanos = entryCaptureStartOffsetNanos;
+            active = false;
+        } else {
+            // max with zero to prevent negative value which is possible here under race condition
+            durationNanos = Math.max(captureTick - startTick, 0);
+            active = !completed;
+        }
+        return Trace.Entry.newBuilder()
+                .setDepth(0)
+                .setStartOffsetNanos(0)
+                .setDurationNanos(durationNanos)
+                .setActive(active)
+                .setMessage("trace entries before " + NANOSECONDS.toMillis(durationNanos)
+                        + " milliseconds were not captured (lazy entry capture)")
+                .build();
+    }
+
+    static long getEntryCaptureDelayNanos(int slowThresholdMillis) {
+        return MILLISECONDS.toNanos(slowThresholdMillis) * LAZY_ENTRY_CAPTURE_PERCENT / 100;
+    }
+
+    private boolean markEntriesObserved() {
+        while (true) {
+            int state = entriesState;
+            if (state != ENTRIES_UNOBSERVED) {
+                return state == ENTRIES_OBSERVED;
+            }
+            if (entriesStateUpdater.compareAndSet(this, ENTRIES_UNOBSERVED, ENTRIES_OBSERVED)) {
+                return true;
+            }
+        }
+    }
+
     boolean memoryBarrierRead() {
         return memoryBarrier;
     }
@@ -900,10 +1039,10 @@ public class Transaction {
         return true;
     }
 
-    private static void addProtobufChildEntries(TraceEntryImpl entry,
+    private static <T extends Exception> void visitChildEntries(TraceEntryImpl entry,
             ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
-            long captureTick, int depth, List<Trace.Entry> entries,
-            Map<String, Integer> sharedQueryTextIndexes, boolean removeSingleAuxEntry) {
+            long captureTick, int depth, EntryVisitor<T> entryVisitor,
+            Map<String, Integer> sharedQueryTextIndexes, boolean removeSingleAuxEntry) throws T {
         if (!parentChildMap.containsKey(entry)) {
             // check containsKey to avoid creating garbage empty list via ListMultimap
             return;
@@ -912,13 +1051,14 @@ public class Transaction {
         for (TraceEntryImpl childEntry : childEntries) {
             boolean singleAuxEntry = childEntries.size() == 1 && childEntry.isAuxThreadRoot();
             if (singleAuxEntry && removeSingleAuxEntry) {
-                addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth, entries, sharedQueryTextIndexes, removeSingleAuxEntry);
+                visitChildEntries(childEntry, parentChildMap, transactionStartTick,
+                        captureTick, depth, entryVisitor, sharedQueryTextIndexes,
+                        removeSingleAuxEntry);
             } else {
-                entries.add(childEntry.toProto(depth, transactionStartTick, captureTick,
-                        sharedQueryTextIndexes));
-                addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth + 1, entries, sharedQueryTextIndexes, false);
+                entryVisitor.visitEntry(childEntry.toProto(depth, transactionStartTick,
+                        captureTick, sharedQueryTextIndexes));
+                visitChildEntries(childEntry, parentChildMap, transactionStartTick,
+                        captureTick, depth + 1, entryVisitor, sharedQueryTextIndexes, false);
             }
         }
     }
@@ -998,6 +1138,10 @@ public class Transaction {
         void mergeThreadStats(ThreadStats threadStats);
     }
 
+    interface EntryVisitor<T extends Exception> {
+        void visitEntry(Trace.Entry entry) throws T;
+    }
+
     private static class AggregateAsyncTimer {
 
         private long totalNanos;
@@ -28,12 +28,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
-import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -114,8 +114,13 @@ public class TransactionCollector {
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
+        if (transaction.isTimerOnly()) {
+            // downgraded by adaptive sampling, so there is nothing beyond the aggregate to store
+            return;
+        }
         final boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
+            transaction.recycleEntriesIfPossible();
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
@@ -136,8 +141,9 @@ public class TransactionCollector {
             @Override
             public void run() {
                 try {
-                    Trace trace = TraceCreator.createCompletedTrace(transaction, slow);
-                    collector.collectTrace(trace);
+                    TraceReader traceReader =
+                            TraceCreator.createCompletedTraceReader(transaction, slow);
+                    collector.collectTrace(traceReader);
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 } finally {
@@ -150,13 +156,16 @@ public class TransactionCollector {
     // no need to throttle partial trace storage since throttling is handled upstream by using a
     // single thread executor in PartialTraceStorageWatcher
     public void storePartialTrace(Transaction transaction) {
+        if (transaction.isTimerOnly()) {
+            return;
+        }
         try {
-            Trace trace = TraceCreator.createPartialTrace(transaction, clock.currentTimeMillis(),
-                    ticker.read());
+            TraceReader traceReader = TraceCreator.createPartialTraceReader(transaction,
+                    clock.currentTimeMillis(), ticker.read());
             // one last check if transaction has completed
             if (!transaction.isCompleted()) {
                 transaction.setPartiallyStored();
-                collector.collectTrace(trace);
+                collector.collectTrace(traceReader);
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
@@ -15,12 +15,17 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.InstrumentationConfig;
 import org.glowroot.agent.impl.Transaction.CompletionCallback;
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
 import org.glowroot.agent.plugin.api.MessageSupplier;
@@ -39,6 +44,7 @@ public class TransactionServiceImpl implements ConfigListener {
     private final TimerNameCache timerNameCache;
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
     private final UserProfileScheduler userProfileScheduler;
+    private final @Nullable AdaptiveSampler adaptiveSampler;
     private final Clock clock;
     private final Ticker ticker;
 
@@ -51,14 +57,19 @@ public class TransactionServiceImpl implements ConfigListener {
     private int maxAggregateQueriesPerType;
     private int maxAggregateServiceCallsPerType;
     private int maxTraceEntriesPerTransaction;
+    private long entryCaptureDelayNanos;
+    // transaction types whose effective slow threshold is lower than the general slow threshold
+    // (due to instrumentation configs that set a transaction slow threshold)
+    private Map<String, Long> entryCaptureDelayNanosByTransactionType = ImmutableMap.of();
 
     public static TransactionServiceImpl create(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
             TimerNameCache timerNameCache, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            UserProfileScheduler userProfileScheduler, Ticker ticker, Clock clock) {
-        TransactionServiceImpl transactionServiceImpl =
-                new TransactionServiceImpl(transactionRegistry, transactionCollector, configService,
-                        timerNameCache, threadAllocatedBytes, userProfileScheduler, ticker, clock);
+            UserProfileScheduler userProfileScheduler, @Nullable AdaptiveSampler adaptiveSampler,
+            Ticker ticker, Clock clock) {
+        TransactionServiceImpl transactionServiceImpl = new TransactionServiceImpl(
+                transactionRegistry, transactionCollector, configService, timerNameCache,
+                threadAllocatedBytes, userProfileScheduler, adaptiveSampler, ticker, clock);
         configService.addConfigListener(transactionServiceImpl);
         TransactionServiceHolder.transactionService = transactionServiceImpl;
         return transactionServiceImpl;
@@ -67,13 +78,15 @@ public class TransactionServiceImpl implements ConfigListener {
     private TransactionServiceImpl(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
             TimerNameCache timerNameCache, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            UserProfileScheduler userProfileScheduler, Ticker ticker, Clock clock) {
+            UserProfileScheduler userProfileScheduler, @Nullable AdaptiveSampler adaptiveSampler,
+            Ticker ticker, Clock clock) {
         this.transactionRegistry = transactionRegistry;
         this.transactionCollector = transactionCollector;
         this.configService = configService;
         this.timerNameCache = timerNameCache;
         this.threadAllocatedBytes = threadAllocatedBytes;
         this.userProfileScheduler = userProfileScheduler;
+        this.adaptiveSampler = adaptiveSampler;
         this.clock = clock;
         this.ticker = ticker;
     }
@@ -84,12 +97,27 @@ public class TransactionServiceImpl implements ConfigListener {
         // ensure visibility of recent configuration updates
         configService.readMemoryBarrier();
         long startTick = ticker.read();
-        Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
-                transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
-                maxAggregateServiceCallsPerType, threadAllocatedBytes,
-                transactionCompletionCallback, ticker, transactionRegistry, this, configService,
-                userProfileScheduler, threadContextHolder);
+        int captureWeight =
+                adaptiveSampler == null ? 1 : adaptiveSampler.nextCaptureWeight(startTick);
+        Transaction transaction;
+        if (captureWeight == 0) {
+            // timer-only capture, zero limits mean no trace entries and no query or service call
+            // aggregates are captured
+            transaction = new Transaction(clock.currentTimeMillis(), startTick, transactionType,
+                    transactionName, messageSupplier, timerName, captureThreadStats, 0, 0, 0, 0, 0,
+                    threadAllocatedBytes, transactionCompletionCallback, ticker,
+                    transactionRegistry, this, configService, userProfileScheduler,
+                    threadContextHolder);
+        } else {
+            transaction = new Transaction(clock.currentTimeMillis(), startTick, transactionType,
+                    transactionName, messageSupplier, timerName, captureThreadStats,
+                    maxTraceEntriesPerTransaction, getEntryCaptureDelayNanos(transactionType),
+                    captureWeight,
+                    maxAggregateQueriesPerType, maxAggregateServiceCallsPerType,
+                    threadAllocatedBytes, transactionCompletionCallback, ticker,
+                    transactionRegistry, this, configService, userProfileScheduler,
+                    threadContextHolder);
+        }
         TransactionEntry transactionEntry = transactionRegistry.addTransaction(transaction);
         transaction.setTransactionEntry(transactionEntry);
         threadContextHolder.set(transaction.getMainThreadContext());
@@ -116,6 +144,49 @@ public class TransactionServiceImpl implements ConfigListener {
         maxAggregateQueriesPerType = advancedConfig.maxAggregateQueriesPerType();
         maxAggregateServiceCallsPerType = advancedConfig.maxAggregateServiceCallsPerType();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
+        if (Transaction.LAZY_ENTRY_CAPTURE_PERCENT > 0) {
+            int slowThresholdMillis = configService.getTransactionConfig().slowThresholdMillis();
+            entryCaptureDelayNanos = Transaction.getEntryCaptureDelayNanos(slowThresholdMillis);
+            entryCaptureDelayNanosByTransactionType =
+                    buildEntryCaptureDelayNanosByTransactionType(slowThresholdMillis);
+        } else {
+            entryCaptureDelayNanos = 0;
+            entryCaptureDelayNanosByTransactionType = ImmutableMap.of();
+        }
+    }
+
+    private long getEntryCaptureDelayNanos(String transactionType) {
+        Long delayNanos = entryCaptureDelayNanosByTransactionType.get(transactionType);
+        if (delayNanos == null) {
+            return entryCaptureDelayNanos;
+        }
+        return delayNanos;
+    }
+
+    // the lowest slow threshold configured for each transaction type is used, since the
+    // instrumentation config that sets it is not known until after the transaction has started
+    // (and capturing entries early is only a missed optimization, while capturing them late loses
+    // entries from slow traces)
+    private Map<String, Long> buildEntryCaptureDelayNanosByTransactionType(
+            int generalSlowThresholdMillis) {
+        Map<String, Integer> slowThresholdMillisByTransactionType = Maps.newHashMap();
+        for (InstrumentationConfig config : configService.getInstrumentationConfigs()) {
+            Integer slowThresholdMillis = config.transactionSlowThresholdMillis();
+            String transactionType = config.transactionType();
+            if (slowThresholdMillis == null || transactionType.isEmpty()
+                    || slowThresholdMillis >= generalSlowThresholdMillis) {
+                continue;
+            }
+            Integer existing = slowThresholdMillisByTransactionType.get(transactionType);
+            if (existing == null || slowThresholdMillis < existing) {
+                slowThresholdMillisByTransactionType.put(transactionType, slowThresholdMillis);
+            }
+        }
+        ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Integer> entry : slowThresholdMillisByTransactionType.entrySet()) {
+            builder.put(entry.getKey(), Transaction.getEntryCaptureDelayNanos(entry.getValue()));
+        }
+        return builder.build();
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
@@ -42,6 +42,13 @@ public class UserProfileScheduler {
 
     private static final Logger logger = LoggerFactory.getLogger(UserProfileRunnable.class);
 
+    // the cost of capturing a stack trace (both time at safepoint and allocation) grows with its
+    // depth, so this can be used to bound the cost of capturing very deep stack traces (note the
+    // innermost frames are the ones retained, so truncated stack traces are rooted separately in
+    // the profile tree)
+    private static final int STACK_TRACE_DEPTH_LIMIT =
+            Integer.getInteger("glowroot.profiling.stack.trace.depth.limit", Integer.MAX_VALUE);
+
     private final ScheduledExecutorService backgroundExecutor;
     private final ConfigService configService;
     private final Random random;
@@ -80,21 +87,32 @@ public class UserProfileScheduler {
 
     public static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
+        ThreadInfo[] threadInfos = getThreadInfos(threadContexts);
+        mergeStackTraces(threadContexts, threadInfos, configService);
+    }
+
+    // capturing stack traces requires a safepoint, so this is kept separate from merging the stack
+    // traces into the transaction profiles, which can then be done off of the capturing thread
+    public static ThreadInfo[] getThreadInfos(List<ThreadContextImpl> threadContexts) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
-            return;
+            return new ThreadInfo[0];
         }
         long[] threadIds = new long[threadContexts.size()];
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+        return ManagementFactory.getThreadMXBean().getThreadInfo(threadIds,
+                STACK_TRACE_DEPTH_LIMIT);
+    }
+
+    public static void mergeStackTraces(List<ThreadContextImpl> threadContexts,
+            ThreadInfo[] threadInfos, ConfigService configService) {
         int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
+            @Nullable
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
                 threadContext.captureStackTrace(threadInfo, limit);
@@ -39,6 +39,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
 import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.impl.AdaptiveSampler;
 import org.glowroot.agent.impl.Aggregator;
 import org.glowroot.agent.impl.ConfigServiceImpl;
 import org.glowroot.agent.impl.GlowrootServiceImpl;
@@ -53,6 +54,7 @@ import org.glowroot.agent.live.LiveAggregateRepositoryImpl;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.model.ThreadStatsCaptureCost;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.util.OptionalService;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
@@ -61,6 +63,7 @@ import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -92,6 +95,7 @@ public class AgentModule {
     private final Aggregator aggregator;
 
     private final ImmediateTraceStoreWatcher immedateTraceStoreWatcher;
+    private final @Nullable AdaptiveSampler adaptiveSampler;
 
     private final GaugeCollector gaugeCollector;
     private final StackTraceCollector stackTraceCollector;
@@ -126,9 +130,11 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = WeavingCache.create(baseDir, adviceCache.getAdvisorsSupplier(),
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -162,9 +168,16 @@ public class AgentModule {
         UserProfileScheduler userProfileScheduler =
                 new UserProfileScheduler(backgroundExecutor, configService, random);
         GlowrootService glowrootService = new GlowrootServiceImpl(transactionRegistry);
+        if (AdaptiveSampler.CPU_BUDGET_PERCENT > 0) {
+            adaptiveSampler = new AdaptiveSampler(aggregator);
+            adaptiveSampler.scheduleWithFixedDelay(backgroundExecutor,
+                    AdaptiveSampler.PERIOD_MILLIS, MILLISECONDS);
+        } else {
+            adaptiveSampler = null;
+        }
         TransactionServiceImpl.create(transactionRegistry, transactionCollector, configService,
-                timerNameCache, threadAllocatedBytes.getService(), userProfileScheduler, ticker,
-                clock);
+                timerNameCache, threadAllocatedBytes.getService(), userProfileScheduler,
+                adaptiveSampler, ticker, clock);
         ConfigServiceFactory configServiceFactory = new ConfigServiceFactory() {
             @Override
             public org.glowroot.agent.plugin.api.config.ConfigService create(String pluginId) {
@@ -195,6 +208,17 @@ public class AgentModule {
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector,
+                "org.glowroot:type=StackTraceCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(aggregator, "org.glowroot:type=Aggregator");
+        if (ThreadStatsCaptureCost.ENABLED) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(new ThreadStatsCaptureCost(),
+                    "org.glowroot:type=ThreadStatsCaptureCost");
+        }
+        if (adaptiveSampler != null) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(adaptiveSampler,
+                    "org.glowroot:type=AdaptiveSampler");
+        }
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -299,6 +323,9 @@ public class AgentModule {
     @OnlyUsedByTests
     public void close() throws Exception {
         immedateTraceStoreWatcher.cancel();
+        if (adaptiveSampler != null) {
+            adaptiveSampler.cancel();
+        }
         transactionCollector.close();
         aggregator.close();
         gaugeCollector.close();
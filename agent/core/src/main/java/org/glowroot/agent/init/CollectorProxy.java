@@ -34,7 +34,6 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
-import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 @VisibleForTesting
 public class CollectorProxy implements Collector {
@@ -50,7 +49,7 @@ public class CollectorProxy implements Collector {
     private final List<List<GaugeValue>> earlyGaugeValues = Lists.newArrayList();
 
     @GuardedBy("lock")
-    private final List<Trace> earlyTraces = Lists.newArrayList();
+    private final List<TraceReader> earlyTraces = Lists.newArrayList();
 
     @GuardedBy("lock")
     private final List<LogEvent> earlyLogEvents = Lists.newArrayList();
@@ -91,16 +90,16 @@ public class CollectorProxy implements Collector {
     }
 
     @Override
-    public void collectTrace(Trace trace) throws Exception {
+    public void collectTrace(TraceReader traceReader) throws Exception {
         synchronized (lock) {
             if (instance == null) {
                 if (earlyTraces.size() < 10) {
-                    earlyTraces.add(trace);
+                    earlyTraces.add(traceReader);
                 }
                 return;
             }
         }
-        instance.collectTrace(trace);
+        instance.collectTrace(traceReader);
     }
 
     @Override
@@ -127,8 +126,8 @@ public class CollectorProxy implements Collector {
                 for (List<GaugeValue> gaugeValues : earlyGaugeValues) {
                     instance.collectGaugeValues(gaugeValues);
                 }
-                for (Trace trace : earlyTraces) {
-                    instance.collectTrace(trace);
+                for (TraceReader traceReader : earlyTraces) {
+                    instance.collectTrace(traceReader);
                 }
                 for (LogEvent logEvent : earlyLogEvents) {
                     instance.log(logEvent);
@@ -15,12 +15,19 @@
  */
 package org.glowroot.agent.init;
 
+import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,11 +40,23 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
-class StackTraceCollector {
+class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // capturing stack traces brings all of the captured threads to a safepoint, so with many
+    // active threads the capture is split into batches in order to bound the length of each pause
+    private static final int BATCH_SIZE =
+            Integer.getInteger("glowroot.profiling.stack.trace.batch.size", 100);
+
+    // batches of captured stack traces waiting to be merged into their transaction profiles, once
+    // this is full stack traces are dropped instead of slowing down (or buffering without limit
+    // on) the capturing thread
+    private static final int PENDING_MERGE_LIMIT = 100;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -45,12 +64,30 @@ class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    private final ThreadPoolExecutor mergingExecutor;
+
+    // cumulative, these are meant to be charted as "[counter]" gauges
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong totalCaptureNanos = new AtomicLong();
+    private final AtomicLong totalMergeNanos = new AtomicLong();
+    private final AtomicLong droppedBatchCount = new AtomicLong();
+
+    // per sample, these are meant to be charted as regular gauges
+    private volatile long lastCaptureNanos;
+    private volatile long lastMergeNanos;
+    private volatile int lastThreadCount;
+
     StackTraceCollector(TransactionRegistry transactionRegistry, final ConfigService configService,
             Random random) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
 
+        mergingExecutor = new ThreadPoolExecutor(1, 1, 0, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(PENDING_MERGE_LIMIT),
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("Glowroot-Stack-Trace-Merging").build());
+
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
         // this is important for unit tests, but seems good for real usage as well
@@ -73,10 +110,46 @@ class StackTraceCollector {
         });
     }
 
+    @Override
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    @Override
+    public long getTotalCaptureNanos() {
+        return totalCaptureNanos.get();
+    }
+
+    @Override
+    public long getTotalMergeNanos() {
+        return totalMergeNanos.get();
+    }
+
+    @Override
+    public long getLastCaptureNanos() {
+        return lastCaptureNanos;
+    }
+
+    @Override
+    public long getLastMergeNanos() {
+        return lastMergeNanos;
+    }
+
+    @Override
+    public int getLastThreadCount() {
+        return lastThreadCount;
+    }
+
+    @Override
+    public long getDroppedBatchCount() {
+        return droppedBatchCount.get();
+    }
+
     @OnlyUsedByTests
     void close() {
         runnable.closing.set(true);
         processingThread.interrupt();
+        mergingExecutor.shutdownNow();
     }
 
     private class InternalRunnable implements Runnable {
@@ -104,8 +177,12 @@ class StackTraceCollector {
                     }
                 }
                 long randomDelayFromIntervalStart = (long) (random.nextFloat() * intervalMillis);
+                long elapsedMillis;
                 try {
                     Thread.sleep(remainingInInterval + randomDelayFromIntervalStart);
+                    long startTick = System.nanoTime();
+                    runInternal(intervalMillis);
+                    elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - startTick);
                 } catch (InterruptedException e) {
                     logger.debug(e.getMessage(), e);
                     // only terminate if closing
@@ -115,17 +192,18 @@ class StackTraceCollector {
                     // re-start loop
                     remainingInInterval = 0;
                     continue;
-                }
-                remainingInInterval = intervalMillis - randomDelayFromIntervalStart;
-                try {
-                    runInternal();
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
+                    elapsedMillis = 0;
                 }
+                // time spent spreading the batches out is taken out of the remainder of the
+                // interval so that the sampling rate stays at one sample per interval
+                remainingInInterval =
+                        Math.max(0, intervalMillis - randomDelayFromIntervalStart - elapsedMillis);
             }
         }
 
-        private void runInternal() {
+        private void runInternal(int intervalMillis) throws InterruptedException {
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
@@ -141,7 +219,84 @@ class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            UserProfileScheduler.captureStackTraces(activeThreadContexts, configService);
+            if (activeThreadContexts.isEmpty()) {
+                return;
+            }
+            List<List<ThreadContextImpl>> batches =
+                    Lists.partition(activeThreadContexts, Math.max(BATCH_SIZE, 1));
+            // batches are spread across (at most) the first half of the interval, leaving the
+            // second half as a buffer before the next interval's sample
+            long delayBetweenBatchesNanos =
+                    MILLISECONDS.toNanos(intervalMillis) / (2 * batches.size());
+            long captureNanos = 0;
+            SampleMergeCost sampleMergeCost = new SampleMergeCost(batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                if (i > 0) {
+                    NANOSECONDS.sleep(delayBetweenBatchesNanos);
+                }
+                List<ThreadContextImpl> batch = batches.get(i);
+                long startTick = System.nanoTime();
+                ThreadInfo[] threadInfos = UserProfileScheduler.getThreadInfos(batch);
+                captureNanos += System.nanoTime() - startTick;
+                try {
+                    mergingExecutor.execute(new MergeTask(batch, threadInfos, sampleMergeCost));
+                } catch (RejectedExecutionException e) {
+                    // merging is not keeping up, or the executor has been shut down
+                    logger.debug(e.getMessage(), e);
+                    droppedBatchCount.getAndIncrement();
+                    sampleMergeCost.batchMerged(0);
+                }
+            }
+            sampleCount.getAndIncrement();
+            totalCaptureNanos.getAndAdd(captureNanos);
+            lastCaptureNanos = captureNanos;
+            lastThreadCount = activeThreadContexts.size();
+        }
+    }
+
+    private class MergeTask implements Runnable {
+
+        private final List<ThreadContextImpl> threadContexts;
+        private final ThreadInfo[] threadInfos;
+        private final SampleMergeCost sampleMergeCost;
+
+        private MergeTask(List<ThreadContextImpl> threadContexts, ThreadInfo[] threadInfos,
+                SampleMergeCost sampleMergeCost) {
+            this.threadContexts = threadContexts;
+            this.threadInfos = threadInfos;
+            this.sampleMergeCost = sampleMergeCost;
+        }
+
+        @Override
+        public void run() {
+            long startTick = System.nanoTime();
+            try {
+                UserProfileScheduler.mergeStackTraces(threadContexts, threadInfos, configService);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+            long mergeNanos = System.nanoTime() - startTick;
+            totalMergeNanos.getAndAdd(mergeNanos);
+            sampleMergeCost.batchMerged(mergeNanos);
+        }
+    }
+
+    // accumulates the merge time across the batches of a single sample, so that it can be exposed
+    // per sample once the last batch of the sample has been merged (or dropped)
+    private class SampleMergeCost {
+
+        private final AtomicInteger remainingBatches;
+        private final AtomicLong mergeNanos = new AtomicLong();
+
+        private SampleMergeCost(int batchCount) {
+            remainingBatches = new AtomicInteger(batchCount);
+        }
+
+        private void batchMerged(long nanos) {
+            mergeNanos.getAndAdd(nanos);
+            if (remainingBatches.decrementAndGet() == 0) {
+                lastMergeNanos = mergeNanos.get();
+            }
         }
     }
 }
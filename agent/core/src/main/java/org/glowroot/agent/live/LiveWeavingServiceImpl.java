@@ -109,7 +109,7 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
             String methodName = analyzedMethod.name();
             if (methodName.equals("<init>") || methodName.equals("<clinit>")) {
                 // static initializers are not supported by weaver
-                // (see AdviceMatcher.isMethodNameMatch())
+                // (see PointcutIndex.getMethodLevelMatches())
                 // and constructors do not support @OnBefore advice at this time
                 continue;
             }
@@ -21,18 +21,14 @@ import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
 class MutableQuery {
 
-    private MutableNumber totalDurationNanos;
+    private double totalDurationNanos;
     private long executionCount;
 
     private boolean hasTotalRows;
     private long totalRows;
 
-    MutableQuery(boolean traceLevel) {
-        totalDurationNanos = traceLevel ? new MutableLong() : new MutableDouble();
-    }
-
     double getTotalDurationNanos() {
-        return totalDurationNanos.getDouble();
+        return totalDurationNanos;
     }
 
     long getExecutionCount() {
@@ -47,8 +43,8 @@ class MutableQuery {
         return totalRows;
     }
 
-    void addToTotalDurationNanos(long totalDurationNanos) {
-        this.totalDurationNanos.add(totalDurationNanos);
+    void addToTotalDurationNanos(double totalDurationNanos) {
+        this.totalDurationNanos += totalDurationNanos;
     }
 
     void addToExecutionCount(long executionCount) {
@@ -67,59 +63,11 @@ class MutableQuery {
         int sharedQueryTextIndex = sharedQueryTextCollector.getIndex(queryText);
         Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
                 .setSharedQueryTextIndex(sharedQueryTextIndex)
-                .setTotalDurationNanos(totalDurationNanos.getDouble())
+                .setTotalDurationNanos(totalDurationNanos)
                 .setExecutionCount(executionCount);
         if (hasTotalRows) {
             builder.setTotalRows(OptionalInt64.newBuilder().setValue(totalRows));
         }
         return builder.build();
     }
-
-    private interface MutableNumber {
-        void add(long value);
-        long getLong();
-        double getDouble();
-    }
-
-    private static class MutableLong implements MutableNumber {
-
-        private long value;
-
-        @Override
-        public void add(long value) {
-            this.value += value;
-        }
-
-        @Override
-        public long getLong() {
-            return value;
-        }
-
-        @Override
-        public double getDouble() {
-            // ok to convert long to double
-            return value;
-        }
-    }
-
-    private static class MutableDouble implements MutableNumber {
-
-        private double value;
-
-        @Override
-        public void add(long value) {
-            this.value += value;
-        }
-
-        @Override
-        public long getLong() {
-            // not ok to convert double to long
-            throw new IllegalStateException();
-        }
-
-        @Override
-        public double getDouble() {
-            return value;
-        }
-    }
 }
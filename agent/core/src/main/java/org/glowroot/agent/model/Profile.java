@@ -16,52 +16,58 @@
 package org.glowroot.agent.model;
 
 import java.lang.management.ThreadInfo;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import com.google.common.collect.Maps;
 
+import org.glowroot.agent.model.StackFrameTable.Frame;
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.util.Traverser;
+import org.glowroot.wire.api.model.ProfileOuterClass;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.LeafThreadState;
 
+// stack traces are merged on capture into a tree keyed by interned frames, so adding a sample only
+// allocates for the portion of the stack trace that has not been seen before in this profile
+//
+// profiles are also merged into each other (e.g. into the aggregate interval profiles) in this
+// form, and only converted to protobuf when they are read or stored
 public class Profile {
 
+    private static final StackFrameTable stackFrameTable = new StackFrameTable();
+
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
-    @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private final List<ProfileNode> rootNodes = Lists.newArrayListWithCapacity(2);
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private Frame[] frames = new Frame[0];
     @GuardedBy("lock")
     private long sampleCount;
 
     @VisibleForTesting
     public Profile() {}
 
-    public void mergeInto(MutableProfile profile) {
+    public void merge(Profile toBeMergedProfile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
+            synchronized (toBeMergedProfile.lock) {
+                mergeNodes(toBeMergedProfile.rootNodes, rootNodes);
+                sampleCount += toBeMergedProfile.sampleCount;
             }
         }
     }
 
-    public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+    public ProfileOuterClass.Profile toProto() {
+        ProtoBuilder protoBuilder = new ProtoBuilder();
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
+            for (ProfileNode rootNode : rootNodes) {
+                protoBuilder.traverse(rootNode);
             }
-            return profile.toProto();
         }
+        return protoBuilder.build();
     }
 
     public long getSampleCount() {
@@ -78,30 +84,182 @@ public class Profile {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+            if (frames.length < stackTrace.length) {
+                frames = new Frame[stackTrace.length];
+            }
+            for (int i = 0; i < stackTrace.length; i++) {
+                StackTraceElement stackTraceElement = stackTrace[i];
+                if (stackTraceElement.getMethodName() == null) {
+                    // methodName can be null after hotswapping under Eclipse debugger
+                    // in which case seems best to just ignore the stack trace capture altogether
+                    return;
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                frames[i] = stackFrameTable.getFrame(stackTraceElement);
             }
+            merge(frames, stackTrace.length,
+                    MutableProfile.getThreadState(threadInfo.getThreadState()));
             sampleCount++;
         }
     }
 
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    private void merge(Frame[] stackTraceFrames, int length, LeafThreadState threadState) {
+        List<ProfileNode> mergeIntoNodes = rootNodes;
+        boolean lookingForMatch = true;
+        // stack trace elements are ordered from innermost to outermost frame
+        for (int i = length - 1; i >= 0; i--) {
+            Frame frame = stackTraceFrames[i];
+            LeafThreadState leafThreadState = i == 0 ? threadState : LeafThreadState.NONE;
+            ProfileNode node = null;
+            if (lookingForMatch) {
+                for (int j = 0; j < mergeIntoNodes.size(); j++) {
+                    ProfileNode childNode = mergeIntoNodes.get(j);
+                    if (childNode.matches(frame, leafThreadState)) {
+                        node = childNode;
+                        break;
+                    }
+                }
+            }
+            if (node == null) {
+                lookingForMatch = false;
+                node = new ProfileNode(frame, leafThreadState);
+                mergeIntoNodes.add(node);
+            }
+            node.sampleCount++;
+            mergeIntoNodes = node.childNodes;
+        }
+    }
+
+    // using explicit stacks instead of recursion to avoid StackOverflowError on deep stack traces
+    private static void mergeNodes(List<ProfileNode> toBeMergedNodes,
+            List<ProfileNode> mergeIntoNodes) {
+        List<List<ProfileNode>> toBeMergedStack = Lists.newArrayList();
+        List<List<ProfileNode>> mergeIntoStack = Lists.newArrayList();
+        toBeMergedStack.add(toBeMergedNodes);
+        mergeIntoStack.add(mergeIntoNodes);
+        while (!toBeMergedStack.isEmpty()) {
+            List<ProfileNode> currToBeMergedNodes =
+                    toBeMergedStack.remove(toBeMergedStack.size() - 1);
+            List<ProfileNode> currMergeIntoNodes =
+                    mergeIntoStack.remove(mergeIntoStack.size() - 1);
+            for (ProfileNode toBeMergedNode : currToBeMergedNodes) {
+                ProfileNode node = null;
+                for (ProfileNode mergeIntoNode : currMergeIntoNodes) {
+                    if (mergeIntoNode.matches(toBeMergedNode.frame,
+                            toBeMergedNode.leafThreadState)) {
+                        node = mergeIntoNode;
+                        break;
+                    }
+                }
+                if (node == null) {
+                    node = new ProfileNode(toBeMergedNode.frame, toBeMergedNode.leafThreadState);
+                    currMergeIntoNodes.add(node);
+                }
+                node.sampleCount += toBeMergedNode.sampleCount;
+                if (!toBeMergedNode.childNodes.isEmpty()) {
+                    toBeMergedStack.add(toBeMergedNode.childNodes);
+                    mergeIntoStack.add(node.childNodes);
+                }
+            }
+        }
+    }
+
+    private static class ProfileNode {
+
+        private final Frame frame;
+        private final LeafThreadState leafThreadState;
+
+        private long sampleCount;
+
+        private final List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+
+        private ProfileNode(Frame frame, LeafThreadState leafThreadState) {
+            this.frame = frame;
+            this.leafThreadState = leafThreadState;
+        }
+
+        // interned frames are compared by reference, falling back to equals() only for frames
+        // that were interned on different sides of the frame table being cleared
+        private boolean matches(Frame frame, LeafThreadState leafThreadState) {
+            return this.leafThreadState == leafThreadState
+                    && (this.frame == frame || this.frame.equals(frame));
+        }
+    }
+
+    // names are re-indexed per profile since the proto only needs the names referenced by this
+    // profile (not the entire shared frame table)
+    private static class ProtoBuilder {
+
+        private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+        private final List<String> packageNames = Lists.newArrayList();
+        private final List<String> classNames = Lists.newArrayList();
+        private final List<String> methodNames = Lists.newArrayList();
+        private final List<String> fileNames = Lists.newArrayList();
+
+        private final List<ProfileOuterClass.Profile.ProfileNode> nodes = Lists.newArrayList();
+
+        private void traverse(ProfileNode rootNode) {
+            new ProfileNodeCollector(rootNode, this).traverse();
+        }
+
+        private void add(ProfileNode node, int depth) {
+            Frame frame = node.frame;
+            nodes.add(ProfileOuterClass.Profile.ProfileNode.newBuilder()
+                    .setDepth(depth)
+                    .setPackageNameIndex(
+                            getNameIndex(frame.getPackageName(), packageNameIndexes, packageNames))
+                    .setClassNameIndex(
+                            getNameIndex(frame.getClassName(), classNameIndexes, classNames))
+                    .setMethodNameIndex(
+                            getNameIndex(frame.getMethodName(), methodNameIndexes, methodNames))
+                    .setFileNameIndex(
+                            getNameIndex(frame.getFileName(), fileNameIndexes, fileNames))
+                    .setLineNumber(frame.getLineNumber())
+                    .setLeafThreadState(node.leafThreadState)
+                    .setSampleCount(node.sampleCount)
+                    .build());
+        }
+
+        private ProfileOuterClass.Profile build() {
+            return ProfileOuterClass.Profile.newBuilder()
+                    .addAllPackageName(packageNames)
+                    .addAllClassName(classNames)
+                    .addAllMethodName(methodNames)
+                    .addAllFileName(fileNames)
+                    .addAllNode(nodes)
+                    .build();
+        }
+
+        private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
+                List<String> names) {
+            Integer index = nameIndexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndexes.put(name, index);
+            }
+            return index;
+        }
+    }
+
+    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
+    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
+
+        private final ProtoBuilder protoBuilder;
+
+        private ProfileNodeCollector(ProfileNode rootNode, ProtoBuilder protoBuilder) {
+            super(rootNode);
+            this.protoBuilder = protoBuilder;
+        }
+
+        @Override
+        public List<ProfileNode> visit(ProfileNode node, int depth) {
+            protoBuilder.add(node, depth);
+            return node.childNodes;
         }
     }
 }
@@ -54,14 +54,12 @@ public class QueryCollector {
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
     private final int limit;
     private final int maxMultiplierWhileBuilding;
-    private final boolean traceLevel;
 
     private final Map<String, MinQuery> minQueryPerType = Maps.newHashMap();
 
-    public QueryCollector(int limit, int maxMultiplierWhileBuilding, boolean traceLevel) {
+    public QueryCollector(int limit, int maxMultiplierWhileBuilding) {
         this.limit = limit;
         this.maxMultiplierWhileBuilding = maxMultiplierWhileBuilding;
-        this.traceLevel = traceLevel;
     }
 
     public List<Aggregate.QueriesByType> toAggregateProto(
@@ -138,39 +136,88 @@ public class QueryCollector {
         return null;
     }
 
+    // merges another (per processing thread) query collector into this one
+    public void mergeQueries(QueryCollector toBeMergedQueries) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : toBeMergedQueries.queries
+                .entrySet()) {
+            String queryType = outerEntry.getKey();
+            Map<String, MutableQuery> queriesForType = queries.get(queryType);
+            if (queriesForType == null) {
+                queriesForType = Maps.newHashMap();
+                queries.put(queryType, queriesForType);
+            }
+            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
+                MutableQuery toBeMergedQuery = entry.getValue();
+                double totalDurationNanos = toBeMergedQuery.getTotalDurationNanos();
+                MutableQuery aggregateQuery = queriesForType.get(entry.getKey());
+                boolean truncateAndRecalculateMinQuery = false;
+                if (aggregateQuery == null) {
+                    if (isAtLimitWhileBuilding(queriesForType)) {
+                        if (isBelowMinQuery(queryType, totalDurationNanos)) {
+                            continue;
+                        }
+                        truncateAndRecalculateMinQuery = true;
+                    }
+                    aggregateQuery = new MutableQuery();
+                    queriesForType.put(entry.getKey(), aggregateQuery);
+                }
+                aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
+                aggregateQuery.addToExecutionCount(toBeMergedQuery.getExecutionCount());
+                aggregateQuery.addToTotalRows(toBeMergedQuery.hasTotalRows(),
+                        toBeMergedQuery.getTotalRows());
+                if (truncateAndRecalculateMinQuery) {
+                    truncateAndRecalculateMinQuery(queryType, queriesForType);
+                }
+            }
+        }
+    }
+
     private void mergeQuery(String queryType, String queryText, long totalDurationNanos,
             long executionCount, long totalRows, boolean hasTotalRows,
             Map<String, MutableQuery> queriesForType) {
         MutableQuery aggregateQuery = queriesForType.get(queryText);
         boolean truncateAndRecalculateMinQuery = false;
         if (aggregateQuery == null) {
-            if (maxMultiplierWhileBuilding != 0
-                    && queriesForType.size() >= limit * maxMultiplierWhileBuilding) {
-                MinQuery minQuery = minQueryPerType.get(queryType);
-                if (minQuery != null && totalDurationNanos < minQuery.totalDurationNanos()) {
+            if (isAtLimitWhileBuilding(queriesForType)) {
+                if (isBelowMinQuery(queryType, totalDurationNanos)) {
                     return;
                 }
                 truncateAndRecalculateMinQuery = true;
             }
-            aggregateQuery = new MutableQuery(traceLevel);
+            aggregateQuery = new MutableQuery();
             queriesForType.put(queryText, aggregateQuery);
         }
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
         if (truncateAndRecalculateMinQuery) {
-            // TODO report checker framework issue that occurs without this suppression
-            @SuppressWarnings("assignment.type.incompatible")
-            List<Entry<String, MutableQuery>> sortedEntries =
-                    bySmallestTotalDuration.sortedCopy(queriesForType.entrySet());
-            // remove smallest N (instead of just smallest 1) to avoid re-sort again so quickly
-            for (int i = 0; i < REMOVE_SMALLEST_N; i++) {
-                queriesForType.remove(sortedEntries.get(i).getKey());
-            }
-            MutableQuery lastQuery = sortedEntries.get(REMOVE_SMALLEST_N).getValue();
-            minQueryPerType.put(queryType,
-                    ImmutableMinQuery.of(lastQuery, lastQuery.getTotalDurationNanos()));
+            truncateAndRecalculateMinQuery(queryType, queriesForType);
+        }
+    }
+
+    private boolean isAtLimitWhileBuilding(Map<String, MutableQuery> queriesForType) {
+        return maxMultiplierWhileBuilding != 0
+                && queriesForType.size() >= limit * maxMultiplierWhileBuilding;
+    }
+
+    private boolean isBelowMinQuery(String queryType, double totalDurationNanos) {
+        MinQuery minQuery = minQueryPerType.get(queryType);
+        return minQuery != null && totalDurationNanos < minQuery.totalDurationNanos();
+    }
+
+    private void truncateAndRecalculateMinQuery(String queryType,
+            Map<String, MutableQuery> queriesForType) {
+        // TODO report checker framework issue that occurs without this suppression
+        @SuppressWarnings("assignment.type.incompatible")
+        List<Entry<String, MutableQuery>> sortedEntries =
+                bySmallestTotalDuration.sortedCopy(queriesForType.entrySet());
+        // remove smallest N (instead of just smallest 1) to avoid re-sort again so quickly
+        for (int i = 0; i < REMOVE_SMALLEST_N; i++) {
+            queriesForType.remove(sortedEntries.get(i).getKey());
         }
+        MutableQuery lastQuery = sortedEntries.get(REMOVE_SMALLEST_N).getValue();
+        minQueryPerType.put(queryType,
+                ImmutableMinQuery.of(lastQuery, lastQuery.getTotalDurationNanos()));
     }
 
     private static void orderAggregateQueries(List<Aggregate.Query> queries) {
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// interns stack trace elements into frames, shared across all profiles in the agent, so that
+// profiles can store and merge stack traces by comparing frame references instead of repeatedly
+// re-resolving package, class and method names for every frame of every sample
+//
+// profile nodes hold on to the frames themselves (not an index into this table), so the table can
+// be cleared at any time without affecting existing profiles, frames interned after clearing are
+// still matched against the frames from before clearing by Frame.equals()
+class StackFrameTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackFrameTable.class);
+
+    // distinct frames are bounded by the amount of code in the monitored application, but this is
+    // still capped in case of pathological cases (e.g. lots of dynamically generated classes)
+    private static final int FRAME_LIMIT =
+            Integer.getInteger("glowroot.profiling.frame.table.limit", 100000);
+
+    private final int frameLimit;
+
+    private final ConcurrentMap<StackTraceElement, Frame> frames = Maps.newConcurrentMap();
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private int size;
+
+    @GuardedBy("lock")
+    private boolean limitExceededWarningLogged;
+
+    StackFrameTable() {
+        this(FRAME_LIMIT);
+    }
+
+    @VisibleForTesting
+    StackFrameTable(int frameLimit) {
+        this.frameLimit = frameLimit;
+    }
+
+    Frame getFrame(StackTraceElement stackTraceElement) {
+        Frame frame = frames.get(stackTraceElement);
+        if (frame != null) {
+            return frame;
+        }
+        synchronized (lock) {
+            frame = frames.get(stackTraceElement);
+            if (frame != null) {
+                return frame;
+            }
+            if (size >= frameLimit) {
+                // evict everything, existing profiles are not affected (see comment above)
+                if (limitExceededWarningLogged) {
+                    logger.debug("profiling frame limit exceeded ({}), clearing frame table",
+                            frameLimit);
+                } else {
+                    logger.warn("profiling frame limit exceeded ({}), clearing frame table (this"
+                            + " warning will not be logged again)", frameLimit);
+                    limitExceededWarningLogged = true;
+                }
+                frames.clear();
+                size = 0;
+            }
+            frame = new Frame(stackTraceElement);
+            frames.put(stackTraceElement, frame);
+            size++;
+            return frame;
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    static class Frame {
+
+        private final String packageName;
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+        private final int hashCode;
+
+        private Frame(StackTraceElement stackTraceElement) {
+            String fullClassName = stackTraceElement.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            methodName = Strings.nullToEmpty(stackTraceElement.getMethodName());
+            fileName = Strings.nullToEmpty(stackTraceElement.getFileName());
+            lineNumber = stackTraceElement.getLineNumber();
+            hashCode = Objects.hashCode(packageName, className, methodName, fileName, lineNumber);
+        }
+
+        String getPackageName() {
+            return packageName;
+        }
+
+        String getClassName() {
+            return className;
+        }
+
+        String getMethodName() {
+            return methodName;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        int getLineNumber() {
+            return lineNumber;
+        }
+
+        // only needed for matching frames that were interned before and after the table was
+        // cleared, otherwise interned frames are always compared by reference
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Frame)) {
+                return false;
+            }
+            Frame that = (Frame) obj;
+            return hashCode == that.hashCode && lineNumber == that.lineNumber
+                    && methodName.equals(that.methodName) && className.equals(that.className)
+                    && packageName.equals(that.packageName) && fileName.equals(that.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+// exposes the overhead of capturing per-transaction thread stats (cpu time, blocked/waited time
+// and allocated bytes), which is paid at the start and at the end of every transaction
+//
+// this is opt-in since measuring it adds its own (contended) overhead to every transaction
+public class ThreadStatsCaptureCost implements ThreadStatsCaptureCostMXBean {
+
+    public static final boolean ENABLED =
+            Boolean.getBoolean("glowroot.internal.threadStatsCaptureCost");
+
+    @Override
+    public long getCaptureCount() {
+        return ThreadStatsComponent.getCaptureCount();
+    }
+
+    @Override
+    public long getTotalCaptureNanos() {
+        return ThreadStatsComponent.getCaptureNanos();
+    }
+
+    @Override
+    public double getAverageCaptureNanos() {
+        long captureCount = ThreadStatsComponent.getCaptureCount();
+        if (captureCount == 0) {
+            return 0;
+        }
+        return ThreadStatsComponent.getCaptureNanos() / (double) captureCount;
+    }
+}
@@ -18,6 +18,7 @@ package org.glowroot.agent.model;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -27,8 +28,6 @@ import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 public class ThreadStatsComponent {
 
     private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
@@ -37,6 +36,17 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // ThreadMXBean.isThreadContentionMonitoringEnabled() is synchronized (at least in HotSpot), so
+    // it is only re-checked periodically instead of on every transaction
+    private static final long CONTENTION_MONITORING_RECHECK_NANOS = 1000000000;
+
+    private static volatile boolean contentionMonitoringEnabled;
+    private static volatile long contentionMonitoringCheckedTick = Long.MIN_VALUE;
+
+    // only updated when ThreadStatsCaptureCost.ENABLED
+    private static final AtomicLong captureCount = new AtomicLong();
+    private static final AtomicLong captureNanos = new AtomicLong();
+
     private final long threadId;
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
@@ -51,19 +61,26 @@ public class ThreadStatsComponent {
     private final Object lock = new Object();
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        // this tick is needed anyways for periodically re-checking contention monitoring
+        long startTick = System.nanoTime();
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            startingBlockedMillis = threadInfo.getBlockedTime();
-            startingWaitedMillis = threadInfo.getWaitedTime();
+        if (isContentionMonitoringEnabled(startTick)) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread info for current thread should never be null
+                startingBlockedMillis = -1;
+                startingWaitedMillis = -1;
+            } else {
+                startingBlockedMillis = threadInfo.getBlockedTime();
+                startingWaitedMillis = threadInfo.getWaitedTime();
+            }
         } else {
+            // no need to allocate ThreadInfo since blocked and waited times would be -1 anyways
             startingBlockedMillis = -1;
             startingWaitedMillis = -1;
         }
@@ -73,12 +90,17 @@ public class ThreadStatsComponent {
             startingAllocatedBytes = -1;
         }
         this.threadAllocatedBytes = threadAllocatedBytes;
+        if (ThreadStatsCaptureCost.ENABLED) {
+            recordCapture(startTick);
+        }
     }
 
     // must be called from transaction thread
     public void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            if (completedThreadStats == null) {
+                completedThreadStats = getThreadStatsInternal(true);
+            }
         }
     }
 
@@ -89,7 +111,7 @@ public class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
@@ -104,7 +126,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getTotalCpuNanosInternal();
+                    return getTotalCpuNanosInternal(false);
                 } else {
                     return -1;
                 }
@@ -114,41 +136,55 @@ public class ThreadStatsComponent {
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+    static long getCaptureCount() {
+        return captureCount.get();
+    }
+
+    static long getCaptureNanos() {
+        return captureNanos.get();
+    }
+
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
+        long startTick = ThreadStatsCaptureCost.ENABLED ? System.nanoTime() : 0;
+        long totalBlockedMillis = -1;
+        long totalWaitedMillis = -1;
+        if (startingBlockedMillis != -1 || startingWaitedMillis != -1) {
+            // only need to capture ThreadInfo if contention monitoring was enabled at the start of
+            // the transaction
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
+            totalBlockedMillis = getTotalBlockedMillis(threadInfo);
+            totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            totalCpuNanos = getTotalCpuNanosInternal();
+            totalCpuNanos = getTotalCpuNanosInternal(currentThread);
         } else {
             totalCpuNanos = -1;
         }
-        long totalBlockedMillis;
-        long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            totalBlockedMillis = getTotalBlockedMillis(threadInfo);
-            totalWaitedMillis = getTotalWaitedMillis(threadInfo);
-        } else {
-            totalBlockedMillis = -1;
-            totalWaitedMillis = -1;
-        }
         long totalAllocatedBytes;
         if (this.threadAllocatedBytes != null) {
             totalAllocatedBytes = getThreadAllocatedBytes();
         } else {
             totalAllocatedBytes = -1;
         }
+        if (ThreadStatsCaptureCost.ENABLED) {
+            recordCapture(startTick);
+        }
         return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
                 totalAllocatedBytes);
     }
 
-    private long getTotalCpuNanosInternal() {
+    private long getTotalCpuNanosInternal(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        //
+        // getCurrentThreadCpuTime() is used when possible since it is cheaper (at least in HotSpot)
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -187,4 +223,22 @@ public class ThreadStatsComponent {
             return -1;
         }
     }
+
+    private static boolean isContentionMonitoringEnabled(long currentTick) {
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            return false;
+        }
+        // race condition here is harmless, worst case multiple threads re-check at the same time
+        if (currentTick - contentionMonitoringCheckedTick > CONTENTION_MONITORING_RECHECK_NANOS
+                || contentionMonitoringCheckedTick == Long.MIN_VALUE) {
+            contentionMonitoringEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+            contentionMonitoringCheckedTick = currentTick;
+        }
+        return contentionMonitoringEnabled;
+    }
+
+    private static void recordCapture(long startTick) {
+        captureNanos.addAndGet(System.nanoTime() - startTick);
+        captureCount.incrementAndGet();
+    }
 }
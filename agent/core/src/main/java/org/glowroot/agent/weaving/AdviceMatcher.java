@@ -21,8 +21,6 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import org.immutables.value.Value;
 import org.objectweb.asm.Type;
 import org.slf4j.Logger;
@@ -37,22 +35,18 @@ abstract class AdviceMatcher {
 
     private static final Logger logger = LoggerFactory.getLogger(AdviceMatcher.class);
 
-    static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
-            List<String> classAnnotations, List<Advice> advisors) {
-        List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
-            if (isDeclaringClassMatch(className, classAnnotations, advice)) {
-                adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
-            }
-        }
-        return ImmutableList.copyOf(adviceMatchers);
-    }
-
     abstract Advice advice();
 
-    boolean isMethodLevelMatch(String methodName, List<String> methodAnnotations,
-            List<Type> parameterTypes, Type returnType, int modifiers) {
-        if (!isMethodNameMatch(methodName) || !isAnnotationMatch(methodAnnotations,
+    // the declaring class name is matched by PointcutIndex
+    boolean isClassAnnotationMatch(List<String> classAnnotations) {
+        return isAnnotationMatch(classAnnotations, advice().pointcutClassNameAnnotationPattern(),
+                advice().pointcut().classAnnotation());
+    }
+
+    // the method name is matched by PointcutIndex
+    boolean isMethodLevelMatch(List<String> methodAnnotations, List<Type> parameterTypes,
+            Type returnType, int modifiers) {
+        if (!isAnnotationMatch(methodAnnotations,
                 advice().pointcutMethodAnnotationPattern(), advice().pointcut().methodAnnotation())
                 || !isMethodParameterTypesMatch(parameterTypes)) {
             return false;
@@ -60,21 +54,6 @@ abstract class AdviceMatcher {
         return isMethodReturnMatch(returnType) && isMethodModifiersMatch(modifiers);
     }
 
-    private boolean isMethodNameMatch(String methodName) {
-        if (methodName.equals("<clinit>")) {
-            // static initializers are not supported
-            return false;
-        }
-        Pattern pointcutMethodNamePattern = advice().pointcutMethodNamePattern();
-        if (pointcutMethodNamePattern != null) {
-            // don't want patterns to match constructors
-            return !methodName.equals("<init>")
-                    && pointcutMethodNamePattern.matcher(methodName).matches();
-        }
-        String pointcutMethodName = advice().pointcut().methodName();
-        return pointcutMethodName.isEmpty() || pointcutMethodName.equals(methodName);
-    }
-
     private boolean isMethodParameterTypesMatch(List<Type> parameterTypes) {
         List<Object> pointcutMethodParameterTypes = advice().pointcutMethodParameterTypes();
         for (int i = 0; i < pointcutMethodParameterTypes.size(); i++) {
@@ -138,20 +117,6 @@ abstract class AdviceMatcher {
         }
     }
 
-    private static boolean isDeclaringClassMatch(String className, List<String> classAnnotations,
-            Advice advice) {
-        if (!isAnnotationMatch(classAnnotations, advice.pointcutClassNameAnnotationPattern(),
-                advice.pointcut().classAnnotation())) {
-            return false;
-        }
-        Pattern methodDeclaringClassNamePattern = advice.pointcutMethodDeclaringClassNamePattern();
-        if (methodDeclaringClassNamePattern != null) {
-            return methodDeclaringClassNamePattern.matcher(className).matches();
-        }
-        String methodDeclaringClassName = advice.pointcutMethodDeclaringClassName();
-        return methodDeclaringClassName.isEmpty() || methodDeclaringClassName.equals(className);
-    }
-
     private static boolean isAnnotationMatch(List<String> annotations, @Nullable Pattern pattern,
             String strictMatch) {
         for (String annotation : annotations) {
@@ -20,6 +20,7 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.security.CodeSource;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +90,10 @@ public class AnalyzedWorld {
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
 
+    // index of the global advisors list, rebuilt whenever the advisors change (e.g. after
+    // re-weaving)
+    private volatile @Nullable PointcutIndex globalPointcutIndex;
+
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes) {
         this.advisors = advisors;
@@ -127,6 +132,20 @@ public class AnalyzedWorld {
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
     }
 
+    // the (rare) advisors lists that have been merged with @Instrumentation annotations get their
+    // own index built ad hoc, so that they don't evict the index of the global advisors list
+    PointcutIndex getPointcutIndex(List<Advice> advisors) {
+        if (advisors != this.advisors.get()) {
+            return new PointcutIndex(advisors);
+        }
+        PointcutIndex pointcutIndex = globalPointcutIndex;
+        if (pointcutIndex == null || pointcutIndex.advisors() != advisors) {
+            pointcutIndex = new PointcutIndex(advisors);
+            globalPointcutIndex = pointcutIndex;
+        }
+        return pointcutIndex;
+    }
+
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
     // in a type hierarchy), it's rare, dups don't cause an issue for callers, and so it doesn't
     // seem worth the (minor) performance hit to de-dup every time
@@ -379,7 +398,7 @@ public class AnalyzedWorld {
         }
         // the class loaded by Class.forName() above was not previously loaded which means
         // weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
-        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get());
+        analyzedClass = createAnalyzedClassPlanC(clazz, getPointcutIndex(advisors.get()));
         if (analyzedClass.isInterface()) {
             return analyzedClass;
         }
@@ -420,7 +439,8 @@ public class AnalyzedWorld {
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
-    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
+    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz,
+            PointcutIndex pointcutIndex) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
         classBuilder.modifiers(clazz.getModifiers());
         classBuilder.name(clazz.getName());
@@ -435,8 +455,8 @@ public class AnalyzedWorld {
         for (Annotation annotation : clazz.getAnnotations()) {
             classAnnotations.add(annotation.annotationType().getName());
         }
-        List<AdviceMatcher> adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations, advisors);
+        BitSet declaringClassMatches =
+                pointcutIndex.getDeclaringClassMatches(clazz.getName(), classAnnotations);
         Map<Method, List<Advice>> bridgeTargetAdvisors = Maps.newHashMap();
         for (Method method : clazz.getDeclaredMethods()) {
             if (!method.isBridge()) {
@@ -451,9 +471,9 @@ public class AnalyzedWorld {
                 parameterTypes.add(Type.getType(parameterType));
             }
             Type returnType = Type.getType(method.getReturnType());
-            List<Advice> matchingAdvisors =
-                    getMatchingAdvisors(method.getModifiers(), method.getName(), methodAnnotations,
-                            parameterTypes, returnType, adviceMatchers);
+            List<Advice> matchingAdvisors = pointcutIndex.getMethodLevelMatches(
+                    declaringClassMatches, method.getName(), methodAnnotations, parameterTypes,
+                    returnType, method.getModifiers());
             if (!matchingAdvisors.isEmpty()) {
                 Method targetMethod = getTargetMethod(method, clazz);
                 if (targetMethod != null) {
@@ -475,9 +495,9 @@ public class AnalyzedWorld {
                 parameterTypes.add(Type.getType(parameterType));
             }
             Type returnType = Type.getType(method.getReturnType());
-            List<Advice> matchingAdvisors =
-                    getMatchingAdvisors(method.getModifiers(), method.getName(), methodAnnotations,
-                            parameterTypes, returnType, adviceMatchers);
+            List<Advice> matchingAdvisors = pointcutIndex.getMethodLevelMatches(
+                    declaringClassMatches, method.getName(), methodAnnotations, parameterTypes,
+                    returnType, method.getModifiers());
             List<Advice> extraAdvisors = bridgeTargetAdvisors.get(method);
             if (extraAdvisors != null) {
                 matchingAdvisors.addAll(extraAdvisors);
@@ -529,20 +549,6 @@ public class AnalyzedWorld {
         return possibleTargetMethods;
     }
 
-    // important that this returns a mutable list
-    private static List<Advice> getMatchingAdvisors(int access, String name,
-            List<String> methodAnnotations, List<Type> parameterTypes, Type returnType,
-            List<AdviceMatcher> adviceMatchers) {
-        List<Advice> matchingAdvisors = Lists.newArrayList();
-        for (AdviceMatcher adviceMatcher : adviceMatchers) {
-            if (adviceMatcher.isMethodLevelMatch(name, methodAnnotations, parameterTypes,
-                    returnType, access)) {
-                matchingAdvisors.add(adviceMatcher.advice());
-            }
-        }
-        return matchingAdvisors;
-    }
-
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
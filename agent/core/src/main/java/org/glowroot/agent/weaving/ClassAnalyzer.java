@@ -18,6 +18,7 @@ package org.glowroot.agent.weaving;
 import java.lang.reflect.Modifier;
 import java.security.CodeSource;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -61,7 +62,9 @@ class ClassAnalyzer {
     private final String className;
 
     private final ImmutableAnalyzedClass.Builder analyzedClassBuilder;
-    private final ImmutableList<AdviceMatcher> adviceMatchers;
+    private final PointcutIndex pointcutIndex;
+    // positions in the advisors list
+    private final BitSet declaringClassMatches;
     private final ImmutableList<AnalyzedClass> superAnalyzedClasses;
     private final ImmutableList<ShimType> matchedShimTypes;
     private final ImmutableList<MixinType> matchedMixinTypes;
@@ -90,8 +93,9 @@ class ClassAnalyzer {
                 .name(className)
                 .superName(superClassName)
                 .addAllInterfaceNames(interfaceNames);
-        adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(), advisors);
+        pointcutIndex = analyzedWorld.getPointcutIndex(advisors);
+        declaringClassMatches =
+                pointcutIndex.getDeclaringClassMatches(className, thinClass.annotations());
         if (Modifier.isInterface(thinClass.access())) {
             superAnalyzedClasses = ImmutableList.of();
             matchedShimTypes = getMatchedShimTypes(shimTypes, className,
@@ -100,7 +104,7 @@ class ClassAnalyzer {
             matchedMixinTypes = getMatchedMixinTypes(mixinTypes, className,
                     ImmutableList.<AnalyzedClass>of(), ImmutableList.<AnalyzedClass>of());
             analyzedClassBuilder.addAllMixinTypes(matchedMixinTypes);
-            shortCircuitBeforeAnalyzeMethods = adviceMatchers.isEmpty();
+            shortCircuitBeforeAnalyzeMethods = declaringClassMatches.isEmpty();
         } else {
             ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
             List<AnalyzedClass> superAnalyzedHierarchy =
@@ -126,7 +130,7 @@ class ClassAnalyzer {
             analyzedClassBuilder.addAllMixinTypes(matchedMixinTypes);
             shortCircuitBeforeAnalyzeMethods =
                     !hasSuperAdvice(superAnalyzedClasses) && matchedShimTypes.isEmpty()
-                            && matchedMixinTypes.isEmpty() && adviceMatchers.isEmpty();
+                            && matchedMixinTypes.isEmpty() && declaringClassMatches.isEmpty();
         }
         Set<String> superClassNames = Sets.newHashSet();
         superClassNames.add(className);
@@ -237,13 +241,9 @@ class ClassAnalyzer {
     @RequiresNonNull("bridgeTargetAdvisors")
     private List<Advice> getMatchingAdvisors(ThinMethod thinMethod, List<String> methodAnnotations,
             List<Type> parameterTypes, Type returnType) {
-        Set<Advice> matchingAdvisors = Sets.newHashSet();
-        for (AdviceMatcher adviceMatcher : adviceMatchers) {
-            if (adviceMatcher.isMethodLevelMatch(thinMethod.name(), methodAnnotations,
-                    parameterTypes, returnType, thinMethod.access())) {
-                matchingAdvisors.add(adviceMatcher.advice());
-            }
-        }
+        Set<Advice> matchingAdvisors = Sets.newHashSet(pointcutIndex.getMethodLevelMatches(
+                declaringClassMatches, thinMethod.name(), methodAnnotations, parameterTypes,
+                returnType, thinMethod.access()));
         // look at super types
         for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
             for (AnalyzedMethod analyzedMethod : superAnalyzedClass.analyzedMethods()) {
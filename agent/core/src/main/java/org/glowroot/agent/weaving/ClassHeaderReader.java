@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+// reads the class header (access flags, class name, super class name and interface names) directly
+// from the constant pool bytes, without the full ClassReader pass over the fields, methods and
+// attributes
+class ClassHeaderReader {
+
+    private static final int CLASS = 7;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int STRING = 8;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int UTF8 = 1;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private ClassHeaderReader() {}
+
+    // the returned thin class has no annotations and no methods
+    //
+    // returns null if the bytes cannot be read as a class file header, in which case the class is
+    // left to the full ClassReader pass (and its error handling)
+    static @Nullable ThinClass readHeader(byte[] bytes) {
+        if (bytes.length < 10 || readInt(bytes, 0) != 0xCAFEBABE) {
+            return null;
+        }
+        int constantPoolCount = readUnsignedShort(bytes, 8);
+        // offsets point just past the tag byte, and are zero for unusable indexes
+        int[] offsets = new int[constantPoolCount];
+        int index = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            if (index >= bytes.length) {
+                return null;
+            }
+            offsets[i] = index + 1;
+            int size = getConstantSize(bytes, index);
+            if (size == -1) {
+                return null;
+            }
+            if (bytes[index] == LONG || bytes[index] == DOUBLE) {
+                // long and double constants take up two constant pool entries
+                i++;
+            }
+            index += size;
+        }
+        if (index + 8 > bytes.length) {
+            return null;
+        }
+        int access = readUnsignedShort(bytes, index);
+        String name = readClassName(bytes, offsets, readUnsignedShort(bytes, index + 2));
+        if (name == null) {
+            return null;
+        }
+        String superName = null;
+        int superIndex = readUnsignedShort(bytes, index + 4);
+        if (superIndex != 0) {
+            superName = readClassName(bytes, offsets, superIndex);
+            if (superName == null) {
+                return null;
+            }
+        }
+        int interfacesCount = readUnsignedShort(bytes, index + 6);
+        index += 8;
+        if (index + 2 * interfacesCount > bytes.length) {
+            return null;
+        }
+        ImmutableThinClass.Builder builder = ImmutableThinClass.builder()
+                .access(access)
+                .name(name)
+                .superName(superName);
+        for (int i = 0; i < interfacesCount; i++) {
+            String interfaceName =
+                    readClassName(bytes, offsets, readUnsignedShort(bytes, index + 2 * i));
+            if (interfaceName == null) {
+                return null;
+            }
+            builder.addInterfaces(interfaceName);
+        }
+        return builder.build();
+    }
+
+    // returns true if any of the values (modified UTF-8 encoded) is a UTF8 constant in the constant
+    // pool, e.g. an annotation type descriptor, which is always in the constant pool of a class
+    // that is annotated with that annotation
+    //
+    // also returns true if the constant pool cannot be read, in which case the class is left to the
+    // full ClassReader pass (and its error handling)
+    static boolean hasUtf8Constant(byte[] bytes, List<byte[]> values) {
+        if (bytes.length < 10 || readInt(bytes, 0) != 0xCAFEBABE) {
+            return true;
+        }
+        int constantPoolCount = readUnsignedShort(bytes, 8);
+        int index = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            if (index >= bytes.length) {
+                return true;
+            }
+            int size = getConstantSize(bytes, index);
+            if (size == -1) {
+                return true;
+            }
+            byte tag = bytes[index];
+            if (tag == UTF8) {
+                for (byte[] value : values) {
+                    if (value.length == size - 3 && regionMatches(bytes, index + 3, value)) {
+                        return true;
+                    }
+                }
+            } else if (tag == LONG || tag == DOUBLE) {
+                i++;
+            }
+            index += size;
+        }
+        return false;
+    }
+
+    // returns the size of the constant pool entry at the index (including its tag byte), or -1 if
+    // the entry cannot be read
+    private static int getConstantSize(byte[] bytes, int index) {
+        switch (bytes[index]) {
+            case UTF8:
+                if (index + 3 > bytes.length) {
+                    return -1;
+                }
+                return 3 + readUnsignedShort(bytes, index + 1);
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                return 3;
+            case METHOD_HANDLE:
+                return 4;
+            case INTEGER:
+            case FLOAT:
+            case FIELDREF:
+            case METHODREF:
+            case INTERFACE_METHODREF:
+            case NAME_AND_TYPE:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                return 5;
+            case LONG:
+            case DOUBLE:
+                return 9;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] value) {
+        if (offset + value.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (bytes[offset + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static @Nullable String readClassName(byte[] bytes, int[] offsets, int classIndex) {
+        int offset = getOffset(bytes, offsets, classIndex, CLASS);
+        if (offset == 0) {
+            return null;
+        }
+        int utf8Offset = getOffset(bytes, offsets, readUnsignedShort(bytes, offset), UTF8);
+        if (utf8Offset == 0) {
+            return null;
+        }
+        return readUtf8(bytes, utf8Offset);
+    }
+
+    private static int getOffset(byte[] bytes, int[] offsets, int index, int tag) {
+        if (index <= 0 || index >= offsets.length) {
+            return 0;
+        }
+        int offset = offsets[index];
+        if (offset == 0 || bytes[offset - 1] != tag) {
+            return 0;
+        }
+        return offset;
+    }
+
+    // decodes the "modified UTF-8" encoding used by class files
+    private static @Nullable String readUtf8(byte[] bytes, int offset) {
+        int length = readUnsignedShort(bytes, offset);
+        int index = offset + 2;
+        int end = index + length;
+        if (end > bytes.length) {
+            return null;
+        }
+        char[] chars = new char[length];
+        int charCount = 0;
+        while (index < end) {
+            int b = bytes[index++] & 0xFF;
+            if (b < 0x80) {
+                chars[charCount++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && index < end) {
+                chars[charCount++] = (char) (((b & 0x1F) << 6) | (bytes[index++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && index + 1 < end) {
+                chars[charCount++] = (char) (((b & 0x0F) << 12)
+                        | ((bytes[index++] & 0x3F) << 6) | (bytes[index++] & 0x3F));
+            } else {
+                return null;
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int index) {
+        return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return ((bytes[index] & 0xFF) << 24) | ((bytes[index + 1] & 0xFF) << 16)
+                | ((bytes[index + 2] & 0xFF) << 8) | (bytes[index + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+// precompiled union of the class names that can be matched directly by the advisors, shims and
+// mixins, so that classes which cannot be matched by name can be analyzed from their class header
+// alone
+//
+// advice that is only restricted by class annotation (no class name) would otherwise match any
+// class name, so instead the class annotation type descriptors are looked up in the constant pool
+// (other class annotation restrictions are ignored here since they only ever narrow an advice
+// match)
+class ClassPrefilter {
+
+    private final List<Advice> advisors;
+
+    private final NameIndex classNameIndex;
+    // modified UTF-8 encoded annotation type descriptors, e.g. Ljavax/ws/rs/Path;
+    private final ImmutableList<byte[]> classAnnotationDescriptors;
+
+    static ClassPrefilter create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        List<String> classNames = Lists.newArrayList();
+        List</*@Nullable*/ Pattern> classNamePatterns = Lists.newArrayList();
+        List<byte[]> classAnnotationDescriptors = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            if (advice.pointcutMethodDeclaringClassName().isEmpty()
+                    && advice.pointcutMethodDeclaringClassNamePattern() == null) {
+                List<byte[]> descriptors =
+                        getClassAnnotationDescriptors(advice.pointcut().classAnnotation());
+                if (descriptors != null) {
+                    classAnnotationDescriptors.addAll(descriptors);
+                    continue;
+                }
+            }
+            classNames.add(advice.pointcutMethodDeclaringClassName());
+            classNamePatterns.add(advice.pointcutMethodDeclaringClassNamePattern());
+        }
+        for (ShimType shimType : shimTypes) {
+            classNames.add(shimType.target());
+            classNamePatterns.add(shimType.targetPattern());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (String target : mixinType.targets()) {
+                classNames.add(target);
+                classNamePatterns.add(null);
+            }
+        }
+        return new ClassPrefilter(advisors, NameIndex.create(classNames, classNamePatterns),
+                classAnnotationDescriptors);
+    }
+
+    private ClassPrefilter(List<Advice> advisors, NameIndex classNameIndex,
+            List<byte[]> classAnnotationDescriptors) {
+        this.advisors = advisors;
+        this.classNameIndex = classNameIndex;
+        this.classAnnotationDescriptors = ImmutableList.copyOf(classAnnotationDescriptors);
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    boolean isPossibleMatch(String className, byte[] classBytes) {
+        if (classNameIndex.hasMatch(className)) {
+            return true;
+        }
+        return !classAnnotationDescriptors.isEmpty()
+                && ClassHeaderReader.hasUtf8Constant(classBytes, classAnnotationDescriptors);
+    }
+
+    // returns null if the class annotation cannot be reduced to a list of exact annotation names
+    // (e.g. full regex or wildcard), in which case the advice has to match any class name
+    private static @Nullable List<byte[]> getClassAnnotationDescriptors(String classAnnotation) {
+        if (classAnnotation.isEmpty()
+                || (classAnnotation.startsWith("/") && classAnnotation.endsWith("/"))) {
+            return null;
+        }
+        List<byte[]> descriptors = Lists.newArrayList();
+        // same "|" alternation that is supported by AdviceBuilder.buildPattern()
+        for (String annotationName : classAnnotation.split("\\|")) {
+            if (annotationName.isEmpty() || annotationName.contains("*")
+                    || !isAscii(annotationName)) {
+                return null;
+            }
+            String descriptor = "L" + annotationName.replace('.', '/') + ";";
+            // modified UTF-8 is the same as US-ASCII for ascii characters
+            descriptors.add(descriptor.getBytes(Charsets.US_ASCII));
+        }
+        return descriptors;
+    }
+
+    private static boolean isAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            // modified UTF-8 encodes the null character using two bytes
+            if (c == 0 || c > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// compiled index of many name matchers (each either an exact name or a name pattern), so that a
+// single lookup returns the positions of every matcher that matches a given name, instead of
+// evaluating each matcher separately
+//
+// exact names are looked up in a hash map, and the distinct patterns are evaluated at most once
+// per lookup (and not at all when the combined alternation of the patterns does not match, which
+// is by far the most common case)
+class NameIndex {
+
+    private final ImmutableMap<String, BitSet> exactNameMatches;
+    private final BitSet anyNameMatches;
+
+    private final ImmutableList<Pattern> patterns;
+    private final ImmutableList<BitSet> patternMatches;
+    // null if there are no patterns, or if some pattern cannot be combined (patterns with
+    // capturing groups cannot be combined since it would renumber their back references)
+    private final @Nullable Pattern combinedPattern;
+
+    // names and patterns are parallel lists, where at each position a non-null pattern takes
+    // precedence over the name, and an empty name matches any name
+    static NameIndex create(List<String> names, List</*@Nullable*/ Pattern> patterns) {
+        checkArgument(names.size() == patterns.size());
+        Map<String, BitSet> exactNameMatches = Maps.newHashMap();
+        BitSet anyNameMatches = new BitSet();
+        // keyed by pattern string to de-dup the patterns shared by multiple matchers
+        Map<String, Pattern> distinctPatterns = Maps.newLinkedHashMap();
+        Map<String, BitSet> distinctPatternMatches = Maps.newHashMap();
+        for (int i = 0; i < names.size(); i++) {
+            Pattern pattern = patterns.get(i);
+            String name = names.get(i);
+            if (pattern != null) {
+                distinctPatterns.put(pattern.pattern(), pattern);
+                getOrCreate(distinctPatternMatches, pattern.pattern()).set(i);
+            } else if (name.isEmpty()) {
+                anyNameMatches.set(i);
+            } else {
+                getOrCreate(exactNameMatches, name).set(i);
+            }
+        }
+        List<Pattern> patternList = Lists.newArrayList();
+        List<BitSet> patternMatchesList = Lists.newArrayList();
+        List<String> combinedPatternParts = Lists.newArrayList();
+        boolean combinable = true;
+        for (Pattern pattern : distinctPatterns.values()) {
+            patternList.add(pattern);
+            patternMatchesList.add(distinctPatternMatches.get(pattern.pattern()));
+            if (pattern.matcher("").groupCount() == 0) {
+                combinedPatternParts.add("(?:" + pattern.pattern() + ")");
+            } else {
+                combinable = false;
+            }
+        }
+        Pattern combinedPattern = null;
+        if (combinable && !combinedPatternParts.isEmpty()) {
+            combinedPattern = Pattern.compile(Joiner.on('|').join(combinedPatternParts));
+        }
+        return new NameIndex(exactNameMatches, anyNameMatches, patternList, patternMatchesList,
+                combinedPattern);
+    }
+
+    private NameIndex(Map<String, BitSet> exactNameMatches, BitSet anyNameMatches,
+            List<Pattern> patterns, List<BitSet> patternMatches,
+            @Nullable Pattern combinedPattern) {
+        this.exactNameMatches = ImmutableMap.copyOf(exactNameMatches);
+        this.anyNameMatches = anyNameMatches;
+        this.patterns = ImmutableList.copyOf(patterns);
+        this.patternMatches = ImmutableList.copyOf(patternMatches);
+        this.combinedPattern = combinedPattern;
+    }
+
+    // adds the positions of the matchers that match the name
+    void addMatches(String name, boolean includePatterns, BitSet matches) {
+        matches.or(anyNameMatches);
+        BitSet exactMatches = exactNameMatches.get(name);
+        if (exactMatches != null) {
+            matches.or(exactMatches);
+        }
+        if (!includePatterns || patterns.isEmpty()) {
+            return;
+        }
+        if (combinedPattern != null && !combinedPattern.matcher(name).matches()) {
+            return;
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(name).matches()) {
+                matches.or(patternMatches.get(i));
+            }
+        }
+    }
+
+    boolean hasMatch(String name) {
+        if (!anyNameMatches.isEmpty() || exactNameMatches.containsKey(name)) {
+            return true;
+        }
+        if (patterns.isEmpty()) {
+            return false;
+        }
+        if (combinedPattern != null) {
+            return combinedPattern.matcher(name).matches();
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BitSet getOrCreate(Map<String, BitSet> map, String key) {
+        BitSet bitSet = map.get(key);
+        if (bitSet == null) {
+            bitSet = new BitSet();
+            map.put(key, bitSet);
+        }
+        return bitSet;
+    }
+}
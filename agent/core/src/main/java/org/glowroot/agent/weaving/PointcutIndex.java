@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.objectweb.asm.Type;
+
+// compiled index of the declaring class name and method name pointcuts of a list of advisors, so
+// that the cost of matching a class or method by name does not grow with the number of advisors
+//
+// matches are returned as positions in the advisors list
+class PointcutIndex {
+
+    private final List<Advice> advisors;
+    // parallel to advisors
+    private final ImmutableList<AdviceMatcher> adviceMatchers;
+
+    private final NameIndex declaringClassNameIndex;
+    private final NameIndex methodNameIndex;
+
+    // see AnalyzedWorld.getPointcutIndex() for caching
+    PointcutIndex(List<Advice> advisors) {
+        this.advisors = advisors;
+        List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
+        List<String> declaringClassNames = Lists.newArrayList();
+        List</*@Nullable*/ Pattern> declaringClassNamePatterns = Lists.newArrayList();
+        List<String> methodNames = Lists.newArrayList();
+        List</*@Nullable*/ Pattern> methodNamePatterns = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
+            declaringClassNames.add(advice.pointcutMethodDeclaringClassName());
+            declaringClassNamePatterns.add(advice.pointcutMethodDeclaringClassNamePattern());
+            methodNames.add(advice.pointcut().methodName());
+            methodNamePatterns.add(advice.pointcutMethodNamePattern());
+        }
+        this.adviceMatchers = ImmutableList.copyOf(adviceMatchers);
+        declaringClassNameIndex =
+                NameIndex.create(declaringClassNames, declaringClassNamePatterns);
+        methodNameIndex = NameIndex.create(methodNames, methodNamePatterns);
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // returns the positions of the advisors whose declaring class pointcut matches
+    BitSet getDeclaringClassMatches(String className, List<String> classAnnotations) {
+        BitSet matches = new BitSet();
+        declaringClassNameIndex.addMatches(className, true, matches);
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            if (!adviceMatchers.get(i).isClassAnnotationMatch(classAnnotations)) {
+                matches.clear(i);
+            }
+        }
+        return matches;
+    }
+
+    // returns the advisors (among the declaring class matches) whose method pointcut matches
+    //
+    // important that this returns a mutable list
+    List<Advice> getMethodLevelMatches(BitSet declaringClassMatches, String methodName,
+            List<String> methodAnnotations, List<Type> parameterTypes, Type returnType,
+            int modifiers) {
+        List<Advice> matchingAdvisors = Lists.newArrayList();
+        if (declaringClassMatches.isEmpty() || methodName.equals("<clinit>")) {
+            // static initializers are not supported
+            return matchingAdvisors;
+        }
+        BitSet matches = new BitSet();
+        // don't want patterns to match constructors
+        methodNameIndex.addMatches(methodName, !methodName.equals("<init>"), matches);
+        matches.and(declaringClassMatches);
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            AdviceMatcher adviceMatcher = adviceMatchers.get(i);
+            if (adviceMatcher.isMethodLevelMatch(methodAnnotations, parameterTypes, returnType,
+                    modifiers)) {
+                matchingAdvisors.add(adviceMatcher.advice());
+            }
+        }
+        return matchingAdvisors;
+    }
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.security.CodeSource;
 import java.util.List;
 
@@ -49,6 +50,7 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
 
 import static org.objectweb.asm.Opcodes.ASM5;
 
@@ -59,19 +61,26 @@ public class Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean VERIFY_WEAVING = Boolean.getBoolean("glowroot.weaving.verify");
 
+    private static final String FELIX_BUNDLE_WIRING_IMPL =
+            "org/apache/felix/framework/BundleWiringImpl";
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final TimerName timerName;
+    private final @Nullable WeavingCache weavingCache;
+
+    // rebuilt whenever the advisors change (e.g. after re-weaving)
+    private volatile @Nullable ClassPrefilter classPrefilter;
 
     private volatile boolean enabled;
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -84,6 +93,7 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.weavingCache = weavingCache;
     }
 
     byte /*@Nullable*/[] weave(byte[] classBytes, String className, @Nullable CodeSource codeSource,
@@ -120,12 +130,35 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> globalAdvisors = this.advisors.get();
+        ByteBuffer weavingCacheKey = null;
+        if (weavingCache != null) {
+            weavingCacheKey = weavingCache.getKey(classBytes, loader, codeSource, globalAdvisors);
+            if (weavingCacheKey != null) {
+                AnalyzedClass cachedAnalyzedClass =
+                        weavingCache.getAnalyzedClass(weavingCacheKey);
+                if (cachedAnalyzedClass != null) {
+                    // the class was previously analyzed and did not require weaving
+                    analyzedWorld.add(cachedAnalyzedClass, loader);
+                    return null;
+                }
+            }
+        }
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(globalAdvisors,
                 classBytes, loader, className);
+        if (advisors == globalAdvisors && !className.equals(FELIX_BUNDLE_WIRING_IMPL)) {
+            AnalyzedClass analyzedClass =
+                    analyzeFromClassHeader(classBytes, advisors, codeSource, loader);
+            if (analyzedClass != null) {
+                analyzedWorld.add(analyzedClass, loader);
+                putInWeavingCache(weavingCacheKey, analyzedClass, advisors, globalAdvisors, null);
+                return null;
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeFelixBytes = null;
-        if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+        if (className.equals(FELIX_BUNDLE_WIRING_IMPL)) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new FelixOsgiHackClassVisitor(cw);
@@ -136,12 +169,18 @@ public class Weaver {
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            putInWeavingCache(weavingCacheKey, analyzedClass, advisors, globalAdvisors,
+                    maybeFelixBytes);
             return maybeFelixBytes;
         }
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            putInWeavingCache(weavingCacheKey, analyzedClass, advisors, globalAdvisors,
+                    maybeFelixBytes);
             return maybeFelixBytes;
         }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
@@ -184,6 +223,50 @@ public class Weaver {
         return transformedBytes;
     }
 
+    // returns non-null if the class can be ruled out from weaving based on its class header alone,
+    // in which case the returned analyzed class is the same as the one that would be returned by
+    // the full analysis (since the full analysis short circuits before looking at the methods)
+    private @Nullable AnalyzedClass analyzeFromClassHeader(byte[] classBytes,
+            List<Advice> advisors, @Nullable CodeSource codeSource,
+            @Nullable ClassLoader loader) {
+        ClassPrefilter classPrefilter = this.classPrefilter;
+        if (classPrefilter == null || classPrefilter.advisors() != advisors) {
+            classPrefilter = ClassPrefilter.create(advisors, shimTypes, mixinTypes);
+            this.classPrefilter = classPrefilter;
+        }
+        ThinClass thinClass = ClassHeaderReader.readHeader(classBytes);
+        if (thinClass == null) {
+            return null;
+        }
+        if (classPrefilter.isPossibleMatch(ClassNames.fromInternalName(thinClass.name()),
+                classBytes)) {
+            // class annotations (which are not read from the header) may be needed to rule out
+            // the advice match
+            return null;
+        }
+        // the header is sufficient to rule out any advice, shim or mixin matching by name,
+        // but the class can still inherit advice, shims or mixins from its super types
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(thinClass, advisors, shimTypes,
+                mixinTypes, loader, analyzedWorld, codeSource, classBytes);
+        if (!classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
+            return null;
+        }
+        return classAnalyzer.getAnalyzedClass();
+    }
+
+    private void putInWeavingCache(@Nullable ByteBuffer weavingCacheKey,
+            AnalyzedClass analyzedClass, List<Advice> advisors, List<Advice> globalAdvisors,
+            byte /*@Nullable*/[] maybeFelixBytes) {
+        if (weavingCache == null || weavingCacheKey == null) {
+            return;
+        }
+        // classes with @Instrumentation annotations define their own advice (which cannot be
+        // persisted), and the felix hack is always applied during weaving
+        if (advisors == globalAdvisors && maybeFelixBytes == null) {
+            weavingCache.putAnalyzedClass(weavingCacheKey, analyzedClass);
+        }
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Version;
+
+// optional persistent cache of class analysis results, so that after a restart, classes that do
+// not require weaving (which is the vast majority of loaded classes) skip parsing and class
+// hierarchy analysis completely
+//
+// woven bytes are intentionally not cached since they contain ids that are only valid inside the
+// jvm that produced them (nesting group ids, suppression key ids and meta holder class names)
+//
+// entries are keyed by the class bytes and the class loader identity (class loader type and code
+// source location), and the whole file is discarded on startup if the advisors, shim types or
+// mixin types have changed since it was written
+//
+// a cached result can become stale if a super class or interface changes without the class itself
+// changing (e.g. when only one of two related jars is upgraded), which is why this cache is opt-in
+// (-Dglowroot.weaving.cache=true, named alongside -Dglowroot.weaving.verify since it is a
+// user-facing weaving option and not a glowroot.internal.* property)
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final boolean ENABLED = Boolean.getBoolean("glowroot.weaving.cache");
+
+    private static final int MAGIC = 0x47574331;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+    // the cache is only used while these advisors are in effect (they are replaced when
+    // instrumentation config is changed at runtime)
+    private final List<Advice> advisors;
+    private final Map<Advice, Integer> advisorIndexes;
+    private final MessageDigest prototypeDigest;
+
+    // entries are removed once used, since each is normally only needed once per jvm lifetime
+    private final ConcurrentMap<ByteBuffer, byte[]> entries;
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private @Nullable FileOutputStream out;
+    @GuardedBy("lock")
+    private long fileSize;
+
+    public static @Nullable WeavingCache create(File baseDir, Supplier<List<Advice>> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            // the version is part of the fingerprint since woven bytecode and analysis results
+            // can differ between glowroot versions
+            return new WeavingCache(new File(baseDir, "weaving.cache"), advisors.get(), shimTypes,
+                    mixinTypes, Version.getVersion(WeavingCache.class));
+        } catch (Exception e) {
+            logger.error("unable to open weaving cache: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    WeavingCache(File file, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, String version)
+            throws IOException, NoSuchAlgorithmException {
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        this.advisors = advisors;
+        advisorIndexes = new IdentityHashMap<Advice, Integer>();
+        for (int i = 0; i < advisors.size(); i++) {
+            advisorIndexes.put(advisors.get(i), i);
+        }
+        // obtaining the message digest here also initializes the security providers outside of
+        // ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+        prototypeDigest = MessageDigest.getInstance("SHA-1");
+        MessageDigest fingerprintDigest = MessageDigest.getInstance("SHA-1");
+        fingerprintDigest.update(version.getBytes(Charsets.UTF_8));
+        fingerprintDigest.update(advisors.toString().getBytes(Charsets.UTF_8));
+        fingerprintDigest.update(shimTypes.toString().getBytes(Charsets.UTF_8));
+        fingerprintDigest.update(mixinTypes.toString().getBytes(Charsets.UTF_8));
+        byte[] fingerprint = fingerprintDigest.digest();
+        entries = new ConcurrentHashMap<ByteBuffer, byte[]>();
+        long validLength = 0;
+        if (file.exists()) {
+            validLength = load(file, fingerprint, entries);
+            logger.debug("loaded {} weaving cache entries", entries.size());
+        }
+        if (validLength == 0) {
+            writeHeader(file, fingerprint);
+            validLength = file.length();
+        } else if (validLength < file.length()) {
+            // truncated entry at the end of the file, e.g. from jvm being killed mid-write
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        synchronized (lock) {
+            fileSize = validLength;
+            out = new FileOutputStream(file, true);
+        }
+    }
+
+    @Nullable
+    ByteBuffer getKey(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, List<Advice> advisors) {
+        if (advisors != this.advisors) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) prototypeDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        if (loader != null) {
+            digest.update(loader.getClass().getName().getBytes(Charsets.UTF_8));
+            URL location = codeSource == null ? null : codeSource.getLocation();
+            if (location != null) {
+                digest.update((byte) 0);
+                digest.update(location.toString().getBytes(Charsets.UTF_8));
+            }
+        }
+        digest.update((byte) 0);
+        digest.update(classBytes);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    @Nullable
+    AnalyzedClass getAnalyzedClass(ByteBuffer key) {
+        byte[] bytes = entries.remove(key);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return readAnalyzedClass(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    void putAnalyzedClass(ByteBuffer key, AnalyzedClass analyzedClass) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(baos);
+        try {
+            byte[] keyBytes = key.array();
+            dataOut.writeInt(keyBytes.length);
+            dataOut.write(keyBytes);
+            // placeholder for entry length
+            dataOut.writeInt(0);
+            if (!writeAnalyzedClass(analyzedClass, dataOut)) {
+                // references advice that is not part of the global advisors (e.g. from
+                // @Instrumentation annotations), which cannot be persisted
+                return;
+            }
+            dataOut.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw IOException
+            logger.debug(e.getMessage(), e);
+            return;
+        }
+        byte[] bytes = baos.toByteArray();
+        int entryLengthIndex = 4 + key.array().length;
+        int entryLength = bytes.length - entryLengthIndex - 4;
+        bytes[entryLengthIndex] = (byte) (entryLength >>> 24);
+        bytes[entryLengthIndex + 1] = (byte) (entryLength >>> 16);
+        bytes[entryLengthIndex + 2] = (byte) (entryLength >>> 8);
+        bytes[entryLengthIndex + 3] = (byte) entryLength;
+        synchronized (lock) {
+            if (out == null || fileSize + bytes.length > MAX_FILE_SIZE) {
+                return;
+            }
+            try {
+                // single write per entry so that a partially written entry can only occur at the
+                // very end of the file
+                out.write(bytes);
+                fileSize += bytes.length;
+            } catch (IOException e) {
+                logger.error("unable to write to weaving cache, disabling further writes: {}",
+                        e.getMessage(), e);
+                out = null;
+            }
+        }
+    }
+
+    private boolean writeAnalyzedClass(AnalyzedClass analyzedClass, DataOutputStream out)
+            throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(analyzedClass.superName(), out);
+        writeStrings(analyzedClass.interfaceNames(), out);
+        List<AnalyzedMethod> analyzedMethods = analyzedClass.analyzedMethods();
+        out.writeInt(analyzedMethods.size());
+        for (AnalyzedMethod analyzedMethod : analyzedMethods) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(analyzedMethod.parameterTypes(), out);
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(analyzedMethod.signature(), out);
+            writeStrings(analyzedMethod.exceptions(), out);
+            if (!writeAdvisors(analyzedMethod.advisors(), out)) {
+                return false;
+            }
+            if (!writeAdvisors(analyzedMethod.declaredOnlyAdvisors(), out)) {
+                return false;
+            }
+        }
+        List<ShimType> analyzedShimTypes = analyzedClass.shimTypes();
+        out.writeInt(analyzedShimTypes.size());
+        for (ShimType shimType : analyzedShimTypes) {
+            int index = shimTypes.indexOf(shimType);
+            if (index == -1) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        List<MixinType> analyzedMixinTypes = analyzedClass.mixinTypes();
+        out.writeInt(analyzedMixinTypes.size());
+        for (MixinType mixinType : analyzedMixinTypes) {
+            int index = mixinTypes.indexOf(mixinType);
+            if (index == -1) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        return true;
+    }
+
+    private boolean writeAdvisors(List<Advice> advisors, DataOutputStream out)
+            throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            Integer index = advisorIndexes.get(advice);
+            if (index == null) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        return true;
+    }
+
+    private AnalyzedClass readAnalyzedClass(DataInputStream in) throws IOException {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            builder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addExceptions(readStrings(in))
+                    .addAdvisors(readAdvisors(in))
+                    .addDeclaredOnlyAdvisors(readAdvisors(in))
+                    .build());
+        }
+        int shimTypeCount = in.readInt();
+        for (int i = 0; i < shimTypeCount; i++) {
+            builder.addShimTypes(shimTypes.get(in.readInt()));
+        }
+        int mixinTypeCount = in.readInt();
+        for (int i = 0; i < mixinTypeCount; i++) {
+            builder.addMixinTypes(mixinTypes.get(in.readInt()));
+        }
+        return builder.build();
+    }
+
+    private Advice[] readAdvisors(DataInputStream in) throws IOException {
+        Advice[] readAdvisors = new Advice[in.readInt()];
+        for (int i = 0; i < readAdvisors.length; i++) {
+            readAdvisors[i] = advisors.get(in.readInt());
+        }
+        return readAdvisors;
+    }
+
+    private static void writeStrings(List<String> strings, DataOutputStream out)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static void writeNullableString(@Nullable String string, DataOutputStream out)
+            throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    // returns the length of the valid portion of the file, or zero if the file needs to be
+    // re-created
+    private static long load(File file, byte[] fingerprint, Map<ByteBuffer, byte[]> entries)
+            throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return 0;
+            }
+            byte[] fileFingerprint = readLengthPrefixedBytes(in);
+            if (fileFingerprint == null || !Arrays.equals(fileFingerprint, fingerprint)) {
+                logger.debug("discarding weaving cache since instrumentation has changed");
+                return 0;
+            }
+            long validLength = 12 + fileFingerprint.length;
+            while (true) {
+                byte /*@Nullable*/[] key;
+                byte /*@Nullable*/[] entry;
+                try {
+                    key = readLengthPrefixedBytes(in);
+                    entry = readLengthPrefixedBytes(in);
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                if (key == null || entry == null) {
+                    // corrupt entry, discard it and everything after it
+                    return validLength;
+                }
+                entries.put(ByteBuffer.wrap(key), entry);
+                validLength += 8 + key.length + entry.length;
+            }
+        } catch (EOFException e) {
+            // truncated header
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte /*@Nullable*/[] readLengthPrefixedBytes(DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FILE_SIZE) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeHeader(File file, byte[] fingerprint) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(fingerprint.length);
+            out.write(fingerprint);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -83,6 +83,8 @@ public class AggregateDaoTest {
         aggregateDao = new AggregateDao(
                 dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
                         cappedDatabase, cappedDatabase),
+                ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase, cappedDatabase,
+                        cappedDatabase),
                 configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
     }
 
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateSegmentTest {
+
+    @Test
+    public void shouldReadRows() throws Exception {
+        // given
+        AggregateSegment.Builder builder = new AggregateSegment.Builder();
+        builder.add("Web", null, createAggregate(10, "one"));
+        builder.add("Web", "/abc", createAggregate(7, "two"));
+        builder.add("Web", "/xyz", createAggregate(3, "three"));
+        builder.add("Background", null, createAggregate(5, "four"));
+
+        // when
+        AggregateSegment segment = new AggregateSegment(builder.toByteArray());
+
+        // then
+        assertThat(readTransactionCount(segment, "Web", null)).isEqualTo(10);
+        assertThat(readTransactionCount(segment, "Web", "/abc")).isEqualTo(7);
+        assertThat(readTransactionCount(segment, "Web", "/xyz")).isEqualTo(3);
+        assertThat(readTransactionCount(segment, "Background", null)).isEqualTo(5);
+        assertThat(segment.findRow("Background", "/abc")).isNull();
+        assertThat(segment.findRow("Other", null)).isNull();
+        assertThat(segment.findRow("Web", "one")).isNull();
+    }
+
+    @Test
+    public void shouldReadOverviewAggregate() throws Exception {
+        // given
+        AggregateSegment.Builder builder = new AggregateSegment.Builder();
+        builder.add("Web", null, createAggregate(10, "one"));
+        Aggregate aggregate = createAggregate(7, "two");
+        builder.add("Web", "/abc", aggregate);
+
+        // when
+        AggregateSegment segment = new AggregateSegment(builder.toByteArray());
+        OverviewAggregate overviewAggregate =
+                segment.readOverviewAggregate(segment.findRow("Web", "/abc"), 1000);
+
+        // then
+        assertThat(overviewAggregate.captureTime()).isEqualTo(1000);
+        assertThat(overviewAggregate.totalDurationNanos()).isEqualTo(7000);
+        assertThat(overviewAggregate.transactionCount()).isEqualTo(7);
+        assertThat(overviewAggregate.asyncTransactions()).isTrue();
+        assertThat(overviewAggregate.mainThreadRootTimers())
+                .isEqualTo(aggregate.getMainThreadRootTimerList());
+        assertThat(overviewAggregate.auxThreadRootTimers()).isEmpty();
+        assertThat(overviewAggregate.asyncTimers()).isEqualTo(aggregate.getAsyncTimerList());
+        assertThat(overviewAggregate.mainThreadStats()).isEqualTo(aggregate.getMainThreadStats());
+        assertThat(overviewAggregate.auxThreadStats()).isNull();
+    }
+
+    @Test
+    public void shouldReadPercentileAggregate() throws Exception {
+        // given
+        AggregateSegment.Builder builder = new AggregateSegment.Builder();
+        builder.add("Web", null, createAggregate(10, "one"));
+        Aggregate.Histogram histogram = Aggregate.Histogram.newBuilder()
+                .setBucketPrecisionBits(8)
+                .setBucketCounts(ByteString.copyFrom(new byte[] {1, 2, 3}))
+                .build();
+        builder.add("Web", "/abc", createAggregate(7, "two").toBuilder()
+                .setDurationNanosHistogram(histogram)
+                .build());
+
+        // when
+        AggregateSegment segment = new AggregateSegment(builder.toByteArray());
+        PercentileAggregate percentileAggregate0 =
+                segment.readPercentileAggregate(segment.findRow("Web", null), 1000);
+        PercentileAggregate percentileAggregate1 =
+                segment.readPercentileAggregate(segment.findRow("Web", "/abc"), 1000);
+
+        // then
+        assertThat(percentileAggregate0.durationNanosHistogram().getOrderedRawValueList())
+                .containsExactly(123L, 456L, 456L, 789L);
+        assertThat(percentileAggregate1.durationNanosHistogram()).isEqualTo(histogram);
+    }
+
+    @Test
+    public void shouldReadThreadStatsOfRowAfterRowsWithDifferentThreadStats() throws Exception {
+        // given
+        AggregateSegment.Builder builder = new AggregateSegment.Builder();
+        builder.add("Web", null, createAggregate(10, "one").toBuilder()
+                .setAuxThreadStats(Aggregate.ThreadStats.newBuilder()
+                        .setTotalBlockedNanos(OptionalDouble.newBuilder().setValue(11)))
+                .build());
+        builder.add("Web", "/abc", createAggregate(7, "two").toBuilder()
+                .clearMainThreadStats()
+                .build());
+        Aggregate aggregate = createAggregate(3, "three");
+        builder.add("Web", "/xyz", aggregate);
+
+        // when
+        AggregateSegment segment = new AggregateSegment(builder.toByteArray());
+        OverviewAggregate overviewAggregate0 =
+                segment.readOverviewAggregate(segment.findRow("Web", null), 1000);
+        OverviewAggregate overviewAggregate1 =
+                segment.readOverviewAggregate(segment.findRow("Web", "/abc"), 1000);
+        OverviewAggregate overviewAggregate2 =
+                segment.readOverviewAggregate(segment.findRow("Web", "/xyz"), 1000);
+
+        // then
+        assertThat(overviewAggregate0.auxThreadStats().getTotalBlockedNanos().getValue())
+                .isEqualTo(11);
+        assertThat(overviewAggregate1.mainThreadStats()).isNull();
+        assertThat(overviewAggregate1.auxThreadStats()).isNull();
+        assertThat(overviewAggregate2.mainThreadStats()).isEqualTo(aggregate.getMainThreadStats());
+        assertThat(overviewAggregate2.mainThreadRootTimers())
+                .isEqualTo(aggregate.getMainThreadRootTimerList());
+    }
+
+    private static long readTransactionCount(AggregateSegment segment, String transactionType,
+            String transactionName) throws Exception {
+        return segment.readThroughputAggregate(segment.findRow(transactionType, transactionName),
+                1000).transactionCount();
+    }
+
+    private static Aggregate createAggregate(int transactionCount, String timerName) {
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(transactionCount * 1000)
+                .setTransactionCount(transactionCount)
+                .setAsyncTransactions(true)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName(timerName)
+                        .setTotalNanos(transactionCount * 1000)
+                        .setCount(transactionCount)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setExtended(true)
+                                .setTotalNanos(transactionCount * 500)
+                                .setCount(transactionCount * 2)))
+                .addAsyncTimer(Aggregate.Timer.newBuilder()
+                        .setName("http client request")
+                        .setTotalNanos(100)
+                        .setCount(1))
+                .setMainThreadStats(Aggregate.ThreadStats.newBuilder()
+                        .setTotalCpuNanos(OptionalDouble.newBuilder().setValue(123))
+                        .setTotalAllocatedBytes(OptionalDouble.newBuilder().setValue(456)))
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(123)
+                        .addOrderedRawValue(456)
+                        .addOrderedRawValue(456)
+                        .addOrderedRawValue(789))
+                .build();
+    }
+}
@@ -17,6 +17,7 @@ package org.glowroot.agent.embedded.repo;
 
 import java.io.File;
 
+import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import org.junit.After;
 import org.junit.Before;
@@ -290,6 +291,224 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTraceWithHeadlineQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("T HEADL")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingHeadlineQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("headline test")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWithAttributeValueContainsQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .attributeValueComparator(StringComparator.CONTAINS)
+                .attributeValue("XYZ")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingAttributeValueContainsQualifier()
+            throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .attributeValueComparator(StringComparator.CONTAINS)
+                .attributeValue("xya")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWithLongErrorMessageQualifier() throws Exception {
+        // given
+        String errorMessage = Strings.repeat("a", 1000) + "needle" + Strings.repeat("b", 1000);
+        Trace trace = TraceTestData.createTrace();
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage(errorMessage)))
+                .build();
+        traceDao.store(trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .errorMessageComparator(StringComparator.CONTAINS)
+                .errorMessage("needle")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(dataSource.queryForLong("select count(*) from trace_search_gram"
+                + " where field = 'error_message'")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadTraceWithNonAsciiHeadlineQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setHeadline("hello w\u00f6rld"))
+                .build();
+        traceDao.store(trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("W\u00d6RLD")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(dataSource.queryForLong("select count(*) from trace_search_gram"
+                + " where field = 'headline'")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReplaceSearchGramsOfPartialTrace() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setPartial(true)
+                        .setHeadline("first headline"))
+                .build();
+        traceDao.store(trace);
+        traceDao.store(trace.toBuilder()
+                .setUpdate(true)
+                .setHeader(trace.getHeader().toBuilder()
+                        .setPartial(false)
+                        .setHeadline("second headline"))
+                .build());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter firstFilter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("first")
+                .build();
+        TracePointFilter secondFilter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("second")
+                .build();
+
+        // when
+        Result<TracePoint> firstResult =
+                traceDao.readSlowPoints(AGENT_ROLLUP, query, firstFilter, 1);
+        Result<TracePoint> secondResult =
+                traceDao.readSlowPoints(AGENT_ROLLUP, query, secondFilter, 1);
+
+        // then
+        assertThat(firstResult.records()).isEmpty();
+        assertThat(secondResult.records()).hasSize(1);
+        assertThat(dataSource.queryForLong("select count(*) from trace_search_gram"
+                + " where field = 'headline' and gram = 'FIR'")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldDeleteSearchGramsOfExpiredTrace() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(trace);
+        // when
+        traceDao.deleteBefore(100);
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from trace_search_gram"))
+                .isEqualTo(0);
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
@@ -18,10 +18,13 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -29,6 +32,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import org.glowroot.agent.embedded.util.CappedDatabase.MessageSink;
+import org.glowroot.agent.embedded.util.CappedDatabase.MessageSource;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseTest {
@@ -63,6 +70,98 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteEmptyBlock() throws Exception {
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.empty(), "test");
+        // then
+        assertThat(cappedId).isNotEqualTo(-1);
+        assertThat(cappedDatabase.read(cappedId).read()).isEmpty();
+    }
+
+    @Test
+    public void shouldWriteStreamedMessages() throws Exception {
+        // given
+        final Trace.Entry entry1 = Trace.Entry.newBuilder()
+                .setMessage("abc")
+                .build();
+        final Trace.Entry entry2 = Trace.Entry.newBuilder()
+                .setDepth(1)
+                .setMessage("xyz")
+                .build();
+        // when
+        long cappedId = cappedDatabase.writeMessages(new MessageSource() {
+            @Override
+            public void writeMessages(MessageSink messageSink) throws IOException {
+                messageSink.write(entry1);
+                messageSink.write(entry2);
+            }
+        }, "test");
+        // then
+        List<Trace.Entry> entries = cappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+        assertThat(entries).containsExactly(entry1, entry2);
+    }
+
+    @Test
+    public void shouldWriteLargeStreamedMessagesInterleavedWithOtherWrites() throws Exception {
+        // given
+        File largeTempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        final CappedDatabase largeCappedDatabase =
+                new CappedDatabase(largeTempFile, 2048, Ticker.systemTicker());
+        final String message = Strings.repeat("0123456789", 100);
+        final long[] interleavedCappedId = new long[1];
+        // when
+        long cappedId = largeCappedDatabase.writeMessages(new MessageSource() {
+            @Override
+            public void writeMessages(MessageSink messageSink) throws IOException {
+                for (int i = 0; i < 1000; i++) {
+                    messageSink.write(Trace.Entry.newBuilder()
+                            .setDepth(i)
+                            .setMessage(message)
+                            .build());
+                    if (i == 500) {
+                        // the capped database is not locked while the messages are produced
+                        interleavedCappedId[0] = largeCappedDatabase
+                                .writeBytes("abc".getBytes(Charsets.UTF_8), "test");
+                    }
+                }
+            }
+        }, "test");
+        // then
+        List<Trace.Entry> entries =
+                largeCappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+        assertThat(entries).hasSize(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(entries.get(i).getDepth()).isEqualTo(i);
+            assertThat(entries.get(i).getMessage()).isEqualTo(message);
+        }
+        assertThat(interleavedCappedId[0]).isGreaterThan(cappedId);
+        assertThat(largeCappedDatabase.read(interleavedCappedId[0]).read()).isEqualTo("abc");
+        largeCappedDatabase.close();
+        largeTempFile.delete();
+    }
+
+    @Test
+    public void shouldNotWriteBlockForEmptyMessageSource() throws Exception {
+        // given
+        long cappedId = cappedDatabase.writeMessages(ImmutableList.of(Trace.Entry.newBuilder()
+                .setMessage("abc")
+                .build()), "test");
+        // when
+        long emptyCappedId = cappedDatabase.writeMessages(new MessageSource() {
+            @Override
+            public void writeMessages(MessageSink messageSink) {}
+        }, "test");
+        long nextCappedId = cappedDatabase.writeMessages(ImmutableList.of(Trace.Entry.newBuilder()
+                .setMessage("xyz")
+                .build()), "test");
+        // then
+        assertThat(emptyCappedId).isEqualTo(-1);
+        assertThat(cappedDatabase.readMessages(nextCappedId, Trace.Entry.parser())).hasSize(1);
+        assertThat(cappedDatabase.getStats("test").getWriteCount()).isEqualTo(2);
+        assertThat(nextCappedId).isGreaterThan(cappedId);
+    }
+
     @Test
     public void shouldReadOneByteAtATime() throws Exception {
         // given
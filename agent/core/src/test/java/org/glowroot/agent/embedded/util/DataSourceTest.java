@@ -15,11 +15,22 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -27,6 +38,108 @@ import static org.mockito.Mockito.when;
 
 public class DataSourceTest {
 
+    private static volatile CountDownLatch scanStarted = new CountDownLatch(0);
+    private static volatile CountDownLatch scanRelease = new CountDownLatch(0);
+
+    // h2 materializes the result set before processResultSet() is called, and releases its table
+    // locks at that point
+    @Test
+    public void shouldNotBlockBehindInProgressResultProcessing() throws Exception {
+        // given
+        final DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (id bigint)");
+        dataSource.update("insert into test (id) values (?)", 1);
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch queryRelease = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // when
+        Future<Long> future = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return dataSource.query(new BlockingQuery(queryStarted, queryRelease));
+            }
+        });
+        assertThat(queryStarted.await(10, SECONDS)).isTrue();
+        // then
+        dataSource.update("insert into test (id) values (?)", 2);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        queryRelease.countDown();
+        assertThat(future.get(10, SECONDS)).isEqualTo(1);
+        executor.shutdown();
+        dataSource.close();
+    }
+
+    // h2 synchronizes statement execution on the database, so the write waits for the scan to
+    // complete, but it does not wait on (or time out on) a table lock held by the scan
+    @Test
+    public void shouldCompleteWriteAfterInProgressScan() throws Exception {
+        // given
+        final DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (id bigint)");
+        dataSource.execute("create alias pause_scan for \"" + DataSourceTest.class.getName()
+                + ".pauseScan\"");
+        dataSource.update("insert into test (id) values (?)", 1);
+        scanStarted = new CountDownLatch(1);
+        scanRelease = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        // when
+        Future<Long> scanFuture = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return dataSource.queryForLong("select count(*) from test where pause_scan(id)");
+            }
+        });
+        assertThat(scanStarted.await(10, SECONDS)).isTrue();
+        Future<?> writeFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.update("insert into test (id) values (?)", 2);
+                return null;
+            }
+        });
+        // then
+        Thread.sleep(1500);
+        scanRelease.countDown();
+        assertThat(scanFuture.get(10, SECONDS)).isEqualTo(1);
+        writeFuture.get(10, SECONDS);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        executor.shutdown();
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldSupportNestedQueries() throws Exception {
+        // given
+        final DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (id bigint)");
+        dataSource.update("insert into test (id) values (?)", 1);
+        // when
+        long count = dataSource.query(new JdbcQuery<Long>() {
+            @Override
+            public String getSql() {
+                return "select id from test";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) {}
+            @Override
+            public Long processResultSet(ResultSet resultSet) throws Exception {
+                long count = 0;
+                while (resultSet.next()) {
+                    count += dataSource.queryForLong("select count(*) from test where id = ?",
+                            resultSet.getLong(1));
+                }
+                return count;
+            }
+            @Override
+            public Long valueIfDataSourceClosing() {
+                return 0L;
+            }
+        });
+        // then
+        assertThat(count).isEqualTo(1);
+        dataSource.close();
+    }
+
     @Test
     public void testDebugNoArgs() throws SQLException {
         // given
@@ -93,4 +206,43 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    // called by h2 (see create alias above)
+    public static boolean pauseScan(long id) throws InterruptedException {
+        scanStarted.countDown();
+        scanRelease.await();
+        return true;
+    }
+
+    private static class BlockingQuery implements JdbcQuery<Long> {
+
+        private final CountDownLatch queryStarted;
+        private final CountDownLatch queryRelease;
+
+        private BlockingQuery(CountDownLatch queryStarted, CountDownLatch queryRelease) {
+            this.queryStarted = queryStarted;
+            this.queryRelease = queryRelease;
+        }
+
+        @Override
+        public String getSql() {
+            return "select id from test where id = 1";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        @Override
+        public Long processResultSet(ResultSet resultSet) throws Exception {
+            queryStarted.countDown();
+            queryRelease.await();
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+
+        @Override
+        public Long valueIfDataSourceClosing() {
+            return 0L;
+        }
+    }
 }
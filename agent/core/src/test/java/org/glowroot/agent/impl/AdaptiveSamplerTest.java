@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class AdaptiveSamplerTest {
+
+    @Test
+    public void shouldFullyCaptureWhenUnderBudget() {
+        // given
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(mock(Aggregator.class), 5);
+        // when
+        adaptiveSampler.update(1, 0);
+        // then
+        assertThat(adaptiveSampler.getSampleInterval()).isEqualTo(1);
+        for (long startTick = 0; startTick < 1000; startTick++) {
+            assertThat(adaptiveSampler.nextCaptureWeight(startTick)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldDowngradeWhenOverBudget() {
+        // given
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(mock(Aggregator.class), 5);
+        // when
+        adaptiveSampler.update(10, 0);
+        adaptiveSampler.update(10, 0);
+        // then
+        assertThat(adaptiveSampler.getSampleInterval()).isEqualTo(4);
+        int fullyCapturedCount = 0;
+        for (long startTick = 0; startTick < 100000; startTick += 37) {
+            int captureWeight = adaptiveSampler.nextCaptureWeight(startTick);
+            if (captureWeight != 0) {
+                assertThat(captureWeight).isEqualTo(4);
+                fullyCapturedCount++;
+            }
+        }
+        // 2703 transactions, roughly one quarter fully captured
+        assertThat(fullyCapturedCount).isBetween(500, 850);
+    }
+
+    @Test
+    public void shouldDowngradeWhenBacklogged() {
+        // given
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(mock(Aggregator.class), 5);
+        // when
+        adaptiveSampler.update(0, 0.8);
+        // then
+        assertThat(adaptiveSampler.getSampleInterval()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotExceedMaxSampleInterval() {
+        // given
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(mock(Aggregator.class), 5);
+        // when
+        for (int i = 0; i < 100; i++) {
+            adaptiveSampler.update(50, 1);
+        }
+        // then
+        assertThat(adaptiveSampler.getSampleInterval())
+                .isEqualTo(AdaptiveSampler.MAX_SAMPLE_INTERVAL);
+    }
+
+    @Test
+    public void shouldRecoverOnlyWhenComfortablyUnderBudget() {
+        // given
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(mock(Aggregator.class), 10);
+        adaptiveSampler.update(20, 0);
+        adaptiveSampler.update(20, 0);
+        // when
+        adaptiveSampler.update(8, 0);
+        // then
+        assertThat(adaptiveSampler.getSampleInterval()).isEqualTo(4);
+        // when
+        adaptiveSampler.update(2, 0);
+        // then
+        assertThat(adaptiveSampler.getSampleInterval()).isEqualTo(2);
+    }
+}
@@ -30,7 +30,6 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
-import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -41,20 +40,30 @@ public class AggregatorTest {
 
     @Test
     public void shouldFlushWithTrace() throws InterruptedException {
+        shouldFlushWithTrace(1);
+    }
+
+    @Test
+    public void shouldFlushWithTraceUsingMultipleProcessingThreads() throws InterruptedException {
+        shouldFlushWithTrace(4);
+    }
+
+    private static void shouldFlushWithTrace(int processingThreads) throws InterruptedException {
         // given
         MockCollector aggregateCollector = new MockCollector();
         ConfigService configService = mock(ConfigService.class);
         when(configService.getAdvancedConfig())
                 .thenReturn(ImmutableAdvancedConfig.builder().build());
-        Aggregator aggregator =
-                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService, 1000,
+                processingThreads, Clock.systemClock());
 
         // when
         int count = 0;
-        long firstCaptureTime = aggregator.add(buildTransaction());
+        long firstCaptureTime = aggregator.add(buildTransaction("a name"));
         long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
         while (true) {
-            long captureTime = aggregator.add(buildTransaction());
+            // use different transaction names so that transactions are spread across shards
+            long captureTime = aggregator.add(buildTransaction("a name " + (count % 10)));
             count++;
             if (captureTime > aggregateCaptureTime) {
                 break;
@@ -74,12 +83,12 @@ public class AggregatorTest {
         aggregator.close();
     }
 
-    private static Transaction buildTransaction() {
+    private static Transaction buildTransaction(String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
@@ -121,7 +130,7 @@ public class AggregatorTest {
         public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
 
         @Override
-        public void collectTrace(Trace trace) {}
+        public void collectTrace(TraceReader traceReader) {}
 
         @Override
         public void log(LogEvent logEvent) {}
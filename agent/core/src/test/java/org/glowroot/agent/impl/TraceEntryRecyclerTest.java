@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.QueryData;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TraceEntryRecyclerTest {
+
+    @Test
+    public void shouldRecycleCompletedEntry() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl rootEntry = createEntry(threadContext, null, null);
+        TraceEntryImpl entry = createEntry(threadContext, rootEntry, null);
+        rootEntry.setNextTraceEntry(entry);
+        entry.end();
+        TraceEntryRecycler recycler = new TraceEntryRecycler();
+        // when
+        recycler.recycle(rootEntry);
+        // then
+        TraceEntryImpl recycledEntry = recycler.poll();
+        assertThat(recycledEntry).isSameAs(entry);
+        assertThat(recycledEntry.getMessageSupplier()).isNull();
+        assertThat(recycledEntry.getParentTraceEntry()).isNull();
+        assertThat(recycler.poll()).isNull();
+    }
+
+    @Test
+    public void shouldNotRecycleActiveEntry() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl rootEntry = createEntry(threadContext, null, null);
+        TraceEntryImpl entry = createEntry(threadContext, rootEntry, null);
+        rootEntry.setNextTraceEntry(entry);
+        TraceEntryRecycler recycler = new TraceEntryRecycler();
+        // when
+        recycler.recycle(rootEntry);
+        // then
+        assertThat(recycler.poll()).isNull();
+    }
+
+    @Test
+    public void shouldNotRecycleQueryEntry() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl rootEntry = createEntry(threadContext, null, null);
+        TraceEntryImpl entry = createEntry(threadContext, rootEntry, mock(QueryData.class));
+        rootEntry.setNextTraceEntry(entry);
+        entry.end();
+        TraceEntryRecycler recycler = new TraceEntryRecycler();
+        // when
+        recycler.recycle(rootEntry);
+        // then
+        assertThat(recycler.poll()).isNull();
+    }
+
+    @Test
+    public void shouldReinitRecycledEntry() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl rootEntry = createEntry(threadContext, null, null);
+        TraceEntryImpl entry = createEntry(threadContext, rootEntry, null);
+        rootEntry.setNextTraceEntry(entry);
+        entry.end();
+        TraceEntryRecycler recycler = new TraceEntryRecycler();
+        recycler.recycle(rootEntry);
+        TraceEntryImpl otherRootEntry = createEntry(threadContext, null, null);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        // when
+        TraceEntryImpl recycledEntry = recycler.poll();
+        recycledEntry.reinit(threadContext, otherRootEntry, messageSupplier, 123,
+                mock(TimerImpl.class));
+        // then
+        assertThat(recycledEntry.getParentTraceEntry()).isSameAs(otherRootEntry);
+        assertThat(recycledEntry.getMessageSupplier()).isSameAs(messageSupplier);
+        assertThat(recycledEntry.getStartTick()).isEqualTo(123);
+        assertThat(recycledEntry.getNextTraceEntry()).isNull();
+        assertThat(recycledEntry.isRecyclable()).isFalse();
+    }
+
+    private static TraceEntryImpl createEntry(ThreadContextImpl threadContext,
+            @Nullable TraceEntryImpl parentTraceEntry, @Nullable QueryData queryData) {
+        return new TraceEntryImpl(threadContext, parentTraceEntry, mock(MessageSupplier.class),
+                queryData, 1, 0, mock(TimerImpl.class), null);
+    }
+}
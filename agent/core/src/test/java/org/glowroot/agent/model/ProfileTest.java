@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ThreadInfo;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.LeafThreadState;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProfileTest {
+
+    @Test
+    public void shouldMergeCommonPrefix() {
+        // given
+        Profile profile = new Profile();
+        StackTraceElement run = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 1);
+        StackTraceElement one = new StackTraceElement("com.example.One", "one", "One.java", 2);
+        StackTraceElement two = new StackTraceElement("com.example.Two", "two", "Two.java", 3);
+        // when
+        profile.addStackTrace(threadInfo(Thread.State.RUNNABLE, one, run), 100);
+        profile.addStackTrace(threadInfo(Thread.State.RUNNABLE, one, run), 100);
+        profile.addStackTrace(threadInfo(Thread.State.WAITING, two, run), 100);
+        // then
+        org.glowroot.wire.api.model.ProfileOuterClass.Profile proto = profile.toProto();
+        assertThat(profile.getSampleCount()).isEqualTo(3);
+        assertThat(proto.getNodeCount()).isEqualTo(3);
+        ProfileNode rootNode = proto.getNode(0);
+        assertThat(rootNode.getDepth()).isEqualTo(0);
+        assertThat(proto.getPackageName(rootNode.getPackageNameIndex())).isEqualTo("java.lang");
+        assertThat(proto.getClassName(rootNode.getClassNameIndex())).isEqualTo("Thread");
+        assertThat(rootNode.getLeafThreadState()).isEqualTo(LeafThreadState.NONE);
+        assertThat(rootNode.getSampleCount()).isEqualTo(3);
+        ProfileNode firstLeafNode = proto.getNode(1);
+        assertThat(firstLeafNode.getDepth()).isEqualTo(1);
+        assertThat(proto.getMethodName(firstLeafNode.getMethodNameIndex())).isEqualTo("one");
+        assertThat(firstLeafNode.getLeafThreadState()).isEqualTo(LeafThreadState.RUNNABLE);
+        assertThat(firstLeafNode.getSampleCount()).isEqualTo(2);
+        ProfileNode secondLeafNode = proto.getNode(2);
+        assertThat(secondLeafNode.getDepth()).isEqualTo(1);
+        assertThat(proto.getMethodName(secondLeafNode.getMethodNameIndex())).isEqualTo("two");
+        assertThat(secondLeafNode.getLeafThreadState()).isEqualTo(LeafThreadState.WAITING);
+        assertThat(secondLeafNode.getSampleCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRespectLimitAndMergeIntoProfile() {
+        // given
+        Profile profile = new Profile();
+        StackTraceElement run = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 1);
+        // when
+        for (int i = 0; i < 10; i++) {
+            profile.addStackTrace(threadInfo(Thread.State.RUNNABLE, run), 5);
+        }
+        Profile mergedProfile = new Profile();
+        mergedProfile.merge(profile);
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(5);
+        assertThat(mergedProfile.getSampleCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldMergeProfiles() {
+        // given
+        Profile profile1 = new Profile();
+        Profile profile2 = new Profile();
+        StackTraceElement run = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 1);
+        StackTraceElement one = new StackTraceElement("com.example.One", "one", "One.java", 2);
+        StackTraceElement two = new StackTraceElement("com.example.Two", "two", "Two.java", 3);
+        profile1.addStackTrace(threadInfo(Thread.State.RUNNABLE, one, run), 100);
+        profile2.addStackTrace(threadInfo(Thread.State.RUNNABLE, one, run), 100);
+        profile2.addStackTrace(threadInfo(Thread.State.WAITING, two, one, run), 100);
+        // when
+        Profile mergedProfile = new Profile();
+        mergedProfile.merge(profile1);
+        mergedProfile.merge(profile2);
+        // then
+        org.glowroot.wire.api.model.ProfileOuterClass.Profile proto = mergedProfile.toProto();
+        assertThat(mergedProfile.getSampleCount()).isEqualTo(3);
+        assertThat(proto.getNodeCount()).isEqualTo(4);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(3);
+        ProfileNode oneNode = proto.getNode(1);
+        assertThat(proto.getMethodName(oneNode.getMethodNameIndex())).isEqualTo("one");
+        assertThat(oneNode.getLeafThreadState()).isEqualTo(LeafThreadState.RUNNABLE);
+        assertThat(oneNode.getSampleCount()).isEqualTo(2);
+        ProfileNode oneParentNode = proto.getNode(2);
+        assertThat(proto.getMethodName(oneParentNode.getMethodNameIndex())).isEqualTo("one");
+        assertThat(oneParentNode.getLeafThreadState()).isEqualTo(LeafThreadState.NONE);
+        assertThat(oneParentNode.getSampleCount()).isEqualTo(1);
+        ProfileNode twoNode = proto.getNode(3);
+        assertThat(twoNode.getDepth()).isEqualTo(2);
+        assertThat(proto.getMethodName(twoNode.getMethodNameIndex())).isEqualTo("two");
+        assertThat(twoNode.getSampleCount()).isEqualTo(1);
+    }
+
+    private static ThreadInfo threadInfo(Thread.State threadState,
+            StackTraceElement... stackTrace) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        when(threadInfo.getStackTrace()).thenReturn(stackTrace);
+        return threadInfo;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.StackFrameTable.Frame;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StackFrameTableTest {
+
+    @Test
+    public void shouldInternFrames() {
+        // given
+        StackFrameTable stackFrameTable = new StackFrameTable(10);
+        // when
+        Frame frame1 = stackFrameTable.getFrame(element("one"));
+        Frame frame2 = stackFrameTable.getFrame(element("one"));
+        // then
+        assertThat(frame1).isSameAs(frame2);
+        assertThat(frame1.getPackageName()).isEqualTo("com.example");
+        assertThat(frame1.getClassName()).isEqualTo("Example");
+        assertThat(stackFrameTable.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldClearWhenLimitExceeded() {
+        // given
+        StackFrameTable stackFrameTable = new StackFrameTable(2);
+        Frame frame1 = stackFrameTable.getFrame(element("one"));
+        stackFrameTable.getFrame(element("two"));
+        // when
+        stackFrameTable.getFrame(element("three"));
+        Frame frame1AfterClear = stackFrameTable.getFrame(element("one"));
+        // then
+        assertThat(stackFrameTable.size()).isEqualTo(2);
+        assertThat(frame1AfterClear).isNotSameAs(frame1);
+        assertThat(frame1AfterClear).isEqualTo(frame1);
+    }
+
+    private static StackTraceElement element(String methodName) {
+        return new StackTraceElement("com.example.Example", methodName, "Example.java", 1);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadStatsComponentTest {
+
+    @Test
+    public void shouldOnlyTrackCaptureCostWhenEnabled() {
+        // given
+        long captureCount = ThreadStatsComponent.getCaptureCount();
+        long captureNanos = ThreadStatsComponent.getCaptureNanos();
+        // when
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        threadStatsComponent.onComplete();
+        // then
+        if (ThreadStatsCaptureCost.ENABLED) {
+            assertThat(ThreadStatsComponent.getCaptureCount()).isEqualTo(captureCount + 2);
+            assertThat(ThreadStatsComponent.getCaptureNanos())
+                    .isGreaterThanOrEqualTo(captureNanos);
+        } else {
+            assertThat(ThreadStatsComponent.getCaptureCount()).isEqualTo(captureCount);
+            assertThat(ThreadStatsComponent.getCaptureNanos()).isEqualTo(captureNanos);
+        }
+    }
+
+    @Test
+    public void shouldReturnSameThreadStatsAfterComplete() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        threadStatsComponent.onComplete();
+        // when
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        // then
+        assertThat(threadStatsComponent.getThreadStats()).isSameAs(threadStats);
+        assertThat(threadStats.getTotalAllocatedBytes()).isEqualTo(-1);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassHeaderReaderTest {
+
+    @Test
+    public void shouldReadSameHeaderAsClassReader() throws Exception {
+        assertSameHeaderAsClassReader(Object.class);
+        assertSameHeaderAsClassReader(String.class);
+        assertSameHeaderAsClassReader(Runnable.class);
+        assertSameHeaderAsClassReader(HashMap.class);
+        assertSameHeaderAsClassReader(ClassHeaderReader.class);
+        assertSameHeaderAsClassReader(ClassHeaderReaderTest.class);
+    }
+
+    @Test
+    public void shouldNotReadInvalidBytes() throws Exception {
+        assertThat(ClassHeaderReader.readHeader(new byte[] {1, 2, 3, 4})).isNull();
+        assertThat(ClassHeaderReader.readHeader(new byte[0])).isNull();
+    }
+
+    @Test
+    public void shouldNotReadTruncatedBytes() throws Exception {
+        byte[] bytes = getBytes(String.class);
+        for (int length = 0; length < 200; length++) {
+            assertThat(ClassHeaderReader.readHeader(Arrays.copyOf(bytes, length))).isNull();
+        }
+    }
+
+    private static void assertSameHeaderAsClassReader(Class<?> clazz) throws Exception {
+        byte[] bytes = getBytes(clazz);
+        ThinClassVisitor cv = new ThinClassVisitor();
+        new ClassReader(bytes).accept(cv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ThinClass expected = cv.getThinClass();
+        ThinClass thinClass = ClassHeaderReader.readHeader(bytes);
+        assertThat(thinClass).isNotNull();
+        assertThat(thinClass.access()).isEqualTo(expected.access() & 0xFFFF);
+        assertThat(thinClass.name()).isEqualTo(expected.name());
+        assertThat(thinClass.superName()).isEqualTo(expected.superName());
+        assertThat(thinClass.interfaces()).isEqualTo(expected.interfaces());
+        assertThat(thinClass.annotations()).isEmpty();
+        assertThat(thinClass.nonBridgeMethods()).isEmpty();
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        String resourceName = clazz.getName().replace('.', '/') + ".class";
+        InputStream in = ClassLoader.getSystemResourceAsStream(resourceName);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.InputStream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassPrefilterTest {
+
+    @Test
+    public void shouldMatchClassAnnotationOnlyAdviceFromConstantPool() throws Exception {
+        // given
+        ClassPrefilter classPrefilter = ClassPrefilter.create(
+                ImmutableList.of(new AdviceBuilder(BasicAnnotationBasedAdvice.class).build()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        boolean annotatedMatch = isPossibleMatch(classPrefilter, BasicMisc.class);
+        boolean unannotatedMatch = isPossibleMatch(classPrefilter, String.class);
+
+        // then
+        assertThat(annotatedMatch).isTrue();
+        assertThat(unannotatedMatch).isFalse();
+    }
+
+    @Test
+    public void shouldMatchClassAnnotationOnlyAdviceForUnreadableConstantPool() throws Exception {
+        // given
+        ClassPrefilter classPrefilter = ClassPrefilter.create(
+                ImmutableList.of(new AdviceBuilder(BasicAnnotationBasedAdvice.class).build()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        boolean match = classPrefilter.isPossibleMatch("java.lang.String", new byte[] {1, 2, 3});
+
+        // then
+        assertThat(match).isTrue();
+    }
+
+    @Test
+    public void shouldMatchClassName() throws Exception {
+        // given
+        ClassPrefilter classPrefilter = ClassPrefilter.create(
+                ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        boolean match = isPossibleMatch(classPrefilter, Misc.class);
+        boolean nonMatch = isPossibleMatch(classPrefilter, BasicMisc.class);
+
+        // then
+        assertThat(match).isTrue();
+        assertThat(nonMatch).isFalse();
+    }
+
+    private static boolean isPossibleMatch(ClassPrefilter classPrefilter, Class<?> clazz)
+            throws Exception {
+        return classPrefilter.isPossibleMatch(clazz.getName(), getBytes(clazz));
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        String resourceName = clazz.getName().replace('.', '/') + ".class";
+        InputStream in = ClassLoader.getSystemResourceAsStream(resourceName);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
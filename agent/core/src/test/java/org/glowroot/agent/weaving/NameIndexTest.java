@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameIndexTest {
+
+    @Test
+    public void shouldMatchExactNames() {
+        // given
+        NameIndex nameIndex = create("com.example.A", "com.example.B", "com.example.A");
+        // then
+        assertThat(getMatches(nameIndex, "com.example.A")).isEqualTo(bitSet(0, 2));
+        assertThat(getMatches(nameIndex, "com.example.B")).isEqualTo(bitSet(1));
+        assertThat(getMatches(nameIndex, "com.example.C")).isEqualTo(bitSet());
+        assertThat(nameIndex.hasMatch("com.example.A")).isTrue();
+        assertThat(nameIndex.hasMatch("com.example.C")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchEmptyNameToAnyName() {
+        // given
+        NameIndex nameIndex = create("com.example.A", "");
+        // then
+        assertThat(getMatches(nameIndex, "com.example.A")).isEqualTo(bitSet(0, 1));
+        assertThat(getMatches(nameIndex, "com.example.C")).isEqualTo(bitSet(1));
+        assertThat(nameIndex.hasMatch("com.example.C")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchPatterns() {
+        // given
+        NameIndex nameIndex = create("com.example.A", "/com\\.example\\..*/",
+                "/com\\.other\\..*/", "/com\\.example\\..*/");
+        // then
+        assertThat(getMatches(nameIndex, "com.example.A")).isEqualTo(bitSet(0, 1, 3));
+        assertThat(getMatches(nameIndex, "com.other.A")).isEqualTo(bitSet(2));
+        assertThat(getMatches(nameIndex, "com.third.A")).isEqualTo(bitSet());
+        assertThat(nameIndex.hasMatch("com.other.A")).isTrue();
+        assertThat(nameIndex.hasMatch("com.third.A")).isFalse();
+    }
+
+    @Test
+    public void shouldNotMatchPatternsWhenExcluded() {
+        // given
+        NameIndex nameIndex = create("<init>", "/.*/", "");
+        // when
+        BitSet matches = new BitSet();
+        nameIndex.addMatches("<init>", false, matches);
+        // then
+        assertThat(matches).isEqualTo(bitSet(0, 2));
+    }
+
+    @Test
+    public void shouldMatchPatternsWithBackReferences() {
+        // given
+        NameIndex nameIndex = create("/(a)\\1/", "/(b)\\1/", "/c+/");
+        // then
+        assertThat(getMatches(nameIndex, "aa")).isEqualTo(bitSet(0));
+        assertThat(getMatches(nameIndex, "bb")).isEqualTo(bitSet(1));
+        assertThat(getMatches(nameIndex, "ccc")).isEqualTo(bitSet(2));
+        assertThat(getMatches(nameIndex, "ab")).isEqualTo(bitSet());
+        assertThat(nameIndex.hasMatch("bb")).isTrue();
+        assertThat(nameIndex.hasMatch("ab")).isFalse();
+    }
+
+    // names surrounded by slashes are treated as patterns
+    private static NameIndex create(String... namesOrPatterns) {
+        List<String> names = Lists.newArrayList();
+        List</*@Nullable*/ Pattern> patterns = Lists.newArrayList();
+        for (String nameOrPattern : namesOrPatterns) {
+            if (nameOrPattern.startsWith("/")) {
+                names.add("");
+                patterns.add(Pattern.compile(
+                        nameOrPattern.substring(1, nameOrPattern.length() - 1)));
+            } else {
+                names.add(nameOrPattern);
+                patterns.add(null);
+            }
+        }
+        return NameIndex.create(names, patterns);
+    }
+
+    private static BitSet getMatches(NameIndex nameIndex, String name) {
+        BitSet matches = new BitSet();
+        nameIndex.addMatches(name, true, matches);
+        return matches;
+    }
+
+    private static BitSet bitSet(int... positions) {
+        BitSet bitSet = new BitSet();
+        for (int position : positions) {
+            bitSet.set(position);
+        }
+        return bitSet;
+    }
+}
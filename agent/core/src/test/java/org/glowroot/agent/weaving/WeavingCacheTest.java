@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final byte[] CLASS_BYTES = new byte[] {1, 2, 3, 4};
+
+    private final List<Advice> advisors = ImmutableList.of();
+
+    private File file;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".cache");
+        file.delete();
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadAnalyzedClassAfterRestart() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        ByteBuffer key = getKey(weavingCache);
+        weavingCache.putAnalyzedClass(key, createAnalyzedClass());
+        // when
+        weavingCache = newWeavingCache("1.0");
+        AnalyzedClass analyzedClass = weavingCache.getAnalyzedClass(getKey(weavingCache));
+        // then
+        assertThat(analyzedClass).isEqualTo(createAnalyzedClass());
+        // entries are only used once
+        assertThat(weavingCache.getAnalyzedClass(getKey(weavingCache))).isNull();
+    }
+
+    @Test
+    public void shouldNotReadAnalyzedClassAfterFingerprintChange() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        weavingCache.putAnalyzedClass(getKey(weavingCache), createAnalyzedClass());
+        // when
+        weavingCache = newWeavingCache("1.1");
+        // then
+        assertThat(weavingCache.getAnalyzedClass(getKey(weavingCache))).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnKeyForDifferentAdvisors() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        // when
+        ByteBuffer key = weavingCache.getKey(CLASS_BYTES, getClass().getClassLoader(), null,
+                ImmutableList.<Advice>of());
+        // then
+        assertThat(key).isNull();
+    }
+
+    @Test
+    public void shouldUseDifferentKeysForDifferentClassLoaders() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        // when
+        ByteBuffer key1 = weavingCache.getKey(CLASS_BYTES, null, null, advisors);
+        ByteBuffer key2 = getKey(weavingCache);
+        // then
+        assertThat(key1).isNotEqualTo(key2);
+    }
+
+    @Test
+    public void shouldIgnoreTruncatedEntry() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        weavingCache.putAnalyzedClass(getKey(weavingCache), createAnalyzedClass());
+        weavingCache.putAnalyzedClass(
+                weavingCache.getKey(CLASS_BYTES, null, null, advisors), createAnalyzedClass());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        // when
+        weavingCache = newWeavingCache("1.0");
+        // then
+        assertThat(weavingCache.getAnalyzedClass(getKey(weavingCache))).isNotNull();
+        assertThat(weavingCache.getAnalyzedClass(
+                weavingCache.getKey(CLASS_BYTES, null, null, advisors))).isNull();
+    }
+
+    private WeavingCache newWeavingCache(String version) throws Exception {
+        return new WeavingCache(file, advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), version);
+    }
+
+    private ByteBuffer getKey(WeavingCache weavingCache) {
+        ByteBuffer key =
+                weavingCache.getKey(CLASS_BYTES, getClass().getClassLoader(), null, advisors);
+        assertThat(key).isNotNull();
+        return key;
+    }
+
+    private static AnalyzedClass createAnalyzedClass() {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("org.example.Abc")
+                .superName("org.example.Xyz")
+                .addInterfaceNames("org.example.Iface")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute")
+                        .addParameterTypes("java.lang.String", "int")
+                        .returnType("void")
+                        .modifiers(1)
+                        .signature(null)
+                        .addExceptions("java.io.IOException")
+                        .build())
+                .build();
+    }
+}
@@ -16,7 +16,6 @@
 package org.glowroot.agent.it.harness.impl;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -26,7 +25,6 @@ import java.util.concurrent.atomic.AtomicLong;
 import com.google.common.base.Stopwatch;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.Server;
 import io.grpc.netty.NettyServerBuilder;
@@ -146,7 +144,9 @@ class GrpcServerWrapper {
         public void collectInit(InitMessage request,
                 StreamObserver<InitResponse> responseObserver) {
             agentConfig = request.getAgentConfig();
-            responseObserver.onNext(InitResponse.getDefaultInstance());
+            responseObserver.onNext(InitResponse.newBuilder()
+                    .setTraceEntryMessagesSupported(true)
+                    .build());
             responseObserver.onCompleted();
         }
 
@@ -177,19 +177,29 @@ class GrpcServerWrapper {
                 final StreamObserver<EmptyMessage> responseObserver) {
             return new StreamObserver<TraceStreamMessage>() {
 
-                private List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
-                private @MonotonicNonNull Trace trace;
+                private final Trace.Builder trace = Trace.newBuilder();
 
                 @Override
                 public void onNext(TraceStreamMessage value) {
                     switch (value.getMessageCase()) {
                         case HEADER:
+                            trace.setId(value.getHeader().getTraceId())
+                                    .setUpdate(value.getHeader().getUpdate());
+                            break;
+                        case ENTRY:
+                            trace.addEntry(value.getEntry());
                             break;
                         case SHARED_QUERY_TEXT:
-                            sharedQueryTexts.add(value.getSharedQueryText());
+                            trace.addSharedQueryText(value.getSharedQueryText());
+                            break;
+                        case MAIN_THREAD_PROFILE:
+                            trace.setMainThreadProfile(value.getMainThreadProfile());
+                            break;
+                        case AUX_THREAD_PROFILE:
+                            trace.setAuxThreadProfile(value.getAuxThreadProfile());
                             break;
-                        case TRACE:
-                            trace = value.getTrace();
+                        case TRACE_HEADER:
+                            trace.setHeader(value.getTraceHeader());
                             break;
                         default:
                             throw new RuntimeException(
@@ -204,11 +214,9 @@ class GrpcServerWrapper {
 
                 @Override
                 public void onCompleted() {
-                    checkNotNull(trace);
+                    checkState(trace.hasHeader());
                     try {
-                        collector.collectTrace(trace.toBuilder()
-                                .addAllSharedQueryText(sharedQueryTexts)
-                                .build());
+                        collector.collectTrace(trace.build());
                     } catch (Throwable t) {
                         responseObserver.onError(t);
                         return;
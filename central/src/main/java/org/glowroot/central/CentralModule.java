@@ -62,6 +62,7 @@ import org.glowroot.central.repo.TransactionTypeDao;
 import org.glowroot.central.repo.TriggeredAlertDao;
 import org.glowroot.central.repo.UserDao;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.UnloggedBatcher;
 import org.glowroot.common.config.ImmutableWebConfig;
 import org.glowroot.common.config.WebConfig;
 import org.glowroot.common.live.LiveAggregateRepository.LiveAggregateRepositoryNop;
@@ -174,8 +175,11 @@ class CentralModule {
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-            AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+            UnloggedBatcher unloggedBatcher = new UnloggedBatcher(session,
+                    centralConfig.cassandraMaxBatchSize(),
+                    centralConfig.cassandraMaxConcurrentBatches());
+            AggregateDao aggregateDao = new AggregateDao(session, unloggedBatcher, agentDao,
+                    transactionTypeDao, fullQueryTextDao, configRepository, clock);
             TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
                     fullQueryTextDao, configRepository, clock);
             GaugeValueDao gaugeValueDao =
@@ -203,7 +207,9 @@ class CentralModule {
                 }
             });
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
-                    configRepository, alertingService, downstreamService, clock);
+                    configRepository, alertingService, downstreamService, cluster, clock,
+                    centralConfig.rollupThreads(),
+                    centralConfig.rollupMaxConcurrentPerCassandraNode());
 
             uiModule = new CreateUiModuleBuilder()
                     .embedded(false)
@@ -300,7 +306,7 @@ class CentralModule {
         throw lastException;
     }
 
-    void close() throws InterruptedException {
+    void close() throws Exception {
         uiModule.close(false);
         server.close();
         rollupService.close();
@@ -343,6 +349,16 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraKeyspace)) {
             builder.cassandraKeyspace(cassandraKeyspace);
         }
+        String cassandraMaxBatchSizeText = props.getProperty("cassandra.maxBatchSize");
+        if (!Strings.isNullOrEmpty(cassandraMaxBatchSizeText)) {
+            builder.cassandraMaxBatchSize(Integer.parseInt(cassandraMaxBatchSizeText));
+        }
+        String cassandraMaxConcurrentBatchesText =
+                props.getProperty("cassandra.maxConcurrentBatches");
+        if (!Strings.isNullOrEmpty(cassandraMaxConcurrentBatchesText)) {
+            builder.cassandraMaxConcurrentBatches(
+                    Integer.parseInt(cassandraMaxConcurrentBatchesText));
+        }
         String grpcBindAddress = props.getProperty("grpc.bindAddress");
         if (!Strings.isNullOrEmpty(grpcBindAddress)) {
             builder.grpcBindAddress(grpcBindAddress);
@@ -351,6 +367,16 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(grpcPortText)) {
             builder.grpcPort(Integer.parseInt(grpcPortText));
         }
+        String rollupThreadsText = props.getProperty("rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreadsText)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreadsText));
+        }
+        String rollupMaxConcurrentPerCassandraNodeText =
+                props.getProperty("rollup.maxConcurrentPerCassandraNode");
+        if (!Strings.isNullOrEmpty(rollupMaxConcurrentPerCassandraNodeText)) {
+            builder.rollupMaxConcurrentPerCassandraNode(
+                    Integer.parseInt(rollupMaxConcurrentPerCassandraNodeText));
+        }
         String uiBindAddress = props.getProperty("ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddressOverride(uiBindAddress);
@@ -374,6 +400,14 @@ class CentralModule {
             return "glowroot";
         }
         @Value.Default
+        int cassandraMaxBatchSize() {
+            return 20;
+        }
+        @Value.Default
+        int cassandraMaxConcurrentBatches() {
+            return 256;
+        }
+        @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
         }
@@ -381,6 +415,14 @@ class CentralModule {
         int grpcPort() {
             return 8181;
         }
+        @Value.Default
+        int rollupThreads() {
+            return 8;
+        }
+        @Value.Default
+        int rollupMaxConcurrentPerCassandraNode() {
+            return 4;
+        }
         abstract @Nullable String uiBindAddressOverride();
         abstract @Nullable Integer uiPortOverride();
     }
@@ -23,6 +23,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
@@ -39,6 +41,7 @@ import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.repo.TraceDao.EntryChunkWriter;
 import org.glowroot.common.config.SmtpConfig;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.util.AlertingService;
@@ -70,6 +73,7 @@ import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 class GrpcServer {
 
@@ -171,7 +175,9 @@ class GrpcServer {
             logger.info("agent connected: {}, version {}", request.getAgentId(),
                     request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
             InitResponse.Builder response = InitResponse.newBuilder()
-                    .setGlowrootCentralVersion(version);
+                    .setGlowrootCentralVersion(version)
+                    .setHistogramBucketCountsSupported(true)
+                    .setTraceEntryMessagesSupported(true);
             if (!updatedAgentConfig.equals(request.getAgentConfig())) {
                 response.setAgentConfig(updatedAgentConfig);
             }
@@ -320,20 +326,55 @@ class GrpcServer {
             return new StreamObserver<TraceStreamMessage>() {
 
                 private @MonotonicNonNull TraceStreamHeader header;
-                private List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
-                private @MonotonicNonNull Trace trace;
+                // entries are not added to this builder, but are instead stored as they arrive
+                // using the entry chunk writer (except for the legacy single trace message)
+                private final Trace.Builder trace = Trace.newBuilder();
+                private @Nullable EntryChunkWriter entryChunkWriter;
+                private boolean failed;
 
                 @Override
                 public void onNext(TraceStreamMessage value) {
+                    if (failed) {
+                        return;
+                    }
+                    try {
+                        onNextInternal(value);
+                    } catch (Throwable t) {
+                        onFailure(t);
+                    }
+                }
+
+                private void onNextInternal(TraceStreamMessage value) throws Exception {
                     switch (value.getMessageCase()) {
                         case HEADER:
                             header = value.getHeader();
+                            trace.setId(header.getTraceId())
+                                    .setUpdate(header.getUpdate());
                             break;
                         case SHARED_QUERY_TEXT:
-                            sharedQueryTexts.add(value.getSharedQueryText());
+                            trace.addSharedQueryText(value.getSharedQueryText());
                             break;
                         case TRACE:
-                            trace = value.getTrace();
+                            // agents prior to 0.9.8 send the whole trace (minus shared query
+                            // texts) in a single message
+                            trace.mergeFrom(value.getTrace());
+                            break;
+                        case ENTRY:
+                            if (entryChunkWriter == null) {
+                                checkNotNull(header);
+                                entryChunkWriter = traceDao.createEntryChunkWriter(
+                                        header.getAgentId(), header.getTraceId());
+                            }
+                            entryChunkWriter.addEntry(value.getEntry());
+                            break;
+                        case MAIN_THREAD_PROFILE:
+                            trace.setMainThreadProfile(value.getMainThreadProfile());
+                            break;
+                        case AUX_THREAD_PROFILE:
+                            trace.setAuxThreadProfile(value.getAuxThreadProfile());
+                            break;
+                        case TRACE_HEADER:
+                            trace.setHeader(value.getTraceHeader());
                             break;
                         default:
                             throw new RuntimeException(
@@ -354,20 +395,33 @@ class GrpcServer {
                         traceHeadline = "Collect trace: {{this.header.agentId}}", timer = "trace")
                 @Override
                 public void onCompleted() {
+                    if (failed) {
+                        return;
+                    }
                     checkNotNull(header);
-                    checkNotNull(trace);
+                    checkState(trace.hasHeader());
                     try {
-                        traceDao.store(header.getAgentId(), trace.toBuilder()
-                                .addAllSharedQueryText(sharedQueryTexts)
-                                .build());
+                        if (entryChunkWriter != null) {
+                            entryChunkWriter.finish();
+                        }
+                        traceDao.store(header.getAgentId(), trace.build());
                     } catch (Throwable t) {
-                        logger.error("{} - {}", header.getAgentId(), t.getMessage(), t);
-                        responseObserver.onError(t);
+                        onFailure(t);
                         return;
                     }
                     responseObserver.onNext(EmptyMessage.getDefaultInstance());
                     responseObserver.onCompleted();
                 }
+
+                private void onFailure(Throwable t) {
+                    if (header == null) {
+                        logger.error(t.getMessage(), t);
+                    } else {
+                        logger.error("{} - {}", header.getAgentId(), t.getMessage(), t);
+                    }
+                    failed = true;
+                    responseObserver.onError(t);
+                }
             };
         }
 
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+public interface RollupLagMXBean {
+
+    // age of the oldest pending "needs rollup" record across all agent rollups (this includes the
+    // rollup interval itself, since data is not rolled up until its interval has passed)
+    long getMaxLagMillis();
+
+    // number of agent rollups with pending "needs rollup" records
+    int getPendingAgentRollupCount();
+}
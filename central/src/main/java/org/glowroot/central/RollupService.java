@@ -16,13 +16,26 @@
 package org.glowroot.central;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.Nullable;
+import javax.management.ObjectName;
 
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,33 +63,63 @@ public class RollupService implements Runnable {
     private final ConfigRepository configRepository;
     private final AlertingService alertingService;
     private final DownstreamServiceImpl downstreamService;
+    private final Cluster cluster;
     private final Clock clock;
 
+    private final int rollupThreads;
+    private final int maxConcurrentPerCassandraNode;
+
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    // indexed by rollup level
+    private final ImmutableList<RollupLag> rollupLags;
 
     private volatile boolean stopped;
 
     public RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
             ConfigRepository configRepository, AlertingService alertingService,
-            DownstreamServiceImpl downstreamService, Clock clock) {
+            DownstreamServiceImpl downstreamService, Cluster cluster, Clock clock,
+            int rollupThreads, int maxConcurrentPerCassandraNode) throws Exception {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
+        this.cluster = cluster;
         this.clock = clock;
+        this.rollupThreads = rollupThreads;
+        this.maxConcurrentPerCassandraNode = maxConcurrentPerCassandraNode;
+        List<RollupLag> rollupLags = Lists.newArrayList();
+        for (int i = 0; i < configRepository.getRollupConfigs().size(); i++) {
+            RollupLag rollupLag = new RollupLag();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(rollupLag,
+                    getRollupLagObjectName(i));
+            rollupLags.add(rollupLag);
+        }
+        this.rollupLags = ImmutableList.copyOf(rollupLags);
+        workerExecutor = Executors.newFixedThreadPool(rollupThreads, new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("Glowroot-Rollup-Worker-%d").build());
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
 
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
         stopped = true;
         // shutdownNow() is needed here to send interrupt to RollupService thread
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        for (int i = 0; i < rollupLags.size(); i++) {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(getRollupLagObjectName(i));
+        }
     }
 
     @Override
@@ -89,6 +132,8 @@ public class RollupService implements Runnable {
                 if (stopped) {
                     return;
                 }
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
             }
         }
     }
@@ -96,68 +141,139 @@ public class RollupService implements Runnable {
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws InterruptedException {
+    private void runInternal() throws Exception {
         Glowroot.setOuterTransaction();
+        List<PendingRollup> pendingRollups = Lists.newArrayList();
         for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            checkTransactionAlerts(agentRollup);
-            checkGaugeAlerts(agentRollup);
-            updateAgentConfigIfConnectedAndNeeded(agentRollup);
+            addPendingRollups(agentRollup, null, 0, pendingRollups);
+        }
+        int parallelism = getParallelism();
+        readOldestNeedsRollupCaptureTimes(pendingRollups, parallelism);
+        updateRollupLags(pendingRollups, clock.currentTimeMillis());
+
+        // child agent rollups must be rolled up before their parent, since the parent is rolled up
+        // from the children, so the hierarchy is processed one depth at a time, deepest first
+        int maxDepth = 0;
+        for (PendingRollup pendingRollup : pendingRollups) {
+            maxDepth = Math.max(maxDepth, pendingRollup.depth);
+        }
+        Set<String> failedGaugeRollups = Sets.newConcurrentHashSet();
+        for (int depth = maxDepth; depth >= 0; depth--) {
+            List<PendingRollup> pendingRollupsAtDepth = Lists.newArrayList();
+            for (PendingRollup pendingRollup : pendingRollups) {
+                if (pendingRollup.depth == depth) {
+                    pendingRollupsAtDepth.add(pendingRollup);
+                }
+            }
+            // agent rollups that are the furthest behind go first
+            Collections.sort(pendingRollupsAtDepth, new OldestNeedsRollupFirst());
+            List<Runnable> tasks = Lists.newArrayList();
+            for (PendingRollup pendingRollup : pendingRollupsAtDepth) {
+                tasks.add(new RollupTask(pendingRollup, failedGaugeRollups));
+            }
+            runAll(tasks, parallelism);
         }
     }
 
-    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupAggregates(childAgentRollup, agentRollup.id());
+    // the number of agent rollups processed concurrently is bounded both by the worker pool and
+    // by the number of cassandra nodes available to absorb the load
+    private int getParallelism() {
+        int upHostCount = 0;
+        for (Host host : cluster.getMetadata().getAllHosts()) {
+            if (host.isUp()) {
+                upHostCount++;
+            }
         }
-        try {
-            aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
-                    agentRollup.children().isEmpty());
-        } catch (InterruptedException e) {
-            // shutdown requested
-            throw e;
-        } catch (Exception e) {
-            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+        return Math.max(1,
+                Math.min(rollupThreads, maxConcurrentPerCassandraNode * Math.max(1, upHostCount)));
+    }
+
+    private void readOldestNeedsRollupCaptureTimes(List<PendingRollup> pendingRollups,
+            int parallelism) throws Exception {
+        List<Runnable> tasks = Lists.newArrayList();
+        for (final PendingRollup pendingRollup : pendingRollups) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pendingRollup.oldestNeedsRollupCaptureTimes = aggregateDao
+                                .readOldestNeedsRollupCaptureTimes(pendingRollup.agentRollup.id());
+                    } catch (Exception e) {
+                        logger.error("{} - {}", pendingRollup.agentRollup.id(), e.getMessage(),
+                                e);
+                    }
+                }
+            });
         }
+        runAll(tasks, parallelism);
     }
 
-    // returns true on success, false on failure
-    private boolean rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
-        // important to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup, agentRollup.id());
-            success = success && childSuccess;
+    private void updateRollupLags(List<PendingRollup> pendingRollups, long currentTimeMillis) {
+        for (int rollupLevel = 0; rollupLevel < rollupLags.size(); rollupLevel++) {
+            long maxLagMillis = 0;
+            int pendingAgentRollupCount = 0;
+            for (PendingRollup pendingRollup : pendingRollups) {
+                List</*@Nullable*/ Long> captureTimes = pendingRollup.oldestNeedsRollupCaptureTimes;
+                if (rollupLevel >= captureTimes.size()) {
+                    continue;
+                }
+                Long captureTime = captureTimes.get(rollupLevel);
+                if (captureTime != null) {
+                    maxLagMillis = Math.max(maxLagMillis, currentTimeMillis - captureTime);
+                    pendingAgentRollupCount++;
+                }
+            }
+            rollupLags.get(rollupLevel).update(maxLagMillis, pendingAgentRollupCount);
         }
-        if (!success) {
-            // also important to not roll up parent if exception occurs while rolling up a child,
-            // since gauge values initial roll up from children is done on the 1-min aggregates of
-            // the children
-            return false;
+    }
+
+    private void runAll(List<Runnable> tasks, int parallelism) throws Exception {
+        final Semaphore semaphore = new Semaphore(parallelism);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (final Runnable task : tasks) {
+            semaphore.acquire();
+            futures.add(workerExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        semaphore.release();
+                    }
+                }
+            }));
         }
-        try {
-            gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
-                    agentRollup.children().isEmpty());
-            return true;
-        } catch (InterruptedException e) {
-            // shutdown requested
-            throw e;
-        } catch (Exception e) {
-            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
-            return false;
+        for (Future<?> future : futures) {
+            future.get();
         }
     }
 
-    private void checkTransactionAlerts(AgentRollup agentRollup) throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkTransactionAlerts(childAgentRollup);
+    @Instrumentation.Transaction(transactionType = "Background", transactionName = "Rollup",
+            traceHeadline = "Rollup: {{0}}", timer = "rollup")
+    private void rollup(String agentRollupId, AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, Set<String> failedGaugeRollups)
+            throws InterruptedException {
+        rollupAggregates(agentRollup, parentAgentRollupId);
+        rollupGauges(agentRollup, parentAgentRollupId, failedGaugeRollups);
+        checkTransactionAlerts(agentRollupId, clock.currentTimeMillis());
+        checkGaugeAlerts(agentRollupId, clock.currentTimeMillis());
+        if (agentRollup.children().isEmpty()) {
+            try {
+                downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollupId);
+            } catch (InterruptedException e) {
+                // shutdown requested
+                throw e;
+            } catch (Exception e) {
+                logger.error("{} - {}", agentRollupId, e.getMessage(), e);
+            }
         }
+    }
+
+    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
+            throws InterruptedException {
         try {
-            checkTransactionAlerts(agentRollup.id(), clock.currentTimeMillis());
+            aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
+                    agentRollup.children().isEmpty());
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
@@ -166,34 +282,26 @@ public class RollupService implements Runnable {
         }
     }
 
-    private void checkGaugeAlerts(AgentRollup agentRollup) throws InterruptedException {
+    private void rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+            Set<String> failedGaugeRollups) throws InterruptedException {
         for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkGaugeAlerts(childAgentRollup);
+            if (failedGaugeRollups.contains(childAgentRollup.id())) {
+                // important to not roll up parent if exception occurs while rolling up a child,
+                // since gauge values initial roll up from children is done on the 1-min aggregates
+                // of the children
+                failedGaugeRollups.add(agentRollup.id());
+                return;
+            }
         }
         try {
-            checkGaugeAlerts(agentRollup.id(), clock.currentTimeMillis());
+            gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
+                    agentRollup.children().isEmpty());
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
         } catch (Exception e) {
             logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
-        }
-    }
-
-    private void updateAgentConfigIfConnectedAndNeeded(AgentRollup agentRollup)
-            throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            updateAgentConfigIfConnectedAndNeeded(childAgentRollup);
-        }
-        if (agentRollup.children().isEmpty()) {
-            try {
-                downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollup.id());
-            } catch (InterruptedException e) {
-                // shutdown requested
-                throw e;
-            } catch (Exception e) {
-                logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
-            }
+            failedGaugeRollups.add(agentRollup.id());
         }
     }
 
@@ -268,6 +376,33 @@ public class RollupService implements Runnable {
         alertingService.checkGaugeAlert(agentId, alertConfig, captureTime, smtpConfig);
     }
 
+    private static void addPendingRollups(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, int depth, List<PendingRollup> pendingRollups) {
+        pendingRollups.add(new PendingRollup(agentRollup, parentAgentRollupId, depth));
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            addPendingRollups(childAgentRollup, agentRollup.id(), depth + 1, pendingRollups);
+        }
+    }
+
+    // the first element of the oldest needs rollup capture times is the roll up from child agent
+    // rollups (see AggregateDao.readOldestNeedsRollupCaptureTimes()), so it is labeled as such
+    private static ObjectName getRollupLagObjectName(int rollupLevel) throws Exception {
+        String level = rollupLevel == 0 ? "fromChild" : Integer.toString(rollupLevel);
+        return ObjectName.getInstance("org.glowroot.central:type=RollupLag,level=" + level);
+    }
+
+    @VisibleForTesting
+    static @Nullable Long getOldestCaptureTime(List</*@Nullable*/ Long> captureTimes) {
+        Long oldestCaptureTime = null;
+        for (Long captureTime : captureTimes) {
+            if (captureTime != null
+                    && (oldestCaptureTime == null || captureTime < oldestCaptureTime)) {
+                oldestCaptureTime = captureTime;
+            }
+        }
+        return oldestCaptureTime;
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
@@ -277,4 +412,62 @@ public class RollupService implements Runnable {
     private static <T> /*@Initialized*/ T castInitialized(/*@UnderInitialization*/ T obj) {
         return obj;
     }
+
+    private class RollupTask implements Runnable {
+
+        private final PendingRollup pendingRollup;
+        private final Set<String> failedGaugeRollups;
+
+        private RollupTask(PendingRollup pendingRollup, Set<String> failedGaugeRollups) {
+            this.pendingRollup = pendingRollup;
+            this.failedGaugeRollups = failedGaugeRollups;
+        }
+
+        @Override
+        public void run() {
+            AgentRollup agentRollup = pendingRollup.agentRollup;
+            try {
+                rollup(agentRollup.id(), agentRollup, pendingRollup.parentAgentRollupId,
+                        failedGaugeRollups);
+            } catch (InterruptedException e) {
+                // shutdown requested, restore interrupt status
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+            }
+        }
+    }
+
+    private static class PendingRollup {
+
+        private final AgentRollup agentRollup;
+        private final @Nullable String parentAgentRollupId;
+        private final int depth;
+
+        // indexed by rollup level
+        private volatile List</*@Nullable*/ Long> oldestNeedsRollupCaptureTimes =
+                ImmutableList.of();
+
+        private PendingRollup(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+                int depth) {
+            this.agentRollup = agentRollup;
+            this.parentAgentRollupId = parentAgentRollupId;
+            this.depth = depth;
+        }
+    }
+
+    private static class OldestNeedsRollupFirst implements Comparator<PendingRollup> {
+        @Override
+        public int compare(PendingRollup left, PendingRollup right) {
+            Long leftCaptureTime = getOldestCaptureTime(left.oldestNeedsRollupCaptureTimes);
+            Long rightCaptureTime = getOldestCaptureTime(right.oldestNeedsRollupCaptureTimes);
+            if (leftCaptureTime == null) {
+                return rightCaptureTime == null ? 0 : 1;
+            }
+            if (rightCaptureTime == null) {
+                return -1;
+            }
+            return leftCaptureTime.compareTo(rightCaptureTime);
+        }
+    }
 }
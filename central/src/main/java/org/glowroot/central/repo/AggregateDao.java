@@ -57,6 +57,7 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.UnloggedBatcher;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -88,6 +89,8 @@ import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.MutableThreadStats;
 import org.glowroot.common.repo.MutableTimer;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.ParallelMerger;
+import org.glowroot.common.repo.util.ParallelMerger.IntervalMerger;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Styles;
@@ -203,6 +206,10 @@ public class AggregateDao implements AggregateRepository {
             .fromInclusive(false)
             .build();
 
+    // number of rollup intervals read by each merge sub-query, so that the number of sub-queries
+    // (and the amount of data each sub-query reads) stays roughly the same at every rollup level
+    private static final int MERGE_SUB_QUERY_INTERVALS = 60;
+
     private final Session session;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -227,17 +234,25 @@ public class AggregateDao implements AggregateRepository {
 
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
+    private final List<PreparedStatement> readOldestNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
 
     private final PreparedStatement insertNeedsRollupFromChild;
     private final PreparedStatement readNeedsRollupFromChild;
+    private final PreparedStatement readOldestNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
     private final ImmutableList<Table> allTables;
 
-    public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock) {
+    private final UnloggedBatcher unloggedBatcher;
+
+    private final ParallelMerger parallelMerger = ParallelMerger.create();
+
+    public AggregateDao(Session session, UnloggedBatcher unloggedBatcher, AgentDao agentDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            ConfigRepository configRepository, Clock clock) {
         this.session = session;
+        this.unloggedBatcher = unloggedBatcher;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -357,6 +372,7 @@ public class AggregateDao implements AggregateRepository {
 
         List<PreparedStatement> insertNeedsRollup = Lists.newArrayList();
         List<PreparedStatement> readNeedsRollup = Lists.newArrayList();
+        List<PreparedStatement> readOldestNeedsRollup = Lists.newArrayList();
         List<PreparedStatement> deleteNeedsRollup = Lists.newArrayList();
         for (int i = 1; i < count; i++) {
             session.execute("create table if not exists aggregate_needs_rollup_" + i
@@ -371,11 +387,14 @@ public class AggregateDao implements AggregateRepository {
                     + " (?, ?, ?, ?) using TTL ?"));
             readNeedsRollup.add(session.prepare("select capture_time, uniqueness, transaction_types"
                     + " from aggregate_needs_rollup_" + i + " where agent_rollup = ?"));
+            readOldestNeedsRollup.add(session.prepare("select capture_time from"
+                    + " aggregate_needs_rollup_" + i + " where agent_rollup = ? limit 1"));
             deleteNeedsRollup.add(session.prepare("delete from aggregate_needs_rollup_" + i
                     + " where agent_rollup = ? and capture_time = ? and uniqueness = ?"));
         }
         this.insertNeedsRollup = insertNeedsRollup;
         this.readNeedsRollup = readNeedsRollup;
+        this.readOldestNeedsRollup = readOldestNeedsRollup;
         this.deleteNeedsRollup = deleteNeedsRollup;
 
         session.execute("create table if not exists aggregate_needs_rollup_from_child"
@@ -391,6 +410,8 @@ public class AggregateDao implements AggregateRepository {
         readNeedsRollupFromChild = session.prepare("select capture_time, uniqueness,"
                 + " child_agent_rollup, transaction_types from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ?");
+        readOldestNeedsRollupFromChild = session.prepare("select capture_time from"
+                + " aggregate_needs_rollup_from_child where agent_rollup = ? limit 1");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
     }
@@ -433,19 +454,24 @@ public class AggregateDao implements AggregateRepository {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // statements with small values (which make up the vast majority of the statements) are
+        // batched by partition key, see UnloggedBatcher
+        List<BoundStatement> batchableStatements = Lists.newArrayList();
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
             futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+                    overallAggregate, sharedQueryTexts, adjustedTTL, batchableStatements));
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
                 futures.addAll(storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                        batchableStatements));
             }
             futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
         }
+        futures.addAll(unloggedBatcher.execute(batchableStatements));
         futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
@@ -659,57 +685,65 @@ public class AggregateDao implements AggregateRepository {
 
     // query.from() is non-inclusive
     @Override
-    public void mergeQueriesInto(String agentRollupId, TransactionQuery query,
-            QueryCollector collector) throws IOException {
-        ResultSet results = executeQuery(agentRollupId, query, queryTable);
-        long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
-            String queryType = checkNotNull(row.getString(i++));
-            String truncatedText = checkNotNull(row.getString(i++));
-            // full_query_text_sha1 cannot be null since it is used in clustering key
-            String fullTextSha1 = Strings.emptyToNull(row.getString(i++));
-            double totalDurationNanos = row.getDouble(i++);
-            long executionCount = row.getLong(i++);
-            boolean hasTotalRows = !row.isNull(i);
-            long totalRows = row.getLong(i++);
-            collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
-                    executionCount, hasTotalRows, totalRows);
-            collector.updateLastCaptureTime(captureTime);
-        }
+    public void mergeQueriesInto(final String agentRollupId, TransactionQuery query,
+            QueryCollector collector) throws Exception {
+        parallelMerger.merge(getMergeSubQueries(query), collector,
+                new IntervalMerger<TransactionQuery, QueryCollector>() {
+                    @Override
+                    public QueryCollector newPartialCollector() {
+                        return new QueryCollector(Integer.MAX_VALUE);
+                    }
+                    @Override
+                    public void mergeInterval(TransactionQuery subQuery,
+                            QueryCollector collector) {
+                        mergeQueriesInto(collector,
+                                executeQuery(agentRollupId, subQuery, queryTable));
+                    }
+                    @Override
+                    public void mergePartialCollector(QueryCollector partialCollector,
+                            QueryCollector collector) {
+                        collector.mergeQueries(partialCollector);
+                        collector.updateLastCaptureTime(partialCollector.getLastCaptureTime());
+                    }
+                });
     }
 
     // query.from() is non-inclusive
     @Override
-    public void mergeServiceCallsInto(String agentRollupId, TransactionQuery query,
-            ServiceCallCollector collector) throws IOException {
-        ResultSet results = executeQuery(agentRollupId, query, serviceCallTable);
-        long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
-            String serviceCallType = checkNotNull(row.getString(i++));
-            String serviceCallText = checkNotNull(row.getString(i++));
-            double totalDurationNanos = row.getDouble(i++);
-            long executionCount = row.getLong(i++);
-            collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
-                    executionCount);
-            collector.updateLastCaptureTime(captureTime);
-        }
+    public void mergeServiceCallsInto(final String agentRollupId, TransactionQuery query,
+            ServiceCallCollector collector) throws Exception {
+        parallelMerger.merge(getMergeSubQueries(query), collector,
+                new IntervalMerger<TransactionQuery, ServiceCallCollector>() {
+                    @Override
+                    public ServiceCallCollector newPartialCollector() {
+                        return new ServiceCallCollector(Integer.MAX_VALUE, 0);
+                    }
+                    @Override
+                    public void mergeInterval(TransactionQuery subQuery,
+                            ServiceCallCollector collector) {
+                        mergeServiceCallsInto(collector,
+                                executeQuery(agentRollupId, subQuery, serviceCallTable));
+                    }
+                    @Override
+                    public void mergePartialCollector(ServiceCallCollector partialCollector,
+                            ServiceCallCollector collector) {
+                        collector.mergeServiceCalls(partialCollector);
+                        collector.updateLastCaptureTime(partialCollector.getLastCaptureTime());
+                    }
+                });
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeMainThreadProfilesInto(String agentRollupId, TransactionQuery query,
-            ProfileCollector collector) throws InvalidProtocolBufferException {
+            ProfileCollector collector) throws Exception {
         mergeProfilesInto(agentRollupId, query, mainThreadProfileTable, collector);
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeAuxThreadProfilesInto(String agentRollupId, TransactionQuery query,
-            ProfileCollector collector) throws InvalidProtocolBufferException {
+            ProfileCollector collector) throws Exception {
         mergeProfilesInto(agentRollupId, query, auxThreadProfileTable, collector);
     }
 
@@ -779,6 +813,35 @@ public class AggregateDao implements AggregateRepository {
         session.execute("truncate aggregate_needs_rollup_from_child");
     }
 
+    // returns the capture time of the oldest pending "needs rollup" record for each rollup level,
+    // or null for levels with nothing pending
+    //
+    // there is no aggregate_needs_rollup table for level 0 (level 0 aggregates are stored directly
+    // by the agents), so the first element is instead the oldest pending roll up from child agent
+    // rollups (aggregate_needs_rollup_from_child)
+    public List</*@Nullable*/ Long> readOldestNeedsRollupCaptureTimes(String agentRollupId)
+            throws Exception {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        BoundStatement boundStatement = readOldestNeedsRollupFromChild.bind();
+        boundStatement.setString(0, agentRollupId);
+        futures.add(session.executeAsync(boundStatement));
+        for (PreparedStatement readOldestNeedsRollupPS : readOldestNeedsRollup) {
+            boundStatement = readOldestNeedsRollupPS.bind();
+            boundStatement.setString(0, agentRollupId);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        List</*@Nullable*/ Long> captureTimes = Lists.newArrayList();
+        for (ResultSetFuture future : futures) {
+            Row row = future.get().one();
+            if (row == null) {
+                captureTimes.add(null);
+            } else {
+                captureTimes.add(checkNotNull(row.getTimestamp(0)).getTime());
+            }
+        }
+        return captureTimes;
+    }
+
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Rollup aggregates", traceHeadline = "Rollup aggregates: {{0}}",
             timer = "rollup aggregates")
@@ -1304,7 +1367,7 @@ public class AggregateDao implements AggregateRepository {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
             ByteBuffer bytes = checkNotNull(row.getBytes(2));
-            durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes)));
+            durationNanosHistogram.merge(bytes);
         }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
@@ -1414,7 +1477,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCalls(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+            throws IOException, InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, serviceCallTable);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -1423,7 +1486,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCallsFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, serviceCallTable);
         if (rows.isEmpty()) {
             return ImmutableList.of();
@@ -1432,7 +1496,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCallsFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         ServiceCallCollector collector =
                 new ServiceCallCollector(rollup.maxAggregateServiceCallsPerType(), 0);
         for (Row row : rows) {
@@ -1444,8 +1508,9 @@ public class AggregateDao implements AggregateRepository {
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
                     executionCount);
         }
-        return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+        return unloggedBatcher.execute(insertServiceCalls(collector.toProto(),
+                rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                query.transactionName(), query.to(), rollup.adjustedTTL()));
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
@@ -1519,7 +1584,7 @@ public class AggregateDao implements AggregateRepository {
     private List<ResultSetFuture> storeOverallAggregate(String agentRollupId,
             String transactionType,
             long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
-            int adjustedTTL) throws Exception {
+            int adjustedTTL, List<BoundStatement> batchableStatements) throws Exception {
 
         final int rollupLevel = 0;
 
@@ -1532,7 +1597,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batchableStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1543,7 +1608,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batchableStatements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1572,7 +1637,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batchableStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1596,16 +1661,18 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
-        futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
+        batchableStatements.addAll(insertQueries(aggregate.getQueriesByTypeList(),
+                sharedQueryTexts, rollupLevel, agentRollupId, transactionType, null, captureTime,
+                adjustedTTL));
+        batchableStatements.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(),
                 rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
         return futures;
     }
 
     private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL,
+            List<BoundStatement> batchableStatements) throws IOException {
 
         final int rollupLevel = 0;
 
@@ -1619,7 +1686,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batchableStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1631,7 +1698,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batchableStatements.add(boundStatement);
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -1663,7 +1730,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batchableStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1689,19 +1756,20 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
-        futures.addAll(
+        batchableStatements.addAll(
                 insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
                         agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
+        batchableStatements.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(),
+                rollupLevel, agentRollupId, transactionType, transactionName, captureTime,
+                adjustedTTL));
         return futures;
     }
 
-    private List<ResultSetFuture> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
+    private List<BoundStatement> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
             int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
             for (Aggregate.Query query : queriesByType.getQueryList()) {
                 Aggregate.SharedQueryText sharedQueryText =
@@ -1737,10 +1805,10 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
@@ -1785,11 +1853,11 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
-    private List<ResultSetFuture> insertServiceCalls(
+    private List<BoundStatement> insertServiceCalls(
             List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                 BoundStatement boundStatement;
@@ -1810,10 +1878,10 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
@@ -1938,9 +2006,66 @@ public class AggregateDao implements AggregateRepository {
         return session.execute(boundStatement).all();
     }
 
-    private void mergeProfilesInto(String agentRollupId, TransactionQuery query, Table profileTable,
-            ProfileCollector collector) throws InvalidProtocolBufferException {
-        ResultSet results = executeQuery(agentRollupId, query, profileTable);
+    private void mergeProfilesInto(final String agentRollupId, TransactionQuery query,
+            final Table profileTable, ProfileCollector collector) throws Exception {
+        parallelMerger.merge(getMergeSubQueries(query), collector,
+                new IntervalMerger<TransactionQuery, ProfileCollector>() {
+                    @Override
+                    public ProfileCollector newPartialCollector() {
+                        return new ProfileCollector();
+                    }
+                    @Override
+                    public void mergeInterval(TransactionQuery subQuery,
+                            ProfileCollector collector) throws InvalidProtocolBufferException {
+                        mergeProfilesInto(collector,
+                                executeQuery(agentRollupId, subQuery, profileTable));
+                    }
+                    @Override
+                    public void mergePartialCollector(ProfileCollector partialCollector,
+                            ProfileCollector collector) {
+                        collector.mergeProfile(partialCollector.getProfile().toProto());
+                        collector.updateLastCaptureTime(partialCollector.getLastCaptureTime());
+                    }
+                });
+    }
+
+    private static void mergeQueriesInto(QueryCollector collector, ResultSet results) {
+        long captureTime = Long.MIN_VALUE;
+        for (Row row : results) {
+            int i = 0;
+            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            String queryType = checkNotNull(row.getString(i++));
+            String truncatedText = checkNotNull(row.getString(i++));
+            // full_query_text_sha1 cannot be null since it is used in clustering key
+            String fullTextSha1 = Strings.emptyToNull(row.getString(i++));
+            double totalDurationNanos = row.getDouble(i++);
+            long executionCount = row.getLong(i++);
+            boolean hasTotalRows = !row.isNull(i);
+            long totalRows = row.getLong(i++);
+            collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
+                    executionCount, hasTotalRows, totalRows);
+            collector.updateLastCaptureTime(captureTime);
+        }
+    }
+
+    private static void mergeServiceCallsInto(ServiceCallCollector collector,
+            ResultSet results) {
+        long captureTime = Long.MIN_VALUE;
+        for (Row row : results) {
+            int i = 0;
+            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            String serviceCallType = checkNotNull(row.getString(i++));
+            String serviceCallText = checkNotNull(row.getString(i++));
+            double totalDurationNanos = row.getDouble(i++);
+            long executionCount = row.getLong(i++);
+            collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
+                    executionCount);
+            collector.updateLastCaptureTime(captureTime);
+        }
+    }
+
+    private static void mergeProfilesInto(ProfileCollector collector, ResultSet results)
+            throws InvalidProtocolBufferException {
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
             captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(0)).getTime());
@@ -1952,6 +2077,23 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // splits the query into consecutive sub-queries, so that the sub-queries can be read and merged
+    // in parallel (the sub-query boundaries only depend on the query, which keeps merged results
+    // deterministic)
+    private List<TransactionQuery> getMergeSubQueries(TransactionQuery query) {
+        long subQueryMillis = MERGE_SUB_QUERY_INTERVALS
+                * configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+        List<TransactionQuery> subQueries = Lists.newArrayList();
+        long from = query.from();
+        while (query.to() - from > subQueryMillis) {
+            long to = from + subQueryMillis;
+            subQueries.add(ImmutableTransactionQuery.copyOf(query).withFrom(from).withTo(to));
+            from = to;
+        }
+        subQueries.add(ImmutableTransactionQuery.copyOf(query).withFrom(from));
+        return subQueries;
+    }
+
     private List<Integer> getTTLs() {
         List<Integer> ttls = Lists.newArrayList();
         List<Integer> rollupExpirationHours =
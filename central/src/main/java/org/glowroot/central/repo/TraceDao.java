@@ -17,13 +17,13 @@ package org.glowroot.central.repo;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -34,11 +34,12 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 import com.google.protobuf.ByteString;
@@ -67,14 +68,33 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
-import org.glowroot.wire.api.model.Proto.StackTraceElement;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public class TraceDao implements TraceRepository {
 
+    // trace entries are stored in compressed chunks of this many entries, instead of one row per
+    // entry, which greatly reduces the number of inserts (and the per-row overhead of reading them
+    // back) for traces with many entries
+    private static final int ENTRIES_PER_CHUNK = 500;
+
+    // number of chunks fetched per page when reading trace entries, so that the chunks are decoded
+    // as they arrive instead of after the entire trace has been read
+    private static final int ENTRY_CHUNK_FETCH_SIZE = 4;
+
+    // slow and error points are clustered by power-of-two duration buckets (in milliseconds), with
+    // everything over 2^31 milliseconds (~25 days) falling into the last bucket
+    private static final int MAX_DURATION_BUCKET = 32;
+
+    // number of duration buckets queried concurrently when reading slow and error points, starting
+    // from the slowest bucket, so that reading can stop as soon as the top points are known without
+    // waiting on a round trip per bucket
+    private static final int DURATION_BUCKET_READ_AHEAD = 4;
+
     private final Session session;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -102,7 +122,7 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement insertTransactionErrorMessage;
 
     private final PreparedStatement insertHeader;
-    private final PreparedStatement insertEntry;
+    private final PreparedStatement insertEntryChunk;
     private final PreparedStatement insertSharedQueryText;
     private final PreparedStatement insertMainThreadProfile;
     private final PreparedStatement insertAuxThreadProfile;
@@ -114,10 +134,16 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
+    private final PreparedStatement readLegacyOverallSlowPoint;
+    private final PreparedStatement readLegacyTransactionSlowPoint;
+    private final PreparedStatement readLegacyOverallErrorPoint;
+    private final PreparedStatement readLegacyTransactionErrorPoint;
+
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
     private final PreparedStatement readHeader;
+    private final PreparedStatement readEntryChunks;
     private final PreparedStatement readEntries;
     private final PreparedStatement readSharedQueryTexts;
     private final PreparedStatement readMainThreadProfile;
@@ -174,6 +200,46 @@ public class TraceDao implements TraceRepository {
                 + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
                 expirationHours);
 
+        // the point tables below are clustered by duration bucket first, so that the slowest points
+        // (which are the ones shown when there are more points than the limit) can be read first,
+        // and so that the duration filter can be applied by only reading the matching buckets
+        //
+        // the point tables above are no longer written to, but are still read from for traces that
+        // were stored prior to the duration bucketed point tables, until they expire
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, duration_bucket int, capture_time timestamp,"
+                + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
+                + " error boolean, headline varchar, user varchar, attributes blob, primary key"
+                + " ((agent_rollup, transaction_type), duration_bucket, capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, duration_bucket int,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar,"
+                + " duration_nanos bigint, partial boolean, error boolean, headline varchar,"
+                + " user varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name), duration_bucket, capture_time, agent_id, trace_id))",
+                expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_error_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, duration_bucket int, capture_time timestamp,"
+                + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
+                + " error_message varchar, headline varchar, user varchar, attributes blob,"
+                + " primary key ((agent_rollup, transaction_type), duration_bucket, capture_time,"
+                + " agent_id, trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_error_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, duration_bucket int,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar,"
+                + " duration_nanos bigint, partial boolean, error_message varchar,"
+                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name), duration_bucket, capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
         Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_error_message"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, error_message varchar, primary key"
@@ -190,6 +256,14 @@ public class TraceDao implements TraceRepository {
                 + " (agent_id varchar, trace_id varchar, header blob, primary key (agent_id,"
                 + " trace_id))", expirationHours);
 
+        // each chunk holds up to ENTRIES_PER_CHUNK delimited (and compressed) trace entries
+        Sessions.createTableWithTWCS(session, "create table if not exists trace_entry_chunk"
+                + " (agent_id varchar, trace_id varchar, chunk_index int, entries blob,"
+                + " primary key (agent_id, trace_id, chunk_index))", expirationHours);
+
+        // trace_entry is no longer written to (see trace_entry_chunk above), but is still read from
+        // for traces that were stored prior to trace_entry_chunk, until they expire
+        //
         // index_ is just to provide uniqueness
         Sessions.createTableWithTWCS(session, "create table if not exists trace_entry"
                 + " (agent_id varchar, trace_id varchar, index_ int, depth int,"
@@ -241,16 +315,16 @@ public class TraceDao implements TraceRepository {
         insertCheck = session.prepare("insert into trace_check (agent_rollup, agent_id, trace_id)"
                 + " values (?, ?, ?) using ttl ?");
 
-        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos, partial,"
-                + " error, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                + " using ttl ?");
-
-        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point_by_duration"
+                + " (agent_rollup, transaction_type, duration_bucket, capture_time, agent_id,"
                 + " trace_id, duration_nanos, partial, error, headline, user, attributes) values"
                 + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point_by_duration"
+                + " (agent_rollup, transaction_type, transaction_name, duration_bucket,"
+                + " capture_time, agent_id, trace_id, duration_nanos, partial, error, headline,"
+                + " user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
                 + " using ttl ?");
@@ -259,16 +333,17 @@ public class TraceDao implements TraceRepository {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos, partial,"
-                + " error_message, headline, user, attributes) values"
-                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
-
-        insertTransactionErrorPoint = session.prepare("insert into trace_tn_error_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point_by_duration"
+                + " (agent_rollup, transaction_type, duration_bucket, capture_time, agent_id,"
                 + " trace_id, duration_nanos, partial, error_message, headline, user, attributes)"
                 + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertTransactionErrorPoint = session.prepare("insert into"
+                + " trace_tn_error_point_by_duration (agent_rollup, transaction_type,"
+                + " transaction_name, duration_bucket, capture_time, agent_id, trace_id,"
+                + " duration_nanos, partial, error_message, headline, user, attributes) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertOverallErrorCount = session.prepare("insert into trace_tt_error_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
                 + " using ttl ?");
@@ -288,10 +363,8 @@ public class TraceDao implements TraceRepository {
         insertHeader = session.prepare("insert into trace_header (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
-        insertEntry = session.prepare("insert into trace_entry (agent_id, trace_id, index_, depth,"
-                + " start_offset_nanos, duration_nanos, active, message, shared_query_text_index,"
-                + " query_message_prefix, query_message_suffix, detail, location_stack_trace,"
-                + " error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        insertEntryChunk = session.prepare("insert into trace_entry_chunk (agent_id, trace_id,"
+                + " chunk_index, entries) values (?, ?, ?, ?) using ttl ?");
 
         insertSharedQueryText = session.prepare("insert into trace_shared_query_text (agent_id,"
                 + " trace_id, index_, truncated_text, truncated_end_text, full_text_sha1) values"
@@ -307,21 +380,45 @@ public class TraceDao implements TraceRepository {
                 + " and agent_id = ? and trace_id = ?");
 
         readOverallSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tt_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and duration_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
+
+        readTransactionSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tn_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and duration_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error_message, headline, user, attributes"
+                + " from trace_tt_error_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and duration_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
+
+        readTransactionErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, partial, error_message, headline, user, attributes"
+                + " from trace_tn_error_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and duration_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readLegacyOverallSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error, headline, user, attributes"
                 + " from trace_tt_slow_point where agent_rollup = ? and transaction_type = ?"
                 + " and capture_time > ? and capture_time <= ?");
 
-        readTransactionSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
+        readLegacyTransactionSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error, headline, user, attributes"
                 + " from trace_tn_slow_point where agent_rollup = ? and transaction_type = ?"
                 + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
 
-        readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
+        readLegacyOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error_message, headline, user, attributes"
                 + " from trace_tt_error_point where agent_rollup = ? and transaction_type = ?"
                 + " and capture_time > ? and capture_time <= ?");
 
-        readTransactionErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
+        readLegacyTransactionErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error_message, headline, user, attributes"
                 + " from trace_tn_error_point where agent_rollup = ? and transaction_type = ?"
                 + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
@@ -337,6 +434,9 @@ public class TraceDao implements TraceRepository {
         readHeader = session
                 .prepare("select header from trace_header where agent_id = ? and trace_id = ?");
 
+        readEntryChunks = session.prepare("select entries from trace_entry_chunk"
+                + " where agent_id = ? and trace_id = ?");
+
         readEntries = session.prepare("select depth, start_offset_nanos, duration_nanos,"
                 + " active, message, shared_query_text_index, query_message_prefix,"
                 + " query_message_suffix, detail, location_stack_trace, error from trace_entry"
@@ -352,13 +452,16 @@ public class TraceDao implements TraceRepository {
         readAuxThreadProfile = session.prepare("select profile from trace_aux_thread_profile"
                 + " where agent_id = ? and trace_id = ?");
 
-        deletePartialOverallSlowPoint = session.prepare("delete from trace_tt_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
+        deletePartialOverallSlowPoint = session.prepare("delete from"
+                + " trace_tt_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and duration_bucket = ? and capture_time = ?"
                 + " and agent_id = ? and trace_id = ?");
 
-        deletePartialTransactionSlowPoint = session.prepare("delete from trace_tn_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
-                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+        deletePartialTransactionSlowPoint = session.prepare("delete from"
+                + " trace_tn_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and duration_bucket = ?"
+                + " and capture_time = ?"
+                + " and agent_id = ? and trace_id = ?");
 
         deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
@@ -418,6 +521,7 @@ public class TraceDao implements TraceRepository {
         futures.clear();
 
         int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), header.getCaptureTime(), clock);
+        int durationBucket = getDurationBucket(header.getDurationNanos());
         for (String agentRollupId : agentRollupIds) {
 
             if (!agentRollupId.equals(agentId)) {
@@ -436,6 +540,7 @@ public class TraceDao implements TraceRepository {
                 int i = 0;
                 boundStatement.setString(i++, agentRollupId);
                 boundStatement.setString(i++, header.getTransactionType());
+                boundStatement.setInt(i++, durationBucket);
                 boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
@@ -457,6 +562,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentRollupId);
                 boundStatement.setString(i++, header.getTransactionType());
                 boundStatement.setString(i++, header.getTransactionName());
+                boundStatement.setInt(i++, durationBucket);
                 boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
@@ -495,10 +601,12 @@ public class TraceDao implements TraceRepository {
                 futures.add(session.executeAsync(boundStatement));
 
                 if (priorHeader != null) {
+                    int priorDurationBucket = getDurationBucket(priorHeader.getDurationNanos());
                     boundStatement = deletePartialOverallSlowPoint.bind();
                     i = 0;
                     boundStatement.setString(i++, agentRollupId);
                     boundStatement.setString(i++, priorHeader.getTransactionType());
+                    boundStatement.setInt(i++, priorDurationBucket);
                     boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
                     boundStatement.setString(i++, agentId);
                     boundStatement.setString(i++, traceId);
@@ -509,6 +617,7 @@ public class TraceDao implements TraceRepository {
                     boundStatement.setString(i++, agentRollupId);
                     boundStatement.setString(i++, priorHeader.getTransactionType());
                     boundStatement.setString(i++, priorHeader.getTransactionName());
+                    boundStatement.setInt(i++, priorDurationBucket);
                     boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
                     boundStatement.setString(i++, agentId);
                     boundStatement.setString(i++, traceId);
@@ -564,6 +673,7 @@ public class TraceDao implements TraceRepository {
                 i = 0;
                 boundStatement.setString(i++, agentRollupId);
                 boundStatement.setString(i++, header.getTransactionType());
+                boundStatement.setInt(i++, durationBucket);
                 boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
@@ -585,6 +695,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentRollupId);
                 boundStatement.setString(i++, header.getTransactionType());
                 boundStatement.setString(i++, header.getTransactionName());
+                boundStatement.setInt(i++, durationBucket);
                 boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
@@ -636,53 +747,15 @@ public class TraceDao implements TraceRepository {
         boundStatement.setInt(i++, adjustedTTL);
         futures.add(session.executeAsync(boundStatement));
 
-        int index = 0;
-        for (Trace.Entry entry : trace.getEntryList()) {
-            boundStatement = insertEntry.bind();
-            i = 0;
-            boundStatement.setString(i++, agentId);
-            boundStatement.setString(i++, traceId);
-            boundStatement.setInt(i++, index++);
-            boundStatement.setInt(i++, entry.getDepth());
-            boundStatement.setLong(i++, entry.getStartOffsetNanos());
-            boundStatement.setLong(i++, entry.getDurationNanos());
-            boundStatement.setBool(i++, entry.getActive());
-            if (entry.hasQueryEntryMessage()) {
-                boundStatement.setToNull(i++);
-                boundStatement.setInt(i++, entry.getQueryEntryMessage().getSharedQueryTextIndex());
-                boundStatement.setString(i++,
-                        Strings.emptyToNull(entry.getQueryEntryMessage().getPrefix()));
-                boundStatement.setString(i++,
-                        Strings.emptyToNull(entry.getQueryEntryMessage().getSuffix()));
-            } else {
-                // message is empty for trace entries added using addErrorEntry()
-                boundStatement.setString(i++, Strings.emptyToNull(entry.getMessage()));
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-            }
-            List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
-            if (detailEntries.isEmpty()) {
-                boundStatement.setToNull(i++);
-            } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(detailEntries));
-            }
-            List<StackTraceElement> location = entry.getLocationStackTraceElementList();
-            if (location.isEmpty()) {
-                boundStatement.setToNull(i++);
-            } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(location));
-            }
-            if (entry.hasError()) {
-                boundStatement.setBytes(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
-            } else {
-                boundStatement.setToNull(i++);
-            }
-            boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+        // entries are only present here if they were not already stored using EntryChunkWriter
+        List<Trace.Entry> entries = trace.getEntryList();
+        for (int from = 0; from < entries.size(); from += ENTRIES_PER_CHUNK) {
+            int to = Math.min(from + ENTRIES_PER_CHUNK, entries.size());
+            futures.add(session.executeAsync(bindEntryChunk(agentId, traceId,
+                    from / ENTRIES_PER_CHUNK, entries.subList(from, to), adjustedTTL)));
         }
 
-        index = 0;
+        int index = 0;
         for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
             boundStatement = insertSharedQueryText.bind();
             i = 0;
@@ -728,6 +801,12 @@ public class TraceDao implements TraceRepository {
         MoreFutures.waitForAll(futures);
     }
 
+    // used to store trace entries as they are received, instead of holding onto all of the entries
+    // until the rest of the trace has been received (the entries are received before the header)
+    public EntryChunkWriter createEntryChunkWriter(String agentId, String traceId) {
+        return new EntryChunkWriter(agentId, traceId);
+    }
+
     @Override
     public List<String> readTraceAttributeNames(String agentRollupId, String transactionType) {
         return traceAttributeNameDao.read(agentRollupId, transactionType);
@@ -736,52 +815,24 @@ public class TraceDao implements TraceRepository {
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws IOException {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            BoundStatement boundStatement = readOverallSlowPoint.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupId);
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.from()));
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, false);
+        if (query.transactionName() == null) {
+            return readPoints(readOverallSlowPoint, readLegacyOverallSlowPoint, agentRollupId,
+                    query, filter, limit, false);
         } else {
-            BoundStatement boundStatement = readTransactionSlowPoint.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupId);
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setString(i++, transactionName);
-            boundStatement.setTimestamp(i++, new Date(query.from()));
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, false);
+            return readPoints(readTransactionSlowPoint, readLegacyTransactionSlowPoint,
+                    agentRollupId, query, filter, limit, false);
         }
     }
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws IOException {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            BoundStatement boundStatement = readOverallErrorPoint.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupId);
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.from()));
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, true);
+        if (query.transactionName() == null) {
+            return readPoints(readOverallErrorPoint, readLegacyOverallErrorPoint, agentRollupId,
+                    query, filter, limit, true);
         } else {
-            BoundStatement boundStatement = readTransactionErrorPoint.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupId);
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setString(i++, transactionName);
-            boundStatement.setTimestamp(i++, new Date(query.from()));
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, true);
+            return readPoints(readTransactionErrorPoint, readLegacyTransactionErrorPoint,
+                    agentRollupId, query, filter, limit, true);
         }
     }
 
@@ -1008,6 +1059,30 @@ public class TraceDao implements TraceRepository {
 
     private List<Trace.Entry> readEntriesInternal(String agentId, String traceId)
             throws IOException {
+        BoundStatement boundStatement = readEntryChunks.bind();
+        boundStatement.setString(0, agentId);
+        boundStatement.setString(1, traceId);
+        boundStatement.setFetchSize(ENTRY_CHUNK_FETCH_SIZE);
+        ResultSet results = session.execute(boundStatement);
+        if (results.isExhausted()) {
+            // trace was stored prior to trace_entry_chunk (or has no entries)
+            return readEntriesPriorToChunks(agentId, traceId);
+        }
+        List<Trace.Entry> entries = Lists.newArrayList();
+        while (!results.isExhausted()) {
+            if (results.getAvailableWithoutFetching() == 1 && !results.isFullyFetched()) {
+                // fetch the next page in the background while decoding the last chunk of this page
+                results.fetchMoreResults();
+            }
+            Row row = results.one();
+            entries.addAll(
+                    Messages.parseCompressedDelimitedFrom(row.getBytes(0), Trace.Entry.parser()));
+        }
+        return entries;
+    }
+
+    private List<Trace.Entry> readEntriesPriorToChunks(String agentId, String traceId)
+            throws IOException {
         BoundStatement boundStatement = readEntries.bind();
         boundStatement.setString(0, agentId);
         boundStatement.setString(1, traceId);
@@ -1081,14 +1156,106 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTexts;
     }
 
+    private BoundStatement bindEntryChunk(String agentId, String traceId, int chunkIndex,
+            List<Trace.Entry> entries, int ttl) throws IOException {
+        BoundStatement boundStatement = insertEntryChunk.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setInt(i++, chunkIndex);
+        boundStatement.setBytes(i++, Messages.toCompressedByteBuffer(entries));
+        boundStatement.setInt(i++, ttl);
+        return boundStatement;
+    }
+
     private int getTTL() {
         return Ints.saturatedCast(
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            int limit, boolean errorPoints) throws IOException {
-        List<TracePoint> tracePoints = Lists.newArrayList();
+    private Result<TracePoint> readPoints(PreparedStatement readPoints,
+            PreparedStatement readLegacyPoints, String agentRollupId, TraceQuery query,
+            TracePointFilter filter, int limit, boolean errorPoints) throws IOException {
+        ResultSetFuture legacyFuture = session.executeAsync(
+                bindReadPoints(readLegacyPoints, agentRollupId, query, null));
+        // only the duration buckets that can match the duration filter need to be read
+        int lowestBucket = getDurationBucket(filter.durationNanosLow());
+        Long durationNanosHigh = filter.durationNanosHigh();
+        int highestBucket = durationNanosHigh == null ? MAX_DURATION_BUCKET
+                : getDurationBucket(durationNanosHigh);
+        Deque<ResultSetFuture> futures = new ArrayDeque<>();
+        int nextBucket = highestBucket;
+        while (nextBucket >= lowestBucket && futures.size() < DURATION_BUCKET_READ_AHEAD) {
+            futures.add(session.executeAsync(
+                    bindReadPoints(readPoints, agentRollupId, query, nextBucket--)));
+        }
+        // keyed by trace in order to remove duplicates (partially stored traces) since there is
+        // (small) window between updated insert (with new capture time) and the delete of prior
+        // insert (with prior capture time)
+        Map<TraceKey, TracePoint> tracePoints = Maps.newHashMap();
+        addPoints(legacyFuture.getUninterruptibly(), filter, errorPoints, tracePoints);
+        for (int bucket = highestBucket; bucket >= lowestBucket; bucket--) {
+            ResultSet results = futures.remove().getUninterruptibly();
+            if (nextBucket >= lowestBucket) {
+                futures.add(session.executeAsync(
+                        bindReadPoints(readPoints, agentRollupId, query, nextBucket--)));
+            }
+            addPoints(results, filter, errorPoints, tracePoints);
+            // all of the remaining buckets hold faster traces, so once there are more than limit
+            // points that are at least as slow as this bucket, none of the remaining traces can
+            // make it into the result
+            long bucketLowNanos = getDurationBucketLowNanos(bucket);
+            long count = tracePoints.values().stream()
+                    .filter(tracePoint -> tracePoint.durationNanos() >= bucketLowNanos)
+                    .count();
+            if (count > limit) {
+                for (ResultSetFuture future : futures) {
+                    future.cancel(true);
+                }
+                break;
+            }
+        }
+        // apply limit and re-sort
+        if (tracePoints.size() > limit) {
+            List<TracePoint> limitedTracePoints = tracePoints.values().stream()
+                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
+                    .limit(limit)
+                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
+                    // explicit type on this line is needed for Checker Framework
+                    // see https://github.com/typetools/checker-framework/issues/531
+                    .collect(Collectors.<TracePoint>toList());
+            return new Result<>(limitedTracePoints, true);
+        } else {
+            List<TracePoint> sortedTracePoints = tracePoints.values().stream()
+                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
+                    // explicit type on this line is needed for Checker Framework
+                    // see https://github.com/typetools/checker-framework/issues/531
+                    .collect(Collectors.<TracePoint>toList());
+            return new Result<>(sortedTracePoints, false);
+        }
+    }
+
+    // pass null durationBucket when binding the (legacy) non-bucketed point statements
+    private static BoundStatement bindReadPoints(PreparedStatement readPoints,
+            String agentRollupId, TraceQuery query, @Nullable Integer durationBucket) {
+        BoundStatement boundStatement = readPoints.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, query.transactionType());
+        String transactionName = query.transactionName();
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        if (durationBucket != null) {
+            boundStatement.setInt(i++, durationBucket);
+        }
+        boundStatement.setTimestamp(i++, new Date(query.from()));
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+        return boundStatement;
+    }
+
+    private static void addPoints(ResultSet results, TracePointFilter filter,
+            boolean errorPoints, Map<TraceKey, TracePoint> tracePoints) throws IOException {
         for (Row row : results) {
             int i = 0;
             String agentId = checkNotNull(row.getString(i++));
@@ -1112,40 +1279,34 @@ public class TraceDao implements TraceRepository {
                     && filter.matchesError(errorMessage)
                     && filter.matchesUser(user)
                     && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(traceId)
-                        .captureTime(captureTime)
-                        .durationNanos(durationNanos)
-                        .partial(partial)
-                        .error(error)
-                        .build());
-            }
-        }
-        // remove duplicates (partially stored traces) since there is (small) window between updated
-        // insert (with new capture time) and the delete of prior insert (with prior capture time)
-        Set<TraceKey> traceKeys = Sets.newHashSet();
-        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
-        while (i.hasPrevious()) {
-            TracePoint trace = i.previous();
-            TraceKey traceKey = ImmutableTraceKey.of(trace.agentId(), trace.traceId());
-            if (!traceKeys.add(traceKey)) {
-                i.remove();
+                TraceKey traceKey = ImmutableTraceKey.of(agentId, traceId);
+                TracePoint existing = tracePoints.get(traceKey);
+                // keep the most recently captured point for a (partially stored) trace
+                if (existing == null || existing.captureTime() < captureTime) {
+                    tracePoints.put(traceKey, ImmutableTracePoint.builder()
+                            .agentId(agentId)
+                            .traceId(traceId)
+                            .captureTime(captureTime)
+                            .durationNanos(durationNanos)
+                            .partial(partial)
+                            .error(error)
+                            .build());
+                }
             }
         }
-        // apply limit and re-sort if needed
-        if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
-                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
-                    .limit(limit)
-                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
-        } else {
-            return new Result<>(tracePoints, false);
-        }
+    }
+
+    // bucket 0 holds durations under 1 millisecond, and bucket n holds durations from 2^(n-1)
+    // milliseconds up to (but not including) 2^n milliseconds
+    @VisibleForTesting
+    static int getDurationBucket(long durationNanos) {
+        long durationMillis = NANOSECONDS.toMillis(Math.max(durationNanos, 0));
+        return Math.min(64 - Long.numberOfLeadingZeros(durationMillis), MAX_DURATION_BUCKET);
+    }
+
+    @VisibleForTesting
+    static long getDurationBucketLowNanos(int durationBucket) {
+        return durationBucket == 0 ? 0 : MILLISECONDS.toNanos(1L << (durationBucket - 1));
     }
 
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
@@ -1170,6 +1331,57 @@ public class TraceDao implements TraceRepository {
         String traceId();
     }
 
+    // at most one chunk of entries is buffered, and at most one chunk write is in flight, which
+    // bounds the memory used per trace regardless of the number of entries
+    public class EntryChunkWriter {
+
+        private final String agentId;
+        private final String traceId;
+
+        private final List<Trace.Entry> entries = Lists.newArrayList();
+        private int chunkIndex;
+        private @Nullable ResultSetFuture lastFuture;
+
+        private EntryChunkWriter(String agentId, String traceId) {
+            this.agentId = agentId;
+            this.traceId = traceId;
+        }
+
+        public void addEntry(Trace.Entry entry) throws Exception {
+            entries.add(entry);
+            if (entries.size() == ENTRIES_PER_CHUNK) {
+                writeChunk();
+            }
+        }
+
+        // must be called (and return successfully) before storing the rest of the trace
+        public void finish() throws Exception {
+            if (!entries.isEmpty()) {
+                writeChunk();
+            }
+            waitForLastChunk();
+        }
+
+        private void writeChunk() throws Exception {
+            // this blocks the grpc call (and so applies back pressure to the agent) while the
+            // previous chunk is still being written
+            waitForLastChunk();
+            // the header (with the capture time that is used to adjust the TTL) is received
+            // after the entries, so the unadjusted TTL is used here, which at worst keeps the
+            // entries slightly longer than the rest of the trace
+            lastFuture = session.executeAsync(
+                    bindEntryChunk(agentId, traceId, chunkIndex++, entries, getTTL()));
+            entries.clear();
+        }
+
+        private void waitForLastChunk() throws Exception {
+            if (lastFuture != null) {
+                MoreFutures.waitForAll(ImmutableList.of(lastFuture));
+                lastFuture = null;
+            }
+        }
+    }
+
     private static class MutableLong {
         private long value;
         private void increment() {
@@ -41,7 +41,7 @@ public class ByteBufferInputStream extends InputStream {
         if (count == 0) {
             return -1;
         }
-        byteBuf.get(bytes, off, len);
+        byteBuf.get(bytes, off, count);
         return count;
     }
 
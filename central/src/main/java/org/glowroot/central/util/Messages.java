@@ -20,6 +20,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.annotation.Nullable;
 
@@ -60,4 +64,47 @@ public class Messages {
         }
         return messages;
     }
+
+    // same as toByteBuffer(), but deflate compressed, which is worthwhile for larger groups of
+    // messages (e.g. chunks of trace entries) since it also reduces the bytes sent over the network
+    // to and from cassandra (whereas cassandra's own compression only applies on disk)
+    public static ByteBuffer toCompressedByteBuffer(List<? extends AbstractMessage> messages)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            try (DeflaterOutputStream compressedOutput =
+                    new DeflaterOutputStream(output, deflater)) {
+                for (AbstractMessage message : messages) {
+                    message.writeDelimitedTo(compressedOutput);
+                }
+            }
+        } finally {
+            // deflater was passed in to DeflaterOutputStream so it is not ended when the stream is
+            // closed, and it holds native memory until ended
+            deflater.end();
+        }
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
+    public static <T extends /*@NonNull*/ AbstractMessage> List<T> parseCompressedDelimitedFrom(
+            @Nullable ByteBuffer byteBuf, Parser<T> parser) throws IOException {
+        if (byteBuf == null) {
+            return ImmutableList.of();
+        }
+        SizeLimitBypassingParser<T> sizeLimitBypassingParser =
+                new SizeLimitBypassingParser<>(parser);
+        List<T> messages = Lists.newArrayList();
+        Inflater inflater = new Inflater();
+        try (InputStream input =
+                new InflaterInputStream(new ByteBufferInputStream(byteBuf), inflater)) {
+            T message;
+            while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
+                messages.add(message);
+            }
+        } finally {
+            inflater.end();
+        }
+        return messages;
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+
+// groups statements by partition key and executes each group as unlogged batches
+//
+// since all statements in a batch share the same partition key, the batch is routed (token aware)
+// directly to a replica and applied as a single mutation, instead of paying coordinator overhead
+// for each individual statement (unlogged batches across partitions would instead just shift the
+// fan-out to the coordinator)
+//
+// only statements with small values should go through here, since cassandra rejects batches over
+// batch_size_fail_threshold_in_kb (which defaults to 50kb)
+public class UnloggedBatcher {
+
+    private final Session session;
+    private final int maxBatchSize;
+
+    // bounds the number of in-flight batches across all callers
+    private final Semaphore inFlightLimiter;
+
+    public UnloggedBatcher(Session session, int maxBatchSize, int maxConcurrentBatches) {
+        this.session = session;
+        this.maxBatchSize = maxBatchSize;
+        inFlightLimiter = new Semaphore(maxConcurrentBatches);
+    }
+
+    public List<ResultSetFuture> execute(List<? extends Statement> statements)
+            throws InterruptedException {
+        ProtocolVersion protocolVersion = session.getCluster().getConfiguration()
+                .getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = session.getCluster().getConfiguration().getCodecRegistry();
+        Map<ByteBuffer, List<Statement>> statementsByPartitionKey = Maps.newLinkedHashMap();
+        List<Statement> unroutableStatements = Lists.newArrayList();
+        for (Statement statement : statements) {
+            @Nullable
+            ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+            if (routingKey == null) {
+                unroutableStatements.add(statement);
+                continue;
+            }
+            // routing key does not include the keyspace, but all glowroot tables are in the same
+            // keyspace
+            List<Statement> partitionStatements = statementsByPartitionKey.get(routingKey);
+            if (partitionStatements == null) {
+                partitionStatements = Lists.newArrayList();
+                statementsByPartitionKey.put(routingKey, partitionStatements);
+            }
+            partitionStatements.add(statement);
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (List<Statement> partitionStatements : statementsByPartitionKey.values()) {
+            for (List<Statement> batchStatements : Lists.partition(partitionStatements,
+                    maxBatchSize)) {
+                if (batchStatements.size() == 1) {
+                    futures.add(executeAsync(batchStatements.get(0)));
+                } else {
+                    BatchStatement batchStatement =
+                            new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batchStatement.addAll(batchStatements);
+                    futures.add(executeAsync(batchStatement));
+                }
+            }
+        }
+        for (Statement statement : unroutableStatements) {
+            futures.add(executeAsync(statement));
+        }
+        return futures;
+    }
+
+    private ResultSetFuture executeAsync(Statement statement) throws InterruptedException {
+        inFlightLimiter.acquire();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            inFlightLimiter.release();
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlightLimiter.release();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.glowroot.central;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import org.glowroot.central.RollupService;
@@ -30,4 +32,11 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldFindOldestCaptureTime() {
+        assertThat(RollupService.getOldestCaptureTime(Arrays.<Long>asList(null, null))).isNull();
+        assertThat(RollupService.getOldestCaptureTime(Arrays.asList(null, 120000L, 60000L)))
+                .isEqualTo(60000);
+    }
 }
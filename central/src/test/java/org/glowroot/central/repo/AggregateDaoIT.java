@@ -28,6 +28,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.UnloggedBatcher;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.live.ImmutableOverallQuery;
@@ -94,8 +95,8 @@ public class AggregateDaoIT {
         centralConfigDao.setConfigRepository(configRepository);
         TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session, configRepository);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-        aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                configRepository, Clock.systemClock());
+        aggregateDao = new AggregateDao(session, new UnloggedBatcher(session, 20, 256), agentDao,
+                transactionTypeDao, fullQueryTextDao, configRepository, Clock.systemClock());
     }
 
     @AfterClass
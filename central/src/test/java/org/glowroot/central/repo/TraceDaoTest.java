@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceDaoTest {
+
+    @Test
+    public void shouldBucketDurations() {
+        assertThat(TraceDao.getDurationBucket(0)).isEqualTo(0);
+        assertThat(TraceDao.getDurationBucket(999999)).isEqualTo(0);
+        assertThat(TraceDao.getDurationBucket(MILLISECONDS.toNanos(1))).isEqualTo(1);
+        assertThat(TraceDao.getDurationBucket(MILLISECONDS.toNanos(2))).isEqualTo(2);
+        assertThat(TraceDao.getDurationBucket(MILLISECONDS.toNanos(3))).isEqualTo(2);
+        assertThat(TraceDao.getDurationBucket(MILLISECONDS.toNanos(1000))).isEqualTo(10);
+        assertThat(TraceDao.getDurationBucket(MILLISECONDS.toNanos(1024))).isEqualTo(11);
+        assertThat(TraceDao.getDurationBucket(Long.MAX_VALUE)).isEqualTo(32);
+    }
+
+    @Test
+    public void shouldContainDurationsWithinBucket() {
+        for (int bucket = 0; bucket < 32; bucket++) {
+            long lowNanos = TraceDao.getDurationBucketLowNanos(bucket);
+            long nextLowNanos = TraceDao.getDurationBucketLowNanos(bucket + 1);
+            assertThat(TraceDao.getDurationBucket(lowNanos)).isEqualTo(bucket);
+            assertThat(TraceDao.getDurationBucket(nextLowNanos - 1)).isEqualTo(bucket);
+            assertThat(TraceDao.getDurationBucket(nextLowNanos)).isEqualTo(bucket + 1);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessagesTest {
+
+    @Test
+    public void shouldReadCompressedMessages() throws Exception {
+        // given
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 5)
+                    .setStartOffsetNanos(i * 1000)
+                    .setDurationNanos(500)
+                    .setMessage("select * from employee where id = " + i)
+                    .build());
+        }
+        // when
+        ByteBuffer bytes = Messages.toCompressedByteBuffer(entries);
+        // then
+        assertThat(bytes.remaining()).isLessThan(Messages.toByteBuffer(entries).remaining());
+        assertThat(Messages.parseCompressedDelimitedFrom(bytes, Trace.Entry.parser()))
+                .isEqualTo(entries);
+    }
+
+    @Test
+    public void shouldReadCompressedEmptyList() throws Exception {
+        // when
+        ByteBuffer bytes = Messages.toCompressedByteBuffer(ImmutableList.<Trace.Entry>of());
+        // then
+        assertThat(Messages.parseCompressedDelimitedFrom(bytes, Trace.Entry.parser())).isEmpty();
+    }
+
+    @Test
+    public void shouldReadNullAsEmptyList() throws Exception {
+        assertThat(Messages.parseCompressedDelimitedFrom(null, Trace.Entry.parser())).isEmpty();
+    }
+}
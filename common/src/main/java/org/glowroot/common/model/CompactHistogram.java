@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+// histogram with fixed log-linear buckets, where each power of two range is split into
+// 2^(precisionBits - 1) equal width buckets (and values below 2^precisionBits each get their own
+// bucket)
+//
+// since the bucket boundaries only depend on precisionBits, two histograms (or a histogram and its
+// encoded form) are merged by simply adding bucket counts, without any decoding into intermediate
+// objects
+//
+// the encoded form is a sequence of (varint bucket index delta, varint count) pairs for the
+// non-empty buckets only
+class CompactHistogram {
+
+    private int precisionBits;
+
+    // indexed by bucket, only grown as needed to hold the highest bucket recorded
+    private long[] counts = new long[0];
+    private long totalCount;
+
+    CompactHistogram(int precisionBits) {
+        this.precisionBits = precisionBits;
+    }
+
+    // the smallest number of precision bits that can distinguish values at the given number of
+    // significant digits (i.e. at least 10^significantDigits buckets per power of two)
+    static int getPrecisionBits(int significantDigits) {
+        long pow = 1;
+        for (int i = 0; i < significantDigits; i++) {
+            pow *= 10;
+        }
+        return 64 - Long.numberOfLeadingZeros(pow - 1) + 1;
+    }
+
+    int getPrecisionBits() {
+        return precisionBits;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    int getBucketCount() {
+        return counts.length;
+    }
+
+    long getCountAtBucket(int index) {
+        return counts[index];
+    }
+
+    void recordValue(long value) {
+        recordValue(value, 1);
+    }
+
+    void recordValue(long value, long count) {
+        int index = getIndex(Math.max(value, 0), precisionBits);
+        ensureCapacity(index + 1);
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        long countAtPercentile = (long) Math.ceil(totalCount * percentile / 100);
+        countAtPercentile = Math.min(Math.max(countAtPercentile, 1), totalCount);
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= countAtPercentile) {
+                return getHighestEquivalentValue(i, precisionBits);
+            }
+        }
+        throw new IllegalStateException("Bucket counts do not add up to total count");
+    }
+
+    void merge(CompactHistogram toBeMergedHistogram) {
+        int toBeMergedPrecisionBits = toBeMergedHistogram.precisionBits;
+        long[] toBeMergedCounts = toBeMergedHistogram.counts;
+        if (toBeMergedPrecisionBits > precisionBits) {
+            for (int i = 0; i < toBeMergedCounts.length; i++) {
+                long count = toBeMergedCounts[i];
+                if (count != 0) {
+                    recordValue(getHighestEquivalentValue(i, toBeMergedPrecisionBits), count);
+                }
+            }
+            return;
+        }
+        if (toBeMergedPrecisionBits < precisionBits) {
+            reducePrecision(toBeMergedPrecisionBits);
+        }
+        ensureCapacity(toBeMergedCounts.length);
+        for (int i = 0; i < toBeMergedCounts.length; i++) {
+            counts[i] += toBeMergedCounts[i];
+        }
+        totalCount += toBeMergedHistogram.totalCount;
+    }
+
+    // input is limited to the encoded bucket counts
+    void mergeEncoded(int encodedPrecisionBits, CodedInputStream input) throws IOException {
+        if (encodedPrecisionBits < precisionBits) {
+            reducePrecision(encodedPrecisionBits);
+        }
+        boolean sameBuckets = encodedPrecisionBits == precisionBits;
+        int index = 0;
+        while (!input.isAtEnd()) {
+            index += input.readUInt32();
+            long count = input.readUInt64();
+            if (sameBuckets) {
+                ensureCapacity(index + 1);
+                counts[index] += count;
+                totalCount += count;
+            } else {
+                recordValue(getHighestEquivalentValue(index, encodedPrecisionBits), count);
+            }
+        }
+    }
+
+    int getNeededByteBufferCapacity() {
+        int capacity = 0;
+        int lastIndex = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                capacity += CodedOutputStream.computeUInt32SizeNoTag(i - lastIndex);
+                capacity += CodedOutputStream.computeUInt64SizeNoTag(count);
+                lastIndex = i;
+            }
+        }
+        return capacity;
+    }
+
+    // buffer must have at least getNeededByteBufferCapacity() remaining
+    void encodeIntoByteBuffer(ByteBuffer buffer) {
+        CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+        int lastIndex = 0;
+        try {
+            for (int i = 0; i < counts.length; i++) {
+                long count = counts[i];
+                if (count != 0) {
+                    output.writeUInt32NoTag(i - lastIndex);
+                    output.writeUInt64NoTag(count);
+                    lastIndex = i;
+                }
+            }
+            output.flush();
+        } catch (IOException e) {
+            // only thrown if out of space
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void reducePrecision(int newPrecisionBits) {
+        long[] oldCounts = counts;
+        int oldPrecisionBits = precisionBits;
+        precisionBits = newPrecisionBits;
+        counts = new long[0];
+        totalCount = 0;
+        for (int i = 0; i < oldCounts.length; i++) {
+            long count = oldCounts[i];
+            if (count != 0) {
+                // buckets are aligned on powers of two, so each old bucket falls entirely within
+                // a single new bucket
+                recordValue(getHighestEquivalentValue(i, oldPrecisionBits), count);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > counts.length) {
+            // grow by at least half to amortize copying, but not more since the bucket array is
+            // otherwise exactly as large as the highest value recorded requires
+            long[] temp = new long[Math.max(counts.length + (counts.length >> 1), capacity)];
+            System.arraycopy(counts, 0, temp, 0, counts.length);
+            counts = temp;
+        }
+    }
+
+    static int getIndex(long value, int precisionBits) {
+        int shift = 64 - Long.numberOfLeadingZeros(value) - precisionBits;
+        if (shift <= 0) {
+            return (int) value;
+        }
+        // value >>> shift is in the range [2^(precisionBits - 1), 2^precisionBits)
+        return (shift << (precisionBits - 1)) + (int) (value >>> shift);
+    }
+
+    static long getHighestEquivalentValue(int index, int precisionBits) {
+        int shift = (index >> (precisionBits - 1)) - 1;
+        if (shift <= 0) {
+            return index;
+        }
+        long mantissa = index - (shift << (precisionBits - 1));
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
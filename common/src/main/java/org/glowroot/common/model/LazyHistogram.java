@@ -15,14 +15,17 @@
  */
 package org.glowroot.common.model;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
-import java.util.zip.DataFormatException;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
@@ -30,29 +33,57 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    // 5 significant digits matches the precision of the HdrHistogram encoding used previously,
+    // and 2 to 4 significant digits can be used to reduce memory and storage (histograms of
+    // different precisions can still be merged, the result just has the lower of the two
+    // precisions)
+    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = Math.min(
+            Math.max(Integer.getInteger("glowroot.histogram.significant.digits", 5), 2), 5);
+
+    // matches the HdrHistogram settings used prior to the bucket counts encoding
+    private static final int LEGACY_HISTOGRAM_LOWEST_DISCERNIBLE_VALUE = 1000;
+    private static final int LEGACY_HISTOGRAM_HIGHEST_TRACKABLE_VALUE = 2000;
+    private static final int LEGACY_HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    private static final int HISTOGRAM_PRECISION_BITS =
+            CompactHistogram.getPrecisionBits(HISTOGRAM_SIGNIFICANT_DIGITS);
+
+    // tracking nanoseconds, but only at microsecond precision (to save histogram space)
+    private static final long NANOSECONDS_PER_UNIT = 1000;
+
     private static final int MAX_VALUES = 1024;
 
+    private static final int ORDERED_RAW_VALUE_FIELD_NUMBER =
+            Aggregate.Histogram.ORDERED_RAW_VALUE_FIELD_NUMBER;
+    private static final int ENCODED_BYTES_FIELD_NUMBER =
+            Aggregate.Histogram.ENCODED_BYTES_FIELD_NUMBER;
+    private static final int BUCKET_PRECISION_BITS_FIELD_NUMBER =
+            Aggregate.Histogram.BUCKET_PRECISION_BITS_FIELD_NUMBER;
+    private static final int BUCKET_COUNTS_FIELD_NUMBER =
+            Aggregate.Histogram.BUCKET_COUNTS_FIELD_NUMBER;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @MonotonicNonNull CompactHistogram histogram;
 
     public LazyHistogram() {}
 
-    // special constructor, histogram created this way cannot be further mutated
-    public LazyHistogram(Aggregate.Histogram hist) {
+    // special constructor, avoids copying raw values one at a time
+    public LazyHistogram(Aggregate.Histogram hist) throws IOException {
+        ByteString bucketCounts = hist.getBucketCounts();
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (!bucketCounts.isEmpty()) {
+            mergeBucketCounts(hist.getBucketPrecisionBits(), bucketCounts.newCodedInput());
+        } else if (!encodedBytes.isEmpty()) {
+            mergeLegacyEncodedBytes(encodedBytes.asReadOnlyByteBuffer());
+        } else {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
                 values[i] = orderedRawValues.get(i);
             }
             size = values.length;
-        } else {
-            histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
         }
     }
 
@@ -73,35 +104,117 @@ public class LazyHistogram {
             histogram.encodeIntoByteBuffer(buffer);
             int size = buffer.position();
             buffer.flip();
-            builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
+            builder.setBucketPrecisionBits(histogram.getPrecisionBits());
+            builder.setBucketCounts(ByteString.copyFrom(buffer, size));
         }
         return builder.build();
     }
 
-    public void merge(Aggregate.Histogram toBeMergedHistogram) throws DataFormatException {
+    // re-encodes bucket counts using the HdrHistogram encoding (encoded_bytes), for readers that
+    // pre-date the bucket counts encoding (e.g. when sending to an older central collector)
+    public static Aggregate.Histogram toLegacyProto(Aggregate.Histogram hist,
+            ScratchBuffer scratchBuffer) throws IOException {
+        if (hist.getBucketCounts().isEmpty()) {
+            return hist;
+        }
+        CompactHistogram compactHistogram = new CompactHistogram(hist.getBucketPrecisionBits());
+        compactHistogram.mergeEncoded(hist.getBucketPrecisionBits(),
+                hist.getBucketCounts().newCodedInput());
+        Histogram legacyHistogram = new Histogram(LEGACY_HISTOGRAM_LOWEST_DISCERNIBLE_VALUE,
+                LEGACY_HISTOGRAM_HIGHEST_TRACKABLE_VALUE, LEGACY_HISTOGRAM_SIGNIFICANT_DIGITS);
+        legacyHistogram.setAutoResize(true);
+        int precisionBits = compactHistogram.getPrecisionBits();
+        for (int i = 0; i < compactHistogram.getBucketCount(); i++) {
+            long count = compactHistogram.getCountAtBucket(i);
+            if (count != 0) {
+                long value = CompactHistogram.getHighestEquivalentValue(i, precisionBits);
+                legacyHistogram.recordValueWithCount(
+                        (value + 1) * NANOSECONDS_PER_UNIT - 1, count);
+            }
+        }
+        ByteBuffer buffer =
+                scratchBuffer.getBuffer(legacyHistogram.getNeededByteBufferCapacity());
+        buffer.clear();
+        legacyHistogram.encodeIntoByteBuffer(buffer);
+        int size = buffer.position();
+        buffer.flip();
+        return Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(buffer, size))
+                .build();
+    }
+
+    public void merge(Aggregate.Histogram toBeMergedHistogram) throws IOException {
+        ByteString bucketCounts = toBeMergedHistogram.getBucketCounts();
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (!bucketCounts.isEmpty()) {
+            mergeBucketCounts(toBeMergedHistogram.getBucketPrecisionBits(),
+                    bucketCounts.newCodedInput());
+        } else if (!encodedBytes.isEmpty()) {
+            mergeLegacyEncodedBytes(encodedBytes.asReadOnlyByteBuffer());
+        } else {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
-        } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
+        }
+    }
+
+    // merges directly from a serialized Aggregate.Histogram, without parsing it into a protobuf
+    // object first (which would copy the raw values into a boxed list and the bucket counts into a
+    // separate byte string)
+    public void merge(ByteBuffer serializedHistogram) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(serializedHistogram);
+        int bucketPrecisionBits = 0;
+        // only needed if bucket counts are (unexpectedly) serialized before bucket precision bits
+        ByteString deferredBucketCounts = null;
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) {
+                break;
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            int fieldNumber = WireFormat.getTagFieldNumber(tag);
+            if (fieldNumber == ORDERED_RAW_VALUE_FIELD_NUMBER) {
+                if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    // packed
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    while (!input.isAtEnd()) {
+                        add(input.readInt64());
+                    }
+                    input.popLimit(limit);
+                } else {
+                    add(input.readInt64());
+                }
+            } else if (fieldNumber == ENCODED_BYTES_FIELD_NUMBER) {
+                mergeLegacyEncodedBytes(input.readBytes().asReadOnlyByteBuffer());
+            } else if (fieldNumber == BUCKET_PRECISION_BITS_FIELD_NUMBER) {
+                bucketPrecisionBits = input.readInt32();
+            } else if (fieldNumber == BUCKET_COUNTS_FIELD_NUMBER) {
+                if (bucketPrecisionBits == 0) {
+                    deferredBucketCounts = input.readBytes();
+                } else {
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    mergeBucketCounts(bucketPrecisionBits, input);
+                    input.popLimit(limit);
+                }
+            } else {
+                input.skipField(tag);
+            }
+        }
+        if (deferredBucketCounts != null) {
+            mergeBucketCounts(bucketPrecisionBits, deferredBucketCounts.newCodedInput());
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (histogram == null) {
-            convertValuesToHistogram();
-        }
         if (toBeMergedHistogram.histogram == null) {
+            // raw values stay raw values as long as combined size is under the limit
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
-                histogram.recordValue(toBeMergedHistogram.values[i]);
+                add(toBeMergedHistogram.values[i]);
             }
         } else {
-            histogram.add(toBeMergedHistogram.histogram);
+            if (histogram == null) {
+                convertValuesToHistogram();
+            }
+            histogram.merge(toBeMergedHistogram.histogram);
         }
     }
 
@@ -120,20 +233,48 @@ public class LazyHistogram {
             }
             return values[(int) Math.ceil(size * percentile / 100) - 1];
         }
-        return histogram.getValueAtPercentile(percentile);
+        if (histogram.getTotalCount() == 0) {
+            return 0;
+        }
+        // highest nanosecond value that is equivalent (at microsecond precision) to the value in
+        // the histogram bucket
+        return (histogram.getValueAtPercentile(percentile) + 1) * NANOSECONDS_PER_UNIT - 1;
     }
 
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
         if (histogram != null) {
-            histogram.recordValue(value);
+            histogram.recordValue(value / NANOSECONDS_PER_UNIT);
         } else {
             values[size++] = value;
             sorted = false;
         }
     }
 
+    private void mergeBucketCounts(int bucketPrecisionBits, CodedInputStream input)
+            throws IOException {
+        if (bucketPrecisionBits <= 0) {
+            throw new IOException("Invalid histogram bucket precision bits: "
+                    + bucketPrecisionBits);
+        }
+        if (histogram == null) {
+            convertValuesToHistogram();
+        }
+        histogram.mergeEncoded(bucketPrecisionBits, input);
+    }
+
+    private void mergeLegacyEncodedBytes(ByteBuffer encodedBytes) {
+        if (histogram == null) {
+            convertValuesToHistogram();
+        }
+        Histogram legacyHistogram = Histogram.decodeFromByteBuffer(encodedBytes, 0);
+        for (HistogramIterationValue value : legacyHistogram.recordedValues()) {
+            histogram.recordValue(value.getValueIteratedTo() / NANOSECONDS_PER_UNIT,
+                    value.getCountAtValueIteratedTo());
+        }
+    }
+
     private void ensureCapacity(int capacity) {
         if (histogram != null) {
             return;
@@ -152,13 +293,12 @@ public class LazyHistogram {
 
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+        histogram = new CompactHistogram(HISTOGRAM_PRECISION_BITS);
         for (int i = 0; i < size; i++) {
-            histogram.recordValue(values[i]);
+            histogram.recordValue(values[i] / NANOSECONDS_PER_UNIT);
         }
         values = new long[0];
+        size = 0;
     }
 
     private void sortValues() {
@@ -262,7 +262,7 @@ public class MutableProfile {
         return index;
     }
 
-    private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
+    public static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
         }
@@ -28,6 +28,14 @@ class MutableServiceCall {
         this.serviceCallText = serviceCallText;
     }
 
+    double getTotalDurationNanos() {
+        return totalDurationNanos;
+    }
+
+    long getExecutionCount() {
+        return executionCount;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
@@ -70,6 +70,22 @@ public class QueryCollector {
                 hasRows, totalRows, queriesForType);
     }
 
+    public void mergeQueries(QueryCollector toBeMergedQueries) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : toBeMergedQueries.queries
+                .entrySet()) {
+            Map<String, MutableQuery> queriesForType = queries.get(outerEntry.getKey());
+            if (queriesForType == null) {
+                queriesForType = Maps.newHashMap();
+                queries.put(outerEntry.getKey(), queriesForType);
+            }
+            for (MutableQuery query : outerEntry.getValue().values()) {
+                mergeQuery(query.getTruncatedText(), query.getFullTextSha1(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows(), queriesForType);
+            }
+        }
+    }
+
     private void mergeQuery(String truncatedText, @Nullable String fullTextSha1,
             double totalDurationNanos, long executionCount, boolean hasRows, long totalRows,
             Map<String, MutableQuery> queriesForType) {
@@ -90,6 +90,17 @@ public class ServiceCallCollector {
         }
     }
 
+    public void mergeServiceCalls(ServiceCallCollector toBeMergedServiceCalls) {
+        for (Entry<String, Map<String, MutableServiceCall>> outerEntry : toBeMergedServiceCalls
+                .serviceCalls.entrySet()) {
+            for (Entry<String, MutableServiceCall> entry : outerEntry.getValue().entrySet()) {
+                MutableServiceCall serviceCall = entry.getValue();
+                mergeServiceCall(outerEntry.getKey(), entry.getKey(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+        }
+    }
+
     public void mergeServiceCall(String type, String text, double totalDurationNanos,
             long executionCount) {
         Map<String, MutableServiceCall> serviceCallsForType = serviceCalls.get(type);
@@ -16,8 +16,8 @@
 package org.glowroot.common.repo;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
@@ -202,10 +202,15 @@ public class MutableAggregate {
     }
 
     public void mergeDurationNanosHistogram(Aggregate.Histogram toBeMergedDurationNanosHistogram)
-            throws DataFormatException {
+            throws IOException {
         durationNanosHistogram.merge(toBeMergedDurationNanosHistogram);
     }
 
+    public void mergeDurationNanosHistogram(ByteBuffer serializedDurationNanosHistogram)
+            throws IOException {
+        durationNanosHistogram.merge(serializedDurationNanosHistogram);
+    }
+
     public OverviewAggregate toOverviewAggregate(long captureTime) throws IOException {
         ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
                 .captureTime(captureTime)
@@ -67,6 +67,9 @@ public class Gauges {
                 "bytes"));
         patterns.add(
                 new UnitPattern("org.glowroot:type=FileSystem,name=[^:]+:PercentFull", "percent"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=StackTraceCollector:(Total|Last)(Capture|Merge)Nanos",
+                "nanoseconds"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
                 + "keyspace=[^,]+,scope=[^,]+,name=LiveDiskSpaceUsed:Count", "bytes"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// merges the stored data of many intervals (e.g. a full day of level-0 rollup profiles) by
+// building partial collectors over contiguous chunks of the intervals in parallel, and then
+// combining the partial collectors pairwise in a tree reduction
+//
+// the chunk boundaries and the pairing of partial collectors only depend on the number of
+// intervals and the configured number of threads (and not on thread scheduling), so repeated merges
+// of the same data produce the same result
+public class ParallelMerger {
+
+    private static final int DEFAULT_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final int threads;
+    private final @Nullable ThreadPoolExecutor executor;
+
+    public static ParallelMerger create() {
+        return new ParallelMerger(
+                Integer.getInteger("glowroot.aggregate.merge.threads", DEFAULT_THREADS));
+    }
+
+    public ParallelMerger(int threads) {
+        this.threads = threads;
+        if (threads > 1) {
+            executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("Glowroot-Aggregate-Merge-%d").build());
+            // merges are only performed in response to ui requests, so there is no reason to keep
+            // idle threads around (which also means this executor never needs to be shut down)
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    public <T, C> void merge(List<T> intervals, C collector,
+            final IntervalMerger<T, C> intervalMerger) throws Exception {
+        int chunkCount = Math.min(threads, intervals.size());
+        if (executor == null || chunkCount < 2) {
+            for (T interval : intervals) {
+                intervalMerger.mergeInterval(interval, collector);
+            }
+            return;
+        }
+        List<Future<C>> futures = Lists.newArrayList();
+        for (int i = 0; i < chunkCount; i++) {
+            final List<T> chunk = intervals.subList(intervals.size() * i / chunkCount,
+                    intervals.size() * (i + 1) / chunkCount);
+            futures.add(executor.submit(new Callable<C>() {
+                @Override
+                public C call() throws Exception {
+                    C partialCollector = intervalMerger.newPartialCollector();
+                    for (T interval : chunk) {
+                        intervalMerger.mergeInterval(interval, partialCollector);
+                    }
+                    return partialCollector;
+                }
+            }));
+        }
+        List<C> partialCollectors = getAll(futures);
+        while (partialCollectors.size() > 1) {
+            futures = Lists.newArrayList();
+            for (int i = 0; i + 1 < partialCollectors.size(); i += 2) {
+                final C left = partialCollectors.get(i);
+                final C right = partialCollectors.get(i + 1);
+                futures.add(executor.submit(new Callable<C>() {
+                    @Override
+                    public C call() throws Exception {
+                        intervalMerger.mergePartialCollector(right, left);
+                        return left;
+                    }
+                }));
+            }
+            @Nullable C unpaired = null;
+            if (partialCollectors.size() % 2 == 1) {
+                unpaired = partialCollectors.get(partialCollectors.size() - 1);
+            }
+            partialCollectors = getAll(futures);
+            if (unpaired != null) {
+                partialCollectors.add(unpaired);
+            }
+        }
+        intervalMerger.mergePartialCollector(partialCollectors.get(0), collector);
+    }
+
+    private static <C> List<C> getAll(List<Future<C>> futures) throws Exception {
+        List<C> results = Lists.newArrayList();
+        try {
+            for (Future<C> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw e;
+        }
+        return results;
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    public interface IntervalMerger<T, C> {
+
+        C newPartialCollector();
+
+        void mergeInterval(T interval, C collector) throws Exception;
+
+        void mergePartialCollector(C partialCollector, C collector) throws Exception;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedInputStream;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactHistogramTest {
+
+    @Test
+    public void shouldCalculatePrecisionBits() {
+        assertThat(CompactHistogram.getPrecisionBits(2)).isEqualTo(8);
+        assertThat(CompactHistogram.getPrecisionBits(3)).isEqualTo(11);
+        assertThat(CompactHistogram.getPrecisionBits(5)).isEqualTo(18);
+    }
+
+    @Test
+    public void shouldMapValuesToBuckets() {
+        for (int precisionBits : new int[] {8, 11}) {
+            int prevIndex = -1;
+            for (long value = 0; value < 1000000; value++) {
+                int index = CompactHistogram.getIndex(value, precisionBits);
+                long highestEquivalentValue =
+                        CompactHistogram.getHighestEquivalentValue(index, precisionBits);
+                assertThat(index).isGreaterThanOrEqualTo(prevIndex);
+                assertThat(highestEquivalentValue).isGreaterThanOrEqualTo(value);
+                assertThat(highestEquivalentValue - value)
+                        .isLessThanOrEqualTo(Math.max(value >> (precisionBits - 1), 1));
+                assertThat(CompactHistogram.getIndex(highestEquivalentValue, precisionBits))
+                        .isEqualTo(index);
+                prevIndex = index;
+            }
+        }
+    }
+
+    @Test
+    public void shouldMergeDifferentPrecisions() {
+        // given
+        CompactHistogram histogram = new CompactHistogram(11);
+        CompactHistogram lowPrecisionHistogram = new CompactHistogram(8);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordValue(i);
+            lowPrecisionHistogram.recordValue(i);
+        }
+        // when
+        histogram.merge(lowPrecisionHistogram);
+        // then
+        assertThat(histogram.getPrecisionBits()).isEqualTo(8);
+        assertThat(histogram.getTotalCount()).isEqualTo(20000);
+        assertThat(histogram.getValueAtPercentile(50))
+                .isEqualTo(lowPrecisionHistogram.getValueAtPercentile(50));
+        assertThat(histogram.getValueAtPercentile(99))
+                .isEqualTo(lowPrecisionHistogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void shouldEncodeAndMergeEncoded() throws Exception {
+        // given
+        CompactHistogram histogram = new CompactHistogram(11);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordValue(i * 37L);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoByteBuffer(buffer);
+        // when
+        CompactHistogram decoded = new CompactHistogram(11);
+        decoded.mergeEncoded(11, CodedInputStream.newInstance(buffer.array()));
+        CompactHistogram lowPrecisionDecoded = new CompactHistogram(8);
+        lowPrecisionDecoded.mergeEncoded(11, CodedInputStream.newInstance(buffer.array()));
+        // then
+        assertThat(buffer.position()).isEqualTo(buffer.capacity());
+        assertThat(decoded.getTotalCount()).isEqualTo(10000);
+        for (double percentile : new double[] {0, 50, 95, 99, 99.9, 100}) {
+            assertThat(decoded.getValueAtPercentile(percentile))
+                    .isEqualTo(histogram.getValueAtPercentile(percentile));
+        }
+        assertThat(lowPrecisionDecoded.getTotalCount()).isEqualTo(10000);
+        assertThat(lowPrecisionDecoded.getPrecisionBits()).isEqualTo(8);
+    }
+}
@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +82,68 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestEncodeDecodeSerialized() throws Exception {
+        // test smaller numbers in more detail since that is where laziness occurs
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestEncodeDecodeSerialized(i);
+        }
+        shouldTestEncodeDecodeSerialized(10000000);
+        shouldTestEncodeDecodeSerialized(100000000);
+    }
+
+    @Test
+    public void shouldDecodeLegacyHdrHistogram() throws Exception {
+        // given
+        Histogram legacyHistogram = new Histogram(1000, 2000, 5);
+        legacyHistogram.setAutoResize(true);
+        int num = 10000000;
+        for (int i = num; i > 0; i -= 1000) {
+            legacyHistogram.recordValue(i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(legacyHistogram.getNeededByteBufferCapacity());
+        legacyHistogram.encodeIntoByteBuffer(buffer);
+        buffer.flip();
+        Aggregate.Histogram histogram = Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(buffer))
+                .build();
+        // when
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        lazyHistogram.merge(histogram);
+        LazyHistogram lazyHistogram2 = new LazyHistogram();
+        lazyHistogram2.merge(ByteBuffer.wrap(histogram.toByteArray()));
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram2, num, 50);
+        assertPercentile(lazyHistogram2, num, 99);
+    }
+
+    @Test
+    public void shouldEncodeLegacyHdrHistogram() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        int num = 10000000;
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        // when
+        Aggregate.Histogram legacyHistogram =
+                LazyHistogram.toLegacyProto(histogram, new ScratchBuffer());
+        // then
+        assertThat(histogram.getBucketCounts().isEmpty()).isFalse();
+        assertThat(legacyHistogram.getBucketCounts().isEmpty()).isTrue();
+        assertThat(legacyHistogram.getEncodedBytes().isEmpty()).isFalse();
+        Histogram decoded = Histogram.decodeFromByteBuffer(
+                legacyHistogram.getEncodedBytes().asReadOnlyByteBuffer(), 0);
+        assertThat(decoded.getTotalCount()).isEqualTo(num / 1000);
+        LazyHistogram decodedLazyHistogram = new LazyHistogram();
+        decodedLazyHistogram.merge(legacyHistogram);
+        assertPercentile(decodedLazyHistogram, num, 50);
+        assertPercentile(decodedLazyHistogram, num, 99);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -111,6 +177,25 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, num, 99.99);
     }
 
+    private void shouldTestEncodeDecodeSerialized(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        byte[] serialized = lazyHistogram.toProto(new ScratchBuffer()).toByteArray();
+        lazyHistogram = new LazyHistogram();
+        // when
+        lazyHistogram.merge(ByteBuffer.wrap(serialized));
+        lazyHistogram.merge(ByteBuffer.wrap(serialized));
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+        assertPercentile(lazyHistogram, num, 99.99);
+    }
+
     private void shouldTestEncodeDecodeAndAddMore(int num) throws Exception {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
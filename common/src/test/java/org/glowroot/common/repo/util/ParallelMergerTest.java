@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.repo.util.ParallelMerger.IntervalMerger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelMergerTest {
+
+    @Test
+    public void shouldMergeInIntervalOrder() throws Exception {
+        // given
+        List<Integer> intervals = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            intervals.add(i);
+        }
+        // when
+        List<List<Integer>> results = Lists.newArrayList();
+        for (int threads = 1; threads <= 7; threads++) {
+            List<Integer> collector = Lists.newArrayList();
+            new ParallelMerger(threads).merge(intervals, collector, new ListMerger());
+            results.add(collector);
+        }
+        // then
+        for (List<Integer> result : results) {
+            assertThat(result).isEqualTo(intervals);
+        }
+    }
+
+    @Test
+    public void shouldMergeIntoNonEmptyCollector() throws Exception {
+        // given
+        List<Integer> collector = Lists.newArrayList(-1);
+        // when
+        new ParallelMerger(4).merge(Lists.newArrayList(0, 1, 2), collector, new ListMerger());
+        // then
+        assertThat(collector).containsExactly(-1, 0, 1, 2);
+    }
+
+    @Test
+    public void shouldPropagateException() throws Exception {
+        // given
+        List<Integer> intervals = Lists.newArrayList(0, 1, 2, 3, 4, 5, 6, 7);
+        Exception exception = null;
+        // when
+        try {
+            new ParallelMerger(4).merge(intervals, Lists.<Integer>newArrayList(),
+                    new ListMerger() {
+                        @Override
+                        public void mergeInterval(Integer interval, List<Integer> collector)
+                                throws Exception {
+                            if (interval == 5) {
+                                throw new IllegalStateException("five");
+                            }
+                            super.mergeInterval(interval, collector);
+                        }
+                    });
+        } catch (IllegalStateException e) {
+            exception = e;
+        }
+        // then
+        assertThat(exception).isNotNull();
+        assertThat(exception.getMessage()).isEqualTo("five");
+    }
+
+    private static class ListMerger implements IntervalMerger<Integer, List<Integer>> {
+
+        @Override
+        public List<Integer> newPartialCollector() {
+            return Lists.newArrayList();
+        }
+
+        @Override
+        public void mergeInterval(Integer interval, List<Integer> collector) throws Exception {
+            collector.add(interval);
+        }
+
+        @Override
+        public void mergePartialCollector(List<Integer> partialCollector,
+                List<Integer> collector) {
+            collector.addAll(partialCollector);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+
+// caches the aggregates read from the repository for finalized intervals, so that repeated chart
+// requests over the same (or a slowly advancing) time window, e.g. from the dashboard auto-refresh,
+// only need to read the intervals that have been stored since the previous request
+//
+// an interval is only considered finalized once it is both older than FINALIZED_DELAY_MILLIS and
+// no later than the last interval that has actually been stored at the requested rollup level, so
+// that intervals which have not been rolled up yet (e.g. when the rollup is lagging behind) are
+// re-read on subsequent requests instead of being cached as missing
+class AggregateCache {
+
+    private static final long MAX_WEIGHT_BYTES =
+            Long.getLong("glowroot.ui.aggregate.cache.size.kb", 8192) * 1024;
+
+    // the central collector can still receive aggregates for recent intervals from agents that
+    // report late, so only intervals older than this are considered finalized
+    private static final long FINALIZED_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    // cached intervals are re-read periodically so that aggregates received very late (e.g. from an
+    // agent re-connecting to the central collector after an outage) are eventually reflected
+    private static final long MAX_CACHED_AGE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final Clock clock;
+
+    private final Cache<CacheKey, CachedAggregates<?>> cache;
+
+    AggregateCache(Clock clock) {
+        this.clock = clock;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT_BYTES)
+                .weigher(new Weigher<CacheKey, CachedAggregates<?>>() {
+                    @Override
+                    public int weigh(CacheKey key, CachedAggregates<?> value) {
+                        return value.weight;
+                    }
+                })
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build();
+    }
+
+    // query.from() is INCLUSIVE
+    <T> List<T> read(String agentRollupId, TransactionQuery query, AggregateReader<T> reader)
+            throws Exception {
+        long currentTime = clock.currentTimeMillis();
+        long finalizedTo = Math.min(query.to(), currentTime - FINALIZED_DELAY_MILLIS);
+        if (finalizedTo < query.from()) {
+            return reader.read(agentRollupId, query);
+        }
+        CacheKey key = ImmutableCacheKey.of(reader.getClass(), agentRollupId,
+                query.transactionType(), query.transactionName(), query.rollupLevel());
+        @SuppressWarnings("unchecked")
+        CachedAggregates<T> cached = (CachedAggregates<T>) cache.getIfPresent(key);
+        List<T> aggregates = Lists.newArrayList();
+        long uncachedFrom = query.from();
+        long cachedTime = currentTime;
+        if (cached != null && cached.from <= query.from() && cached.to >= query.from()
+                && currentTime - cached.cachedTime < MAX_CACHED_AGE_MILLIS) {
+            for (T aggregate : cached.aggregates) {
+                long captureTime = reader.getCaptureTime(aggregate);
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    aggregates.add(aggregate);
+                }
+            }
+            if (cached.to >= query.to()) {
+                return aggregates;
+            }
+            uncachedFrom = cached.to + 1;
+            cachedTime = cached.cachedTime;
+        }
+        List<T> uncachedAggregates = reader.read(agentRollupId,
+                ImmutableTransactionQuery.copyOf(query).withFrom(uncachedFrom));
+        aggregates.addAll(uncachedAggregates);
+        // aggregates are returned in capture time order, and are rolled up in capture time order
+        long lastRolledUpTime = uncachedAggregates.isEmpty() ? uncachedFrom - 1
+                : reader.getCaptureTime(uncachedAggregates.get(uncachedAggregates.size() - 1));
+        finalizedTo = Math.min(finalizedTo, lastRolledUpTime);
+        if (finalizedTo >= uncachedFrom) {
+            List<T> finalizedAggregates = Lists.newArrayList();
+            for (T aggregate : aggregates) {
+                if (reader.getCaptureTime(aggregate) <= finalizedTo) {
+                    finalizedAggregates.add(aggregate);
+                }
+            }
+            int weight = 0;
+            for (T aggregate : finalizedAggregates) {
+                weight += reader.getWeight(aggregate);
+            }
+            cache.put(key, new CachedAggregates<T>(query.from(), finalizedTo, cachedTime,
+                    finalizedAggregates, weight));
+        }
+        return aggregates;
+    }
+
+    interface AggregateReader<T> {
+
+        // query.from() is INCLUSIVE
+        List<T> read(String agentRollupId, TransactionQuery query) throws Exception;
+
+        long getCaptureTime(T aggregate);
+
+        // rough estimate of the retained size in bytes
+        int getWeight(T aggregate);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CacheKey {
+        // the reader class distinguishes between overview, percentile and throughput aggregates
+        Class<?> readerClass();
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+    }
+
+    private static class CachedAggregates<T> {
+
+        // from and to are both inclusive
+        private final long from;
+        private final long to;
+        private final long cachedTime;
+        private final ImmutableList<T> aggregates;
+        private final int weight;
+
+        private CachedAggregates(long from, long to, long cachedTime, List<T> aggregates,
+                int weight) {
+            this.from = from;
+            this.to = to;
+            this.cachedTime = cachedTime;
+            this.aggregates = ImmutableList.copyOf(aggregates);
+            this.weight = weight;
+        }
+    }
+}
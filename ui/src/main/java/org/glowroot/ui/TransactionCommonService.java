@@ -50,6 +50,7 @@ import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
+import org.glowroot.ui.AggregateCache.AggregateReader;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -60,6 +61,61 @@ class TransactionCommonService {
     private final ConfigRepository configRepository;
     private final Clock clock;
 
+    private final AggregateCache aggregateCache;
+
+    private final AggregateReader<OverviewAggregate> overviewAggregateReader =
+            new AggregateReader<OverviewAggregate>() {
+                @Override
+                public List<OverviewAggregate> read(String agentRollupId, TransactionQuery query)
+                        throws Exception {
+                    return aggregateRepository.readOverviewAggregates(agentRollupId, query);
+                }
+                @Override
+                public long getCaptureTime(OverviewAggregate aggregate) {
+                    return aggregate.captureTime();
+                }
+                @Override
+                public int getWeight(OverviewAggregate aggregate) {
+                    return 200 + 4 * (getSerializedSize(aggregate.mainThreadRootTimers())
+                            + getSerializedSize(aggregate.auxThreadRootTimers())
+                            + getSerializedSize(aggregate.asyncTimers()));
+                }
+            };
+
+    private final AggregateReader<PercentileAggregate> percentileAggregateReader =
+            new AggregateReader<PercentileAggregate>() {
+                @Override
+                public List<PercentileAggregate> read(String agentRollupId, TransactionQuery query)
+                        throws Exception {
+                    return aggregateRepository.readPercentileAggregates(agentRollupId, query);
+                }
+                @Override
+                public long getCaptureTime(PercentileAggregate aggregate) {
+                    return aggregate.captureTime();
+                }
+                @Override
+                public int getWeight(PercentileAggregate aggregate) {
+                    return 100 + 4 * aggregate.durationNanosHistogram().getSerializedSize();
+                }
+            };
+
+    private final AggregateReader<ThroughputAggregate> throughputAggregateReader =
+            new AggregateReader<ThroughputAggregate>() {
+                @Override
+                public List<ThroughputAggregate> read(String agentRollupId, TransactionQuery query)
+                        throws Exception {
+                    return aggregateRepository.readThroughputAggregates(agentRollupId, query);
+                }
+                @Override
+                public long getCaptureTime(ThroughputAggregate aggregate) {
+                    return aggregate.captureTime();
+                }
+                @Override
+                public int getWeight(ThroughputAggregate aggregate) {
+                    return 50;
+                }
+            };
+
     TransactionCommonService(AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
             Clock clock) {
@@ -67,6 +123,7 @@ class TransactionCommonService {
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
         this.clock = clock;
+        aggregateCache = new AggregateCache(clock);
     }
 
     // query.from() is non-inclusive
@@ -128,7 +185,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<OverviewAggregate> aggregates =
-                aggregateRepository.readOverviewAggregates(agentRollupId, revisedQuery);
+                aggregateCache.read(agentRollupId, revisedQuery, overviewAggregateReader);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -178,7 +235,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId, revisedQuery);
+                aggregateCache.read(agentRollupId, revisedQuery, percentileAggregateReader);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -228,7 +285,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<ThroughputAggregate> aggregates =
-                aggregateRepository.readThroughputAggregates(agentRollupId, revisedQuery);
+                aggregateCache.read(agentRollupId, revisedQuery, throughputAggregateReader);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -516,6 +573,14 @@ class TransactionCommonService {
         return collector.getProfile();
     }
 
+    private static int getSerializedSize(List<Aggregate.Timer> timers) {
+        int size = 0;
+        for (Aggregate.Timer timer : timers) {
+            size += timer.getSerializedSize();
+        }
+        return size;
+    }
+
     private int getMaxAggregateQueriesPerType(String agentRollupId) throws IOException {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(agentRollupId);
         if (advancedConfig != null && advancedConfig.hasMaxAggregateQueriesPerType()) {
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.ui.AggregateCache.AggregateReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateCacheTest {
+
+    private static final long MINUTE = 60000;
+
+    private long currentTime;
+    private AggregateCache aggregateCache;
+    private ThroughputReader reader;
+
+    @Before
+    public void beforeEachTest() {
+        currentTime = 100 * MINUTE;
+        aggregateCache = new AggregateCache(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return currentTime;
+            }
+        });
+        reader = new ThroughputReader();
+    }
+
+    @Test
+    public void shouldOnlyReadUncachedTail() throws Exception {
+        // given
+        aggregateCache.read("", query(10 * MINUTE, 100 * MINUTE), reader);
+        currentTime += MINUTE;
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.read("", query(11 * MINUTE, 101 * MINUTE), reader);
+
+        // then
+        assertThat(aggregates).hasSize(91);
+        assertThat(aggregates.get(0).captureTime()).isEqualTo(11 * MINUTE);
+        assertThat(aggregates.get(90).captureTime()).isEqualTo(101 * MINUTE);
+        assertThat(reader.queries).hasSize(2);
+        // only the intervals that were not finalized at the time of the first read are re-read
+        assertThat(reader.queries.get(1).from()).isEqualTo(98 * MINUTE + 1);
+    }
+
+    @Test
+    public void shouldNotCacheNonFinalizedIntervals() throws Exception {
+        // when
+        aggregateCache.read("", query(99 * MINUTE, 100 * MINUTE), reader);
+        aggregateCache.read("", query(99 * MINUTE, 100 * MINUTE), reader);
+
+        // then
+        assertThat(reader.queries).hasSize(2);
+        assertThat(reader.queries.get(1).from()).isEqualTo(99 * MINUTE);
+    }
+
+    @Test
+    public void shouldNotUseCacheForEarlierFrom() throws Exception {
+        // given
+        aggregateCache.read("", query(10 * MINUTE, 50 * MINUTE), reader);
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.read("", query(5 * MINUTE, 50 * MINUTE), reader);
+
+        // then
+        assertThat(aggregates).hasSize(46);
+        assertThat(reader.queries).hasSize(2);
+        assertThat(reader.queries.get(1).from()).isEqualTo(5 * MINUTE);
+    }
+
+    @Test
+    public void shouldUseCacheForFullyFinalizedQuery() throws Exception {
+        // given
+        aggregateCache.read("", query(10 * MINUTE, 50 * MINUTE), reader);
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.read("", query(20 * MINUTE, 30 * MINUTE), reader);
+
+        // then
+        assertThat(aggregates).hasSize(11);
+        assertThat(reader.queries).hasSize(1);
+    }
+
+    @Test
+    public void shouldReReadIntervalsThatWereNotRolledUpYet() throws Exception {
+        // given
+        // the rollup is lagging behind, so the last few intervals are still missing at the time of
+        // the first read, well past the finalized delay
+        reader.lastRolledUpTime = 90 * MINUTE;
+        aggregateCache.read("", query(10 * MINUTE, 100 * MINUTE), reader);
+        reader.lastRolledUpTime = Long.MAX_VALUE;
+        currentTime += MINUTE;
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.read("", query(11 * MINUTE, 101 * MINUTE), reader);
+
+        // then
+        assertThat(aggregates).hasSize(91);
+        assertThat(aggregates.get(79).captureTime()).isEqualTo(90 * MINUTE);
+        assertThat(aggregates.get(80).captureTime()).isEqualTo(91 * MINUTE);
+        assertThat(reader.queries).hasSize(2);
+        assertThat(reader.queries.get(1).from()).isEqualTo(90 * MINUTE + 1);
+    }
+
+    @Test
+    public void shouldNotCacheWhenNothingRolledUpYet() throws Exception {
+        // given
+        reader.lastRolledUpTime = 0;
+        aggregateCache.read("", query(10 * MINUTE, 100 * MINUTE), reader);
+        reader.lastRolledUpTime = Long.MAX_VALUE;
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.read("", query(10 * MINUTE, 100 * MINUTE), reader);
+
+        // then
+        assertThat(aggregates).hasSize(91);
+        assertThat(reader.queries).hasSize(2);
+        assertThat(reader.queries.get(1).from()).isEqualTo(10 * MINUTE);
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+
+    // returns one aggregate per minute, up to lastRolledUpTime
+    private static class ThroughputReader implements AggregateReader<ThroughputAggregate> {
+
+        private final List<TransactionQuery> queries = Lists.newArrayList();
+
+        private long lastRolledUpTime = Long.MAX_VALUE;
+
+        @Override
+        public List<ThroughputAggregate> read(String agentRollupId, TransactionQuery query) {
+            queries.add(query);
+            List<ThroughputAggregate> aggregates = Lists.newArrayList();
+            long captureTime = (long) Math.ceil(query.from() / (double) MINUTE) * MINUTE;
+            long to = Math.min(query.to(), lastRolledUpTime);
+            for (; captureTime <= to; captureTime += MINUTE) {
+                aggregates.add(ImmutableThroughputAggregate.of(captureTime, 1));
+            }
+            return aggregates;
+        }
+
+        @Override
+        public long getCaptureTime(ThroughputAggregate aggregate) {
+            return aggregate.captureTime();
+        }
+
+        @Override
+        public int getWeight(ThroughputAggregate aggregate) {
+            return 50;
+        }
+    }
+}